@@ -42,6 +42,12 @@ public class ApkFolders {
         return new File(getDex2cSrcDir(), "generated");
     }
 
+    //增量转换时保存随机opcode的种子,每次生成一样的指令映射
+    @Nonnull
+    public File getOpcodeSeedFile() {
+        return new File(getDex2cSrcDir(), "opcode_seed");
+    }
+
     //在处理过的classes.dex里插入jni初始化代码及主classes.dex加载so库代码,生成新dex输出目录
     //这个目录可以删除,但是为了更好debug之类就保留了方便查看dex
     @Nonnull
@@ -52,11 +58,21 @@ public class ApkFolders {
 
     @Nonnull
     public File getOutputApk() {
+        return new File(outRootDir, getBaseName() + "-protect.apk");
+    }
+
+    //各阶段耗时等统计,和输出apk放在一起
+    @Nonnull
+    public File getMetricsFile() {
+        return new File(outRootDir, getBaseName() + "-protect.metrics.json");
+    }
+
+    private String getBaseName() {
         String name = inApk.getName();
         final int i = name.lastIndexOf('.');
         if (i != -1) {
             name = name.substring(0, i);
         }
-        return new File(outRootDir, name + "-protect.apk");
+        return name;
     }
 }
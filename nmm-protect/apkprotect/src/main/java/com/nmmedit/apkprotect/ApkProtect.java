@@ -1,26 +1,29 @@
 package com.nmmedit.apkprotect;
 
 import com.nmmedit.apkprotect.andres.AxmlEdit;
+import com.nmmedit.apkprotect.dex2c.ClassDefIndex;
 import com.nmmedit.apkprotect.dex2c.Dex2c;
+import com.nmmedit.apkprotect.dex2c.Dex2cOptions;
 import com.nmmedit.apkprotect.dex2c.DexConfig;
 import com.nmmedit.apkprotect.dex2c.GlobalDexConfig;
+import com.nmmedit.apkprotect.dex2c.MemoryDex;
+import com.nmmedit.apkprotect.dex2c.converter.CEmitter;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.InstructionRewriter;
 import com.nmmedit.apkprotect.dex2c.converter.structs.RegisterNativesUtilClassDef;
 import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
+import com.nmmedit.apkprotect.metrics.BuildMetrics;
+import com.nmmedit.apkprotect.metrics.DexMetrics;
 import com.nmmedit.apkprotect.sign.ApkVerifyCodeGenerator;
 import com.nmmedit.apkprotect.util.ApkUtils;
+import com.nmmedit.apkprotect.util.RawZipWriter;
 import org.jf.dexlib2.Opcodes;
-import org.jf.dexlib2.dexbacked.DexBackedClassDef;
-import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
-import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.dexlib2.writer.pool.DexPool;
 
 import javax.annotation.Nonnull;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.rmi.RemoteException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,17 +34,34 @@ public class ApkProtect {
 
     public static final String ANDROID_MANIFEST_XML = "AndroidManifest.xml";
     public static final String ANDROID_APP_APPLICATION = "android.app.Application";
+    //需要替换的文件,不从原apk复制
+    private static final Pattern NEED_REPLACE_ENTRIES = Pattern.compile(
+            "classes(\\d)*\\.dex" +
+                    "|META-INF/.*\\.(RSA|DSA|EC|SF|MF)" +
+                    "|AndroidManifest\\.xml");
+    //vmsrc.zip里的文件内容
+    private static Map<String, byte[]> vmSources;
+
     @Nonnull
     private final ApkFolders apkFolders;
     @Nonnull
     private final InstructionRewriter instructionRewriter;
     private final ApkVerifyCodeGenerator apkVerifyCodeGenerator;
     private final ClassAndMethodFilter filter;
+    @Nonnull
+    private final Dex2cOptions dex2cOptions;
+    //编译native lib时总的任务数
+    private final int nativeBuildJobs;
+    //已编译so缓存,为null时不使用缓存
+    private final NativeLibCache nativeLibCache;
 
     private ApkProtect(@Nonnull ApkFolders apkFolders,
                        @Nonnull InstructionRewriter instructionRewriter,
                        ApkVerifyCodeGenerator apkVerifyCodeGenerator,
-                       ClassAndMethodFilter filter
+                       ClassAndMethodFilter filter,
+                       @Nonnull Dex2cOptions dex2cOptions,
+                       int nativeBuildJobs,
+                       NativeLibCache nativeLibCache
     ) {
         this.apkFolders = apkFolders;
 
@@ -49,61 +69,95 @@ public class ApkProtect {
 
         this.apkVerifyCodeGenerator = apkVerifyCodeGenerator;
         this.filter = filter;
+        this.dex2cOptions = dex2cOptions;
+        this.nativeBuildJobs = nativeBuildJobs;
+        this.nativeLibCache = nativeLibCache;
 
     }
 
     public void run() throws IOException {
         final File apkFile = apkFolders.getInApk();
         final File zipExtractDir = apkFolders.getZipExtractTempDir();
+        //各阶段耗时等统计,处理完成后写入输出apk旁边
+        final BuildMetrics metrics = new BuildMetrics(apkFile.getName());
 
         try {
-            byte[] manifestBytes = ApkUtils.getFile(apkFile, ANDROID_MANIFEST_XML);
-            if (manifestBytes == null) {
-                //错误apk文件
-                throw new RuntimeException("Not is apk");
+            final byte[] manifestBytes;
+            final String applicationClass;
+            final String packageName;
+            final BuildMetrics.Phase parsePhase = metrics.phase("manifest parse");
+            try {
+                manifestBytes = ApkUtils.getFile(apkFile, ANDROID_MANIFEST_XML);
+                if (manifestBytes == null) {
+                    //错误apk文件
+                    throw new RuntimeException("Not is apk");
+                }
+                applicationClass = AxmlEdit.getApplicationName(manifestBytes);
+                packageName = AxmlEdit.getPackageName(manifestBytes);
+            } finally {
+                parsePhase.close();
             }
-            final String applicationClass = AxmlEdit.getApplicationName(manifestBytes);
-            final String packageName = AxmlEdit.getPackageName(manifestBytes);
 
 
             //生成一些需要改变的c代码(随机opcode后的头文件及apk验证代码等)
-            generateCSources(packageName);
+            final BuildMetrics.Phase sourcePhase = metrics.phase("c source generation");
+            try {
+                generateCSources(packageName);
+            } finally {
+                sourcePhase.close();
+            }
 
-            //解压得到所有classesN.dex
-            List<File> files = getClassesFiles(apkFile, zipExtractDir);
-            if (files.isEmpty()) {
-                throw new RuntimeException("No classes.dex");
+            final GlobalDexConfig globalConfig;
+            try (BuildMetrics.Phase phase = metrics.phase("dex conversion")) {
+                //解压得到所有classesN.dex
+                List<File> files = getClassesFiles(apkFile, zipExtractDir);
+                if (files.isEmpty()) {
+                    throw new RuntimeException("No classes.dex");
+                }
+                //globalConfig里面configs顺序和classesN.dex文件列表一样
+                globalConfig = Dex2c.handleDexes(files,
+                        filter,
+                        instructionRewriter,
+                        apkFolders.getCodeGeneratedDir(),
+                        dex2cOptions);
+
+                final boolean parallel = Math.min(dex2cOptions.getThreads(), files.size()) > 1;
+                for (DexConfig config : globalConfig.getConfigs()) {
+                    final DexMetrics dexMetrics = config.getMetrics();
+                    metrics.addDexMetrics(dexMetrics);
+                    if (parallel) {
+                        //在其他线程里转换,需要加上它们的统计
+                        phase.addUsage(dexMetrics.getCpuNanos(), dexMetrics.getAllocatedBytes());
+                    }
+                }
             }
-            //globalConfig里面configs顺序和classesN.dex文件列表一样
-            final GlobalDexConfig globalConfig = Dex2c.handleDexes(files,
-                    filter,
-                    instructionRewriter,
-                    apkFolders.getCodeGeneratedDir());
 
 
             //需要放在主dex里的类
             final Set<String> mainDexClassTypeSet = new HashSet<>();
             //todo 可能需要通过外部配置来保留主dex需要的class
 
-            //application class 继承关系
-            final List<String> appClassTypes = getMainDexClasses(globalConfig, applicationClass);
-
-            mainDexClassTypeSet.addAll(appClassTypes);
-
-
-            //在处理过的class的静态初始化方法里插入调用注册本地方法的指令
-            //static {
-            //    NativeUtils.initClass(0);
-            //}
-            final List<File> outDexFiles = injectInstructionAndWriteToFile(
-                    globalConfig,
-                    mainDexClassTypeSet,
-                    60000,
-                    apkFolders.getTempDexDir());
-
-
-            //主dex里处理so加载问题
-            File mainDex = outDexFiles.get(0);
+            final List<String> appClassTypes;
+            final List<MemoryDex> outDexes;
+            final BuildMetrics.Phase injectionPhase = metrics.phase("injection");
+            try {
+                //application class 继承关系
+                appClassTypes = getMainDexClasses(globalConfig, applicationClass);
+
+                mainDexClassTypeSet.addAll(appClassTypes);
+
+
+                //在处理过的class的静态初始化方法里插入调用注册本地方法的指令
+                //static {
+                //    NativeUtils.initClass(0);
+                //}
+                outDexes = injectInstruction(
+                        globalConfig,
+                        mainDexClassTypeSet,
+                        60000);
+            } finally {
+                injectionPhase.close();
+            }
 
             //Application对应的
             final String appName;
@@ -115,47 +169,66 @@ public class ApkProtect {
             }
 
 
-            //处理AndroidManifest.xml文件
-            final File newManifestFile = handleApplicationClass(
-                    manifestBytes,
-                    appName,
-                    mainDex,
-                    globalConfig,
-                    apkFolders.getOutRootDir());
+            //处理AndroidManifest.xml文件,同时在主dex里处理so加载问题
+            final File newManifestFile;
+            final BuildMetrics.Phase manifestPhase = metrics.phase("manifest rewrite");
+            try {
+                newManifestFile = handleApplicationClass(
+                        manifestBytes,
+                        appName,
+                        outDexes,
+                        globalConfig,
+                        apkFolders.getOutRootDir());
+            } finally {
+                manifestPhase.close();
+            }
 
-            final Map<String, List<File>> nativeLibs = generateNativeLibs(apkFolders);
+            if (dex2cOptions.isKeepDexFiles()) {
+                //最终dex写入文件方便调试
+                for (int i = 0; i < outDexes.size(); i++) {
+                    outDexes.get(i).writeTo(new File(apkFolders.getTempDexDir(), getDexFileName(i)));
+                }
+            }
 
+            final Map<String, List<File>> nativeLibs;
+            final BuildMetrics.Phase nativePhase = metrics.phase("native build");
+            try {
+                nativeLibs = generateNativeLibs(apkFolders, nativeBuildJobs, nativeLibCache, metrics);
+            } finally {
+                nativePhase.close();
+            }
 
-            try (
-                    final ZipInputStream zipInput = new ZipInputStream(new FileInputStream(apkFile));
-                    final ZipOutputStream zipOutput = new ZipOutputStream(new FileOutputStream(apkFolders.getOutputApk()));
-            ) {
-                zipCopy(zipInput, apkFolders.getZipExtractTempDir(), zipOutput);
 
-                //add AndroidManifest.xml
-                addFileToZip(zipOutput, newManifestFile, new ZipEntry(ANDROID_MANIFEST_XML));
+            final BuildMetrics.Phase zipPhase = metrics.phase("zip write");
+            try {
+                try (final RawZipWriter zipWriter = new RawZipWriter(apkFolders.getOutputApk())) {
+                    //不需要修改的文件直接复制压缩数据
+                    zipWriter.copyEntries(apkFile, name -> !NEED_REPLACE_ENTRIES.matcher(name).matches());
 
-                //add classesX.dex
-                for (File file : outDexFiles) {
-                    final ZipEntry zipEntry = new ZipEntry(file.getName());
+                    //add AndroidManifest.xml
+                    zipWriter.putFile(ANDROID_MANIFEST_XML, newManifestFile);
 
-                    addFileToZip(zipOutput, file, zipEntry);
-                }
+                    //add classesX.dex
+                    for (int i = 0; i < outDexes.size(); i++) {
+                        zipWriter.putStream(getDexFileName(i), outDexes.get(i).openStream());
+                    }
 
-                //add native libs
-                for (Map.Entry<String, List<File>> entry : nativeLibs.entrySet()) {
-                    final String abi = entry.getKey();
-                    for (File file : entry.getValue()) {
-                        final ZipEntry zipEntry = new ZipEntry("lib/" + abi + "/" + file.getName());
+                    //add native libs
+                    for (Map.Entry<String, List<File>> entry : nativeLibs.entrySet()) {
+                        final String abi = entry.getKey();
+                        for (File file : entry.getValue()) {
+                            zipWriter.putFile("lib/" + abi + "/" + file.getName(), file);
+                        }
 
-                        addFileToZip(zipOutput, file, zipEntry);
                     }
 
-                }
-
 
+                }
+            } finally {
+                zipPhase.close();
             }
 
+            metrics.writeJson(apkFolders.getMetricsFile());
         } finally {
             //删除解压缓存目录
             deleteFile(zipExtractDir);
@@ -165,17 +238,10 @@ public class ApkProtect {
 
     }
 
-    private void addFileToZip(ZipOutputStream zipOutput, File file, ZipEntry zipEntry) throws IOException {
-        zipOutput.putNextEntry(zipEntry);
-        try (
-                FileInputStream input = new FileInputStream(file);
-        ) {
-            copyStream(input, zipOutput);
-        }
-        zipOutput.closeEntry();
-    }
-
-    private static Map<String, List<File>> generateNativeLibs(ApkFolders apkFolders) throws IOException {
+    private static Map<String, List<File>> generateNativeLibs(ApkFolders apkFolders,
+                                                              int jobs,
+                                                              NativeLibCache cache,
+                                                              BuildMetrics metrics) throws IOException {
         String cmakePath = System.getenv("CMAKE_PATH");
         if (isEmpty(cmakePath)) {
             System.err.println("No CMAKE_PATH");
@@ -201,22 +267,21 @@ public class ApkProtect {
         ) {
             copyStream(in, out);
         }
-        final Map<String, List<File>> allLibs = new HashMap<>();
         try {
             final List<String> abis = getAbis(apkFile);
+            final List<BuildNativeLib.CMakeOptions> optionsList = new ArrayList<>();
             for (String abi : abis) {
                 final BuildNativeLib.CMakeOptions cmakeOptions = new BuildNativeLib.CMakeOptions(cmakePath,
                         sdkHome,
                         ndkHome, 21,
                         outRootDir.getAbsolutePath(), BuildNativeLib.CMakeOptions.BuildType.RELEASE, abi);
-                final List<File> files = BuildNativeLib.build(script.getPath(), cmakeOptions);
-                allLibs.put(abi, files);
+                optionsList.add(cmakeOptions);
             }
-
+            //多个abi同时编译
+            return new NativeBuildScheduler(script.getPath(), jobs, cache, metrics).build(optionsList);
         } finally {
             script.delete();
         }
-        return allLibs;
 
     }
 
@@ -244,9 +309,18 @@ public class ApkProtect {
     }
 
     private void generateCSources(String packageName) throws IOException {
-        final List<File> cSources = ApkUtils.extractFiles(
-                ApkProtect.class.getResourceAsStream("/vmsrc.zip"), ".*", apkFolders.getDex2cSrcDir()
-        );
+        final File srcDir = apkFolders.getDex2cSrcDir();
+        final List<File> cSources = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : getVmSources().entrySet()) {
+            final File file = new File(srcDir, entry.getKey());
+            if (!file.getParentFile().exists()) {
+                file.getParentFile().mkdirs();
+            }
+            try (FileOutputStream output = new FileOutputStream(file)) {
+                output.write(entry.getValue());
+            }
+            cSources.add(file);
+        }
         //处理指令及apk验证,生成新的c文件
         for (File source : cSources) {
             if (source.getName().endsWith("DexOpcodes.h")) {
@@ -259,6 +333,17 @@ public class ApkProtect {
         }
     }
 
+    //虚拟机源码只需要解压一次,同一进程里多个任务共用
+    private static synchronized Map<String, byte[]> getVmSources() throws IOException {
+        if (vmSources == null) {
+            try (InputStream in = ApkProtect.class.getResourceAsStream("/vmsrc.zip")) {
+                //忽略目录
+                vmSources = Collections.unmodifiableMap(ApkUtils.getFiles(in, Pattern.compile(".*[^/]")));
+            }
+        }
+        return vmSources;
+    }
+
     @Nonnull
     private static List<File> getClassesFiles(File apkFile, File zipExtractDir) throws IOException {
         List<File> files = ApkUtils.extractFiles(apkFile, "classes(\\d+)*\\.dex", zipExtractDir);
@@ -307,8 +392,8 @@ public class ApkProtect {
                 .replaceAll(String.format("_name[kNumPackedOpcodes] = {        \\\\\n%s};\n", gotoTableContent));
 
 
-        try (FileWriter fileWriter = new FileWriter(source)) {
-            fileWriter.write(headerContent);
+        try (CEmitter emitter = CEmitter.open(source)) {
+            emitter.write(headerContent);
         }
 
     }
@@ -327,25 +412,19 @@ public class ApkProtect {
         String content = lines.replaceAll(dataPlaceHolder, dataPlaceHolder + apkVerifyCodeGenerator.generate());
         content = content.replaceAll("(#define PACKAGE_NAME) .*\n", "$1 \"" + packageName + "\"\n");
 
-        try (FileWriter fileWriter = new FileWriter(source)) {
-            fileWriter.write(content);
+        try (CEmitter emitter = CEmitter.open(source)) {
+            emitter.write(content);
         }
     }
 
 
+    //根据索引得到dex文件名
     @Nonnull
-    private static File dexWriteToFile(DexPool dexPool, int index, File dexOutDir) throws IOException {
-        if (!dexOutDir.exists()) dexOutDir.mkdirs();
-
-        File outDexFile;
+    private static String getDexFileName(int index) {
         if (index == 0) {
-            outDexFile = new File(dexOutDir, "classes.dex");
-        } else {
-            outDexFile = new File(dexOutDir, String.format("classes%d.dex", index + 1));
+            return "classes.dex";
         }
-        dexPool.writeTo(new FileDataStore(outDexFile));
-
-        return outDexFile;
+        return String.format("classes%d.dex", index + 1);
     }
 
     @Nonnull
@@ -353,75 +432,48 @@ public class ApkProtect {
         final List<String> mainDexClassList = new ArrayList<>();
         String tmpType = classDotNameToType(applicationClass);
         mainDexClassList.add(tmpType);
-        for (DexConfig config : globalConfig.getConfigs()) {
-            DexBackedDexFile dexFile = DexBackedDexFile.fromInputStream(
-                    Opcodes.getDefault(),
-                    new BufferedInputStream(new FileInputStream(config.getNativeDexFile())));
-            final Set<? extends DexBackedClassDef> classes = dexFile.getClasses();
-            ClassDef classDef;
-            while (true) {
-                classDef = getClassDefFromType(classes, tmpType);
-                if (classDef == null) {
-                    break;
-                }
-                if (classDotNameToType(ANDROID_APP_APPLICATION).equals(classDef.getSuperclass())) {
-                    return mainDexClassList;
-                }
-                tmpType = classDef.getSuperclass();
-                mainDexClassList.add(tmpType);
+        //父类可能在任意dex里
+        final ClassDefIndex index = globalConfig.getClassDefIndex();
+        ClassDef classDef;
+        while ((classDef = index.getClassDef(tmpType)) != null) {
+            if (classDotNameToType(ANDROID_APP_APPLICATION).equals(classDef.getSuperclass())) {
+                return mainDexClassList;
             }
-
-
+            tmpType = classDef.getSuperclass();
+            mainDexClassList.add(tmpType);
         }
         return mainDexClassList;
     }
 
-    private static ClassDef getClassDefFromType(Set<? extends ClassDef> classDefSet, String type) {
-        for (ClassDef classDef : classDefSet) {
-            if (classDef.getType().equals(type)) {
-                return classDef;
-            }
-        }
-        return null;
-    }
-
     /**
      * 给处理过的class注入静态初始化方法,同时dex适当拆分防止dex索引异常
-     * 不缓存写好的dexpool,每次切换dexpool时马上把失效的dexpool写入文件,减小内存占用
+     * 不缓存写好的dexpool,每次切换dexpool时马上把失效的dexpool序列化到内存,减小内存占用
      *
      * @param globalConfig
      * @param mainClassSet
      * @param maxPoolSize
-     * @param dexOutDir
-     * @return
+     * @return 按classesN.dex顺序排列的dex
      * @throws IOException
      */
     @Nonnull
-    private static List<File> injectInstructionAndWriteToFile(GlobalDexConfig globalConfig,
-                                                              Set<String> mainClassSet,
-                                                              int maxPoolSize,
-                                                              File dexOutDir
+    private static List<MemoryDex> injectInstruction(GlobalDexConfig globalConfig,
+                                                     Set<String> mainClassSet,
+                                                     int maxPoolSize
     ) throws IOException {
 
-        final List<File> dexFiles = new ArrayList<>();
+        final List<MemoryDex> dexFiles = new ArrayList<>();
 
         DexPool lastDexPool = new DexPool(Opcodes.getDefault());
 
         final List<DexConfig> configs = globalConfig.getConfigs();
         //第一个dex为main dex
         //提前处理主dex里的类
-        for (DexConfig config : configs) {
-
-            DexBackedDexFile dexNativeFile = DexBackedDexFile.fromInputStream(
-                    Opcodes.getDefault(),
-                    new BufferedInputStream(new FileInputStream(config.getNativeDexFile())));
-
-            for (ClassDef classDef : dexNativeFile.getClasses()) {
-                if (mainClassSet.contains(classDef.getType())) {
-                    Dex2c.internClass(config, lastDexPool, classDef);
-                }
+        final ClassDefIndex index = globalConfig.getClassDefIndex();
+        for (String type : mainClassSet) {
+            final ClassDef classDef = index.getClassDef(type);
+            if (classDef != null) {
+                Dex2c.internClass(index.getDexConfig(type), lastDexPool, classDef);
             }
-
         }
 
         for (int i = 0; i < configs.size(); i++) {
@@ -432,21 +484,15 @@ public class ApkProtect {
             }
             if (retPools.size() > 1) {
                 for (int k = 0; k < retPools.size() - 1; k++) {
-                    final int size = dexFiles.size();
-                    final File file = dexWriteToFile(retPools.get(k), size, dexOutDir);
-                    dexFiles.add(file);
+                    dexFiles.add(MemoryDex.of(retPools.get(k)));
                 }
 
                 lastDexPool = retPools.get(retPools.size() - 1);
                 if (i == configs.size() - 1) {
-                    final int size = dexFiles.size();
-                    final File file = dexWriteToFile(lastDexPool, size, dexOutDir);
-                    dexFiles.add(file);
+                    dexFiles.add(MemoryDex.of(lastDexPool));
                 }
             } else {
-                final int size = dexFiles.size();
-                final File file = dexWriteToFile(retPools.get(0), size, dexOutDir);
-                dexFiles.add(file);
+                dexFiles.add(MemoryDex.of(retPools.get(0)));
 
 
                 lastDexPool = new DexPool(Opcodes.getDefault());
@@ -459,7 +505,7 @@ public class ApkProtect {
     /**
      * @param manifestBytes        二进制androidManifest.xml文件内容
      * @param applicationClassName application对应的class全限定名
-     * @param mainDex              主dex文件
+     * @param outDexes             所有输出dex,第一个为主dex,处理后替换掉
      * @param outDir               处理后输出androidManifest.xml的目录
      * @return 返回新二进制xml文件
      * @throws IOException
@@ -467,7 +513,7 @@ public class ApkProtect {
     @Nonnull
     private static File handleApplicationClass(byte[] manifestBytes,
                                                String applicationClassName,
-                                               File mainDex,
+                                               List<MemoryDex> outDexes,
                                                GlobalDexConfig globalConfig,
                                                File outDir) throws IOException {
         String newAppClassName;
@@ -486,9 +532,7 @@ public class ApkProtect {
 
         //添加android.app.Application的子类
 
-        DexFile mainDexFile = DexBackedDexFile.fromInputStream(
-                Opcodes.getDefault(),
-                new BufferedInputStream(new FileInputStream(mainDex)));
+        DexFile mainDexFile = outDexes.get(0).toDexFile(Opcodes.getDefault());
         DexPool newDex = new DexPool(Opcodes.getDefault());
 
         Dex2c.addApplicationClass(
@@ -506,15 +550,7 @@ public class ApkProtect {
                 new RegisterNativesUtilClassDef("L" + globalConfig.getConfigs().get(0).getRegisterNativesClassName() + ";",
                         nativeMethodNames));
 
-        final File newFile = new File(mainDex.getParent(), ".temp.dex");
-        newDex.writeTo(new FileDataStore(newFile));
-        if (mainDex.delete()) {
-            if (!newFile.renameTo(mainDex)) {
-                throw new RemoteException("Can't handle main dex");
-            }
-        } else {
-            throw new RemoteException("Can't handle main dex");
-        }
+        outDexes.set(0, MemoryDex.of(newDex));
 
 
         //写入新manifest文件
@@ -527,63 +563,6 @@ public class ApkProtect {
         return newManifestFile;
     }
 
-    //只解压不需要处理的文件,同时计算crc32
-    private static HashMap<ZipEntry, FileObj> zipExtractNeedCopy(ZipInputStream zipInputStream, File outDir) throws IOException {
-        //除去一些需要修改的文件
-        final Pattern regex = Pattern.compile(
-                "classes(\\d)*\\.dex" +
-                        "|META-INF/.*\\.(RSA|DSA|EC|SF|MF)" +
-                        "|AndroidManifest\\.xml");
-        final HashMap<ZipEntry, FileObj> entryNameFileMap = new HashMap<>();
-        ZipEntry entry;
-        while ((entry = zipInputStream.getNextEntry()) != null) {
-            if (entry.isDirectory()
-                    || "".equals(entry.getName())) {
-                continue;
-            }
-            if (regex.matcher(entry.getName()).matches()) {
-                continue;
-            }
-
-            final File file = new File(outDir, entry.getName());
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
-            }
-            try (final FileOutputStream out = new FileOutputStream(file)) {
-                final long crc = copyStreamCalcCrc32(zipInputStream, out);
-                entryNameFileMap.put(entry, new FileObj(file, crc));
-            }
-        }
-
-        return entryNameFileMap;
-    }
-
-    private static void zipCopy(ZipInputStream zipInputStream, File tempDir, ZipOutputStream zipOutputStream) throws IOException {
-
-        //解压需要从旧zip复制到新zip的文件
-        final HashMap<ZipEntry, FileObj> entries = zipExtractNeedCopy(zipInputStream, tempDir);
-        for (Map.Entry<ZipEntry, FileObj> entryFile : entries.entrySet()) {
-            final ZipEntry entry = entryFile.getKey();
-            final FileObj fileObj = entryFile.getValue();
-
-
-            final ZipEntry zipEntry = new ZipEntry(entry.getName());
-            if (entry.getMethod() == ZipEntry.STORED) {//不压缩只储存数据
-                zipEntry.setMethod(ZipEntry.STORED);
-                zipEntry.setCrc(fileObj.crc32);
-                zipEntry.setSize(fileObj.file.length());
-                zipEntry.setCompressedSize(fileObj.file.length());
-            }
-
-            zipOutputStream.putNextEntry(zipEntry);
-
-            try (final FileInputStream fileIn = new FileInputStream(fileObj.file)) {
-                copyStream(fileIn, zipOutputStream);
-            }
-            zipOutputStream.closeEntry();
-        }
-    }
-
     //递归删除目录
     private static void deleteFile(File file) {
         if (file == null) {
@@ -604,17 +583,6 @@ public class ApkProtect {
         return "L" + classDotName.replace('.', '/') + ";";
     }
 
-    private static long copyStreamCalcCrc32(InputStream in, OutputStream out) throws IOException {
-        final CRC32 crc32 = new CRC32();
-        byte[] buf = new byte[4 * 1024];
-        int len;
-        while ((len = in.read(buf)) != -1) {
-            out.write(buf, 0, len);
-            crc32.update(buf, 0, len);
-        }
-        return crc32.getValue();
-    }
-
     private static void copyStream(InputStream in, OutputStream out) throws IOException {
         byte[] buf = new byte[4 * 1024];
         int len;
@@ -623,21 +591,14 @@ public class ApkProtect {
         }
     }
 
-    private static class FileObj {
-        private final File file;
-        private final long crc32;
-
-        FileObj(File file, long crc32) {
-            this.file = file;
-            this.crc32 = crc32;
-        }
-    }
-
     public static class Builder {
         private final ApkFolders apkFolders;
         private InstructionRewriter instructionRewriter;
         private ApkVerifyCodeGenerator apkVerifyCodeGenerator;
         private ClassAndMethodFilter filter;
+        private Dex2cOptions dex2cOptions;
+        private int nativeBuildJobs = 1;
+        private NativeLibCache nativeLibCache;
 
 
         public Builder(ApkFolders apkFolders) {
@@ -659,11 +620,31 @@ public class ApkProtect {
             return this;
         }
 
+        public Builder setDex2cOptions(Dex2cOptions dex2cOptions) {
+            this.dex2cOptions = dex2cOptions;
+            return this;
+        }
+
+        //编译native lib总的任务数,大于1时多个abi同时编译
+        public Builder setNativeBuildJobs(int nativeBuildJobs) {
+            this.nativeBuildJobs = nativeBuildJobs;
+            return this;
+        }
+
+        //相同源码及编译配置时直接使用缓存里的so
+        public Builder setNativeLibCache(NativeLibCache nativeLibCache) {
+            this.nativeLibCache = nativeLibCache;
+            return this;
+        }
+
         public ApkProtect build() {
             if (instructionRewriter == null) {
                 throw new RuntimeException("instructionRewriter == null");
             }
-            return new ApkProtect(apkFolders, instructionRewriter, apkVerifyCodeGenerator, filter);
+            if (dex2cOptions == null) {
+                dex2cOptions = new Dex2cOptions();
+            }
+            return new ApkProtect(apkFolders, instructionRewriter, apkVerifyCodeGenerator, filter, dex2cOptions, nativeBuildJobs, nativeLibCache);
         }
     }
 }
@@ -10,6 +10,15 @@ public class BuildNativeLib {
 
     //编译出native lib，同时返回最后的so文件
     public static List<File> build(@Nonnull String scriptPath, CMakeOptions options) throws IOException {
+        return build(scriptPath, options, 0);
+    }
+
+    /**
+     * 编译出native lib，同时返回最后的so文件
+     *
+     * @param parallelLevel ninja同时编译的任务数,小于等于0时使用ninja默认值
+     */
+    public static List<File> build(@Nonnull String scriptPath, CMakeOptions options, int parallelLevel) throws IOException {
         final ProcessBuilder builder = new ProcessBuilder("sh", scriptPath)
                 .directory(new File(options.getProjectHome()));
         //通过环境变量给脚本传递参数
@@ -22,33 +31,59 @@ public class BuildNativeLib {
         environment.put("ANDROID_NDK_HOME", options.getNdkHome());
         environment.put("CMAKE_PATH", options.getCmakePath());
         environment.put("LIBRARY_OUTPUT_DIRECTORY", options.getLibOutputDir());
+        if (parallelLevel > 0) {
+            //cmake --build 根据它控制ninja任务数
+            environment.put("CMAKE_BUILD_PARALLEL_LEVEL", parallelLevel + "");
+        }
 
         final Process process = builder.start();
 
-        printOutput(process.getInputStream());
-        printOutput(process.getErrorStream());
+        //同时读取标准输出和错误输出,防止其中一个管道写满导致子进程阻塞
+        final String prefix = "[" + options.getAbi() + "] ";
+        final Thread stdout = printOutput(process.getInputStream(), System.out, prefix);
+        final Thread stderr = printOutput(process.getErrorStream(), System.err, prefix);
 
         try {
             final int exitStatus = process.waitFor();
+            stdout.join();
+            stderr.join();
             if (exitStatus != 0) {
-                throw new IOException("Build failed");
+                throw new IOException("Build failed: " + options.getAbi());
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Build interrupted: " + options.getAbi());
         }
         //编译成功的so
+        return getOutputLibs(options);
+    }
+
+    //编译后输出的so文件
+    public static List<File> getOutputLibs(CMakeOptions options) {
         return Arrays.asList(
                 new File(options.getLibOutputDir(), "libnmmvm.so"),
                 new File(options.getLibOutputDir(), "libnmmp.so")
         );
     }
 
-    private static void printOutput(InputStream inputStream) throws IOException {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            System.out.println(line);
-        }
+    private static Thread printOutput(final InputStream inputStream, final PrintStream out, final String prefix) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        out.println(prefix + line);
+                    }
+                } catch (IOException ignored) {
+                    //进程结束或被销毁
+                }
+            }
+        }, "build-output " + prefix.trim());
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
     }
 
     /**
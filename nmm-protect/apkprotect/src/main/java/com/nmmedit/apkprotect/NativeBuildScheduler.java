@@ -0,0 +1,148 @@
+package com.nmmedit.apkprotect;
+
+import com.nmmedit.apkprotect.metrics.BuildMetrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 同时编译多个abi的native lib
+ * jobs为总的编译任务数,平均分给同时运行的每个abi
+ */
+public class NativeBuildScheduler {
+    private final String scriptPath;
+    private final int jobs;
+    @Nullable
+    private final NativeLibCache cache;
+    @Nullable
+    private final BuildMetrics metrics;
+
+    public NativeBuildScheduler(@Nonnull String scriptPath, int jobs) {
+        this(scriptPath, jobs, null);
+    }
+
+    public NativeBuildScheduler(@Nonnull String scriptPath, int jobs, @Nullable NativeLibCache cache) {
+        this(scriptPath, jobs, cache, null);
+    }
+
+    /**
+     * @param metrics 记录每个abi的编译时间
+     */
+    public NativeBuildScheduler(@Nonnull String scriptPath,
+                                int jobs,
+                                @Nullable NativeLibCache cache,
+                                @Nullable BuildMetrics metrics) {
+        this.scriptPath = scriptPath;
+        this.jobs = Math.max(1, jobs);
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 编译所有abi,返回的map顺序和options列表一样
+     * 任何一个abi编译失败都会取消其他还在编译的任务
+     */
+    public Map<String, List<File>> build(@Nonnull List<BuildNativeLib.CMakeOptions> optionsList) throws IOException {
+        final Map<String, List<File>> allLibs = new LinkedHashMap<>();
+        if (optionsList.isEmpty()) {
+            return allLibs;
+        }
+        //所有abi使用同一份源码,摘要只需计算一次
+        final byte[] sourcesDigest = cache == null ? null :
+                NativeLibCache.digestSources(new File(optionsList.get(0).getProjectHome(), "dex2c"), new File(scriptPath));
+
+        final int concurrent = Math.min(jobs, optionsList.size());
+        if (concurrent <= 1) {
+            //只有一个任务,保持原来的顺序编译,ninja任务数不限制时使用它默认值
+            final int parallelLevel = jobs > 1 ? jobs : 0;
+            for (BuildNativeLib.CMakeOptions options : optionsList) {
+                allLibs.put(options.getAbi(), build(options, parallelLevel, sourcesDigest));
+            }
+            return allLibs;
+        }
+        //每个abi分到的ninja任务数
+        final int parallelLevel = Math.max(1, jobs / concurrent);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrent);
+        try {
+            final CompletionService<List<File>> completionService = new ExecutorCompletionService<>(executor);
+            final List<Future<List<File>>> futures = new ArrayList<>();
+            for (final BuildNativeLib.CMakeOptions options : optionsList) {
+                futures.add(completionService.submit(new Callable<List<File>>() {
+                    @Override
+                    public List<File> call() throws Exception {
+                        return build(options, parallelLevel, sourcesDigest);
+                    }
+                }));
+            }
+            //按完成顺序检查结果,有失败的立即停止
+            for (int i = 0; i < futures.size(); i++) {
+                completionService.take().get();
+            }
+            for (int i = 0; i < optionsList.size(); i++) {
+                allLibs.put(optionsList.get(i).getAbi(), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Native build interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            //中断还在运行的编译,BuildNativeLib会销毁对应的进程
+            executor.shutdownNow();
+        }
+        return allLibs;
+    }
+
+    private List<File> build(BuildNativeLib.CMakeOptions options, int parallelLevel, byte[] sourcesDigest) throws IOException {
+        if (metrics == null) {
+            return buildOrGetCached(options, parallelLevel, sourcesDigest);
+        }
+        //cpu时间主要在cmake子进程里,这里只有墙钟时间有意义
+        final BuildMetrics.Phase phase = metrics.phase("native build", options.getAbi());
+        try {
+            return buildOrGetCached(options, parallelLevel, sourcesDigest);
+        } finally {
+            phase.close();
+        }
+    }
+
+    //有缓存时先查找缓存,没有再编译,编译成功后放入缓存
+    private List<File> buildOrGetCached(BuildNativeLib.CMakeOptions options, int parallelLevel, byte[] sourcesDigest) throws IOException {
+        if (cache == null) {
+            return BuildNativeLib.build(scriptPath, options, parallelLevel);
+        }
+        final String key = NativeLibCache.computeKey(sourcesDigest, options);
+        final List<File> cached = cache.get(key, BuildNativeLib.getOutputLibs(options));
+        if (cached != null) {
+            System.out.println("[" + options.getAbi() + "] use cached native libs " + key);
+            return cached;
+        }
+        final List<File> libs = BuildNativeLib.build(scriptPath, options, parallelLevel);
+        try {
+            cache.put(key, libs);
+        } catch (IOException e) {
+            //缓存失败不影响编译结果
+            System.err.println("[" + options.getAbi() + "] can't cache native libs: " + e.getMessage());
+        }
+        return libs;
+    }
+}
@@ -0,0 +1,269 @@
+package com.nmmedit.apkprotect;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * 已编译so的缓存,根据c源码,cmake配置及ndk版本计算key
+ * 命中缓存时直接复制so,不需要再调用cmake编译
+ * 超出最大容量时删除最久没使用的缓存
+ */
+public class NativeLibCache {
+    //缓存里还没完成的临时目录前缀
+    private static final String TEMP_PREFIX = ".tmp-";
+    //准备删除的缓存先改成这个前缀,其他进程不会再读取
+    private static final String TOMBSTONE_PREFIX = ".del-";
+
+    @Nonnull
+    private final File cacheDir;
+    private final long maxBytes;
+
+    public NativeLibCache(@Nonnull File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    @Nonnull
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * 计算源码目录及编译脚本的摘要,同一次编译所有abi共用
+     */
+    public static byte[] digestSources(@Nonnull File srcDir, @Nonnull File script) throws IOException {
+        final MessageDigest digest = newDigest();
+        final List<File> files = new ArrayList<>();
+        listFiles(srcDir, files);
+        final String rootPath = srcDir.getAbsolutePath();
+        for (File file : files) {
+            //相对路径也参与计算,文件改名也需要重新编译
+            final String path = file.getAbsolutePath().substring(rootPath.length()).replace('\\', '/');
+            updateString(digest, path);
+            updateFile(digest, file);
+        }
+        updateString(digest, "build.sh");
+        updateFile(digest, script);
+        return digest.digest();
+    }
+
+    /**
+     * 根据源码摘要和cmake配置计算缓存key
+     * sdk及输出目录路径不影响编译结果,不参与计算
+     */
+    @Nonnull
+    public static String computeKey(@Nonnull byte[] sourcesDigest, @Nonnull BuildNativeLib.CMakeOptions options) {
+        final MessageDigest digest = newDigest();
+        digest.update(sourcesDigest);
+        updateString(digest, options.getAbi());
+        updateString(digest, String.valueOf(options.getApiLevel()));
+        updateString(digest, options.getBuildType().getBuildTypeName());
+        updateString(digest, options.getCmakePath());
+        updateString(digest, getNdkVersion(options.getNdkHome()));
+        return toHex(digest.digest());
+    }
+
+    //ndk版本从source.properties里读取,读不到就使用ndk路径
+    @Nonnull
+    static String getNdkVersion(@Nonnull String ndkHome) {
+        final File file = new File(ndkHome, "source.properties");
+        if (file.isFile()) {
+            final Properties properties = new Properties();
+            try (FileInputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                final String revision = properties.getProperty("Pkg.Revision");
+                if (revision != null) {
+                    return revision.trim();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        return ndkHome;
+    }
+
+    /**
+     * 从缓存复制so到输出目录
+     *
+     * @return 复制后的so文件,没有缓存时返回null
+     */
+    @Nullable
+    public synchronized List<File> get(@Nonnull String key, @Nonnull List<File> outFiles) throws IOException {
+        final File entryDir = new File(cacheDir, key);
+        if (!entryDir.isDirectory()) {
+            return null;
+        }
+        for (File outFile : outFiles) {
+            if (!new File(entryDir, outFile.getName()).isFile()) {
+                return null;
+            }
+        }
+        for (File outFile : outFiles) {
+            final File parent = outFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            final File lib = new File(entryDir, outFile.getName());
+            beforeCopy(lib);
+            try {
+                Files.copy(lib.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                //其他进程删除了这个缓存,只复制了部分so,当作没有缓存
+                return null;
+            }
+        }
+        //更新使用时间
+        entryDir.setLastModified(System.currentTimeMillis());
+        return outFiles;
+    }
+
+    //测试用,模拟复制过程中其他进程删除缓存
+    void beforeCopy(@Nonnull File lib) throws IOException {
+    }
+
+    /**
+     * 把编译好的so放入缓存,先写临时目录再改名,中途失败不会留下不完整缓存
+     * 多个进程可能共用缓存目录,每次使用唯一的临时目录
+     */
+    public synchronized void put(@Nonnull String key, @Nonnull List<File> libs) throws IOException {
+        final File entryDir = new File(cacheDir, key);
+        if (entryDir.isDirectory()) {
+            entryDir.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Can't create cache dir: " + cacheDir);
+        }
+        final File tempDir = Files.createTempDirectory(cacheDir.toPath(), TEMP_PREFIX).toFile();
+        try {
+            for (File lib : libs) {
+                Files.copy(lib.toPath(), new File(tempDir, lib.getName()).toPath());
+            }
+            try {
+                Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                //其他进程可能同时放入了相同缓存
+                if (!entryDir.isDirectory()) {
+                    throw e;
+                }
+            }
+        } finally {
+            deleteFile(tempDir);
+        }
+        evict(key);
+    }
+
+    //总大小超出限制时按使用时间删除旧缓存,刚放入的不删除
+    private void evict(@Nonnull String keep) {
+        final File[] entries = cacheDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        final Map<File, Long> sizes = new HashMap<>();
+        long total = 0;
+        for (File entry : entries) {
+            if (!entry.isDirectory() || entry.getName().startsWith(TEMP_PREFIX)
+                    || entry.getName().startsWith(TOMBSTONE_PREFIX)) {
+                continue;
+            }
+            final long size = dirSize(entry);
+            sizes.put(entry, size);
+            total += size;
+        }
+        final List<File> lru = new ArrayList<>(sizes.keySet());
+        lru.sort(Comparator.comparingLong(File::lastModified));
+        for (File entry : lru) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entry.getName().equals(keep)) {
+                continue;
+            }
+            //先改名再删除,其他进程读取时要么是完整的缓存,要么找不到
+            final File tombstone = new File(cacheDir, TOMBSTONE_PREFIX + entry.getName() + "-" + System.nanoTime());
+            if (entry.renameTo(tombstone)) {
+                deleteFile(tombstone);
+                total -= sizes.get(entry);
+            }
+        }
+    }
+
+    private static long dirSize(File dir) {
+        long size = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? dirSize(file) : file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteFile(File file) {
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    deleteFile(f);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    //按文件名排序,保证每次计算顺序一样
+    private static void listFiles(File dir, List<File> out) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listFiles(file, out);
+            } else {
+                out.add(file);
+            }
+        }
+    }
+
+    private static void updateFile(MessageDigest digest, File file) throws IOException {
+        updateString(digest, String.valueOf(file.length()));
+        final byte[] buf = new byte[8 * 1024];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+            }
+        }
+    }
+
+    private static void updateString(MessageDigest digest, String s) {
+        final byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        digest.update(bytes);
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
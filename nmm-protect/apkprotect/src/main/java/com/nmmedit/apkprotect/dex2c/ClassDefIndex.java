@@ -0,0 +1,81 @@
+package com.nmmedit.apkprotect.dex2c;
+
+import org.jf.dexlib2.iface.ClassDef;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 类型名到classDef及所在dex的索引,只需要创建一次
+ * 多个dex有同名class时使用第一个,和运行时加载顺序一样
+ */
+public class ClassDefIndex {
+    private final Map<String, ClassDef> classDefs = new HashMap<>();
+    private final Map<String, DexConfig> dexConfigs = new HashMap<>();
+
+    private ClassDefIndex() {
+    }
+
+    @Nonnull
+    public static ClassDefIndex of(@Nonnull Iterable<? extends ClassDef> classes) {
+        final ClassDefIndex index = new ClassDefIndex();
+        for (ClassDef classDef : classes) {
+            index.classDefs.putIfAbsent(classDef.getType(), classDef);
+        }
+        return index;
+    }
+
+    //根据所有处理后的dex创建
+    @Nonnull
+    public static ClassDefIndex of(@Nonnull List<DexConfig> configs) {
+        final ClassDefIndex index = new ClassDefIndex();
+        for (DexConfig config : configs) {
+            for (ClassDef classDef : config.getNativeDex().getClasses()) {
+                if (index.classDefs.putIfAbsent(classDef.getType(), classDef) == null) {
+                    index.dexConfigs.put(classDef.getType(), config);
+                }
+            }
+        }
+        return index;
+    }
+
+    @Nullable
+    public ClassDef getClassDef(@Nonnull String type) {
+        return classDefs.get(type);
+    }
+
+    //class所在的dex,不是从DexConfig创建的索引返回null
+    @Nullable
+    public DexConfig getDexConfig(@Nonnull String type) {
+        return dexConfigs.get(type);
+    }
+
+    /**
+     * 查找某个类所有父类,直到rootType的直接子类
+     */
+    @Nonnull
+    public List<ClassDef> getParents(@Nonnull String type, @Nonnull String rootType) {
+        String tmpType = type;
+        final List<ClassDef> parents = new ArrayList<>();
+        while (true) {//一直查找父类直到是父类rootType返回对应的classDef
+            final ClassDef classDef = classDefs.get(tmpType);
+            if (classDef == null) {
+                break;
+            }
+            parents.add(classDef);
+            //只处理rootType的直接子类
+            if (rootType.equals(classDef.getSuperclass())) {
+                break;
+            }
+            tmpType = classDef.getSuperclass();
+            if (tmpType == null) {
+                break;
+            }
+        }
+        return parents;
+    }
+}
@@ -0,0 +1,220 @@
+package com.nmmedit.apkprotect.dex2c;
+
+import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.InstructionRewriter;
+import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 计算过滤后class的指纹,包括需要转换的方法代码及引用的符号
+ * 指纹相同时生成的符号dex和c代码也一样
+ */
+public final class ClassFingerprint {
+    private ClassFingerprint() {
+    }
+
+    @Nonnull
+    public static String of(@Nonnull ClassDef classDef, @Nonnull ClassAndMethodFilter filter) {
+        final MessageDigest digest = newDigest();
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(NULL_OUTPUT, digest))) {
+            writeClass(out, classDef, filter);
+        } catch (IOException e) {
+            //不会发生
+            throw new RuntimeException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * opcode替换配置的指纹,随机opcode改变后所有代码都需要重新生成
+     */
+    @Nonnull
+    public static String ofRewriter(@Nonnull InstructionRewriter instructionRewriter) throws IOException {
+        final MessageDigest digest = newDigest();
+        final Writer writer = new Writer() {
+            @Override
+            public void write(@Nonnull char[] cbuf, int off, int len) {
+                digest.update(new String(cbuf, off, len).getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        instructionRewriter.generateConfig(writer, writer);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * 多行文本的指纹,比如识别出的访问方法列表
+     */
+    @Nonnull
+    public static String ofLines(@Nonnull Iterable<String> lines) {
+        final MessageDigest digest = newDigest();
+        for (String line : lines) {
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void writeClass(DataOutputStream out, ClassDef classDef, ClassAndMethodFilter filter) throws IOException {
+        writeString(out, classDef.getType());
+        out.writeInt(classDef.getAccessFlags());
+        writeString(out, classDef.getSuperclass());
+        out.writeInt(classDef.getInterfaces().size());
+        for (String iface : classDef.getInterfaces()) {
+            writeString(out, iface);
+        }
+        for (Field field : classDef.getFields()) {
+            out.writeByte('F');
+            writeString(out, ReferenceUtil.getFieldDescriptor(field));
+            out.writeInt(field.getAccessFlags());
+        }
+        for (Method method : classDef.getMethods()) {
+            if (!filter.acceptMethod(method)) {
+                continue;
+            }
+            out.writeByte('M');
+            writeString(out, ReferenceUtil.getMethodDescriptor(method));
+            out.writeInt(method.getAccessFlags());
+            final MethodImplementation implementation = method.getImplementation();
+            if (implementation != null) {
+                writeImplementation(out, implementation);
+            }
+        }
+    }
+
+    private static void writeImplementation(DataOutputStream out, MethodImplementation implementation) throws IOException {
+        out.writeInt(implementation.getRegisterCount());
+        for (Instruction instruction : implementation.getInstructions()) {
+            writeInstruction(out, instruction);
+        }
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            out.writeByte('T');
+            out.writeInt(tryBlock.getStartCodeAddress());
+            out.writeInt(tryBlock.getCodeUnitCount());
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                writeString(out, handler.getExceptionType());
+                out.writeInt(handler.getHandlerCodeAddress());
+            }
+        }
+    }
+
+    //按指令实现的接口写入所有操作数,不依赖dex里的索引
+    private static void writeInstruction(DataOutputStream out, Instruction instruction) throws IOException {
+        writeString(out, instruction.getOpcode().name);
+        if (instruction instanceof OneRegisterInstruction) {
+            out.writeInt(((OneRegisterInstruction) instruction).getRegisterA());
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            out.writeInt(((TwoRegisterInstruction) instruction).getRegisterB());
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            out.writeInt(((ThreeRegisterInstruction) instruction).getRegisterC());
+        }
+        if (instruction instanceof FiveRegisterInstruction) {
+            final FiveRegisterInstruction five = (FiveRegisterInstruction) instruction;
+            out.writeInt(five.getRegisterCount());
+            out.writeInt(five.getRegisterC());
+            out.writeInt(five.getRegisterD());
+            out.writeInt(five.getRegisterE());
+            out.writeInt(five.getRegisterF());
+            out.writeInt(five.getRegisterG());
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            final RegisterRangeInstruction range = (RegisterRangeInstruction) instruction;
+            out.writeInt(range.getStartRegister());
+            out.writeInt(range.getRegisterCount());
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            out.writeLong(((WideLiteralInstruction) instruction).getWideLiteral());
+        }
+        if (instruction instanceof OffsetInstruction) {
+            out.writeInt(((OffsetInstruction) instruction).getCodeOffset());
+        }
+        if (instruction instanceof ReferenceInstruction) {
+            writeReference(out, ((ReferenceInstruction) instruction).getReference());
+        }
+        if (instruction instanceof DualReferenceInstruction) {
+            writeReference(out, ((DualReferenceInstruction) instruction).getReference2());
+        }
+        if (instruction instanceof VerificationErrorInstruction) {
+            out.writeInt(((VerificationErrorInstruction) instruction).getVerificationError());
+        }
+        if (instruction instanceof ArrayPayload) {
+            final ArrayPayload payload = (ArrayPayload) instruction;
+            out.writeInt(payload.getElementWidth());
+            out.writeInt(payload.getArrayElements().size());
+            for (Number number : payload.getArrayElements()) {
+                out.writeLong(number.longValue());
+            }
+        }
+        if (instruction instanceof SwitchPayload) {
+            final SwitchPayload payload = (SwitchPayload) instruction;
+            out.writeInt(payload.getSwitchElements().size());
+            for (SwitchElement element : payload.getSwitchElements()) {
+                out.writeInt(element.getKey());
+                out.writeInt(element.getOffset());
+            }
+        }
+    }
+
+    private static void writeReference(DataOutputStream out, Reference reference) throws IOException {
+        writeString(out, ReferenceUtil.getReferenceString(reference));
+    }
+
+    //字符串可能超出writeUTF长度限制,所以写入长度加内容
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) {
+        }
+    };
+}
@@ -1,15 +1,21 @@
 package com.nmmedit.apkprotect.dex2c;
 
-import com.google.common.collect.Maps;
+import com.nmmedit.apkprotect.dex2c.converter.CEmitter;
+import com.nmmedit.apkprotect.dex2c.converter.ClassCode;
+import com.nmmedit.apkprotect.dex2c.converter.CompressedBlocks;
+import com.nmmedit.apkprotect.dex2c.converter.FastNativeChecker;
 import com.nmmedit.apkprotect.dex2c.converter.JniCodeGenerator;
 import com.nmmedit.apkprotect.dex2c.converter.MyMethodUtil;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.InstructionRewriter;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.AccessorInliner;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.MethodOptimizer;
 import com.nmmedit.apkprotect.dex2c.converter.structs.ClassMethodToNative;
 import com.nmmedit.apkprotect.dex2c.converter.structs.ClassToSymDex;
 import com.nmmedit.apkprotect.dex2c.converter.structs.LoadLibClassDef;
 import com.nmmedit.apkprotect.dex2c.converter.structs.RegisterNativesCallerClassDef;
 import com.nmmedit.apkprotect.dex2c.converter.testbuild.ClassMethodImplCollection;
 import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
+import com.nmmedit.apkprotect.metrics.DexMetrics;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
@@ -17,13 +23,18 @@ import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.Field;
 import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.dexlib2.writer.pool.DexPool;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Dex2c {
 
@@ -33,7 +44,7 @@ public class Dex2c {
     }
 
 
-    public static ClassAndMethodFilter testFilter = new ClassAndMethodFilter() {
+    public static final ClassAndMethodFilter testFilter = new ClassAndMethodFilter() {
 
         @Override
         public boolean acceptClass(ClassDef classDef) {
@@ -121,16 +132,89 @@ public class Dex2c {
                                               ClassAndMethodFilter filter,
                                               InstructionRewriter instructionRewriter,
                                               File outDir) throws IOException {
+        return handleDexes(dexFiles, filter, instructionRewriter, outDir, new Dex2cOptions());
+    }
+
+    /**
+     * 处理多个dex文件
+     *
+     * @param dexFiles dex文件列表
+     * @param outDir   生成c文件等输出目录
+     * @param options  转换配置
+     * @return 输出结果配置, configs顺序和dex文件列表一样
+     * @throws IOException
+     */
+    public static GlobalDexConfig handleDexes(List<File> dexFiles,
+                                              ClassAndMethodFilter filter,
+                                              InstructionRewriter instructionRewriter,
+                                              File outDir,
+                                              Dex2cOptions options) throws IOException {
         if (!outDir.exists()) outDir.mkdirs();
         final GlobalDexConfig globalConfig = new GlobalDexConfig(outDir);
-        for (File file : dexFiles) {
-            final DexConfig config = handleDex(file, filter, instructionRewriter, outDir);
-            globalConfig.addDexConfig(config);
+        final int threads = Math.min(options.getThreads(), dexFiles.size());
+        if (threads > 1) {
+            for (DexConfig config : handleDexesParallel(dexFiles, filter, instructionRewriter, outDir, options, threads)) {
+                globalConfig.addDexConfig(config);
+            }
+        } else {
+            for (File file : dexFiles) {
+                final DexConfig config = handleDex(file, filter, instructionRewriter, outDir, options);
+                globalConfig.addDexConfig(config);
+            }
         }
         globalConfig.generateJniInitCode();
         return globalConfig;
     }
 
+    //每个dex单独解析和生成代码,互不影响,所以可以并行处理. 结果按dex文件列表顺序返回,保证生成的代码和顺序处理一样
+    private static List<DexConfig> handleDexesParallel(List<File> dexFiles,
+                                                       final ClassAndMethodFilter filter,
+                                                       final InstructionRewriter instructionRewriter,
+                                                       final File outDir,
+                                                       final Dex2cOptions options,
+                                                       int threads) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<DexConfig>> futures = new ArrayList<>(dexFiles.size());
+            for (final File file : dexFiles) {
+                futures.add(executor.submit(new Callable<DexConfig>() {
+                    @Override
+                    public DexConfig call() throws Exception {
+                        return handleDex(file, filter, instructionRewriter, outDir, options);
+                    }
+                }));
+            }
+            final List<DexConfig> configs = new ArrayList<>(dexFiles.size());
+            for (Future<DexConfig> future : futures) {
+                configs.add(getResult(future));
+            }
+            return configs;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("dex2c interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     /**
      * 处理单个dex文件
      *
@@ -143,11 +227,22 @@ public class Dex2c {
                                       ClassAndMethodFilter filter,
                                       InstructionRewriter instructionRewriter,
                                       File outDir) throws IOException {
-        return handleDex(new BufferedInputStream(new FileInputStream(dexFile)),
-                dexFile.getName(),
-                filter,
-                instructionRewriter,
-                outDir);
+        return handleDex(dexFile, filter, instructionRewriter, outDir, new Dex2cOptions());
+    }
+
+    public static DexConfig handleDex(File dexFile,
+                                      ClassAndMethodFilter filter,
+                                      InstructionRewriter instructionRewriter,
+                                      File outDir,
+                                      Dex2cOptions options) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(dexFile))) {
+            return handleDex(in,
+                    dexFile.getName(),
+                    filter,
+                    instructionRewriter,
+                    outDir,
+                    options);
+        }
     }
 
     /**
@@ -164,50 +259,207 @@ public class Dex2c {
                                       ClassAndMethodFilter filter,
                                       InstructionRewriter instructionRewriter,
                                       File outDir) throws IOException {
+        return handleDex(dex, dexFileName, filter, instructionRewriter, outDir, new Dex2cOptions());
+    }
+
+    /**
+     * 处理单个dex流
+     *
+     * @param dex         dex流
+     * @param dexFileName dex名,输出文件需要
+     * @param outDir      输出目录
+     * @param options     转换配置
+     * @return 输出配置
+     * @throws IOException
+     */
+    public static DexConfig handleDex(InputStream dex,
+                                      String dexFileName,
+                                      ClassAndMethodFilter filter,
+                                      InstructionRewriter instructionRewriter,
+                                      File outDir,
+                                      Dex2cOptions options) throws IOException {
+        final DexMetrics metrics = DexMetrics.begin(dexFileName);
+        final DexConfig config;
+        try {
+            config = convertDex(dex, dexFileName, filter, instructionRewriter, outDir, options, metrics);
+        } finally {
+            //服务模式下线程一直复用,不释放会一直占用上一个dex的符号
+            instructionRewriter.unloadDexFile();
+        }
+        long cSourceBytes = config.getNativeFunctionsFile().length() + config.getResolverFile().length();
+        for (File shardFile : config.getShardFiles()) {
+            cSourceBytes += shardFile.length();
+        }
+        metrics.setCSourceBytes(cSourceBytes);
+        metrics.end();
+        config.setMetrics(metrics);
+        return config;
+    }
+
+    private static DexConfig convertDex(InputStream dex,
+                                        String dexFileName,
+                                        ClassAndMethodFilter filter,
+                                        InstructionRewriter instructionRewriter,
+                                        File outDir,
+                                        Dex2cOptions options,
+                                        DexMetrics metrics) throws IOException {
         DexBackedDexFile dexFile = DexBackedDexFile.fromInputStream(
                 Opcodes.getDefault(),
                 dex);
 
+        //被调用的访问方法可能不转换,所以从整个dex查找
+        final AccessorInliner accessorInliner = options.isInlineAccessors() ? new AccessorInliner(dexFile.getClasses()) : null;
+        final MethodOptimizer methodOptimizer = accessorInliner != null || options.isPeephole()
+                ? new MethodOptimizer(accessorInliner, options.isPeephole()) : null;
+
         //把方法变为本地方法,用它替换掉原本的dex
         DexPool nativeMethodDexPool = new DexPool(Opcodes.getDefault());
 
-        DexPool symDexPool = new DexPool(Opcodes.getDefault());
-
+        //需要转换的class
+        final List<ClassDef> nativeClassDefs = new ArrayList<>();
+        //加@FastNative的方法及代码单元数
+        final Map<String, Integer> fastNativeMethods = new TreeMap<>();
 
         for (final ClassDef classDef : dexFile.getClasses()) {
             if (filter.acceptClass(classDef)) {
                 //把需要转换的方法设为native
-                nativeMethodDexPool.internClass(new ClassMethodToNative(classDef, filter));
-                //收集所有需要转换的方法生成新dex
-                symDexPool.internClass(new ClassToSymDex(classDef, filter));
+                final Set<String> fastNative = options.isFastNative()
+                        ? findFastNativeMethods(classDef, filter, methodOptimizer, fastNativeMethods) : null;
+                nativeMethodDexPool.internClass(new ClassMethodToNative(classDef, filter, fastNative));
+                nativeClassDefs.add(classDef);
+                countNativeMethods(classDef, filter, metrics);
             } else {
                 //不需要处理的class,直接复制
                 nativeMethodDexPool.internClass(classDef);
             }
         }
+        metrics.setClasses(nativeClassDefs.size());
         DexConfig config = new DexConfig(outDir, dexFileName);
+        //注解只在native dex里,复用c代码时也需要更新报告
+        if (options.isFastNative()) {
+            metrics.setFastNativeMethods(fastNativeMethods.size());
+            writeReport(config.getFastNativeReportFile(), fastNativeMethods);
+        } else {
+            config.getFastNativeReportFile().delete();
+        }
 
 
-        //写入需要运行的dex
-        nativeMethodDexPool.writeTo(new FileDataStore(config.getNativeDexFile()));
-        //写入符号dex
-        symDexPool.writeTo(new FileDataStore(config.getSymbolDexFile()));
+        //需要运行的dex保存在内存里,后面注入指令等处理直接使用
+        final MemoryDex nativeDex = MemoryDex.of(nativeMethodDexPool);
+        config.setNativeDex(nativeDex.toDexFile(Opcodes.getDefault()));
+        if (options.isKeepDexFiles()) {
+            nativeDex.writeTo(config.getNativeDexFile());
+        }
 
+        SortedMap<String, String> classFingerprints = null;
+        String rewriterFingerprint = null;
+        IncrementalState previousState = null;
+        Set<String> changedClasses = null;
+        if (options.isIncremental()) {
+            classFingerprints = new TreeMap<>();
+            for (ClassDef classDef : nativeClassDefs) {
+                classFingerprints.put(classDef.getType(), ClassFingerprint.of(classDef, filter));
+            }
+            rewriterFingerprint = ClassFingerprint.ofRewriter(instructionRewriter) + '/' + options.getCodeGenKey();
+            //访问方法在其他class里,改变后也需要重新生成
+            if (accessorInliner != null) {
+                rewriterFingerprint += '/' + ClassFingerprint.ofLines(accessorInliner.getAccessors());
+            }
+            previousState = loadIncrementalState(config, rewriterFingerprint, options);
+            //没有上次的状态或者opcode及选项改变时,所有class都要重新生成
+            changedClasses = previousState != null
+                    ? previousState.getChangedClasses(classFingerprints) : classFingerprints.keySet();
+            if (previousState != null && changedClasses.isEmpty()) {
+                config.setResult(previousState.getNativeClasses(), previousState.getNativeMethodOffsets());
+                metrics.setReused(true);
+                return config;
+            }
+            //重新生成过程中失败不能留下旧状态
+            config.getIncrementalStateFile().delete();
+        }
 
-        final DexBackedDexFile symDexFile = DexBackedDexFile.fromInputStream(Opcodes.getDefault(),
-                new BufferedInputStream(new FileInputStream(config.getSymbolDexFile())));
+        DexPool symDexPool = new DexPool(Opcodes.getDefault());
+        for (ClassDef classDef : nativeClassDefs) {
+            //收集所有需要转换的方法生成新dex
+            symDexPool.internClass(new ClassToSymDex(classDef, filter, methodOptimizer));
+        }
+        if (accessorInliner != null) {
+            metrics.setInlinedInvokes(accessorInliner.getInlinedInvokes());
+            writeReport(config.getInlineReportFile(), accessorInliner.getInlinedCounts());
+        } else {
+            config.getInlineReportFile().delete();
+        }
+        if (options.isPeephole()) {
+            metrics.setPeepholeRemoved(methodOptimizer.getRemovedInstructions());
+            writeReport(config.getPeepholeReportFile(), methodOptimizer.getRemovedCounts());
+        } else {
+            config.getPeepholeReportFile().delete();
+        }
+        //符号dex只用于生成c代码,不需要写入文件
+        final MemoryDex symDex = MemoryDex.of(symDexPool);
+        if (options.isKeepDexFiles()) {
+            symDex.writeTo(config.getSymbolDexFile());
+        }
+        final DexBackedDexFile symDexFile = symDex.toDexFile(Opcodes.getDefault());
+
+        final JniCodeGenerator codeGenerator;
+        if (options.isClassIncremental()) {
+            codeGenerator = new JniCodeGenerator(symDexFile, instructionRewriter,
+                    previousState != null ? previousState.getSymbolLayout() : null);
+            //符号索引没变时,没有改变的class直接使用上次生成的函数
+            if (codeGenerator.isLayoutReused()) {
+                codeGenerator.setReusedCodes(previousState.getUnchangedClassCodes(changedClasses));
+                metrics.setChangedClasses(changedClasses.size());
+            } else {
+                metrics.setChangedClasses(classFingerprints.size());
+            }
+        } else {
+            codeGenerator = new JniCodeGenerator(symDexFile, instructionRewriter, options.isPruneSymbols());
+            if (options.isIncremental()) {
+                metrics.setChangedClasses(classFingerprints.size());
+            }
+        }
 
+        config.deleteShardFiles();
+        config.getDataBlobFile().delete();
         //根据符号dex生成c代码
-        try (FileWriter nativeCodeWriter = new FileWriter(config.getNativeFunctionsFile());
-             FileWriter resolverWriter = new FileWriter(config.getResolverFile());
+        try (CEmitter nativeCodeWriter = CEmitter.open(config.getNativeFunctionsFile());
+             CEmitter resolverWriter = CEmitter.open(config.getResolverFile());
         ) {
-            JniCodeGenerator codeGenerator = new JniCodeGenerator(symDexFile, instructionRewriter);
             codeGenerator.generate(
                     config,
                     resolverWriter,
-                    nativeCodeWriter
+                    nativeCodeWriter,
+                    options
             );
             config.setResult(codeGenerator);
+            if (options.isDedupeMethods()) {
+                metrics.setDeduped(codeGenerator.getDedupedMethods(), codeGenerator.getDedupedBytes());
+            }
+            if (options.isCompactRegisters()) {
+                metrics.setRegisterCompaction(codeGenerator.getCompactedMethods(), codeGenerator.getStackMethods());
+            }
+            if (options.isDirectCalls()) {
+                metrics.setDirectMethods(codeGenerator.getDirectMethods());
+            }
+            if (options.isIntrinsics()) {
+                metrics.setIntrinsicMethods(codeGenerator.getIntrinsicMethods());
+            }
+            final CompressedBlocks compressedBlocks = codeGenerator.getCompressedBlocks();
+            if (compressedBlocks != null) {
+                metrics.setCompressedBytecode(compressedBlocks.getBlockCount(),
+                        compressedBlocks.getRawSize(), compressedBlocks.getCompressedSize());
+            }
+        }
+        if (options.isIncremental()) {
+            final Map<String, ClassCode> classCodes = codeGenerator.getClassCodes();
+            new IncrementalState(rewriterFingerprint,
+                    classFingerprints,
+                    config.getNativeClasses(),
+                    config.getNativeMethodOffsets(),
+                    classCodes != null ? codeGenerator.getSymbolLayout() : null,
+                    classCodes != null ? classCodes : Collections.<String, ClassCode>emptyMap()
+            ).save(config.getIncrementalStateFile());
         }
 
 
@@ -236,15 +488,73 @@ public class Dex2c {
         return config;
     }
 
+    //优化报告,每行一个方法及对应的数量
+    private static void writeReport(File file, Map<String, Integer> counts) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+        }
+    }
+
+    //根据优化后的指令判断,内联访问方法后原本有调用的方法也可能加@FastNative
+    private static Set<String> findFastNativeMethods(ClassDef classDef,
+                                                     ClassAndMethodFilter filter,
+                                                     @Nullable MethodOptimizer methodOptimizer,
+                                                     Map<String, Integer> fastNativeMethods) {
+        final Set<String> methods = new HashSet<>();
+        for (Method method : classDef.getMethods()) {
+            if (method.getImplementation() == null || !filter.acceptMethod(method)) {
+                continue;
+            }
+            final int codeUnits = FastNativeChecker.check(methodOptimizer == null ? method : methodOptimizer.optimize(method));
+            if (codeUnits >= 0) {
+                final String descriptor = ReferenceUtil.getMethodDescriptor(method);
+                methods.add(descriptor);
+                fastNativeMethods.put(descriptor, codeUnits);
+            }
+        }
+        return methods;
+    }
+
+    //统计转换为native的方法数及字节码大小
+    private static void countNativeMethods(ClassDef classDef, ClassAndMethodFilter filter, DexMetrics metrics) {
+        for (Method method : classDef.getMethods()) {
+            final MethodImplementation implementation = method.getImplementation();
+            if (implementation == null || !filter.acceptMethod(method)) {
+                continue;
+            }
+            long codeUnits = 0;
+            for (Instruction instruction : implementation.getInstructions()) {
+                codeUnits += instruction.getCodeUnits();
+            }
+            metrics.addMethod(codeUnits * 2);
+        }
+    }
+
+    //上次转换的状态,生成的代码文件不完整或者opcode及选项改变时返回null
+    @Nullable
+    private static IncrementalState loadIncrementalState(DexConfig config,
+                                                         String rewriterFingerprint,
+                                                         Dex2cOptions options) {
+        final IncrementalState state = IncrementalState.load(config.getIncrementalStateFile());
+        if (state != null
+                && config.getNativeFunctionsFile().isFile()
+                && config.getResolverFile().isFile()
+                && (!options.isBinaryData() || config.getDataBlobFile().isFile())
+                && !state.isRewriterChanged(rewriterFingerprint)) {
+            return state;
+        }
+        return null;
+    }
+
     //在处理过的class的static{}块最前面添加注册本地方法代码,如果不存在static{}块则新增<clinit>方法
     public static List<DexPool> injectCallRegisterNativeInsns(DexConfig config,
                                                               DexPool lastDexPool,
                                                               Set<String> mainClassSet,
                                                               int maxPoolSize) throws IOException {
 
-        DexBackedDexFile dexNativeFile = DexBackedDexFile.fromInputStream(
-                Opcodes.getDefault(),
-                new BufferedInputStream(new FileInputStream(config.getNativeDexFile())));
+        DexBackedDexFile dexNativeFile = config.getNativeDex();
 
         List<DexPool> dexPools = new ArrayList<>();
         dexPools.add(lastDexPool);
@@ -291,7 +601,7 @@ public class Dex2c {
                                            @Nonnull final String newType) {
 
         ClassDef appDirectSubClassDef = null;
-        List<ClassDef> parents = getClassDefParents(dexFile.getClasses(), newType, LANDROID_APP_APPLICATION);
+        List<ClassDef> parents = getClassDefParents(ClassDefIndex.of(dexFile.getClasses()), newType, LANDROID_APP_APPLICATION);
         if (!parents.isEmpty()) {
             appDirectSubClassDef = parents.get(parents.size() - 1);
         }
@@ -311,32 +621,8 @@ public class Dex2c {
 
     //查找某个类所有父类
     @Nonnull
-    private static List<ClassDef> getClassDefParents(@Nonnull final Set<? extends ClassDef> classes, @Nonnull String type, @Nonnull String rootType) {
-        String tmpType = type;
-        final ArrayList<ClassDef> parents = new ArrayList<>();
-
-
-        //创建类型名和classDef对应关系
-        final Map<String, ClassDef> classDefMap = Maps.newHashMap();
-        for (ClassDef classDef : classes) {
-            classDefMap.put(classDef.getType(), classDef);
-        }
-
-        while (true) {//一直查找父类直到是父类rootType返回对应的classDef
-            final ClassDef classDef = classDefMap.get(tmpType);
-            if (classDef == null) {
-                break;
-            }
-            //只处理rootType的直接子类
-            if (rootType.equals(classDef.getSuperclass())) {
-                parents.add(classDef);
-                break;
-            }
-            tmpType = classDef.getSuperclass();
-            parents.add(classDef);
-        }
-
-        return parents;
+    private static List<ClassDef> getClassDefParents(@Nonnull ClassDefIndex index, @Nonnull String type, @Nonnull String rootType) {
+        return index.getParents(type, rootType);
     }
 
 
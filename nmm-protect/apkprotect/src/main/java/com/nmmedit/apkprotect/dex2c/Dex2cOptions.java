@@ -0,0 +1,191 @@
+package com.nmmedit.apkprotect.dex2c;
+
+/**
+ * dex转换相关配置,默认值和原本单线程处理行为一样
+ */
+public class Dex2cOptions {
+    //同时处理的dex数量,小于等于1时顺序处理
+    private int threads = 1;
+    //增量转换,转换的class都没变时复用上次生成的c代码,只有部分class改变时只重新生成这些class的函数
+    private boolean incremental;
+    //中间dex默认只保存在内存里,调试时可以写入文件
+    private boolean keepDexFiles;
+    //每个dex的方法实现分到多少个c文件,大于1时可以并行编译
+    private int shards = 1;
+    //字节码及常量池写入二进制文件通过.incbin链接,不再生成巨大的数组初始化代码
+    private boolean binaryData;
+    //字节码及异常表一样的方法共用数据及函数
+    private boolean dedupeMethods;
+    //符号表只保留转换后代码引用的符号
+    private boolean pruneSymbols;
+    //注册表不保存函数指针,减少加载so时的重定位
+    private boolean relocationFree;
+    //字节码及异常表按块lz4压缩,方法第一次调用时解压所在的块
+    private boolean compressBytecode;
+    //根据寄存器活跃范围重新编号,减少寄存器数量
+    private boolean compactRegisters;
+    //不能被覆盖的简单getter/setter调用替换为直接读写字段
+    private boolean inlineAccessors;
+    //常量传播,删除无用指令及确定的分支等窥孔优化
+    private boolean peephole;
+    //调用同一个dex里目标确定的转换方法时直接调用本地函数,不经过jni,java异常栈里不再有被调用的方法
+    private boolean directCalls;
+    //Math.min,String.length等常用jdk方法在解释器内部执行,不使用jni调用
+    private boolean intrinsics;
+    //没有调用及循环的短方法加@FastNative,减少java调用时线程状态切换的开销
+    private boolean fastNative;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public Dex2cOptions setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public Dex2cOptions setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    //去重,二进制数据及压缩时方法数据在整个dex里共用,有class改变时需要重新生成整个dex的代码
+    boolean isClassIncremental() {
+        return incremental && !dedupeMethods && !binaryData && !compressBytecode;
+    }
+
+    public boolean isKeepDexFiles() {
+        return keepDexFiles;
+    }
+
+    public Dex2cOptions setKeepDexFiles(boolean keepDexFiles) {
+        this.keepDexFiles = keepDexFiles;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public Dex2cOptions setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    public boolean isBinaryData() {
+        return binaryData;
+    }
+
+    public Dex2cOptions setBinaryData(boolean binaryData) {
+        this.binaryData = binaryData;
+        return this;
+    }
+
+    public boolean isDedupeMethods() {
+        return dedupeMethods;
+    }
+
+    public Dex2cOptions setDedupeMethods(boolean dedupeMethods) {
+        this.dedupeMethods = dedupeMethods;
+        return this;
+    }
+
+    public boolean isPruneSymbols() {
+        return pruneSymbols;
+    }
+
+    public Dex2cOptions setPruneSymbols(boolean pruneSymbols) {
+        this.pruneSymbols = pruneSymbols;
+        return this;
+    }
+
+    public boolean isRelocationFree() {
+        return relocationFree;
+    }
+
+    public Dex2cOptions setRelocationFree(boolean relocationFree) {
+        this.relocationFree = relocationFree;
+        return this;
+    }
+
+    public boolean isCompressBytecode() {
+        return compressBytecode;
+    }
+
+    public Dex2cOptions setCompressBytecode(boolean compressBytecode) {
+        this.compressBytecode = compressBytecode;
+        return this;
+    }
+
+    public boolean isCompactRegisters() {
+        return compactRegisters;
+    }
+
+    public Dex2cOptions setCompactRegisters(boolean compactRegisters) {
+        this.compactRegisters = compactRegisters;
+        return this;
+    }
+
+    public boolean isInlineAccessors() {
+        return inlineAccessors;
+    }
+
+    public Dex2cOptions setInlineAccessors(boolean inlineAccessors) {
+        this.inlineAccessors = inlineAccessors;
+        return this;
+    }
+
+    public boolean isPeephole() {
+        return peephole;
+    }
+
+    public Dex2cOptions setPeephole(boolean peephole) {
+        this.peephole = peephole;
+        return this;
+    }
+
+    public boolean isDirectCalls() {
+        return directCalls;
+    }
+
+    public Dex2cOptions setDirectCalls(boolean directCalls) {
+        this.directCalls = directCalls;
+        return this;
+    }
+
+    public boolean isIntrinsics() {
+        return intrinsics;
+    }
+
+    public Dex2cOptions setIntrinsics(boolean intrinsics) {
+        this.intrinsics = intrinsics;
+        return this;
+    }
+
+    public boolean isFastNative() {
+        return fastNative;
+    }
+
+    public Dex2cOptions setFastNative(boolean fastNative) {
+        this.fastNative = fastNative;
+        return this;
+    }
+
+    //影响生成代码的配置,增量转换时需要和上次一样才能复用
+    String getCodeGenKey() {
+        return "shards=" + Math.max(1, shards) + ",binaryData=" + binaryData
+                + ",dedupeMethods=" + dedupeMethods
+                + ",pruneSymbols=" + pruneSymbols
+                + ",relocationFree=" + relocationFree
+                + ",compressBytecode=" + compressBytecode
+                + ",compactRegisters=" + compactRegisters
+                + ",inlineAccessors=" + inlineAccessors
+                + ",peephole=" + peephole
+                + ",directCalls=" + directCalls
+                + ",intrinsics=" + intrinsics;
+    }
+}
@@ -1,9 +1,13 @@
 package com.nmmedit.apkprotect.dex2c;
 
 import com.nmmedit.apkprotect.dex2c.converter.JniCodeGenerator;
+import com.nmmedit.apkprotect.metrics.DexMetrics;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,6 +23,12 @@ public class DexConfig {
     private Set<String> nativeClasses;
     private Map<String, Integer> nativeMethodOffsets;
 
+    //方法被标识为native的dex,保存在内存里给后面处理使用
+    private DexBackedDexFile nativeDex;
+
+    //转换统计
+    private DexMetrics metrics;
+
     public DexConfig(File outputDir, String dexFileName) {
         this.outputDir = outputDir;
         int i = dexFileName.lastIndexOf('.');
@@ -46,6 +56,23 @@ public class DexConfig {
         return getDexName() + "Init0";
     }
 
+    @Nonnull
+    public DexBackedDexFile getNativeDex() {
+        return nativeDex;
+    }
+
+    public void setNativeDex(DexBackedDexFile nativeDex) {
+        this.nativeDex = nativeDex;
+    }
+
+    public DexMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(DexMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Nonnull
     public Set<String> getNativeClasses() {
         return nativeClasses;
@@ -55,21 +82,31 @@ public class DexConfig {
         return nativeMethodOffsets.get(className);
     }
 
+    @Nonnull
+    public Map<String, Integer> getNativeMethodOffsets() {
+        return nativeMethodOffsets;
+    }
+
     public void setResult(JniCodeGenerator codeGenerator) {
-        nativeClasses = codeGenerator.getNativeClasses();
-        nativeMethodOffsets = codeGenerator.getNativeMethodOffsets();
+        setResult(codeGenerator.getNativeClasses(), codeGenerator.getNativeMethodOffsets());
+    }
+
+    //增量转换时使用上次保存的结果
+    public void setResult(Set<String> nativeClasses, Map<String, Integer> nativeMethodOffsets) {
+        this.nativeClasses = nativeClasses;
+        this.nativeMethodOffsets = nativeMethodOffsets;
     }
 
 
     /**
-     * 方法被标识为native的dex,用于替换原dex
+     * 方法被标识为native的dex,用于替换原dex,只在调试时写入
      */
     public File getNativeDexFile() {
         return new File(outputDir, dexName + "_native.dex");
     }
 
     /**
-     * 符号dex文件,用于生成c代码
+     * 符号dex文件,用于生成c代码,只在调试时写入
      */
     public File getSymbolDexFile() {
         return new File(outputDir, dexName + "_sym.dex");
@@ -82,6 +119,97 @@ public class DexConfig {
         return new File(outputDir, dexName + "_native_functions.c");
     }
 
+    /**
+     * 分片时的方法实现,可以并行编译
+     */
+    public File getShardFunctionsFile(int shard) {
+        return new File(outputDir, dexName + "_native_shard" + shard + "_functions.c");
+    }
+
+    /**
+     * 分片共用的头文件,包含解析器指针及所有分片函数声明
+     */
+    public File getShardHeaderFile() {
+        return new File(outputDir, dexName + "_native_shared.h");
+    }
+
+    /**
+     * 已生成的分片文件,包括共用头文件
+     */
+    @Nonnull
+    public List<File> getShardFiles() {
+        final List<File> shardFiles = new ArrayList<>();
+        final File[] files = outputDir.listFiles();
+        if (files == null) {
+            return shardFiles;
+        }
+        final String prefix = dexName + "_native_shard";
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith("_functions.c")
+                    && name.substring(prefix.length(), name.length() - "_functions.c".length()).matches("\\d+")) {
+                shardFiles.add(file);
+            }
+        }
+        final File headerFile = getShardHeaderFile();
+        if (headerFile.exists()) {
+            shardFiles.add(headerFile);
+        }
+        return shardFiles;
+    }
+
+    /**
+     * 二进制只读数据,c代码里通过.incbin引用
+     */
+    @Nonnull
+    public File getDataBlobFile() {
+        return new File(outputDir, dexName + "_data.bin");
+    }
+
+    //blob在c代码里的符号名
+    @Nonnull
+    public String getDataBlobSymbol() {
+        return dexName + "_nmmp_data";
+    }
+
+    //删除上次生成的分片,分片数改变后旧文件不能留在编译目录里
+    public void deleteShardFiles() {
+        for (File file : getShardFiles()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 访问方法内联报告,每行一个方法及被替换的调用数
+     */
+    @Nonnull
+    public File getInlineReportFile() {
+        return new File(outputDir, dexName + "_inlined_accessors.txt");
+    }
+
+    /**
+     * 窥孔优化报告,每行一个方法及删除的指令数
+     */
+    @Nonnull
+    public File getPeepholeReportFile() {
+        return new File(outputDir, dexName + "_peephole.txt");
+    }
+
+    /**
+     * 加了@FastNative的方法报告,每行一个方法及代码单元数
+     */
+    @Nonnull
+    public File getFastNativeReportFile() {
+        return new File(outputDir, dexName + "_fast_native.txt");
+    }
+
+    /**
+     * 增量转换状态文件,保存class指纹及转换结果
+     */
+    public File getIncrementalStateFile() {
+        return new File(outputDir, dexName + "_incremental.dat");
+    }
+
     /**
      * 初始化代码头文件及初始化函数名,提供函数给外部调用
      */
@@ -1,7 +1,8 @@
 package com.nmmedit.apkprotect.dex2c;
 
+import com.nmmedit.apkprotect.dex2c.converter.CEmitter;
+
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -13,6 +14,9 @@ public class GlobalDexConfig {
 
     private final File outputDir;
 
+    //所有dex的类型索引,第一次使用时创建
+    private ClassDefIndex classDefIndex;
+
     public GlobalDexConfig(File outputDir) {
         this.outputDir = outputDir;
     }
@@ -23,15 +27,23 @@ public class GlobalDexConfig {
 
     public void addDexConfig(DexConfig config) {
         configs.add(config);
+        classDefIndex = null;
     }
 
     public List<DexConfig> getConfigs() {
         return configs;
     }
 
+    public ClassDefIndex getClassDefIndex() {
+        if (classDefIndex == null) {
+            classDefIndex = ClassDefIndex.of(configs);
+        }
+        return classDefIndex;
+    }
+
     public void generateJniInitCode() throws IOException {
         try (
-                final FileWriter writer = new FileWriter(getInitCodeFile());
+                final CEmitter writer = CEmitter.open(getInitCodeFile());
         ) {
             generateJniInitCode(writer);
         }
@@ -0,0 +1,163 @@
+package com.nmmedit.apkprotect.dex2c;
+
+import com.nmmedit.apkprotect.dex2c.converter.ClassCode;
+import com.nmmedit.apkprotect.dex2c.converter.SymbolLayout;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+
+/**
+ * 增量转换时保存的单个dex转换结果
+ * 包括opcode配置指纹,每个转换class的指纹及JniCodeGenerator生成的结果
+ * 可以按class复用代码时还包括符号顺序及每个class生成的函数
+ */
+public class IncrementalState {
+    private static final int VERSION = 2;
+
+    @Nonnull
+    private final String rewriterFingerprint;
+    //class类型 -> 指纹,按类型排序
+    @Nonnull
+    private final SortedMap<String, String> classFingerprints;
+    @Nonnull
+    private final Set<String> nativeClasses;
+    @Nonnull
+    private final Map<String, Integer> nativeMethodOffsets;
+    @Nullable
+    private final SymbolLayout symbolLayout;
+    //class类型 -> 生成的函数
+    @Nonnull
+    private final Map<String, ClassCode> classCodes;
+
+    public IncrementalState(@Nonnull String rewriterFingerprint,
+                            @Nonnull SortedMap<String, String> classFingerprints,
+                            @Nonnull Set<String> nativeClasses,
+                            @Nonnull Map<String, Integer> nativeMethodOffsets,
+                            @Nullable SymbolLayout symbolLayout,
+                            @Nonnull Map<String, ClassCode> classCodes) {
+        this.rewriterFingerprint = rewriterFingerprint;
+        this.classFingerprints = classFingerprints;
+        this.nativeClasses = nativeClasses;
+        this.nativeMethodOffsets = nativeMethodOffsets;
+        this.symbolLayout = symbolLayout;
+        this.classCodes = classCodes;
+    }
+
+    @Nonnull
+    public Set<String> getNativeClasses() {
+        return nativeClasses;
+    }
+
+    @Nonnull
+    public Map<String, Integer> getNativeMethodOffsets() {
+        return nativeMethodOffsets;
+    }
+
+    //没有按class保存代码时为null
+    @Nullable
+    public SymbolLayout getSymbolLayout() {
+        return symbolLayout;
+    }
+
+    /**
+     * 没有改变的class上次生成的函数
+     */
+    @Nonnull
+    public Map<String, ClassCode> getUnchangedClassCodes(@Nonnull Set<String> changedClasses) {
+        final Map<String, ClassCode> codes = new HashMap<>(classCodes);
+        codes.keySet().removeAll(changedClasses);
+        return codes;
+    }
+
+    public boolean isRewriterChanged(@Nonnull String rewriterFingerprint) {
+        return !this.rewriterFingerprint.equals(rewriterFingerprint);
+    }
+
+    /**
+     * 新增,删除或者指纹改变的class
+     */
+    @Nonnull
+    public Set<String> getChangedClasses(@Nonnull SortedMap<String, String> classFingerprints) {
+        final Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : classFingerprints.entrySet()) {
+            if (!entry.getValue().equals(this.classFingerprints.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String type : this.classFingerprints.keySet()) {
+            if (!classFingerprints.containsKey(type)) {
+                changed.add(type);
+            }
+        }
+        return changed;
+    }
+
+    //文件不存在或者格式不对时返回null
+    @Nullable
+    public static IncrementalState load(@Nonnull File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String rewriterFingerprint = in.readUTF();
+            final SortedMap<String, String> classFingerprints = new TreeMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String type = in.readUTF();
+                classFingerprints.put(type, in.readUTF());
+            }
+            final Set<String> nativeClasses = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                nativeClasses.add(in.readUTF());
+            }
+            final Map<String, Integer> nativeMethodOffsets = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String className = in.readUTF();
+                nativeMethodOffsets.put(className, in.readInt());
+            }
+            final SymbolLayout symbolLayout = in.readBoolean() ? SymbolLayout.readFrom(in) : null;
+            final Map<String, ClassCode> classCodes = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String type = in.readUTF();
+                classCodes.put(type, ClassCode.readFrom(in));
+            }
+            return new IncrementalState(rewriterFingerprint, classFingerprints, nativeClasses, nativeMethodOffsets,
+                    symbolLayout, classCodes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void save(@Nonnull File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(rewriterFingerprint);
+            out.writeInt(classFingerprints.size());
+            for (Map.Entry<String, String> entry : classFingerprints.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.writeInt(nativeClasses.size());
+            for (String className : new TreeSet<>(nativeClasses)) {
+                out.writeUTF(className);
+            }
+            out.writeInt(nativeMethodOffsets.size());
+            for (Map.Entry<String, Integer> entry : new TreeMap<>(nativeMethodOffsets).entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.writeBoolean(symbolLayout != null);
+            if (symbolLayout != null) {
+                symbolLayout.writeTo(out);
+            }
+            out.writeInt(classCodes.size());
+            for (Map.Entry<String, ClassCode> entry : new TreeMap<>(classCodes).entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+}
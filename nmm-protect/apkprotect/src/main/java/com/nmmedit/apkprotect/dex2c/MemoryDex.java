@@ -0,0 +1,62 @@
+package com.nmmedit.apkprotect.dex2c;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 保存在内存里的dex,各个处理阶段之间直接传递,不需要写入文件再重新读取解析
+ */
+public class MemoryDex {
+    //dexlib2写入的缓冲区,实际数据长度为size
+    private final byte[] buffer;
+    private final int size;
+
+    private MemoryDex(byte[] buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    @Nonnull
+    public static MemoryDex of(@Nonnull DexPool dexPool) throws IOException {
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return new MemoryDex(dataStore.getBuffer(), dataStore.getSize());
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 直接使用内存数据解析dex,不复制
+     */
+    @Nonnull
+    public DexBackedDexFile toDexFile(@Nonnull Opcodes opcodes) {
+        return new DexBackedDexFile(opcodes, buffer);
+    }
+
+    @Nonnull
+    public InputStream openStream() {
+        return new ByteArrayInputStream(buffer, 0, size);
+    }
+
+    //写入文件,方便调试
+    public void writeTo(@Nonnull File file) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buffer, 0, size);
+        }
+    }
+}
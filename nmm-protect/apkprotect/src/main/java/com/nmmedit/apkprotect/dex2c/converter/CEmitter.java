@@ -0,0 +1,281 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 生成c代码专用的writer
+ * 数字直接查表写入复用的字符缓冲区,不产生临时String及Formatter,
+ * 写文件时字符缓冲区满了才编码为utf-8,以大块写入FileChannel
+ */
+public class CEmitter extends Writer {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int CHAR_BUFFER_SIZE = 64 * 1024;
+
+    private final char[] buf = new char[CHAR_BUFFER_SIZE];
+    private int pos;
+
+    //两种输出方式只能有一种
+    private final Writer out;
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer byteBuffer;
+
+    private boolean closed;
+
+    /**
+     * 包装其他writer,flush时把缓冲区字符写入
+     */
+    public CEmitter(@Nonnull Writer out) {
+        this.out = out;
+        this.channel = null;
+        this.encoder = null;
+        this.byteBuffer = null;
+    }
+
+    /**
+     * 以utf-8写入channel
+     */
+    public CEmitter(@Nonnull WritableByteChannel channel) {
+        this.out = null;
+        this.channel = channel;
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        //utf-8每个字符最多3字节,保证一次能编码完整个字符缓冲区
+        this.byteBuffer = ByteBuffer.allocateDirect(CHAR_BUFFER_SIZE * 3);
+    }
+
+    @Nonnull
+    public static CEmitter open(@Nonnull File file) throws IOException {
+        return new CEmitter(FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    //已经是CEmitter直接返回,否则包装一下,调用者用完需要flush
+    @Nonnull
+    public static CEmitter of(@Nonnull Writer writer) {
+        if (writer instanceof CEmitter) {
+            return (CEmitter) writer;
+        }
+        return new CEmitter(writer);
+    }
+
+    @Nonnull
+    public CEmitter print(@Nonnull String s) throws IOException {
+        write(s, 0, s.length());
+        return this;
+    }
+
+    @Nonnull
+    public CEmitter print(@Nonnull CharSequence s) throws IOException {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (pos == buf.length) {
+                flushBuffer(false);
+            }
+            buf[pos++] = s.charAt(i);
+        }
+        return this;
+    }
+
+    @Nonnull
+    public CEmitter print(char c) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer(false);
+        }
+        buf[pos++] = c;
+        return this;
+    }
+
+    /**
+     * 十进制,和%d一样
+     */
+    @Nonnull
+    public CEmitter dec(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return print(Long.toString(value));
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int p = pos + digits;
+        pos = p;
+        do {
+            buf[--p] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    /**
+     * 带0x前缀的小写十六进制,最少minDigits位,不够补0.和"0x%0{minDigits}x"一样
+     */
+    @Nonnull
+    public CEmitter hex(long value, int minDigits) throws IOException {
+        ensure(18 + minDigits);
+        buf[pos++] = '0';
+        buf[pos++] = 'x';
+        int digits = 1;
+        for (long v = value >>> 4; v != 0; v >>>= 4) {
+            digits++;
+        }
+        for (int i = digits; i < minDigits; i++) {
+            buf[pos++] = '0';
+        }
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buf[pos++] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+        }
+        return this;
+    }
+
+    //0x%02x
+    @Nonnull
+    public CEmitter hexU1(int value) throws IOException {
+        ensure(4);
+        buf[pos++] = '0';
+        buf[pos++] = 'x';
+        buf[pos++] = HEX_DIGITS[(value >>> 4) & 0xf];
+        buf[pos++] = HEX_DIGITS[value & 0xf];
+        return this;
+    }
+
+    //0x%04x
+    @Nonnull
+    public CEmitter hexU2(int value) throws IOException {
+        ensure(6);
+        buf[pos++] = '0';
+        buf[pos++] = 'x';
+        buf[pos++] = HEX_DIGITS[(value >>> 12) & 0xf];
+        buf[pos++] = HEX_DIGITS[(value >>> 8) & 0xf];
+        buf[pos++] = HEX_DIGITS[(value >>> 4) & 0xf];
+        buf[pos++] = HEX_DIGITS[value & 0xf];
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        print((char) c);
+    }
+
+    @Override
+    public void write(@Nonnull char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == buf.length) {
+                flushBuffer(false);
+            }
+            final int n = Math.min(len, buf.length - pos);
+            System.arraycopy(cbuf, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(@Nonnull String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == buf.length) {
+                flushBuffer(false);
+            }
+            final int n = Math.min(len, buf.length - pos);
+            str.getChars(off, off + n, buf, pos);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            return print("null");
+        }
+        return print(csq);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buf.length) {
+            flushBuffer(false);
+        }
+    }
+
+    private void flushBuffer(boolean endOfInput) throws IOException {
+        if (out != null) {
+            out.write(buf, 0, pos);
+            pos = 0;
+            return;
+        }
+        final CharBuffer chars = CharBuffer.wrap(buf, 0, pos);
+        final CoderResult result = encoder.encode(chars, byteBuffer, endOfInput);
+        if (result.isError()) {
+            result.throwException();
+        }
+        if (endOfInput) {
+            encoder.flush(byteBuffer);
+            encoder.reset();
+        }
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        byteBuffer.clear();
+        //高位代理字符在缓冲区末尾时保留到下次编码
+        final int remaining = chars.remaining();
+        if (remaining > 0) {
+            System.arraycopy(buf, chars.position(), buf, 0, remaining);
+        }
+        pos = remaining;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            flushBuffer(false);
+            out.flush();
+        } else if (pos > 0) {
+            flushBuffer(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (out != null) {
+            try {
+                flushBuffer(false);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        try {
+            flushBuffer(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
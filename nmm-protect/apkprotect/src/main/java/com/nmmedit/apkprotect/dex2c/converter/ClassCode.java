@@ -0,0 +1,86 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一个class里方法生成的c函数,增量转换时保存下来
+ * 符号索引不变时,class没有改变就可以直接使用,不需要再重写指令及生成代码
+ */
+public class ClassCode {
+    //方法名加签名 -> 函数代码
+    private final Map<String, MethodCode> methods = new TreeMap<>();
+
+    @Nullable
+    MethodCode getMethod(@Nonnull String key) {
+        return methods.get(key);
+    }
+
+    void putMethod(@Nonnull String key, @Nonnull MethodCode code) {
+        methods.put(key, code);
+    }
+
+    public void writeTo(@Nonnull DataOutputStream out) throws IOException {
+        out.writeInt(methods.size());
+        for (Map.Entry<String, MethodCode> entry : methods.entrySet()) {
+            final MethodCode code = entry.getValue();
+            writeString(out, entry.getKey());
+            writeString(out, code.code);
+            out.writeBoolean(code.prototype != null);
+            if (code.prototype != null) {
+                writeString(out, code.prototype);
+            }
+            out.writeBoolean(code.compacted);
+            out.writeBoolean(code.stack);
+        }
+    }
+
+    @Nonnull
+    public static ClassCode readFrom(@Nonnull DataInputStream in) throws IOException {
+        final ClassCode classCode = new ClassCode();
+        for (int i = in.readInt(); i > 0; i--) {
+            final String key = readString(in);
+            final String code = readString(in);
+            final String prototype = in.readBoolean() ? readString(in) : null;
+            final boolean compacted = in.readBoolean();
+            classCode.putMethod(key, new MethodCode(code, prototype, compacted, in.readBoolean()));
+        }
+        return classCode;
+    }
+
+    //函数代码可能超出writeUTF长度限制,所以写入长度加内容
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static class MethodCode {
+        final String code;
+        //分片时头文件里的函数声明
+        @Nullable
+        final String prototype;
+        //寄存器重新分配的统计
+        final boolean compacted;
+        final boolean stack;
+
+        MethodCode(String code, @Nullable String prototype, boolean compacted, boolean stack) {
+            this.code = code;
+            this.prototype = prototype;
+            this.compacted = compacted;
+            this.stack = stack;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 字节码及异常表按块lz4压缩,运行时方法第一次调用才解压所在的块,解压结果缓存到so卸载
+ * 一个方法的数据不会跨块,块越大压缩率越高,但第一次调用的延迟也越大
+ */
+public class CompressedBlocks {
+    public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+    //块内每段数据按4字节对齐,malloc返回的内存满足对齐要求
+    private static final int ALIGNMENT = 4;
+
+    private final int blockSize;
+    private final List<byte[]> blocks = new ArrayList<>();
+    private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+    private long rawSize;
+    private long compressedSize;
+
+    public CompressedBlocks() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public CompressedBlocks(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * 添加一个方法的数据,字节码和异常表放在同一块里,只需要一次加载
+     *
+     * @param tries 长度为0时没有异常表
+     */
+    @Nonnull
+    public Location add(@Nonnull byte[] insns, @Nonnull byte[] tries) {
+        final int size = align(insns.length) + tries.length;
+        if (current.size() > 0 && current.size() + size > blockSize) {
+            finishBlock();
+        }
+        final int insnsOffset = current.size();
+        current.write(insns, 0, insns.length);
+        int triesOffset = -1;
+        if (tries.length != 0) {
+            pad();
+            triesOffset = current.size();
+            current.write(tries, 0, tries.length);
+        }
+        pad();
+        return new Location(blocks.size(), insnsOffset, triesOffset);
+    }
+
+    public int getBlockCount() {
+        return blocks.size() + (current.size() > 0 ? 1 : 0);
+    }
+
+    //所有块解压后大小,需要在写出代码后调用
+    public long getRawSize() {
+        return rawSize;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    private void pad() {
+        while (current.size() % ALIGNMENT != 0) {
+            current.write(0);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private void finishBlock() {
+        blocks.add(current.toByteArray());
+        current.reset();
+    }
+
+    /**
+     * 生成压缩数据,块表及加载函数,加载函数需要提前声明
+     *
+     * @param loadFunction 加载函数名,分片时其他编译单元也需要调用
+     * @param blob         不为null时压缩数据放入blob
+     */
+    public void writeTo(@Nonnull CEmitter writer, @Nonnull String loadFunction, @Nullable DataBlob blob) throws IOException {
+        if (current.size() > 0) {
+            finishBlock();
+        }
+        if (blocks.isEmpty()) {
+            return;
+        }
+        final List<byte[]> compressedBlocks = new ArrayList<>(blocks.size());
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] block : blocks) {
+            final byte[] compressed = Lz4Block.compress(block);
+            compressedBlocks.add(compressed);
+            data.write(compressed, 0, compressed.length);
+            rawSize += block.length;
+            compressedSize += compressed.length;
+        }
+        final byte[] bytes = data.toByteArray();
+
+        writer.print("\n//lz4压缩的字节码及异常表\n");
+        if (blob != null) {
+            writer.print("#define gCompressedData (").print(blob.getSymbol()).print(" + ")
+                    .hex(blob.addBytes(bytes), 1).print(")\n");
+        } else {
+            writer.print("static const u1 gCompressedData[] = {");
+            for (int i = 0; i < bytes.length; i++) {
+                if (i % 10 == 0) {//每行10个元素
+                    writer.print('\n');
+                }
+                writer.hexU1(bytes[i] & 0xFF).print(", ");
+            }
+            writer.print("\n};\n");
+        }
+
+        writer.print("\nstatic const CompressedBlock gCompressedBlocks[] = {\n");
+        int offset = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            final int size = compressedBlocks.get(i).length;
+            writer.print("        {.offset=").hex(offset, 1)
+                    .print(", .size=").hex(size, 1)
+                    .print(", .rawSize=").hex(blocks.get(i).length, 1).print("},\n");
+            offset += size;
+        }
+        writer.print("};\n" +
+                "\n" +
+                "//解压后的块,第一次加载时填充\n" +
+                "static const u1 *gBlockCache[").dec(blocks.size()).print("];\n" +
+                "\n" +
+                "__attribute__((visibility(\"hidden\"))) const u1 *").print(loadFunction).print("(u4 idx) {\n" +
+                "    return loadBlock(&gBlockCache[idx], &gCompressedBlocks[idx], gCompressedData);\n" +
+                "}\n\n");
+    }
+
+    //方法数据在块里的位置
+    public static class Location {
+        public final int block;
+        public final int insnsOffset;
+        //没有异常表时为-1
+        public final int triesOffset;
+
+        Location(int block, int insnsOffset, int triesOffset) {
+            this.block = block;
+            this.insnsOffset = insnsOffset;
+            this.triesOffset = triesOffset;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 字节码及常量池等只读数据打包为二进制文件,c代码通过.incbin链接,只保存偏移
+ * 编译器不再需要解析巨大的数组初始化列表
+ * 所有数据按小端保存,android支持的abi都是小端
+ */
+public class DataBlob {
+    //每段数据按4字节对齐,可以直接当u2,u4数组或结构体数组访问
+    private static final int ALIGNMENT = 4;
+
+    private final String symbol;
+    private byte[] data = new byte[64 * 1024];
+    private int size;
+
+    /**
+     * @param symbol c代码里引用数据的符号名
+     */
+    public DataBlob(@Nonnull String symbol) {
+        this.symbol = symbol;
+    }
+
+    @Nonnull
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 添加一段数据
+     *
+     * @return 数据在blob里的偏移
+     */
+    public int addBytes(@Nonnull byte[] bytes) {
+        final int offset = align();
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+        return offset;
+    }
+
+    //开始新的一段数据,返回对齐后的偏移
+    public int align() {
+        final int padding = (ALIGNMENT - (size % ALIGNMENT)) % ALIGNMENT;
+        ensure(padding);
+        size += padding;
+        return size;
+    }
+
+    public void putU1(int value) {
+        ensure(1);
+        data[size++] = (byte) value;
+    }
+
+    public void putU2(int value) {
+        ensure(2);
+        data[size++] = (byte) value;
+        data[size++] = (byte) (value >>> 8);
+    }
+
+    public void putU4(long value) {
+        ensure(4);
+        data[size++] = (byte) value;
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) (value >>> 16);
+        data[size++] = (byte) (value >>> 24);
+    }
+
+    //结构体字段之间的填充
+    public void pad(int count) {
+        ensure(count);
+        size += count;
+    }
+
+    private void ensure(int count) {
+        if (size + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + count));
+        }
+    }
+
+    public void writeTo(@Nonnull File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, size);
+        }
+    }
+
+    /**
+     * 定义数据符号的汇编代码,放在c文件顶层
+     * path相对c文件所在目录,编译时该目录要在include路径里,汇编器在include路径中查找.incbin文件
+     */
+    public static void writeIncbin(@Nonnull CEmitter writer, @Nonnull String symbol, @Nonnull String path) throws IOException {
+        final String escaped = path
+                .replace("\\", "\\\\\\\\")
+                .replace("\"", "\\\\\\\"");
+        writer.print("//字节码及常量池等只读数据\n" +
+                "__asm__(\n" +
+                "    \".section .rodata\\n\"\n" +
+                "    \".balign 16\\n\"\n" +
+                "    \".globl ").print(symbol).print("\\n\"\n" +
+                "    \".hidden ").print(symbol).print("\\n\"\n" +
+                "    \".type ").print(symbol).print(", %object\\n\"\n" +
+                "    \"").print(symbol).print(":\\n\"\n" +
+                "    \".incbin \\\"").print(escaped).print("\\\"\\n\"\n" +
+                "    \".size ").print(symbol).print(", . - ").print(symbol).print("\\n\"\n" +
+                "    \".previous\\n\"\n" +
+                ");\n");
+        writeExtern(writer, symbol);
+    }
+
+    public static void writeExtern(@Nonnull CEmitter writer, @Nonnull String symbol) throws IOException {
+        writer.print("extern __attribute__((visibility(\"hidden\"))) const u1 ").print(symbol).print("[];\n\n");
+    }
+}
@@ -0,0 +1,127 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 判断转换后的方法能否加@FastNative
+ * FastNative方法执行期间线程不会进入native状态,gc必须等待方法返回,所以方法里不能有阻塞或者耗时的操作.
+ * 只接受没有循环并且不调用其他方法的短方法,同时排除生成代码里可能加锁或者加载class的指令:
+ * const-string(首次执行要创建字符串及全局引用),类型解析(FindClass可能加载class),
+ * 读写其他class的字段(解析字段要FindClass,静态字段还可能执行static{}),monitor-enter/exit及带类型的异常处理
+ */
+public final class FastNativeChecker {
+    public static final String FAST_NATIVE = "Ldalvik/annotation/optimization/FastNative;";
+
+    //超过这个长度的方法即使没有循环也不处理
+    public static final int MAX_CODE_UNITS = 256;
+
+    private FastNativeChecker() {
+    }
+
+    /**
+     * @param method 转换前的方法,有优化时传入优化后的方法
+     * @return 可以加FastNative注解返回方法代码单元数,否则返回-1
+     */
+    public static int check(@Nonnull Method method) {
+        final int flags = method.getAccessFlags();
+        if (AccessFlags.SYNCHRONIZED.isSet(flags) || AccessFlags.DECLARED_SYNCHRONIZED.isSet(flags)) {
+            return -1;
+        }
+        final MethodImplementation implementation = method.getImplementation();
+        if (implementation == null) {
+            return -1;
+        }
+        //switch数据的地址对应switch指令地址,数据里的偏移相对switch指令
+        final Map<Integer, Integer> switchAddresses = new HashMap<>();
+        int address = 0;
+        for (Instruction instruction : implementation.getInstructions()) {
+            final Opcode opcode = instruction.getOpcode();
+            if (opcode == Opcode.PACKED_SWITCH || opcode == Opcode.SPARSE_SWITCH) {
+                switchAddresses.put(address + ((OffsetInstruction) instruction).getCodeOffset(), address);
+            }
+            address += instruction.getCodeUnits();
+        }
+        final int codeUnits = address;
+        if (codeUnits > MAX_CODE_UNITS) {
+            return -1;
+        }
+
+        address = 0;
+        for (Instruction instruction : implementation.getInstructions()) {
+            if (instruction instanceof SwitchPayload) {
+                final Integer switchAddress = switchAddresses.get(address);
+                if (switchAddress == null) {
+                    return -1;
+                }
+                for (SwitchElement element : ((SwitchPayload) instruction).getSwitchElements()) {
+                    if (element.getOffset() <= 0) {
+                        return -1;
+                    }
+                }
+            } else if (!isAllowed(instruction, method.getDefiningClass())) {
+                return -1;
+            }
+            address += instruction.getCodeUnits();
+        }
+
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            final int end = tryBlock.getStartCodeAddress() + tryBlock.getCodeUnitCount();
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                //异常类型匹配需要解析class;异常处理在try前面可能形成循环
+                if (handler.getExceptionType() != null || handler.getHandlerCodeAddress() < end) {
+                    return -1;
+                }
+            }
+        }
+        return codeUnits;
+    }
+
+    private static boolean isAllowed(Instruction instruction, String definingClass) {
+        final Opcode opcode = instruction.getOpcode();
+        if (opcode.odexOnly() || opcode == Opcode.MONITOR_ENTER || opcode == Opcode.MONITOR_EXIT) {
+            return false;
+        }
+        //只能向后跳转,保证没有循环
+        if (instruction instanceof OffsetInstruction
+                && opcode != Opcode.FILL_ARRAY_DATA
+                && ((OffsetInstruction) instruction).getCodeOffset() <= 0) {
+            return false;
+        }
+        switch (opcode.referenceType) {
+            case ReferenceType.NONE:
+                return true;
+            case ReferenceType.FIELD: {
+                //本类已经加载并初始化,解析字段不会再加载class
+                final FieldReference field = (FieldReference) ((ReferenceInstruction) instruction).getReference();
+                return field.getDefiningClass().equals(definingClass);
+            }
+            case ReferenceType.TYPE:
+                //基本类型数组不需要查找class
+                if (opcode == Opcode.NEW_ARRAY || opcode == Opcode.FILLED_NEW_ARRAY || opcode == Opcode.FILLED_NEW_ARRAY_RANGE) {
+                    final String type = ((TypeReference) ((ReferenceInstruction) instruction).getReference()).getType();
+                    return type.length() == 2;
+                }
+                return false;
+            default:
+                //方法调用,字符串等
+                return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 解释器内部实现的jdk方法,对应vm.h里的VM_INTRINSIC_*
+ * 只收录没有副作用并且结果完全确定的方法,Integer.valueOf之类返回对象的方法需要保持缓存对象的同一性,所以不包括
+ */
+public final class Intrinsics {
+    private static final Map<String, String> INTRINSICS = new HashMap<>();
+
+    static {
+        add("Ljava/lang/Math;->abs(I)I", "VM_INTRINSIC_MATH_ABS_I");
+        add("Ljava/lang/Math;->abs(J)J", "VM_INTRINSIC_MATH_ABS_J");
+        add("Ljava/lang/Math;->abs(F)F", "VM_INTRINSIC_MATH_ABS_F");
+        add("Ljava/lang/Math;->abs(D)D", "VM_INTRINSIC_MATH_ABS_D");
+        add("Ljava/lang/Math;->min(II)I", "VM_INTRINSIC_MATH_MIN_II");
+        add("Ljava/lang/Math;->min(JJ)J", "VM_INTRINSIC_MATH_MIN_JJ");
+        add("Ljava/lang/Math;->min(FF)F", "VM_INTRINSIC_MATH_MIN_FF");
+        add("Ljava/lang/Math;->min(DD)D", "VM_INTRINSIC_MATH_MIN_DD");
+        add("Ljava/lang/Math;->max(II)I", "VM_INTRINSIC_MATH_MAX_II");
+        add("Ljava/lang/Math;->max(JJ)J", "VM_INTRINSIC_MATH_MAX_JJ");
+        add("Ljava/lang/Math;->max(FF)F", "VM_INTRINSIC_MATH_MAX_FF");
+        add("Ljava/lang/Math;->max(DD)D", "VM_INTRINSIC_MATH_MAX_DD");
+        add("Ljava/lang/Math;->sqrt(D)D", "VM_INTRINSIC_MATH_SQRT");
+        add("Ljava/lang/StrictMath;->sqrt(D)D", "VM_INTRINSIC_MATH_SQRT");
+
+        add("Ljava/lang/Float;->floatToRawIntBits(F)I", "VM_INTRINSIC_FLOAT_TO_RAW_INT_BITS");
+        add("Ljava/lang/Float;->floatToIntBits(F)I", "VM_INTRINSIC_FLOAT_TO_INT_BITS");
+        add("Ljava/lang/Float;->intBitsToFloat(I)F", "VM_INTRINSIC_INT_BITS_TO_FLOAT");
+        add("Ljava/lang/Float;->isNaN(F)Z", "VM_INTRINSIC_FLOAT_IS_NAN");
+        add("Ljava/lang/Double;->doubleToRawLongBits(D)J", "VM_INTRINSIC_DOUBLE_TO_RAW_LONG_BITS");
+        add("Ljava/lang/Double;->doubleToLongBits(D)J", "VM_INTRINSIC_DOUBLE_TO_LONG_BITS");
+        add("Ljava/lang/Double;->longBitsToDouble(J)D", "VM_INTRINSIC_LONG_BITS_TO_DOUBLE");
+        add("Ljava/lang/Double;->isNaN(D)Z", "VM_INTRINSIC_DOUBLE_IS_NAN");
+
+        add("Ljava/lang/Integer;->bitCount(I)I", "VM_INTRINSIC_INTEGER_BIT_COUNT");
+        add("Ljava/lang/Integer;->numberOfLeadingZeros(I)I", "VM_INTRINSIC_INTEGER_LEADING_ZEROS");
+        add("Ljava/lang/Integer;->numberOfTrailingZeros(I)I", "VM_INTRINSIC_INTEGER_TRAILING_ZEROS");
+        add("Ljava/lang/Long;->bitCount(J)I", "VM_INTRINSIC_LONG_BIT_COUNT");
+        add("Ljava/lang/Long;->numberOfLeadingZeros(J)I", "VM_INTRINSIC_LONG_LEADING_ZEROS");
+        add("Ljava/lang/Long;->numberOfTrailingZeros(J)I", "VM_INTRINSIC_LONG_TRAILING_ZEROS");
+
+        //String是final类,invoke-virtual的目标就是这几个方法,null在调用前已经检查
+        add("Ljava/lang/String;->length()I", "VM_INTRINSIC_STRING_LENGTH");
+        add("Ljava/lang/String;->isEmpty()Z", "VM_INTRINSIC_STRING_IS_EMPTY");
+        add("Ljava/lang/String;->charAt(I)C", "VM_INTRINSIC_STRING_CHAR_AT");
+    }
+
+    private Intrinsics() {
+    }
+
+    private static void add(String descriptor, String intrinsic) {
+        INTRINSICS.put(descriptor, intrinsic);
+    }
+
+    //返回对应的VM_INTRINSIC_*,不是内部实现的方法返回null
+    @Nullable
+    public static String get(@Nonnull MethodReference method) {
+        return INTRINSICS.get(ReferenceUtil.getMethodDescriptor(method));
+    }
+}
@@ -1,20 +1,27 @@
 package com.nmmedit.apkprotect.dex2c.converter;
 
 import com.google.common.collect.HashMultimap;
+import com.nmmedit.apkprotect.dex2c.Dex2cOptions;
 import com.nmmedit.apkprotect.dex2c.DexConfig;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.InstructionRewriter;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.RegisterAllocator;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedMethod;
-import org.jf.dexlib2.dexbacked.DexBuffer;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
 import org.jf.dexlib2.util.MethodUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 
@@ -31,22 +38,180 @@ public class JniCodeGenerator {
     private final ResolverCodeGenerator resolverCodeGenerator;
     private final InstructionRewriter instructionRewriter;
     private final DexBackedDexFile dexFile;
+    //分片时函数不再是static,多个dex可能有同名class,需要加上dex名区分
+    private String functionPrefix = "";
+    //二进制数据模式,字节码及异常表放在blob里
+    @Nullable
+    private DataBlob blob;
+
+    //字节码及异常表完全一样的方法共用数据,jni签名也一样时共用同一个函数
+    private boolean dedupe;
+    private final Map<List<Object>, String> sharedFunctions = new HashMap<>();
+    //共用函数的方法注册时使用的函数名
+    private final Map<MyMethod, String> functionAliases = new HashMap<>();
+    //c数组只在当前编译单元可见,blob里的数据整个dex共用
+    private final Map<ByteBuffer, String> sharedInsnsArrays = new HashMap<>();
+    private final Map<ByteBuffer, String> sharedTriesArrays = new HashMap<>();
+    private final Map<ByteBuffer, Integer> sharedBlobOffsets = new HashMap<>();
+    private int dedupedMethods;
+    //注册表里不保存函数指针,通过switch按索引得到函数地址,加载so时不需要重定位
+    private boolean relocationFree;
+    private long dedupedBytes;
+    //压缩模式,方法数据放在压缩块里,通过加载函数取得解压后的块
+    @Nullable
+    private CompressedBlocks compressedBlocks;
+    private String loadBlockFunction;
+    private final Map<List<ByteBuffer>, CompressedBlocks.Location> sharedBlockLocations = new HashMap<>();
+    //寄存器重新分配,统计寄存器减少的方法及因此可以使用栈内存的方法
+    private boolean compactRegisters;
+    private int compactedMethods;
+    private int stackMethods;
+    //调用同一个dex里转换后的static,private或final方法时不经过jni,直接调用它的jni函数
+    private boolean directCalls;
+    private int directMethods;
+
+    //增量转换时按class记录生成的函数,及上次生成的可以直接使用的函数
+    @Nullable
+    private final Map<String, ClassCode> classCodes;
+    private Map<String, ClassCode> reusedCodes = Collections.emptyMap();
+
+    //寄存器数量不超过这个值时jni函数直接使用栈内存
+    private static final int STACK_REGISTERS = 8;
 
     public JniCodeGenerator(@Nonnull DexBackedDexFile dexFile,
                             @Nonnull InstructionRewriter instructionRewriter) {
+        this(dexFile, instructionRewriter, false);
+    }
+
+    /**
+     * @param pruneSymbols 符号表只保留转换后代码用到的符号,指令里的索引也随之改变
+     */
+    public JniCodeGenerator(@Nonnull DexBackedDexFile dexFile,
+                            @Nonnull InstructionRewriter instructionRewriter,
+                            boolean pruneSymbols) {
+        this(dexFile, instructionRewriter, pruneSymbols, null, false);
+    }
+
+    /**
+     * 增量转换使用,符号表裁剪并且按上次的顺序排列,同时按class记录生成的函数
+     *
+     * @param previousLayout 上次转换的符号顺序,第一次转换时为null
+     */
+    public JniCodeGenerator(@Nonnull DexBackedDexFile dexFile,
+                            @Nonnull InstructionRewriter instructionRewriter,
+                            @Nullable SymbolLayout previousLayout) {
+        this(dexFile, instructionRewriter, true, previousLayout, true);
+    }
+
+    private JniCodeGenerator(@Nonnull DexBackedDexFile dexFile,
+                             @Nonnull InstructionRewriter instructionRewriter,
+                             boolean pruneSymbols,
+                             @Nullable SymbolLayout previousLayout,
+                             boolean recordClassCodes) {
         this.dexFile = dexFile;
         this.instructionRewriter = instructionRewriter;
-        instructionRewriter.loadDexFile(dexFile);
+        this.classCodes = recordClassCodes ? new HashMap<>() : null;
 
 //      根据dex里字符串常量,类型常量等生成符号解析代码,给vm提供符号信息
-        resolverCodeGenerator = new ResolverCodeGenerator(dexFile);
+        resolverCodeGenerator = new ResolverCodeGenerator(dexFile, pruneSymbols, previousLayout);
+        if (pruneSymbols) {
+            instructionRewriter.loadSymbols(dexFile,
+                    resolverCodeGenerator.getStringPool(),
+                    resolverCodeGenerator.getTypePool(),
+                    resolverCodeGenerator.getFieldSection(),
+                    resolverCodeGenerator.getMethodSection());
+        } else {
+            instructionRewriter.loadDexFile(dexFile);
+        }
         this.isRegisterNative = true;
     }
 
     public void addMethod(Method method, Writer writer) throws IOException {
-        final MethodImplementation implementation = method.getImplementation();
+        final CEmitter emitter = CEmitter.of(writer);
+        addMethod(method, emitter, isRegisterNative ? "static" : "JNIEXPORT");
+        if (emitter != writer) {
+            emitter.flush();
+        }
+    }
+
+    /**
+     * 使用上次转换生成的函数,只有沿用了上次的符号顺序时才能使用
+     *
+     * @param reusedCodes 没有改变的class及它们上次生成的函数
+     */
+    public void setReusedCodes(@Nonnull Map<String, ClassCode> reusedCodes) {
+        if (classCodes == null || !resolverCodeGenerator.isLayoutReused()) {
+            throw new IllegalStateException("Symbol layout changed");
+        }
+        this.reusedCodes = reusedCodes;
+    }
+
+    //沿用了上次的符号顺序,没有改变的class可以使用上次生成的函数
+    public boolean isLayoutReused() {
+        return resolverCodeGenerator.isLayoutReused();
+    }
+
+    @Nonnull
+    public SymbolLayout getSymbolLayout() {
+        return resolverCodeGenerator.getSymbolLayout();
+    }
+
+    //增量转换时每个class生成的函数,必须在产生代码后调用
+    @Nullable
+    public Map<String, ClassCode> getClassCodes() {
+        return classCodes;
+    }
+
+    //增量转换时记录生成的函数,class没有改变时直接写入上次生成的函数
+    private String emitMethod(DexBackedMethod method, CEmitter writer, String storage) throws IOException {
+        if (classCodes == null) {
+            return addMethod(method, writer, storage);
+        }
+        if (method.getImplementation() == null) {
+            return null;
+        }
+        final String classType = method.getDefiningClass();
+        final String key = method.getName() + MyMethodUtil.getMethodSignature(method.getParameterTypes(), method.getReturnType());
+        final ClassCode reused = reusedCodes.get(classType);
+        ClassCode.MethodCode code = reused == null ? null : reused.getMethod(key);
+        if (code == null) {
+            final int compacted = compactedMethods;
+            final int stack = stackMethods;
+            final StringWriter buffer = new StringWriter();
+            final CEmitter emitter = CEmitter.of(buffer);
+            final String prototype = addMethod(method, emitter, storage);
+            emitter.flush();
+            code = new ClassCode.MethodCode(buffer.toString(), prototype,
+                    compactedMethods != compacted, stackMethods != stack);
+        } else {
+            //注册本地方法需要的信息
+            final String clazzName = classType.substring(1, classType.length() - 1);
+            nativeMethods.put(clazzName, new MyMethod(clazzName, method.getName(), method.getParameterTypes(), method.getReturnType()));
+            if (code.compacted) {
+                compactedMethods++;
+            }
+            if (code.stack) {
+                stackMethods++;
+            }
+        }
+        ClassCode classCode = classCodes.get(classType);
+        if (classCode == null) {
+            classCode = new ClassCode();
+            classCodes.put(classType, classCode);
+        }
+        classCode.putMethod(key, code);
+        writer.print(code.code);
+        return code.prototype;
+    }
+
+    /**
+     * @param storage 函数前缀,分片时需要其他编译单元能引用
+     * @return 函数原型, 没有实现的方法返回null
+     */
+    private String addMethod(Method method, CEmitter writer, String storage) throws IOException {
+        MethodImplementation implementation = method.getImplementation();
         if (implementation == null) {
-            return;
+            return null;
         }
 
         final boolean isStatic = AccessFlags.STATIC.isSet(method.getAccessFlags());
@@ -54,64 +219,71 @@ public class JniCodeGenerator {
         final String classType = method.getDefiningClass();
 
         final String methodName = method.getName();
-        final int registerCount = implementation.getRegisterCount();
         final List<? extends CharSequence> parameterTypes = method.getParameterTypes();
         final int parameterRegisterCount = MethodUtil.getParameterRegisterCount(parameterTypes, isStatic);
+        if (compactRegisters) {
+            final int originalCount = implementation.getRegisterCount();
+            implementation = RegisterAllocator.allocate(implementation, parameterRegisterCount);
+            if (implementation.getRegisterCount() < originalCount) {
+                compactedMethods++;
+                if (originalCount > STACK_REGISTERS && implementation.getRegisterCount() <= STACK_REGISTERS) {
+                    stackMethods++;
+                }
+            }
+        }
+        final int registerCount = implementation.getRegisterCount();
         final String returnType = method.getReturnType();
 
 
         String clazzName = classType.substring(1, classType.length() - 1);
 
-        nativeMethods.put(clazzName, new MyMethod(clazzName, methodName, parameterTypes, returnType));
+        final MyMethod myMethod = new MyMethod(clazzName, methodName, parameterTypes, returnType);
+        nativeMethods.put(clazzName, myMethod);
 
-        writer.write(String.format("%s %s %s(JNIEnv *env, %s ",
-                isRegisterNative ? "static" : "JNIEXPORT",
-                getJNIType(returnType),
-                MyMethodUtil.getJniFunctionName(clazzName, methodName, parameterTypes, returnType),
-                isStatic ? "jclass jcls" : "jobject thiz")
-        );
+        final String functionName = functionPrefix + MyMethodUtil.getJniFunctionName(clazzName, methodName, parameterTypes, returnType);
+        final StringBuilder prototype = new StringBuilder(128)
+                .append(storage).append(' ')
+                .append(getJNIType(returnType)).append(' ')
+                .append(functionName)
+                .append("(JNIEnv *env, ")
+                .append(isStatic ? "jclass jcls" : "jobject thiz")
+                .append(' ');
 
 
 //        --------jni函数定义及参数赋值-------
 
 
         //如果寄存器数量比较小直接使用栈上内存,不自己分配和释放
-        boolean useStack = registerCount <= 8;
+        boolean useStack = registerCount <= STACK_REGISTERS;
 
         //寄存器初始化
-        StringBuilder regsAssign;
-        StringBuilder regFlagsAssign;
+        StringBuilder regsAssign = new StringBuilder();
+        StringBuilder regFlagsAssign = new StringBuilder();
         if (useStack) {
-            regsAssign = new StringBuilder(String.format(
-                    "    regptr_t regs[%d];\n", registerCount));
+            regsAssign.append("    regptr_t regs[").append(registerCount).append("];\n");
             //直接赋值数组元素值为0,初始化寄存器及其状态,不调用memset
             //好处是和后面赋值参数及参数类型时,编译器可以优化无用赋值
 
             for (int i = 0; i < registerCount; i++) {
-                regsAssign.append(String.format("    regs[%d] = 0;\n", i));
+                regsAssign.append("    regs[").append(i).append("] = 0;\n");
             }
-            regFlagsAssign = new StringBuilder(String.format(
-                    "    u1 reg_flags[%d];\n", registerCount));
+            regFlagsAssign.append("    u1 reg_flags[").append(registerCount).append("];\n");
 
             for (int i = 0; i < registerCount; i++) {
-                regFlagsAssign.append(String.format("    reg_flags[%d] = 0;\n", i));
+                regFlagsAssign.append("    reg_flags[").append(i).append("] = 0;\n");
             }
         } else {
-            //一次同时分配寄存器及它的状态所需内存
-            regsAssign = new StringBuilder(String.format(
-                    "    const u2 flags_count = %d / sizeof(regptr_t) + ((%d %% sizeof(regptr_t)) ? 1 : 0);\n" +
-                            "    regptr_t *regs = (regptr_t *) calloc(%d, sizeof(regptr_t) + flags_count);\n",
-                    registerCount, registerCount, registerCount));
+            //从线程的帧栈一次同时分配寄存器及它的状态所需内存
+            regsAssign.append("    regptr_t *regs = vmAllocFrame(").append(registerCount).append(");\n");
 
             //寄存器后面部分是寄存器状态数组,一个状态一个字节
-            regFlagsAssign = new StringBuilder(
-                    String.format("    u1 *reg_flags = ((u1 *) regs) + (%d * sizeof(regptr_t));\n", registerCount));
+            regFlagsAssign.append("    u1 *reg_flags = ((u1 *) regs) + (").append(registerCount).append(" * sizeof(regptr_t));\n");
         }
         int paramRegStart = registerCount - parameterRegisterCount;
         if (!isStatic) {
-            regsAssign.append(String.format("    regs[%d] = (regptr_t) thiz;\n", paramRegStart));
+            regsAssign.append("    regs[").append(paramRegStart).append("] = (regptr_t) thiz;\n");
             //对象寄存器需要标识出来
-            regFlagsAssign.append(String.format("    reg_flags[%d] = 1;\n", paramRegStart));
+            regFlagsAssign.append("    reg_flags[").append(paramRegStart).append("] = 1;\n");
 
             paramRegStart++;
         }
@@ -124,104 +296,274 @@ public class JniCodeGenerator {
                     .append(" p")
                     .append(argNum);
             if (type.startsWith("[") || type.startsWith("L")) {//对象类型
-                regsAssign.append(String.format("    regs[%d] = (regptr_t) p%d;\n", paramRegStart, argNum));
+                regsAssign.append("    regs[").append(paramRegStart).append("] = (regptr_t) p").append(argNum).append(";\n");
 
-                regFlagsAssign.append(String.format("    reg_flags[%d] = 1;\n", paramRegStart));
+                regFlagsAssign.append("    reg_flags[").append(paramRegStart).append("] = 1;\n");
 
                 paramRegStart++;
             } else if (type.equals("F")) {
-                regsAssign.append(String.format("    SET_REGISTER_FLOAT(%d, p%d);\n", paramRegStart++, argNum));
+                regsAssign.append("    SET_REGISTER_FLOAT(").append(paramRegStart++).append(", p").append(argNum).append(");\n");
             } else if (type.equals("D")) {
-                regsAssign.append(String.format("    SET_REGISTER_DOUBLE(%d, p%d);\n", paramRegStart++, argNum));
+                regsAssign.append("    SET_REGISTER_DOUBLE(").append(paramRegStart++).append(", p").append(argNum).append(");\n");
                 paramRegStart++;
             } else if (type.equals("J")) {
-                regsAssign.append(String.format("    SET_REGISTER_WIDE(%d, p%d);\n", paramRegStart++, argNum));
+                regsAssign.append("    SET_REGISTER_WIDE(").append(paramRegStart++).append(", p").append(argNum).append(");\n");
                 paramRegStart++;
             } else {
-                regsAssign.append(String.format("    regs[%d] = p%d;\n", paramRegStart++, argNum));
+                regsAssign.append("    regs[").append(paramRegStart++).append("] = p").append(argNum).append(";\n");
             }
             if (i < size - 1) {//最后不用加,
                 params.append(", ");
             }
         }
         if (params.length() > 0) {
-            writer.append(", ").append(params.toString());
+            prototype.append(", ").append(params);
         }
-        writer.append(") {\n");
-        writer.append(regsAssign);
-        writer.append("\n");
-
-        writer.append(regFlagsAssign);
-        writer.append("\n");
-//        -----------结束----------------
-
-        writer.append("    static const u2 insns[] = {");
+        prototype.append(")");
 
         final byte[] instructionData = instructionRewriter.instructionRewriter(implementation);
         final int dataLength = instructionData.length;
-        //生成字节码数组
-        final DexBuffer instructionBuf = new DexBuffer(instructionData);
+        if (dedupe) {
+            final byte[] tries = instructionRewriter.handleTries(implementation);
+            final ByteBuffer insnsKey = ByteBuffer.wrap(instructionData);
+            final ByteBuffer triesKey = ByteBuffer.wrap(tries);
+            //函数体只由寄存器数量,参数类型及字节码决定,和函数名无关
+            final List<Object> functionKey = Arrays.asList(isStatic, registerCount,
+                    getJNIType(returnType), params.toString(), insnsKey, triesKey);
+            final String sharedFunction = sharedFunctions.get(functionKey);
+            if (sharedFunction != null && isRegisterNative) {
+                functionAliases.put(myMethod, sharedFunction);
+                dedupedMethods++;
+                dedupedBytes += dataLength + tries.length;
+                return null;
+            }
+            sharedFunctions.put(functionKey, functionName);
+
+            if (compressedBlocks != null) {
+                writeFunctionStart(writer, prototype, regsAssign, regFlagsAssign);
+                writeBlockData(writer, instructionData, tries);
+            } else {
+                final String insnsRef = addSharedData(writer, insnsKey, true);
+                final String triesRef = tries.length == 0 ? "NULL" : addSharedData(writer, triesKey, false);
+
+                writeFunctionStart(writer, prototype, regsAssign, regFlagsAssign);
+                writer.print("    const u2 *insns = ").print(insnsRef).print(";\n");
+                writer.print("    const u1 *tries = ").print(triesRef).print(";\n");
+            }
+            writeInterpretCall(writer, dataLength, useStack, returnType);
+            return prototype.toString();
+        }
+
+        writeFunctionStart(writer, prototype, regsAssign, regFlagsAssign);
+        if (compressedBlocks != null) {
+            writeBlockData(writer, instructionData, instructionRewriter.handleTries(implementation));
+            writeInterpretCall(writer, dataLength, useStack, returnType);
+            return prototype.toString();
+        }
+        if (blob != null) {
+            //字节码本身就是小端u2,直接放入blob
+            writer.print("    const u2 *insns = (const u2 *) (").print(blob.getSymbol()).print(" + ")
+                    .hex(blob.addBytes(instructionData), 1).print(");\n");
+            final byte[] tries = instructionRewriter.handleTries(implementation);
+            if (tries.length == 0) {
+                writer.print("    const u1 *tries = NULL;\n");
+            } else {
+                writer.print("    const u1 *tries = ").print(blob.getSymbol()).print(" + ")
+                        .hex(blob.addBytes(tries), 1).print(";\n");
+            }
+            writeInterpretCall(writer, dataLength, useStack, returnType);
+            return prototype.toString();
+        }
+
+        writer.print("    static const u2 insns[] = {");
+        //生成字节码数组,小端u2
         for (int offset = 0; offset < dataLength; offset += 2) {
             if (offset % 20 == 0) {
-                writer.append("\n");
+                writer.print('\n');
             }
-            writer.append(String.format("0x%04x, ", instructionBuf.readUshort(offset)));
+            writer.hexU2((instructionData[offset] & 0xff) | (instructionData[offset + 1] & 0xff) << 8).print(", ");
         }
 
-        writer.append("\n    };\n");
+        writer.print("\n    };\n");
 
 
         final byte[] tries = instructionRewriter.handleTries(implementation);
-        StringBuilder triesBuilder = new StringBuilder();
         if (tries.length == 0) {
-            triesBuilder.append("    const u1 *tries = NULL;\n");
+            writer.print("    const u1 *tries = NULL;\n");
         } else {
 
-            triesBuilder.append("    static const u1 tries[] = {");
+            writer.print("    static const u1 tries[] = {");
             for (int i = 0; i < tries.length; i++) {
                 if (i % 10 == 0) {//每行10个元素
-                    triesBuilder.append("\n");
+                    writer.print('\n');
                 }
-                triesBuilder.append(String.format("0x%02x, ", tries[i] & 0xFF));
+                writer.hexU1(tries[i] & 0xFF).print(", ");
 
             }
-            triesBuilder.append("\n    };\n");
+            writer.print("\n    };\n");
         }
-        writer.write(triesBuilder.toString());
 
 
-        //调用解释器
-        writer.write(String.format("\n" +
-                        "    const vmCode code = {\n" +
-                        "            .insns=insns,\n" +
-                        "            .insnsSize=%d,\n" +
-                        "            .regs=regs,\n" +
-                        "            .reg_flags=reg_flags,\n" +
-                        "            .triesHandlers=tries\n" +
-                        "    };\n" +
-                        "\n" +
-                        "    jvalue value = vmInterpret(env,\n" +
-                        "                                &code,\n" +
-                        "                                &dvmResolver);\n"
-                , dataLength / 2));
+        writeInterpretCall(writer, dataLength, useStack, returnType);
+        return prototype.toString();
+    }
+
+    private static void writeFunctionStart(CEmitter writer, CharSequence prototype,
+                                           CharSequence regsAssign, CharSequence regFlagsAssign) throws IOException {
+        writer.print(prototype).print(" {\n");
+        writer.print(regsAssign);
+        writer.print("\n");
+
+        writer.print(regFlagsAssign);
+        writer.print("\n");
+//        -----------结束----------------
+    }
+
+    //方法数据在解压后的块里,每次调用通过加载函数取得块地址,只有第一次调用需要解压
+    private void writeBlockData(CEmitter writer, byte[] insns, byte[] tries) throws IOException {
+        CompressedBlocks.Location location = null;
+        List<ByteBuffer> key = null;
+        if (dedupe) {
+            key = Arrays.asList(ByteBuffer.wrap(insns), ByteBuffer.wrap(tries));
+            location = sharedBlockLocations.get(key);
+            if (location != null) {
+                dedupedBytes += insns.length + tries.length;
+            }
+        }
+        if (location == null) {
+            location = compressedBlocks.add(insns, tries);
+            if (key != null) {
+                sharedBlockLocations.put(key, location);
+            }
+        }
+        writer.print("    const u1 *block = ").print(loadBlockFunction).print("(").dec(location.block).print(");\n");
+        writer.print("    const u2 *insns = (const u2 *) (block + ").hex(location.insnsOffset, 1).print(");\n");
+        if (location.triesOffset < 0) {
+            writer.print("    const u1 *tries = NULL;\n");
+        } else {
+            writer.print("    const u1 *tries = block + ").hex(location.triesOffset, 1).print(";\n");
+        }
+    }
+
+    private void writeBlockDeclaration(CEmitter writer) throws IOException {
+        writer.print("#include \"BlockCache.h\"\n" +
+                "\n" +
+                "//返回解压后的字节码块,定义在主编译单元\n" +
+                "__attribute__((visibility(\"hidden\"))) const u1 *").print(loadBlockFunction).print("(u4 idx);\n\n");
+    }
+
+    /**
+     * 内容相同的数据只写一次,返回数据在c代码里的引用
+     * 第一次出现时在函数前面生成文件级数组,blob模式下写入blob
+     */
+    private String addSharedData(CEmitter writer, ByteBuffer data, boolean isU2) throws IOException {
+        final int length = data.remaining();
+        final String type = isU2 ? "u2" : "u1";
+        if (blob != null) {
+            Integer offset = sharedBlobOffsets.get(data);
+            if (offset == null) {
+                offset = blob.addBytes(data.array());
+                sharedBlobOffsets.put(data, offset);
+            } else {
+                dedupedBytes += length;
+            }
+            return "(const " + type + " *) (" + blob.getSymbol() + " + 0x" + Integer.toHexString(offset) + ")";
+        }
+        final Map<ByteBuffer, String> arrays = isU2 ? sharedInsnsArrays : sharedTriesArrays;
+        String name = arrays.get(data);
+        if (name != null) {
+            dedupedBytes += length;
+            return name;
+        }
+        name = functionPrefix + "nmmp_" + (isU2 ? "insns" : "tries") + "_" + arrays.size();
+        arrays.put(data, name);
+
+        final byte[] bytes = data.array();
+        writer.print("static const ").print(type).print(' ').print(name).print("[] = {");
+        if (isU2) {
+            for (int offset = 0; offset < length; offset += 2) {
+                if (offset % 20 == 0) {
+                    writer.print('\n');
+                }
+                writer.hexU2((bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8).print(", ");
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (i % 10 == 0) {
+                    writer.print('\n');
+                }
+                writer.hexU1(bytes[i] & 0xFF).print(", ");
+            }
+        }
+        writer.print("\n};\n\n");
+        return name;
+    }
+
+    //调用解释器
+    private static void writeInterpretCall(CEmitter writer, int dataLength, boolean useStack, String returnType) throws IOException {
+        writer.print("\n" +
+                "    const vmCode code = {\n" +
+                "            .insns=insns,\n" +
+                "            .insnsSize=").dec(dataLength / 2).print(",\n" +
+                "            .regs=regs,\n" +
+                "            .reg_flags=reg_flags,\n" +
+                "            .triesHandlers=tries\n" +
+                "    };\n" +
+                "\n" +
+                "    jvalue value = vmInterpret(env,\n" +
+                "                                &code,\n" +
+                "                                &dvmResolver);\n");
         //不使用栈需要释放内存
         if (!useStack) {
-            writer.write("    free(regs);\n");
+            writer.print("    vmFreeFrame(regs);\n");
         }
 
 
         //根据返回类型处理jvalue
         if (!returnType.equals("V")) {
             char typeCh = returnType.charAt(0);
-            writer.append(
-                    String.format("    return value.%s;\n", Character.toLowerCase(typeCh == '[' ? 'L' : typeCh))
-            );
+            writer.print("    return value.").print(Character.toLowerCase(typeCh == '[' ? 'L' : typeCh)).print(";\n");
         }
 
-        writer.append("}\n\n");
+        writer.print("}\n\n");
+    }
+
+
+    //没有开启压缩时为null
+    @Nullable
+    public CompressedBlocks getCompressedBlocks() {
+        return compressedBlocks;
+    }
+
+    //寄存器数量减少的方法数
+    public int getCompactedMethods() {
+        return compactedMethods;
+    }
+
+    //寄存器减少后不再需要分配内存的方法数
+    public int getStackMethods() {
+        return stackMethods;
+    }
+
+    //可以直接调用的方法引用数
+    public int getDirectMethods() {
+        return directMethods;
+    }
 
+    //解释器内部执行的jdk方法引用数
+    public int getIntrinsicMethods() {
+        return resolverCodeGenerator.getIntrinsicMethods();
     }
 
+    //共用函数的方法数
+    public int getDedupedMethods() {
+        return dedupedMethods;
+    }
+
+    //去重后少生成的字节码及异常表数据大小
+    public long getDedupedBytes() {
+        return dedupedBytes;
+    }
 
     public Set<String> getNativeClasses() {
         return nativeMethods.keySet();
@@ -233,36 +575,62 @@ public class JniCodeGenerator {
     }
 
     public void generate(DexConfig config, Writer resolverWriter, Writer codeWriter) throws IOException {
-        resolverCodeGenerator.generate(resolverWriter);
+        generate(config, resolverWriter, codeWriter, new Dex2cOptions());
+    }
 
-        codeWriter.write(String.format("\n" +
-                        "#include <stdio.h>\n" +
-                        "#include <string.h>\n" +
-                        "#include <malloc.h>\n" +
-                        "#include <jni.h>\n" +
-                        "#include \"vm.h\"\n" +
-                        "#include \"%s\"\n" +
-                        "\n" +
-                        "#ifdef __cplusplus\n" +
-                        "extern \"C\" {\n" +
-                        "#endif\n" +
-                        "\n" +
-                        "\n" +
-                        "#define SET_REGISTER_FLOAT(_idx, _val)      (*((float*) &regs[(_idx)]) = (_val))\n" +
-                        "\n" +
-                        "\n" +
-                        "#define SET_REGISTER_WIDE(_idx, _val)       (regs[(_idx)] =(s8) (_val));\n" +
-                        "\n" +
-                        "#define SET_REGISTER_DOUBLE(_idx, _val)     (*((double*) &regs[(_idx)]) = (_val));\n" +
-                        "\n" +
-                        "\n"
-                , config.getResolverFile().getName()));
+    /**
+     * 生成c代码
+     *
+     * @param options 分片数量及是否使用二进制数据,分片数小于等于1时所有代码都在codeWriter里
+     */
+    public void generate(DexConfig config, Writer resolverWriter, Writer writer, Dex2cOptions options) throws IOException {
+        final int shards = options.getShards();
+        dedupe = options.isDedupeMethods();
+        relocationFree = options.isRelocationFree();
+        compactRegisters = options.isCompactRegisters();
+        directCalls = options.isDirectCalls();
+        resolverCodeGenerator.setDirectMethods(directCalls);
+        resolverCodeGenerator.setIntrinsics(options.isIntrinsics());
+        if (options.isCompressBytecode()) {
+            compressedBlocks = new CompressedBlocks();
+            loadBlockFunction = config.getDexName() + "_loadBlock";
+        }
+        if (options.isBinaryData()) {
+            blob = new DataBlob(config.getDataBlobSymbol());
+            //blob和resolver文件在同一目录,只引用文件名,目录移动后生成的代码不变
+            resolverCodeGenerator.generate(resolverWriter, blob, config.getDataBlobFile().getName());
+        } else {
+            resolverCodeGenerator.generate(resolverWriter);
+        }
 
-        for (DexBackedClassDef classDef : dexFile.getClasses()) {
-            for (DexBackedMethod method : classDef.getMethods()) {
-                addMethod(method, codeWriter);
-            }
+        final CEmitter codeWriter = CEmitter.of(writer);
 
+        writeCodeHeader(config, codeWriter);
+        if (compressedBlocks != null) {
+            writeBlockDeclaration(codeWriter);
+        }
+
+        if (shards > 1) {
+            generateShards(config, shards);
+            //分片里的方法通过这个指针访问解析器,解析器本身及符号表只在当前编译单元
+            codeWriter.write(String.format("#include \"%s\"\n" +
+                            "\n" +
+                            "NMMP_HIDDEN const vmResolver *const %s = &dvmResolver;\n" +
+                            "\n",
+                    config.getShardHeaderFile().getName(), getResolverPtrName(config)));
+        } else {
+            for (DexBackedClassDef classDef : dexFile.getClasses()) {
+                for (DexBackedMethod method : classDef.getMethods()) {
+                    emitMethod(method, codeWriter, isRegisterNative ? "static" : "JNIEXPORT");
+                }
+
+            }
+        }
+        if (compressedBlocks != null) {
+            compressedBlocks.writeTo(codeWriter, loadBlockFunction, blob);
+        }
+        if (directCalls) {
+            generateDirectMethods(codeWriter);
         }
 
 
@@ -300,10 +668,295 @@ public class JniCodeGenerator {
                 "\n\n#ifdef __cplusplus\n" +
                         "}\n" +
                         "#endif\n\n");
+        codeWriter.flush();
+
+        if (blob != null) {
+            blob.writeTo(config.getDataBlobFile());
+        }
+    }
+
+    private static void writeCodeHeader(DexConfig config, Writer codeWriter) throws IOException {
+        codeWriter.write(String.format("\n" +
+                        "#include <stdio.h>\n" +
+                        "#include <string.h>\n" +
+                        "#include <malloc.h>\n" +
+                        "#include <jni.h>\n" +
+                        "#include \"vm.h\"\n" +
+                        "#include \"FrameStack.h\"\n" +
+                        "#include \"%s\"\n" +
+                        "\n" +
+                        "#ifdef __cplusplus\n" +
+                        "extern \"C\" {\n" +
+                        "#endif\n" +
+                        "\n" +
+                        "\n" +
+                        REGISTER_MACROS
+                , config.getResolverFile().getName()));
+    }
+
+    private static final String REGISTER_MACROS = "#define SET_REGISTER_FLOAT(_idx, _val)      (*((float*) &regs[(_idx)]) = (_val))\n" +
+            "\n" +
+            "\n" +
+            "#define SET_REGISTER_WIDE(_idx, _val)       (regs[(_idx)] =(s8) (_val));\n" +
+            "\n" +
+            "#define SET_REGISTER_DOUBLE(_idx, _val)     (*((double*) &regs[(_idx)]) = (_val));\n" +
+            "\n" +
+            "\n";
+
+    private static String getResolverPtrName(DexConfig config) {
+        return config.getDexName() + "_dvmResolver";
+    }
+
+    /**
+     * 方法实现分到多个编译单元,可以并行编译,单个编译单元内存占用也更小
+     * 分片函数对外隐藏,由主编译单元里的注册表引用
+     */
+    private void generateShards(DexConfig config, int shards) throws IOException {
+        functionPrefix = config.getDexName() + "_";
+        final List<List<DexBackedMethod>> methodShards = splitMethods(shards);
+        final String resolverPtrName = getResolverPtrName(config);
+
+        final List<String> prototypes = new ArrayList<>();
+        for (int i = 0; i < methodShards.size(); i++) {
+            //文件级数组只在当前编译单元可见
+            sharedInsnsArrays.clear();
+            sharedTriesArrays.clear();
+            try (CEmitter shardWriter = CEmitter.open(config.getShardFunctionsFile(i))) {
+                shardWriter.write(String.format("\n" +
+                                "#include \"%s\"\n" +
+                                "\n" +
+                                "#ifdef __cplusplus\n" +
+                                "extern \"C\" {\n" +
+                                "#endif\n" +
+                                "\n" +
+                                "#define dvmResolver (*%s)\n" +
+                                "\n" +
+                                "\n",
+                        config.getShardHeaderFile().getName(), resolverPtrName));
+                for (DexBackedMethod method : methodShards.get(i)) {
+                    final String prototype = emitMethod(method, shardWriter, "NMMP_HIDDEN");
+                    if (prototype != null) {
+                        prototypes.add(prototype);
+                    }
+                }
+                shardWriter.write(
+                        "\n\n#ifdef __cplusplus\n" +
+                                "}\n" +
+                                "#endif\n\n");
+            }
+        }
+
+        //所有编译单元共用的头文件
+        final String guard = config.getShardHeaderFile().getName().toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9]", "_");
+        try (CEmitter headerWriter = CEmitter.open(config.getShardHeaderFile())) {
+            headerWriter.write(String.format("#ifndef %s\n" +
+                            "#define %s\n" +
+                            "\n" +
+                            "#include <stdio.h>\n" +
+                            "#include <string.h>\n" +
+                            "#include <malloc.h>\n" +
+                            "#include <jni.h>\n" +
+                            "#include \"vm.h\"\n" +
+                            "#include \"FrameStack.h\"\n" +
+                            "\n" +
+                            "#ifdef __cplusplus\n" +
+                            "extern \"C\" {\n" +
+                            "#endif\n" +
+                            "\n" +
+                            "#define NMMP_HIDDEN __attribute__((visibility(\"hidden\")))\n" +
+                            "\n" +
+                            "#ifndef SET_REGISTER_FLOAT\n" +
+                            REGISTER_MACROS +
+                            "#endif\n" +
+                            "\n" +
+                            "//主编译单元里的符号解析器\n" +
+                            "extern NMMP_HIDDEN const vmResolver *const %s;\n" +
+                            "\n",
+                    guard, guard, resolverPtrName));
+            if (blob != null) {
+                DataBlob.writeExtern(headerWriter, blob.getSymbol());
+            }
+            if (compressedBlocks != null) {
+                writeBlockDeclaration(headerWriter);
+            }
+            for (String prototype : prototypes) {
+                headerWriter.print(prototype).print(";\n");
+            }
+            headerWriter.write(String.format("\n" +
+                    "#ifdef __cplusplus\n" +
+                    "}\n" +
+                    "#endif\n" +
+                    "\n" +
+                    "#endif //%s\n", guard));
+        }
+    }
+
+    //按dex里的顺序连续划分,每个分片的字节码大小尽量接近,方法本身的固定开销也计算在内
+    private List<List<DexBackedMethod>> splitMethods(int shards) {
+        final List<DexBackedMethod> methods = new ArrayList<>();
+        long totalWeight = 0;
+        for (DexBackedClassDef classDef : dexFile.getClasses()) {
+            for (DexBackedMethod method : classDef.getMethods()) {
+                final DexBackedMethodImplementation implementation = method.getImplementation();
+                if (implementation != null) {
+                    methods.add(method);
+                    totalWeight += getMethodWeight(implementation);
+                }
+            }
+        }
+        final List<List<DexBackedMethod>> methodShards = new ArrayList<>();
+        List<DexBackedMethod> current = new ArrayList<>();
+        long currentWeight = 0;
+        //剩余大小平均分给剩余分片,遇到特别大的方法后面的分片也能保持均匀
+        long remainingWeight = totalWeight;
+        long target = (remainingWeight + shards - 1) / shards;
+        for (DexBackedMethod method : methods) {
+            final long weight = getMethodWeight(method.getImplementation());
+            if (!current.isEmpty()
+                    && currentWeight + weight > target
+                    && methodShards.size() < shards - 1) {
+                methodShards.add(current);
+                remainingWeight -= currentWeight;
+                final int remainingShards = shards - methodShards.size();
+                target = (remainingWeight + remainingShards - 1) / remainingShards;
+                current = new ArrayList<>();
+                currentWeight = 0;
+            }
+            current.add(method);
+            currentWeight += weight;
+        }
+        //至少有一个分片,保证生成的文件数和声明一致
+        methodShards.add(current);
+        return methodShards;
+    }
+
+    private static long getMethodWeight(DexBackedMethodImplementation implementation) {
+        //寄存器初始化及调用解释器等固定代码
+        return implementation.getSize() + 64;
+    }
+
+    /**
+     * 生成解析器使用的getDirectMethod,按方法引用索引返回转换后方法的jni函数及调用函数
+     * 只有调用目标确定的方法才能直接调用:static,private,final方法或者final类里的方法,
+     * 同步方法的锁由虚拟机在jni调用时处理,所以不能直接调用
+     */
+    private void generateDirectMethods(CEmitter writer) throws IOException {
+        final Map<MethodReference, String> functions = new HashMap<>();
+        for (DexBackedClassDef classDef : dexFile.getClasses()) {
+            final boolean finalClass = AccessFlags.FINAL.isSet(classDef.getAccessFlags());
+            for (DexBackedMethod method : classDef.getMethods()) {
+                final int flags = method.getAccessFlags();
+                if (MyMethodUtil.isConstructorOrAbstract(method)
+                        || AccessFlags.SYNCHRONIZED.isSet(flags)
+                        || AccessFlags.DECLARED_SYNCHRONIZED.isSet(flags)) {
+                    continue;
+                }
+                if (!finalClass && !AccessFlags.STATIC.isSet(flags)
+                        && !AccessFlags.PRIVATE.isSet(flags) && !AccessFlags.FINAL.isSet(flags)) {
+                    continue;
+                }
+                final String classType = method.getDefiningClass();
+                final MyMethod myMethod = new MyMethod(classType.substring(1, classType.length() - 1),
+                        method.getName(), method.getParameterTypes(), method.getReturnType());
+                //没有生成本地函数的方法
+                if (!nativeMethods.containsEntry(myMethod.className, myMethod)) {
+                    continue;
+                }
+                String functionName = functionAliases.get(myMethod);
+                if (functionName == null) {
+                    functionName = functionPrefix + MyMethodUtil.getJniFunctionName(myMethod.className, myMethod.name,
+                            myMethod.parameterTypes, myMethod.returnType);
+                }
+                functions.put(ImmutableMethodReference.of(method), functionName);
+            }
+        }
+
+        //同样签名的方法共用一个调用函数
+        final Map<String, String> invokers = new TreeMap<>();
+        final StringBuilder cases = new StringBuilder();
+        final List<? extends MethodReference> methodSection = resolverCodeGenerator.getMethodSection();
+        for (int idx = 0; idx < methodSection.size(); idx++) {
+            final MethodReference reference = methodSection.get(idx);
+            final String functionName = functions.get(reference);
+            if (functionName == null) {
+                continue;
+            }
+            final String shorty = getShorty(reference);
+            final String invoker = "nmmp_direct_" + shorty;
+            invokers.put(shorty, invoker);
+            cases.append("        case ").append(idx).append(":\n")
+                    .append("            *fn = (const void *) ").append(functionName).append(";\n")
+                    .append("            *invoker = ").append(invoker).append(";\n")
+                    .append("            return true;\n");
+            directMethods++;
+        }
+
+        writer.write("\n");
+        for (Map.Entry<String, String> entry : invokers.entrySet()) {
+            writeDirectInvoker(writer, entry.getKey(), entry.getValue());
+        }
+        writer.write("static bool getDirectMethod(u4 idx, const void **fn, vmDirectInvoker *invoker) {\n" +
+                "    switch (idx) {\n");
+        writer.write(cases.toString());
+        writer.write("        default:\n" +
+                "            return false;\n" +
+                "    }\n" +
+                "}\n\n");
+    }
+
+    //按签名把jvalue参数数组展开后调用jni函数
+    private static void writeDirectInvoker(CEmitter writer, String shorty, String name) throws IOException {
+        final StringBuilder type = new StringBuilder();
+        final StringBuilder args = new StringBuilder();
+        type.append('(').append(getJNIType(String.valueOf(shorty.charAt(0)))).append(" (*)(JNIEnv *, jobject");
+        for (int i = 1; i < shorty.length(); i++) {
+            final String paramType = String.valueOf(shorty.charAt(i));
+            type.append(", ").append(getJNIType(paramType));
+            args.append(", args[").append(i - 1).append("].").append(Character.toLowerCase(shorty.charAt(i)));
+        }
+        type.append("))");
+
+        writer.print("static jvalue ").print(name)
+                .print("(const void *fn, JNIEnv *env, jobject thiz, const jvalue *args) {\n")
+                .print("    jvalue ret;\n");
+        final char returnType = shorty.charAt(0);
+        final String call = "(" + type + " fn)(env, thiz" + args + ");\n";
+        switch (returnType) {
+            case 'V':
+                writer.print("    ret.j = 0;\n")
+                        .print("    ").print(call);
+                break;
+            case 'Z':
+            case 'B':
+            case 'S':
+            case 'C':
+            case 'I':
+                writer.print("    ret.i = ").print(call);
+                break;
+            default:
+                writer.print("    ret.").print(String.valueOf(Character.toLowerCase(returnType))).print(" = ").print(call);
+        }
+        writer.print("    return ret;\n" +
+                "}\n\n");
+    }
+
+    //返回类型及参数类型,对象和数组都为L
+    private static String getShorty(MethodReference method) {
+        final StringBuilder shorty = new StringBuilder();
+        shorty.append(getShortyType(method.getReturnType()));
+        for (CharSequence parameterType : method.getParameterTypes()) {
+            shorty.append(getShortyType(parameterType));
+        }
+        return shorty.toString();
+    }
+
+    private static char getShortyType(CharSequence type) {
+        final char c = type.charAt(0);
+        return c == '[' ? 'L' : c;
     }
 
     //生成本地方法注册代码,同时返回类名和方法数组索引等
-    private void generateNativeMethodCode(DexConfig config, Writer writer) throws IOException {
+    private void generateNativeMethodCode(DexConfig config, CEmitter writer) throws IOException {
         if (!isRegisterNative) {
             return;
         }
@@ -314,9 +967,10 @@ public class JniCodeGenerator {
                 "typedef struct{\n" +
                 "    u4 nameIdx;\n" +
                 "    u4 sigIdx;\n" +
-                "    void *fnPtr;\n" +
+                (relocationFree ? "" : "    void *fnPtr;\n") +
                 "} MyNativeMethod;\n");
 
+        final List<String> functionNames = new ArrayList<>();
         int methodIdx = 0;
         writer.write("static const MyNativeMethod gNativeMethods[] = {\n");
         for (String clazz : nativeMethods.keySet()) {
@@ -326,11 +980,17 @@ public class JniCodeGenerator {
             for (MyMethod method : methods) {
                 int nameIdx = resolverCodeGenerator.getIndexByString(method.name);
                 int sigIdx = resolverCodeGenerator.getIndexByString(MyMethodUtil.getMethodSignature(method.parameterTypes, method.returnType));
-                writer.write(String.format(
-                        "    {%d, %d, (void *) %s},\n",
-                        nameIdx, sigIdx,
-                        MyMethodUtil.getJniFunctionName(method.className, method.name, method.parameterTypes, method.returnType)
-                ));
+                String functionName = functionAliases.get(method);
+                if (functionName == null) {
+                    functionName = functionPrefix + MyMethodUtil.getJniFunctionName(method.className, method.name, method.parameterTypes, method.returnType);
+                }
+                writer.print("    {").dec(nameIdx).print(", ").dec(sigIdx);
+                if (relocationFree) {
+                    functionNames.add(functionName);
+                } else {
+                    writer.print(", (void *) ").print(functionName);
+                }
+                writer.print("},\n");
                 methodIdx++;
             }
             methodRanger.put(clazz, new Ranger(startIdx, methodIdx - startIdx));
@@ -339,6 +999,18 @@ public class JniCodeGenerator {
         writer.write("};\n");
         writer.write("//ends native method\n");
 
+        if (relocationFree) {
+            //编译为跳转表及pc相对地址计算,都在只读段里
+            writer.write("\nstatic void *getNativeFunction(u4 idx) {\n" +
+                    "    switch (idx) {\n");
+            for (int i = 0; i < functionNames.size(); i++) {
+                writer.print("        case ").dec(i).print(": return (void *) ").print(functionNames.get(i)).print(";\n");
+            }
+            writer.write("        default: return NULL;\n" +
+                    "    }\n" +
+                    "}\n");
+        }
+
         //根据索引生成注册需要的结构体
         writer.write(
                 "\n" +
@@ -354,7 +1026,10 @@ public class JniCodeGenerator {
             Ranger ranger = entry.getValue();
             final String className = entry.getKey();
             int classIdx = resolverCodeGenerator.getIndexByClassName(className);
-            writer.write(String.format("    {.classIdx = %d, .offset = %d, .count = %d},\n", classIdx, ranger.start, ranger.count));
+            writer.print("    {.classIdx = ").dec(classIdx)
+                    .print(", .offset = ").dec(ranger.start)
+                    .print(", .count = ").dec(ranger.count)
+                    .print("},\n");
             nativeMethodOffsets.put(className, dataOff++);
         }
         writer.write("};\n\n");
@@ -386,7 +1061,7 @@ public class JniCodeGenerator {
                         "        JNINativeMethod *method = methods + midx;\n" +
                         "        method->name = STRING_BY_ID(myNativeMethod.nameIdx);\n" +
                         "        method->signature = STRING_BY_ID(myNativeMethod.sigIdx);\n" +
-                        "        method->fnPtr = myNativeMethod.fnPtr;\n" +
+                        "        method->fnPtr = %s;\n" +
                         "    }\n" +
                         "\n" +
                         "    (*env)->RegisterNatives(env, clazz, methods, data.count);\n" +
@@ -396,7 +1071,7 @@ public class JniCodeGenerator {
                         "    //不相等表示使用malloc申请的内存需要释放\n" +
                         "    if (methods != methodBuf)free(methods);\n" +
                         "}\n\n"
-                , funName)
+                , funName, relocationFree ? "getNativeFunction(data.offset + midx)" : "myNativeMethod.fnPtr")
         );
     }
 
@@ -0,0 +1,163 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * lz4块格式压缩,不包含帧头,和vm里的lz4DecompressBlock对应
+ * 只用于转换时压缩字节码,追求实现简单,压缩率和官方快速模式相近
+ */
+public final class Lz4Block {
+    private static final int MIN_MATCH = 4;
+    //最后5个字节必须是字面量,最后一个匹配必须在结尾12字节之前开始
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_LOG = 14;
+
+    private Lz4Block() {
+    }
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Nonnull
+    public static byte[] compress(@Nonnull byte[] src) {
+        final int length = src.length;
+        final byte[] dst = new byte[maxCompressedLength(length)];
+        int dp = 0;
+        int anchor = 0;
+        if (length >= MF_LIMIT + 1) {
+            final int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            final int mfLimit = length - MF_LIMIT;
+            final int matchLimit = length - LAST_LITERALS;
+            int sp = 0;
+            while (sp < mfLimit) {
+                final int seq = readInt(src, sp);
+                final int h = hash(seq);
+                int ref = table[h];
+                table[h] = sp;
+                if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                    sp++;
+                    continue;
+                }
+                //向前扩展匹配
+                while (sp > anchor && ref > 0 && src[sp - 1] == src[ref - 1]) {
+                    sp--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (sp + matchLength < matchLimit && src[sp + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                final int tokenPos = dp;
+                dp = writeSequence(src, anchor, sp - anchor, dst, dp);
+                dst[dp++] = (byte) (sp - ref);
+                dst[dp++] = (byte) ((sp - ref) >>> 8);
+                dp = writeMatchLength(dst, dp, tokenPos, matchLength - MIN_MATCH);
+                sp += matchLength;
+                anchor = sp;
+            }
+        }
+        //最后的字面量
+        dp = writeSequence(src, anchor, length - anchor, dst, dp);
+        return Arrays.copyOf(dst, dp);
+    }
+
+    /**
+     * 解压,主要用于测试及检查生成的数据
+     *
+     * @param rawLength 解压后大小
+     */
+    @Nonnull
+    public static byte[] decompress(@Nonnull byte[] src, int rawLength) {
+        final byte[] dst = new byte[rawLength];
+        int sp = 0;
+        int dp = 0;
+        try {
+            while (sp < src.length) {
+                final int token = src[sp++] & 0xff;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, sp, dst, dp, literalLength);
+                sp += literalLength;
+                dp += literalLength;
+                if (sp >= src.length) {
+                    break;
+                }
+                final int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+                sp += 2;
+                if (offset == 0 || offset > dp) {
+                    throw new RuntimeException("Bad lz4 offset " + offset + " at " + dp);
+                }
+                int matchLength = token & 0xf;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                //可能重叠,逐字节复制
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp + i] = dst[dp - offset + i];
+                }
+                dp += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new RuntimeException("Bad lz4 block", e);
+        }
+        if (dp != rawLength) {
+            throw new RuntimeException("Bad lz4 block length " + dp + ", expected " + rawLength);
+        }
+        return dst;
+    }
+
+    //token高4位是字面量长度,低4位在写匹配长度时补上
+    private static int writeSequence(byte[] src, int start, int literalLength, byte[] dst, int dp) {
+        final int tokenPos = dp++;
+        if (literalLength >= 15) {
+            dst[tokenPos] = (byte) (15 << 4);
+            dp = writeLength(dst, dp, literalLength - 15);
+        } else {
+            dst[tokenPos] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, start, dst, dp, literalLength);
+        return dp + literalLength;
+    }
+
+    private static int writeMatchLength(byte[] dst, int dp, int tokenPos, int matchLength) {
+        if (matchLength >= 15) {
+            dst[tokenPos] |= 15;
+            return writeLength(dst, dp, matchLength - 15);
+        }
+        dst[tokenPos] |= (byte) matchLength;
+        return dp;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
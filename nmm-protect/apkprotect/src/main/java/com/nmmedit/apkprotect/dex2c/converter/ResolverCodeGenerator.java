@@ -2,12 +2,15 @@ package com.nmmedit.apkprotect.dex2c.converter;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Sets;
+import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
 import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.reference.FieldReference;
@@ -16,6 +19,7 @@ import org.jf.dexlib2.iface.reference.StringReference;
 import org.jf.dexlib2.iface.reference.TypeReference;
 import org.jf.dexlib2.util.MethodUtil;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
@@ -45,12 +49,48 @@ public class ResolverCodeGenerator {
     private final HashMultimap<String, MyMethodRef> methodRefs = HashMultimap.create();
     private final HashSet<TypeReference> constantClasses = Sets.newHashSet();
     private final HashSet<StringReference> constantStrings = Sets.newHashSet();
+    //指令及异常表里引用的类型
+    private final HashSet<String> referencedTypes = Sets.newHashSet();
 
     private final DexBackedDexFile dexFile;
 
+    //生成符号表使用的dex段,裁剪时只包含用到的符号
+    private List<String> stringSection;
+    private List<String> typeSection;
+    private List<? extends FieldReference> fieldSection;
+    private List<? extends MethodReference> methodSection;
+
     private final int maxTypeLen;
 
+    //增量转换时沿用了上次的符号顺序
+    private boolean layoutReused;
+
+    //二进制数据输出模式
+    @Nullable
+    private DataBlob blob;
+
+    //解析方法时同时取得直接调用入口,入口由方法实现所在的编译单元提供
+    private boolean directMethods;
+
+    //常用jdk方法在解释器内部执行
+    private boolean intrinsics;
+    private int intrinsicMethods;
+
     public ResolverCodeGenerator(DexBackedDexFile dexFile) {
+        this(dexFile, false);
+    }
+
+    /**
+     * @param pruneSymbols 只保留转换后代码及注册本地方法用到的符号,指令重写时需要使用裁剪后的索引
+     */
+    public ResolverCodeGenerator(DexBackedDexFile dexFile, boolean pruneSymbols) {
+        this(dexFile, pruneSymbols, null);
+    }
+
+    /**
+     * @param previousLayout 上次转换的符号顺序,不为null时已有符号索引不变,新符号放在后面
+     */
+    public ResolverCodeGenerator(DexBackedDexFile dexFile, boolean pruneSymbols, @Nullable SymbolLayout previousLayout) {
         this.dexFile = dexFile;
 
         for (ClassDef classDef : dexFile.getClasses()) {
@@ -63,19 +103,30 @@ public class ResolverCodeGenerator {
                 collectReferences(implementation);
             }
         }
+        if (pruneSymbols) {
+            pruneSections();
+            if (previousLayout != null) {
+                layoutReused = mergeSections(previousLayout);
+            }
+        } else {
+            stringSection = dexFile.getStringSection();
+            typeSection = dexFile.getTypeSection();
+            fieldSection = dexFile.getFieldSection();
+            methodSection = dexFile.getMethodSection();
+        }
         //在原本字符串常量之上再添加新字符串,不再排序因此不会导致其他部分索引出问题
         ArrayList<String> stringPool = this.stringPool;
 
         stringPool.clear();
-        stringPool.addAll(dexFile.getStringSection());
+        stringPool.addAll(stringSection);
 
         //用于快速判断stringPool里是否有对应字符串,因此随着stringPool改变而改变
-        HashSet<String> stringSet = new HashSet<>(dexFile.getStringSection());
+        HashSet<String> stringSet = new HashSet<>(stringSection);
 
 
         ArrayList<String> typePool = this.typePool;
         typePool.clear();
-        typePool.addAll(dexFile.getTypeSection());
+        typePool.addAll(typeSection);
         int maxTypeLen = 0;
         for (int i = 0; i < typePool.size(); i++) {
             String type = typePool.get(i);
@@ -103,7 +154,6 @@ public class ResolverCodeGenerator {
 
 
         //方法签名
-        List<DexBackedMethodReference> methodSection = dexFile.getMethodSection();
         TreeSet<String> signatureSet = new TreeSet<>(String::compareTo);
         for (MethodReference reference : methodSection) {
             String signature = MyMethodUtil.getMethodSignature(reference.getParameterTypes(), reference.getReturnType());
@@ -120,6 +170,17 @@ public class ResolverCodeGenerator {
             }
             signaturePoolIndexMap.put(sig, i);
         }
+        if (pruneSymbols) {
+            //注册本地方法时需要方法名及签名字符串
+            for (ClassDef classDef : dexFile.getClasses()) {
+                for (Method method : classDef.getMethods()) {
+                    final String signature = MyMethodUtil.getMethodSignature(method.getParameterTypes(), method.getReturnType());
+                    if (method.getImplementation() != null && stringSet.add(signature)) {
+                        stringPool.add(signature);
+                    }
+                }
+            }
+        }
 
         for (int i = 0; i < stringPool.size(); i++) {
             String str = stringPool.get(i);
@@ -128,10 +189,163 @@ public class ResolverCodeGenerator {
 
     }
 
-    public void generate(Writer writer) throws IOException {
+    //只保留指令引用的字段和方法,及它们用到的类型和字符串,保持原本在dex里的顺序
+    private void pruneSections() {
+        final HashSet<FieldReference> fields = new HashSet<>();
+        for (MyFieldRef ref : fieldRefs.values()) {
+            fields.add(ref.reference);
+        }
+        final ArrayList<FieldReference> fieldSection = new ArrayList<>();
+        for (DexBackedFieldReference reference : dexFile.getFieldSection()) {
+            if (fields.contains(reference)) {
+                fieldSection.add(reference);
+            }
+        }
+
+        final HashSet<MethodReference> methods = new HashSet<>();
+        for (MyMethodRef ref : methodRefs.values()) {
+            methods.add(ref.reference);
+        }
+        final ArrayList<MethodReference> methodSection = new ArrayList<>();
+        for (DexBackedMethodReference reference : dexFile.getMethodSection()) {
+            if (methods.contains(reference)) {
+                methodSection.add(reference);
+            }
+        }
+
+        final HashSet<String> types = new HashSet<>(referencedTypes);
+        final HashSet<String> strings = new HashSet<>();
+        for (StringReference reference : constantStrings) {
+            strings.add(reference.getString());
+        }
+        for (FieldReference reference : fieldSection) {
+            types.add(reference.getDefiningClass());
+            types.add(reference.getType());
+            strings.add(reference.getName());
+        }
+        for (MethodReference reference : methodSection) {
+            types.add(reference.getDefiningClass());
+            strings.add(reference.getName());
+            strings.add(MethodUtil.getShorty(reference.getParameterTypes(), reference.getReturnType()));
+        }
+        //注册本地方法需要的类名及方法名
+        for (ClassDef classDef : dexFile.getClasses()) {
+            types.add(classDef.getType());
+            for (Method method : classDef.getMethods()) {
+                if (method.getImplementation() != null) {
+                    strings.add(method.getName());
+                }
+            }
+        }
+        strings.addAll(types);
+
+        final ArrayList<String> typeSection = new ArrayList<>();
+        for (String type : dexFile.getTypeSection()) {
+            if (types.contains(type)) {
+                typeSection.add(type);
+            }
+        }
+        final ArrayList<String> stringSection = new ArrayList<>();
+        for (String string : dexFile.getStringSection()) {
+            if (strings.contains(string)) {
+                stringSection.add(string);
+            }
+        }
+        this.stringSection = stringSection;
+        this.typeSection = typeSection;
+        this.fieldSection = fieldSection;
+        this.methodSection = methodSection;
+    }
+
+    /**
+     * 上次的符号放在前面,没再使用的也保留,保证索引不变
+     * 不再使用的类型,字段及方法比使用的多时不合并,按dex顺序重新排列
+     */
+    private boolean mergeSections(SymbolLayout layout) {
+        final List<String> types = merge(layout.getTypes(), typeSection);
+        final List<FieldReference> fields = merge(layout.getFields(), fieldSection);
+        final List<MethodReference> methods = merge(layout.getMethods(), methodSection);
+        final int used = typeSection.size() + fieldSection.size() + methodSection.size();
+        final int unused = types.size() + fields.size() + methods.size() - used;
+        //字段及方法结构体里类型索引是u2
+        if (unused > used || types.size() > 0x10000) {
+            return false;
+        }
+        this.stringSection = merge(layout.getStrings(), stringSection);
+        this.typeSection = types;
+        this.fieldSection = fields;
+        this.methodSection = methods;
+        return true;
+    }
+
+    private static <T> List<T> merge(List<? extends T> previous, List<? extends T> current) {
+        final List<T> merged = new ArrayList<>(previous);
+        final HashSet<T> set = new HashSet<>(previous);
+        for (T item : current) {
+            if (set.add(item)) {
+                merged.add(item);
+            }
+        }
+        return merged;
+    }
+
+    public boolean isLayoutReused() {
+        return layoutReused;
+    }
+
+    //当前的符号顺序,增量转换时保存下来
+    public SymbolLayout getSymbolLayout() {
+        return new SymbolLayout(stringPool, typePool, fieldSection, methodSection);
+    }
+
+    //指令重写时使用的字符串索引,包含后面添加的类名及签名字符串
+    public List<String> getStringPool() {
+        return stringPool;
+    }
+
+    public List<String> getTypePool() {
+        return typePool;
+    }
+
+    public List<? extends FieldReference> getFieldSection() {
+        return fieldSection;
+    }
+
+    public List<? extends MethodReference> getMethodSection() {
+        return methodSection;
+    }
+
+    public void setDirectMethods(boolean directMethods) {
+        this.directMethods = directMethods;
+    }
+
+    public void setIntrinsics(boolean intrinsics) {
+        this.intrinsics = intrinsics;
+    }
+
+    //替换为解释器内部实现的方法引用数
+    public int getIntrinsicMethods() {
+        return intrinsicMethods;
+    }
+
+    public void generate(Writer out) throws IOException {
+        generate(out, null, null);
+    }
+
+    /**
+     * @param blob     不为null时常量池及索引表写入二进制数据,c代码里只有偏移
+     * @param blobPath blob写入的文件,相对生成的c文件所在目录,汇编代码需要引用
+     */
+    public void generate(Writer out, @Nullable DataBlob blob, @Nullable String blobPath) throws IOException {
+        this.blob = blob;
+        final CEmitter writer = CEmitter.of(out);
         writer.write("#include \"GlobalCache.h\"\n");
         writer.write("#include \"ConstantPool.h\"\n\n");
-        writer.write("#include <pthread.h>\n\n\n");
+        writer.write("#include <stdlib.h>\n\n\n");
+
+        if (blob != null) {
+            DataBlob.writeIncbin(writer, blob.getSymbol(), blobPath);
+        }
 
 
         generateStringPool(writer);
@@ -149,37 +363,84 @@ public class ResolverCodeGenerator {
 
         generateStringConstants(writer);
 
+        if (intrinsics) {
+            generateIntrinsics(writer);
+        }
+
         //生成初始化函数及符号解析器结构体
         generateResolver(writer);
 
+        writer.flush();
 
     }
 
     //产生const-string*指令对应的缓存
-    private void generateStringConstants(Writer writer) throws IOException {
+    private void generateStringConstants(CEmitter writer) throws IOException {
         final int[] constIds = new int[constantStrings.size()];
         int idx = 0;
         for (StringReference strRef : constantStrings) {
             constIds[idx++] = stringPoolIndexMap.get(strRef.getString());
         }
-        //排序, 运行时以二分法查找
         Arrays.sort(constIds);
 
-        writer.write("static const u4 gStringConstantIds[] = {\n");
-        for (int offset : constIds) {
-            writer.write(String.format("    0x%04x,\n", offset));
+        //字符串索引直接对应缓存位置,位置从1开始,0表示没有缓存
+        final int[] slots = new int[stringPool.size()];
+        for (int i = 0; i < constIds.length; i++) {
+            slots[constIds[i]] = i + 1;
+        }
+        final boolean u2Slot = constIds.length < 0xFFFF;
+        final String slotType = u2Slot ? "u2" : "u4";
+
+        if (blob != null) {
+            final int blobOffset = blob.align();
+            for (int slot : slots) {
+                if (u2Slot) {
+                    blob.putU2(slot);
+                } else {
+                    blob.putU4(slot);
+                }
+            }
+            writeBlobTable(writer, "gStringSlots", slotType, slots.length, blobOffset);
+        } else {
+            writer.write("static const " + slotType + " gStringSlots[] = {\n");
+            for (int slot : slots) {
+                writer.print("    ").hex(slot, 4).print(",\n");
+            }
+            writer.write("};\n");
         }
-        writer.write("};\n");
 
-        writer.write(String.format("static jstring gStringConstants[%d];\n\n", constIds.length));
+        writer.write(String.format("static jstring gStringConstants[%d];\n\n", constIds.length + 1));
 
     }
 
-    private void generateResolver(Writer writer) throws IOException {
+    //方法引用索引对应的VM_INTRINSIC_*
+    private void generateIntrinsics(CEmitter writer) throws IOException {
+        intrinsicMethods = 0;
+        writer.write("static u1 getIntrinsic(u4 idx) {\n" +
+                "    switch (idx) {\n");
+        final List<? extends MethodReference> methodSection = this.methodSection;
+        for (int idx = 0; idx < methodSection.size(); idx++) {
+            final String intrinsic = Intrinsics.get(methodSection.get(idx));
+            if (intrinsic != null) {
+                writer.print("        case ").dec(idx).print(":\n")
+                        .print("            return ").print(intrinsic).print(";\n");
+                intrinsicMethods++;
+            }
+        }
+        writer.write("        default:\n" +
+                "            return VM_INTRINSIC_NONE;\n" +
+                "    }\n" +
+                "}\n\n");
+    }
+
+    private void generateResolver(CEmitter writer) throws IOException {
+        //按类型索引缓存class全局引用,解析后一直保留
+        writer.write(String.format("static jclass gClasses[%d];\n\n", typePool.size()));
         writer.write("static void resolver_init(JNIEnv *env) {\n" +
                 "    memset(gFields, 0, sizeof(gFields));\n" +
                 "    memset(gMethods, 0, sizeof(gMethods));\n" +
                 "    memset(gStringConstants, 0, sizeof(gStringConstants));\n" +
+                "    memset(gClasses, 0, sizeof(gClasses));\n" +
                 "}\n" +
                 "\n" +
                 "#define STRING_BY_ID(_idx) ((const char *) (gBaseStrPtr + gStringIds[_idx].off))\n" +
@@ -212,21 +473,55 @@ public class ResolverCodeGenerator {
                 "    (*env)->ThrowNew(env, gVm.exNoSuchMethodError, msg);\n" +
                 "}\n" +
                 "\n" +
+                "//本地引用转为全局引用放入缓存,多个线程同时解析时只保留先放入的\n" +
+                "static jclass publishClass(JNIEnv *env, jclass *slot, jclass clazz) {\n" +
+                "    jclass global = (jclass) (*env)->NewGlobalRef(env, clazz);\n" +
+                "    (*env)->DeleteLocalRef(env, clazz);\n" +
+                "    if (global == NULL) {\n" +
+                "        return NULL;\n" +
+                "    }\n" +
+                "    jclass expected = NULL;\n" +
+                "    if (!__atomic_compare_exchange_n(slot, &expected, global, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {\n" +
+                "        (*env)->DeleteGlobalRef(env, global);\n" +
+                "        return expected;\n" +
+                "    }\n" +
+                "    return global;\n" +
+                "}\n" +
+                "\n" +
+                "//返回全局引用,调用者不能释放\n" +
+                "static jclass dvmResolveClass(JNIEnv *env, u4 idx) {\n" +
+                "    jclass clazz = __atomic_load_n(&gClasses[idx], __ATOMIC_ACQUIRE);\n" +
+                "    if (clazz != NULL) {\n" +
+                "        return clazz;\n" +
+                "    }\n" +
+                "    clazz = getCacheClass(env, STRING_BY_TYPE_ID(idx));\n" +
+                "    if (clazz != NULL) {\n" +
+                "        return clazz;\n" +
+                "    }\n" +
+                "\n" +
+                "    FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(idx));\n" +
+                "\n" +
+                "    return publishClass(env, &gClasses[idx], clazz);\n" +
+                "}\n" +
+                "\n" +
+                "//fieldId及methodId最后以release写入,读到不为NULL时结构体其他成员都已经写好\n" +
                 "static const vmField *dvmResolveField(JNIEnv *env, u4 idx, bool isStatic) {\n" +
                 "    vmField *field = &gFields[idx];\n" +
-                "    if (field->fieldId == NULL) {\n" +
+                "    if (__atomic_load_n(&field->fieldId, __ATOMIC_ACQUIRE) == NULL) {\n" +
                 "        FieldId fieldId = gFieldIds[idx];\n" +
                 "\n" +
-                "        jclass clazz;\n" +
-                "        FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(fieldId.classIdx));\n" +
+                "        jclass clazz = dvmResolveClass(env, fieldId.classIdx);\n" +
+                "        if (clazz == NULL) {\n" +
+                "            return NULL;\n" +
+                "        }\n" +
                 "\n" +
                 "        const char *type = STRING_BY_TYPE_ID(fieldId.typeIdx);\n" +
                 "        const char *name = STRING_BY_ID(fieldId.nameIdx);\n" +
                 "\n" +
-                "        field->classIdx = fieldId.classIdx;\n" +
-                "        field->type = (*type == '[') ? 'L' : *type;\n" +
+                "        //多个线程同时解析时写入的值相同\n" +
+                "        __atomic_store_n(&field->classIdx, fieldId.classIdx, __ATOMIC_RELAXED);\n" +
+                "        __atomic_store_n(&field->type, (*type == '[') ? 'L' : *type, __ATOMIC_RELAXED);\n" +
                 "\n" +
-                "        //和方法解析同理,最后赋值fieldId\n" +
                 "        jfieldID fid;\n" +
                 "        if (isStatic) {\n" +
                 "            fid = (*env)->GetStaticFieldID(env, clazz, name, type);\n" +
@@ -234,32 +529,33 @@ public class ResolverCodeGenerator {
                 "            fid = (*env)->GetFieldID(env, clazz, name, type);\n" +
                 "        }\n" +
                 "        if (fid == NULL) {\n" +
-                "            (*env)->DeleteLocalRef(env, clazz);\n" +
-                "\n" +
                 "            (*env)->ExceptionClear(env);\n" +
                 "            vmThrowNoSuchFieldError(env, name);\n" +
                 "            return NULL;\n" +
                 "        }\n" +
-                "        (*env)->DeleteLocalRef(env, clazz);\n" +
-                "\n" +
-                "\n" +
-                "        field->fieldId = fid;\n" +
-                "\n" +
+                "        __atomic_store_n(&field->fieldId, fid, __ATOMIC_RELEASE);\n" +
                 "    }\n" +
                 "    return field;\n" +
                 "}\n" +
                 "\n" +
+                (directMethods ?
+                        "//转换后的方法返回它的jni函数及按签名展开参数的调用函数,定义在方法实现里\n" +
+                                "static bool getDirectMethod(u4 idx, const void **fn, vmDirectInvoker *invoker);\n" +
+                                "\n" : "") +
                 "static const vmMethod *dvmResolveMethod(JNIEnv *env, u4 idx, bool isStatic) {\n" +
                 "    vmMethod *method = &gMethods[idx];\n" +
-                "    if (method->methodId == NULL) {\n" +
+                "    if (__atomic_load_n(&method->methodId, __ATOMIC_ACQUIRE) == NULL) {\n" +
                 "        MethodId methodId = gMethodIds[idx];\n" +
                 "\n" +
-                "        jclass clazz;\n" +
-                "        FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(methodId.classIdx));\n" +
-                "\n" +
-                "        method->shorty = STRING_BY_ID(methodId.shortyIdx);\n" +
+                "        jclass clazz = dvmResolveClass(env, methodId.classIdx);\n" +
+                "        if (clazz == NULL) {\n" +
+                "            return NULL;\n" +
+                "        }\n" +
                 "\n" +
-                "        method->classIdx = methodId.classIdx;\n" +
+                "        __atomic_store_n(&method->shorty, STRING_BY_ID(methodId.shortyIdx), __ATOMIC_RELAXED);\n" +
+                "        __atomic_store_n(&method->classIdx, methodId.classIdx, __ATOMIC_RELAXED);\n" +
+                (intrinsics ?
+                        "        __atomic_store_n(&method->intrinsic, getIntrinsic(idx), __ATOMIC_RELAXED);\n" : "") +
                 "\n" +
                 "        const char *name = STRING_BY_ID(methodId.nameIdx);\n" +
                 "        const char *sig = STRING_BY_SIGNATURE_ID(methodId.sigIdx);\n" +
@@ -271,69 +567,120 @@ public class ResolverCodeGenerator {
                 "            mid = (*env)->GetMethodID(env, clazz, name, sig);\n" +
                 "        }\n" +
                 "        if (mid == NULL) {\n" +
-                "            (*env)->DeleteLocalRef(env, clazz);\n" +
-                "\n" +
                 "            (*env)->ExceptionClear(env);\n" +
                 "            vmThrowNoSuchMethodError(env, name);\n" +
                 "            return NULL;\n" +
                 "        }\n" +
-                "        (*env)->DeleteLocalRef(env, clazz);\n" +
                 "\n" +
+                (directMethods ?
+                        "        const void *directFn;\n" +
+                                "        vmDirectInvoker directInvoker;\n" +
+                                "        if (getDirectMethod(idx, &directFn, &directInvoker)) {\n" +
+                                "            __atomic_store_n(&method->directFn, directFn, __ATOMIC_RELAXED);\n" +
+                                "            __atomic_store_n(&method->directInvoker, directInvoker, __ATOMIC_RELAXED);\n" +
+                                "        }\n" +
+                                "\n" : "") +
                 "        //只根据method->methodId判断是否需要解析,最后赋值为了防止结构体解析一半被其他线程使用从而导致错误\n" +
-                "        //todo 赋值需为原子操作\n" +
-                "\n" +
-                "        method->methodId = mid;\n" +
-                "\n" +
+                "        __atomic_store_n(&method->methodId, mid, __ATOMIC_RELEASE);\n" +
                 "    }\n" +
                 "    return method;\n" +
                 "}\n" +
                 "\n" +
-                "static pthread_mutex_t str_mutex = PTHREAD_MUTEX_INITIALIZER;\n" +
-                "\n" +
                 "static jstring dvmConstantString(JNIEnv *env, u4 idx) {\n" +
-                "    //先查找索引位置是否存在缓存,不用频繁创建string对象\n" +
-                "    s4 i = binarySearch(gStringConstantIds, sizeof(gStringConstantIds) / sizeof(u4), idx);\n" +
-                "    if (i >= 0) {\n" +
-                "        if (gStringConstants[i] == NULL) {\n" +
-                "            pthread_mutex_lock(&str_mutex);\n" +
-                "            jstring str;\n" +
-                "            if (gStringConstants[i] == NULL) {\n" +
-                "                str = (*env)->NewStringUTF(env, STRING_BY_ID(idx));\n" +
-                "                gStringConstants[i] = (*env)->NewGlobalRef(env, str);\n" +
-                "            } else {\n" +
-                "                str = (*env)->NewLocalRef(env, gStringConstants[i]);\n" +
-                "            }\n" +
-                "            pthread_mutex_unlock(&str_mutex);\n" +
-                "\n" +
-                "            return str;\n" +
-                "        } else {\n" +
-                "            return (*env)->NewLocalRef(env, gStringConstants[i]);\n" +
-                "        }\n" +
+                "    //字符串索引直接得到缓存位置,不用频繁创建string对象\n" +
+                "    const u4 slot = gStringSlots[idx];\n" +
+                "    if (slot == 0) {\n" +
+                "        return (*env)->NewStringUTF(env, STRING_BY_ID(idx));\n" +
+                "    }\n" +
+                "    jstring cached = __atomic_load_n(&gStringConstants[slot], __ATOMIC_ACQUIRE);\n" +
+                "    if (cached != NULL) {\n" +
+                "        return (*env)->NewLocalRef(env, cached);\n" +
+                "    }\n" +
+                "    jstring str = (*env)->NewStringUTF(env, STRING_BY_ID(idx));\n" +
+                "    if (str == NULL) {\n" +
+                "        return NULL;\n" +
                 "    }\n" +
-                "    return (*env)->NewStringUTF(env, STRING_BY_ID(idx));\n" +
+                "    jstring global = (*env)->NewGlobalRef(env, str);\n" +
+                "    if (global == NULL) {\n" +
+                "        return str;\n" +
+                "    }\n" +
+                "    //同时创建时只保留先放入的,保证同一常量得到同一个对象\n" +
+                "    jstring expected = NULL;\n" +
+                "    if (!__atomic_compare_exchange_n(&gStringConstants[slot], &expected, global, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {\n" +
+                "        (*env)->DeleteGlobalRef(env, global);\n" +
+                "        (*env)->DeleteLocalRef(env, str);\n" +
+                "        return (*env)->NewLocalRef(env, expected);\n" +
+                "    }\n" +
+                "    return str;\n" +
                 "}\n" +
                 "\n" +
                 "static const char *dvmResolveTypeUtf(JNIEnv *env, u4 idx) {\n" +
                 "    return STRING_BY_TYPE_ID(idx);\n" +
                 "}\n" +
+                "\n");
+        generateFindTypeIdx(writer);
+        writer.write(
+                "//不在类型表里的类型,比如只作为数组元素出现的类型,type指向字符串常量池不会改变\n" +
+                "typedef struct ExtraClass {\n" +
+                "    const char *type;\n" +
+                "    jclass clazz;\n" +
+                "    struct ExtraClass *next;\n" +
+                "} ExtraClass;\n" +
                 "\n" +
-                "static jclass dvmResolveClass(JNIEnv *env, u4 idx) {\n" +
-                "    jclass clazz = getCacheClass(env, STRING_BY_TYPE_ID(idx));\n" +
-                "    if (clazz != NULL) {\n" +
-                "        return (jclass) (*env)->NewLocalRef(env, clazz);\n" +
-                "    }\n" +
+                "static ExtraClass *gExtraClasses;\n" +
                 "\n" +
-                "    FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(idx));\n" +
+                "static jclass findExtraClass(ExtraClass *node, ExtraClass *end, const char *type) {\n" +
+                "    for (; node != end; node = node->next) {\n" +
+                "        if (strcmp(node->type, type) == 0) {\n" +
+                "            return node->clazz;\n" +
+                "        }\n" +
+                "    }\n" +
+                "    return NULL;\n" +
+                "}\n" +
                 "\n" +
-                "    return clazz;\n" +
+                "static jclass publishExtraClass(JNIEnv *env, ExtraClass *head, const char *type, jclass clazz) {\n" +
+                "    jclass global = (jclass) (*env)->NewGlobalRef(env, clazz);\n" +
+                "    (*env)->DeleteLocalRef(env, clazz);\n" +
+                "    if (global == NULL) {\n" +
+                "        return NULL;\n" +
+                "    }\n" +
+                "    ExtraClass *node = (ExtraClass *) malloc(sizeof(ExtraClass));\n" +
+                "    if (node == NULL) {\n" +
+                "        //不能缓存时全局引用不再释放,只可能在内存不足时发生\n" +
+                "        return global;\n" +
+                "    }\n" +
+                "    node->type = type;\n" +
+                "    node->clazz = global;\n" +
+                "    node->next = head;\n" +
+                "    while (!__atomic_compare_exchange_n(&gExtraClasses, &node->next, node, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {\n" +
+                "        //其他线程放入了新节点,可能是同一个类型\n" +
+                "        jclass other = findExtraClass(node->next, head, type);\n" +
+                "        if (other != NULL) {\n" +
+                "            (*env)->DeleteGlobalRef(env, global);\n" +
+                "            free(node);\n" +
+                "            return other;\n" +
+                "        }\n" +
+                "        head = node->next;\n" +
+                "    }\n" +
+                "    return global;\n" +
                 "}\n\n");
 
         //因为类型需要去掉开头的'L'和结尾的';',所以最大最大class名不需要再加1表示字符串结尾
         writer.write(String.format(
-                "static jclass dvmFindClass(JNIEnv *env, const char *type) {\n" +
+                "//和dvmResolveClass一样返回全局引用\n" +
+                        "static jclass dvmFindClass(JNIEnv *env, const char *type) {\n" +
                         "    jclass clazz = getCacheClass(env, type);\n" +
                         "    if (clazz != NULL) {\n" +
-                        "        return (jclass) (*env)->NewLocalRef(env, clazz);\n" +
+                        "        return clazz;\n" +
+                        "    }\n" +
+                        "    const s4 idx = findTypeIdx(type);\n" +
+                        "    if (idx >= 0) {\n" +
+                        "        return dvmResolveClass(env, (u4) idx);\n" +
+                        "    }\n" +
+                        "    ExtraClass *head = __atomic_load_n(&gExtraClasses, __ATOMIC_ACQUIRE);\n" +
+                        "    clazz = findExtraClass(head, NULL, type);\n" +
+                        "    if (clazz != NULL) {\n" +
+                        "        return clazz;\n" +
                         "    }\n" +
                         "    if (*type == 'L') {\n" +
                         "        char clazzName[%d];\n" +
@@ -343,12 +690,12 @@ public class ResolverCodeGenerator {
                         "\n" +
                         "        FIND_CLASS_BY_NAME(clazzName);\n" +
                         "\n" +
-                        "        return clazz;\n" +
+                        "        return publishExtraClass(env, head, type, clazz);\n" +
                         "    }\n" +
                         "\n" +
                         "    FIND_CLASS_BY_NAME(type);\n" +
                         "\n" +
-                        "    return clazz;\n" +
+                        "    return publishExtraClass(env, head, type, clazz);\n" +
                         "}\n\n", maxTypeLen));
         writer.write(
                 "static const vmResolver dvmResolver = {\n" +
@@ -362,7 +709,7 @@ public class ResolverCodeGenerator {
                         "\n");
     }
 
-    private void generateMethodPool(Writer writer) throws IOException {
+    private void generateMethodPool(CEmitter writer) throws IOException {
         writer.write(
                 "\n" +
                         "typedef struct {\n" +
@@ -371,9 +718,17 @@ public class ResolverCodeGenerator {
                         "    u4 shortyIdx;\n" +
                         "    u4 sigIdx;\n" +
                         "} MethodId;\n\n");
-        writer.write("static const MethodId gMethodIds[] = {\n");
+        List<? extends MethodReference> methodSection = this.methodSection;
+        final int blobOffset;
+        if (blob != null) {
+            //和结构体内存布局一样,classIdx后面有2字节填充
+            writer.write("_Static_assert(sizeof(MethodId) == 16, \"MethodId layout\");\n");
+            blobOffset = blob.align();
+        } else {
+            blobOffset = 0;
+            writer.write("static const MethodId gMethodIds[] = {\n");
+        }
 
-        List<DexBackedMethodReference> methodSection = dexFile.getMethodSection();
         for (MethodReference methodReference : methodSection) {
             String definingClass = methodReference.getDefiningClass();
             String className;
@@ -401,17 +756,31 @@ public class ResolverCodeGenerator {
                 throw new RuntimeException("unknown method signature");
             }
 
-            writer.write(String.format(
-                    "    {.classIdx=%d, .nameIdx=%d, .shortyIdx=%d, .sigIdx=%d},\n",
-                    classNameIdx, nameIdx, shortyIdx, sigIdx));
+            if (blob != null) {
+                blob.putU2(classNameIdx);
+                blob.pad(2);
+                blob.putU4(nameIdx);
+                blob.putU4(shortyIdx);
+                blob.putU4(sigIdx);
+                continue;
+            }
+            writer.print("    {.classIdx=").dec(classNameIdx)
+                    .print(", .nameIdx=").dec(nameIdx)
+                    .print(", .shortyIdx=").dec(shortyIdx)
+                    .print(", .sigIdx=").dec(sigIdx)
+                    .print("},\n");
+        }
+        if (blob != null) {
+            writeBlobTable(writer, "gMethodIds", "MethodId", methodSection.size(), blobOffset);
+        } else {
+            writer.write("};\n");
         }
-        writer.write("};\n");
         writer.write("//ends method data\n\n");
         writer.write(String.format("static vmMethod gMethods[%d];\n", methodSection.size()));
         writer.write("\n");
     }
 
-    private void generateFieldPool(Writer writer) throws IOException {
+    private void generateFieldPool(CEmitter writer) throws IOException {
         writer.write(
                 "\n" +
                         "typedef struct {\n" +
@@ -419,9 +788,16 @@ public class ResolverCodeGenerator {
                         "    u4 nameIdx;\n" +
                         "    u2 typeIdx;\n" +
                         "} FieldId;\n\n");
-        writer.write("static const FieldId gFieldIds[] = {\n");
+        List<? extends FieldReference> fieldSection = this.fieldSection;
+        final int blobOffset;
+        if (blob != null) {
+            writer.write("_Static_assert(sizeof(FieldId) == 12, \"FieldId layout\");\n");
+            blobOffset = blob.align();
+        } else {
+            blobOffset = 0;
+            writer.write("static const FieldId gFieldIds[] = {\n");
+        }
 
-        List<DexBackedFieldReference> fieldSection = dexFile.getFieldSection();
         for (FieldReference reference : fieldSection) {
             String definingClass = reference.getDefiningClass();
             String className;
@@ -445,35 +821,64 @@ public class ResolverCodeGenerator {
                 throw new RuntimeException("unknown field type");
             }
 
-            writer.write(String.format(
-                    "    {.classIdx=%d, .nameIdx=%d, .typeIdx=%d},\n",
-                    classNameIdx, nameIdx, typeIdx));
+            if (blob != null) {
+                blob.putU2(classNameIdx);
+                blob.pad(2);
+                blob.putU4(nameIdx);
+                blob.putU2(typeIdx);
+                blob.pad(2);
+                continue;
+            }
+            writer.print("    {.classIdx=").dec(classNameIdx)
+                    .print(", .nameIdx=").dec(nameIdx)
+                    .print(", .typeIdx=").dec(typeIdx)
+                    .print("},\n");
+        }
+        if (blob != null) {
+            writeBlobTable(writer, "gFieldIds", "FieldId", fieldSection.size(), blobOffset);
+        } else {
+            writer.write("};\n");
         }
-        writer.write("};\n");
         writer.write("//ends field id\n\n");
         writer.write(String.format("static vmField gFields[%d];\n", fieldSection.size()));
     }
 
 
-    private void generateStringPool(Writer writer) throws IOException {
-        writer.write("static const u1 gBaseStrPtr[]={\n");
+    private void generateStringPool(CEmitter writer) throws IOException {
+        final int strBlobOffset;
+        if (blob != null) {
+            strBlobOffset = blob.align();
+        } else {
+            strBlobOffset = 0;
+            writer.write("static const u1 gBaseStrPtr[]={\n");
+        }
 
         ArrayList<Long> strOffsets = new ArrayList<>();
         long strOffset = 0;
         for (String string : stringPool) {
             byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
 
-            writer.write("    ");
-            ;
-            for (byte aByte : bytes) {
-                writer.write(String.format("0x%02x,", aByte & 0xFF));
+            if (blob != null) {
+                for (byte aByte : bytes) {
+                    blob.putU1(aByte);
+                }
+                blob.putU1(0);
+            } else {
+                writer.print("    ");
+                for (byte aByte : bytes) {
+                    writer.hexU1(aByte & 0xFF).print(',');
+                }
+                writer.print("0x00,\n");
             }
-            writer.write("0x00,\n");
 
             strOffsets.add(strOffset);
             strOffset += bytes.length + 1;
         }
-        writer.write("};\n\n");
+        if (blob != null) {
+            writeBlobTable(writer, "gBaseStrPtr", "u1", strOffset, strBlobOffset);
+        } else {
+            writer.write("};\n\n");
+        }
 
         writer.write(
                 "\n" +
@@ -481,14 +886,25 @@ public class ResolverCodeGenerator {
                         "    u4 off;\n" +
                         "} StringId;\n");
 
-        writer.write("static const StringId gStringIds[] = {\n");
-        for (Long offset : strOffsets) {
-            if (offset > 0xFFFFFFFFL) {
-                throw new RuntimeException("string offset too long");
+        if (blob != null) {
+            final int blobOffset = blob.align();
+            for (Long offset : strOffsets) {
+                if (offset > 0xFFFFFFFFL) {
+                    throw new RuntimeException("string offset too long");
+                }
+                blob.putU4(offset);
+            }
+            writeBlobTable(writer, "gStringIds", "StringId", strOffsets.size(), blobOffset);
+        } else {
+            writer.write("static const StringId gStringIds[] = {\n");
+            for (Long offset : strOffsets) {
+                if (offset > 0xFFFFFFFFL) {
+                    throw new RuntimeException("string offset too long");
+                }
+                writer.print("    {.off=").hex(offset, 4).print("},\n");
             }
-            writer.write(String.format("    {.off=0x%04x},\n", offset));
+            writer.write("};\n");
         }
-        writer.write("};\n");
         writer.write("//ends string ids\n\n");
 
 //        writer.write("static const char *gStringPool[] = {\n");
@@ -496,7 +912,13 @@ public class ResolverCodeGenerator {
 //            writer.write(String.format("    \"%s\",\n", stringEsc(string)));
 //        }
 //        writer.write("};\n");
-        writer.flush();
+    }
+
+    //以数组类型引用blob里的数据,sizeof及下标访问和原来的数组一样
+    private void writeBlobTable(CEmitter writer, String name, String type, long count, int offset) throws IOException {
+        writer.print("#define ").print(name)
+                .print(" (*(const ").print(type).print(" (*)[").dec(count).print("]) (")
+                .print(blob.getSymbol()).print(" + ").hex(offset, 1).print("))\n");
     }
 
     static String stringEsc(String str) {
@@ -508,7 +930,7 @@ public class ResolverCodeGenerator {
         return sb.toString();
     }
 
-    private void generateTypePool(Writer writer) throws IOException {
+    private void generateTypePool(CEmitter writer) throws IOException {
         HashMap<String, Integer> stringPoolIndexMap = this.stringPoolIndexMap;
 
         writer.write(
@@ -517,17 +939,24 @@ public class ResolverCodeGenerator {
                         "    u4 idx;\n" +
                         "} TypeId;\n");
 
-        writer.write("static const TypeId gTypeIds[] = {\n");
-        for (String type : typePool) {
-            writer.write(String.format("    {.idx=%d},\n", stringPoolIndexMap.get(type)));
+        if (blob != null) {
+            final int blobOffset = blob.align();
+            for (String type : typePool) {
+                blob.putU4(stringPoolIndexMap.get(type));
+            }
+            writeBlobTable(writer, "gTypeIds", "TypeId", typePool.size(), blobOffset);
+        } else {
+            writer.write("static const TypeId gTypeIds[] = {\n");
+            for (String type : typePool) {
+                writer.print("    {.idx=").dec(stringPoolIndexMap.get(type)).print("},\n");
+            }
+            writer.write("};\n");
         }
-        writer.write("};\n");
         writer.write("//ends type ids\n\n");
-        writer.flush();
     }
 
     //根据类型池,去掉L开头和;得到class name,其他则不变
-    private void generateClassNamePool(Writer writer) throws IOException {
+    private void generateClassNamePool(CEmitter writer) throws IOException {
         HashMap<String, Integer> stringPoolIndexMap = this.stringPoolIndexMap;
 
         writer.write(
@@ -537,7 +966,10 @@ public class ResolverCodeGenerator {
                         "} ClassId;\n");
 
 
-        writer.write("static const ClassId gClassIds[] = {\n");
+        final int blobOffset = blob != null ? blob.align() : 0;
+        if (blob == null) {
+            writer.write("static const ClassId gClassIds[] = {\n");
+        }
 
         List<String> classNames = this.classNames;
         for (String className : classNames) {
@@ -545,14 +977,22 @@ public class ResolverCodeGenerator {
             if (classNameIdx == null || classNameIdx < 0) {
                 throw new RuntimeException("string not contain");
             }
-            writer.write(String.format("    {.idx=%d},\n", classNameIdx));
+            if (blob != null) {
+                blob.putU4(classNameIdx);
+            } else {
+                writer.print("    {.idx=").dec(classNameIdx).print("},\n");
+            }
 
         }
-        writer.write("};\n");
+        if (blob != null) {
+            writeBlobTable(writer, "gClassIds", "ClassId", classNames.size(), blobOffset);
+        } else {
+            writer.write("};\n");
+        }
         writer.write("//ends class name ids\n\n");
     }
 
-    private void generateSignaturePool(Writer writer) throws IOException {
+    private void generateSignaturePool(CEmitter writer) throws IOException {
         HashMap<String, Integer> stringPoolIndexMap = this.stringPoolIndexMap;
 
         writer.write(
@@ -560,7 +1000,10 @@ public class ResolverCodeGenerator {
                         "    u4 idx;\n" +
                         "} SignatureId;\n");
 
-        writer.write("static const SignatureId gSignatureIds[] = {\n");
+        final int blobOffset = blob != null ? blob.align() : 0;
+        if (blob == null) {
+            writer.write("static const SignatureId gSignatureIds[] = {\n");
+        }
 
         List<String> signatures = this.signatures;
         for (String sig : signatures) {
@@ -568,12 +1011,79 @@ public class ResolverCodeGenerator {
             if (sigIdx == null || sigIdx < 0) {
                 throw new RuntimeException("string not contain");
             }
-            writer.write(String.format("    {.idx=%d},\n", sigIdx));
+            if (blob != null) {
+                blob.putU4(sigIdx);
+            } else {
+                writer.print("    {.idx=").dec(sigIdx).print("},\n");
+            }
+        }
+        if (blob != null) {
+            writeBlobTable(writer, "gSignatureIds", "SignatureId", signatures.size(), blobOffset);
+        } else {
+            writer.write("};\n");
         }
-        writer.write("};\n");
         writer.write("//ends method signature pool\n\n");
     }
 
+    /**
+     * 二分查找类型索引,合并了上次的符号顺序时类型表可能不是有序的,另外生成排序后的索引表
+     */
+    private void generateFindTypeIdx(CEmitter writer) throws IOException {
+        final Integer[] sorted = new Integer[typePool.size()];
+        final byte[][] typeBytes = new byte[typePool.size()][];
+        boolean isSorted = true;
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+            typeBytes[i] = typePool.get(i).getBytes(StandardCharsets.UTF_8);
+            if (i > 0 && compareBytes(typeBytes[i - 1], typeBytes[i]) > 0) {
+                isSorted = false;
+            }
+        }
+        final String mid;
+        if (isSorted) {
+            writer.write("//类型表按字符串排序,二分查找类型索引\n");
+            mid = "mid";
+        } else {
+            //和strcmp一样按无符号字节比较
+            Arrays.sort(sorted, (a, b) -> compareBytes(typeBytes[a], typeBytes[b]));
+            writer.write("//按字符串排序的类型索引,二分查找类型索引\n" +
+                    "static const u4 gSortedTypes[] = {\n");
+            for (Integer idx : sorted) {
+                writer.print("    ").dec(idx).print(",\n");
+            }
+            writer.write("};\n\n");
+            mid = "gSortedTypes[mid]";
+        }
+        writer.write("static s4 findTypeIdx(const char *type) {\n" +
+                "    s4 lo = 0;\n" +
+                "    s4 hi = (s4) (sizeof(gTypeIds) / sizeof(TypeId)) - 1;\n" +
+                "    while (lo <= hi) {\n" +
+                "        s4 mid = (s4) (((u4) lo + (u4) hi) >> 1);\n" +
+                "        int cmp = strcmp(STRING_BY_TYPE_ID(" + mid + "), type);\n" +
+                "        if (cmp < 0) {\n" +
+                "            lo = mid + 1;\n" +
+                "        } else if (cmp > 0) {\n" +
+                "            hi = mid - 1;\n" +
+                "        } else {\n" +
+                "            return " + (isSorted ? "mid" : "(s4) " + mid) + ";\n" +
+                "        }\n" +
+                "    }\n" +
+                "    return -1;\n" +
+                "}\n" +
+                "\n");
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
     public int getIndexByClassName(String className) {
         return classNamePoolIndexMap.get(className);
     }
@@ -583,7 +1093,18 @@ public class ResolverCodeGenerator {
     }
 
     private void collectReferences(MethodImplementation implementation) {
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                if (handler.getExceptionType() != null) {
+                    referencedTypes.add(handler.getExceptionType());
+                }
+            }
+        }
         for (Instruction instruction : implementation.getInstructions()) {
+            if (instruction instanceof ReferenceInstruction
+                    && ((ReferenceInstruction) instruction).getReferenceType() == ReferenceType.TYPE) {
+                referencedTypes.add(((TypeReference) ((ReferenceInstruction) instruction).getReference()).getType());
+            }
             switch (instruction.getOpcode()) {
                 //iget_x
                 case IGET_BYTE:
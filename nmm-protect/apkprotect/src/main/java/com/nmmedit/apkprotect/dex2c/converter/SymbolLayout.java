@@ -0,0 +1,131 @@
+package com.nmmedit.apkprotect.dex2c.converter;
+
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 符号表里字符串,类型,字段及方法的顺序,即指令里使用的索引
+ * 增量转换时按上次的顺序排列,新符号放在最后,没有改变的class生成的代码和上次完全一样
+ */
+public class SymbolLayout {
+    @Nonnull
+    private final List<String> strings;
+    @Nonnull
+    private final List<String> types;
+    @Nonnull
+    private final List<? extends FieldReference> fields;
+    @Nonnull
+    private final List<? extends MethodReference> methods;
+
+    public SymbolLayout(@Nonnull List<String> strings,
+                        @Nonnull List<String> types,
+                        @Nonnull List<? extends FieldReference> fields,
+                        @Nonnull List<? extends MethodReference> methods) {
+        this.strings = strings;
+        this.types = types;
+        this.fields = fields;
+        this.methods = methods;
+    }
+
+    @Nonnull
+    public List<String> getStrings() {
+        return strings;
+    }
+
+    @Nonnull
+    public List<String> getTypes() {
+        return types;
+    }
+
+    @Nonnull
+    public List<? extends FieldReference> getFields() {
+        return fields;
+    }
+
+    @Nonnull
+    public List<? extends MethodReference> getMethods() {
+        return methods;
+    }
+
+    public void writeTo(@Nonnull DataOutputStream out) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            writeString(out, string);
+        }
+        out.writeInt(types.size());
+        for (String type : types) {
+            writeString(out, type);
+        }
+        out.writeInt(fields.size());
+        for (FieldReference field : fields) {
+            writeString(out, field.getDefiningClass());
+            writeString(out, field.getName());
+            writeString(out, field.getType());
+        }
+        out.writeInt(methods.size());
+        for (MethodReference method : methods) {
+            writeString(out, method.getDefiningClass());
+            writeString(out, method.getName());
+            out.writeInt(method.getParameterTypes().size());
+            for (CharSequence parameterType : method.getParameterTypes()) {
+                writeString(out, parameterType.toString());
+            }
+            writeString(out, method.getReturnType());
+        }
+    }
+
+    @Nonnull
+    public static SymbolLayout readFrom(@Nonnull DataInputStream in) throws IOException {
+        final List<String> strings = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            strings.add(readString(in));
+        }
+        final List<String> types = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            types.add(readString(in));
+        }
+        final List<ImmutableFieldReference> fields = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            final String definingClass = readString(in);
+            final String name = readString(in);
+            fields.add(new ImmutableFieldReference(definingClass, name, readString(in)));
+        }
+        final List<ImmutableMethodReference> methods = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            final String definingClass = readString(in);
+            final String name = readString(in);
+            final int parameterCount = in.readInt();
+            final List<String> parameterTypes = parameterCount == 0
+                    ? Collections.<String>emptyList() : new ArrayList<>(parameterCount);
+            for (int j = 0; j < parameterCount; j++) {
+                parameterTypes.add(readString(in));
+            }
+            methods.add(new ImmutableMethodReference(definingClass, name, parameterTypes, readString(in)));
+        }
+        return new SymbolLayout(strings, types, fields, methods);
+    }
+
+    //dex字符串可能有单独的代理字符,按char写入保证读回来完全一样;也不受writeUTF长度限制
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
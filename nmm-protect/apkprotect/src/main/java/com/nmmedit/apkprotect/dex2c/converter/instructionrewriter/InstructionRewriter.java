@@ -34,13 +34,9 @@ public abstract class InstructionRewriter {
 
 
     final Opcodes opcodes;
-    private MyPool<String> stringSection;
-    private MyPool<String> typeSection;
-    private MyPool<FieldReference> fieldSection;
-    private MyPool<MethodProtoReference> protoSection;
-    private MyPool<MethodReference> methodSection;
-    private MyPool<MethodHandleReference> methodHandleSection;
-    private MyPool<CallSiteReference> callSiteSection;
+
+    //加载的dex符号按线程保存,多个dex并行转换时可以共用同一个指令重写器
+    private final ThreadLocal<Sections> sections = new ThreadLocal<>();
 
     public InstructionRewriter(Opcodes opcodes) {
         this.opcodes = opcodes;
@@ -52,14 +48,34 @@ public abstract class InstructionRewriter {
      * @param dexFile
      */
     public final void loadDexFile(DexBackedDexFile dexFile) {
+        sections.set(new Sections(dexFile));
+    }
+
+    /**
+     * 使用裁剪后的符号,指令里的索引和生成的c符号表一致
+     */
+    public final void loadSymbols(@Nonnull DexBackedDexFile dexFile,
+                                  @Nonnull List<String> strings,
+                                  @Nonnull List<String> types,
+                                  @Nonnull List<? extends FieldReference> fields,
+                                  @Nonnull List<? extends MethodReference> methods) {
+        sections.set(new Sections(dexFile, strings, types, fields, methods));
+    }
+
+    /**
+     * 转换完成后释放当前线程加载的符号,线程池里的线程会一直保留
+     */
+    public final void unloadDexFile() {
+        sections.remove();
+    }
 
-        stringSection = new MyPool<>(dexFile.getStringSection());
-        typeSection = new MyPool<>(dexFile.getTypeSection());
-        fieldSection = new MyPool<>(dexFile.getFieldSection());
-        protoSection = new MyPool<>(dexFile.getProtoSection());
-        methodSection = new MyPool<>(dexFile.getMethodSection());
-        methodHandleSection = new MyPool<>(dexFile.getMethodHandleSection());
-        callSiteSection = new MyPool<>(dexFile.getCallSiteSection());
+    @Nonnull
+    private Sections getSections() {
+        final Sections s = sections.get();
+        if (s == null) {
+            throw new RuntimeException("No dex file loaded");
+        }
+        return s;
     }
 
     /**
@@ -242,6 +258,7 @@ public abstract class InstructionRewriter {
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         final DexDataWriter writer = new DexDataWriter(out, 0);
 
+        final MyPool<String> typeSection = getSections().typeSection;
         final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = methodImp.getTryBlocks();
         if (tryBlocks.size() > 0) {
             writer.writeUshort(tryBlocks.size());
@@ -722,17 +739,18 @@ public abstract class InstructionRewriter {
     }
 
     private int getReferenceIndex(int referenceType, Reference reference) {
+        final Sections sections = getSections();
         switch (referenceType) {
             case ReferenceType.FIELD:
-                return fieldSection.getItemIndex((FieldReference) reference);
+                return sections.fieldSection.getItemIndex((FieldReference) reference);
             case ReferenceType.METHOD:
-                return methodSection.getItemIndex((MethodReference) reference);
+                return sections.methodSection.getItemIndex((MethodReference) reference);
             case ReferenceType.STRING:
-                return stringSection.getItemIndex(((StringReference) reference).getString());
+                return sections.stringSection.getItemIndex(((StringReference) reference).getString());
             case ReferenceType.TYPE:
-                return typeSection.getItemIndex(((TypeReference) reference).getType());
+                return sections.typeSection.getItemIndex(((TypeReference) reference).getType());
             case ReferenceType.METHOD_PROTO:
-                return protoSection.getItemIndex((MethodProtoReference) reference);
+                return sections.protoSection.getItemIndex((MethodProtoReference) reference);
             case ReferenceType.METHOD_HANDLE:
 //                return methodHandleSection.getItemIndex((MethodHandleKey) reference);
             case ReferenceType.CALL_SITE:
@@ -743,6 +761,35 @@ public abstract class InstructionRewriter {
     }
 
 
+    private static class Sections {
+        private final MyPool<String> stringSection;
+        private final MyPool<String> typeSection;
+        private final MyPool<FieldReference> fieldSection;
+        private final MyPool<MethodProtoReference> protoSection;
+        private final MyPool<MethodReference> methodSection;
+        private final MyPool<MethodHandleReference> methodHandleSection;
+        private final MyPool<CallSiteReference> callSiteSection;
+
+        Sections(DexBackedDexFile dexFile) {
+            this(dexFile, dexFile.getStringSection(), dexFile.getTypeSection(),
+                    dexFile.getFieldSection(), dexFile.getMethodSection());
+        }
+
+        Sections(DexBackedDexFile dexFile,
+                 List<String> strings,
+                 List<String> types,
+                 List<? extends FieldReference> fields,
+                 List<? extends MethodReference> methods) {
+            stringSection = new MyPool<>(strings);
+            typeSection = new MyPool<>(types);
+            fieldSection = new MyPool<>(fields);
+            protoSection = new MyPool<>(dexFile.getProtoSection());
+            methodSection = new MyPool<>(methods);
+            methodHandleSection = new MyPool<>(dexFile.getMethodHandleSection());
+            callSiteSection = new MyPool<>(dexFile.getCallSiteSection());
+        }
+    }
+
     private static class MyPool<T> {
         @Nonnull
         private final Map<T, Integer> section = Maps.newHashMap();
@@ -14,6 +14,17 @@ public class RandomInstructionRewriter extends InstructionRewriter {
     private final EnumMap<Opcode, Integer> opcodeMap = new EnumMap<>(Opcode.class);
 
     public RandomInstructionRewriter() {
+        this(new Random());
+    }
+
+    /**
+     * 使用固定种子,每次生成同样的opcode,增量转换时可以复用上次生成的代码
+     */
+    public RandomInstructionRewriter(long seed) {
+        this(new Random(seed));
+    }
+
+    private RandomInstructionRewriter(Random random) {
         //虚拟机使用39版本的opcode,所以这里需要使用同样版本
         super(Opcodes.forDexVersion(39));
         final ArrayList<Opcode> randOpcodes = new ArrayList<>();
@@ -28,7 +39,7 @@ public class RandomInstructionRewriter extends InstructionRewriter {
         for (int i = 1; i < opcodeList.size(); i++) {
             final Opcode opcode = opcodeList.get(i);
             if (opcode != null) {
-                final int randIdx = new Random().nextInt(randOpcodes.size());
+                final int randIdx = random.nextInt(randOpcodes.size());
                 final Opcode remove = randOpcodes.remove(randIdx);
                 opcodeList.set(i, remove);
             }
@@ -0,0 +1,307 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction22c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * 把调用简单getter/setter的invoke替换为直接读写字段,在生成符号dex前处理
+ * 只处理不能被覆盖的方法:static,private,final方法或final类里的方法,并且方法必须定义在引用的类里
+ * static方法只处理读写本类字段的,调用方法和读写字段触发同一个类初始化
+ * 字段读写通过jni完成,没有访问检查,所以只要求调用者能访问被内联的方法
+ */
+public class AccessorInliner {
+    //方法描述到访问方法
+    private final Map<String, Accessor> accessors = new HashMap<>();
+    //处理过的方法,符号dex会多次读取方法列表
+    private final Map<String, Method> inlinedMethods = new HashMap<>();
+    //每个方法被替换的调用数
+    private final Map<String, Integer> inlinedCounts = new TreeMap<>();
+    private int inlinedInvokes;
+
+    public AccessorInliner(@Nonnull Iterable<? extends ClassDef> classes) {
+        for (ClassDef classDef : classes) {
+            for (Method method : classDef.getMethods()) {
+                final Accessor accessor = Accessor.of(classDef, method);
+                if (accessor != null) {
+                    accessors.put(ReferenceUtil.getMethodDescriptor(method), accessor);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 没有可内联的调用时返回原方法
+     */
+    @Nonnull
+    public Method inline(@Nonnull Method method) {
+        final String descriptor = ReferenceUtil.getMethodDescriptor(method);
+        Method inlined = inlinedMethods.get(descriptor);
+        if (inlined == null) {
+            inlined = inlineMethod(method);
+            inlinedMethods.put(descriptor, inlined);
+        }
+        return inlined;
+    }
+
+    private Method inlineMethod(Method method) {
+        final MethodImplementation implementation = method.getImplementation();
+        if (implementation == null) {
+            return method;
+        }
+        final String callerType = method.getDefiningClass();
+        //先确定有可以内联的调用,避免没必要的转换
+        Instruction prev = null;
+        boolean found = false;
+        for (Instruction instruction : implementation.getInstructions()) {
+            if (prev != null && replace(prev, instruction, callerType) != null) {
+                found = true;
+                break;
+            }
+            prev = instruction;
+        }
+        if (!found) {
+            return method;
+        }
+
+        final MutableMethodImplementation mutable = new MutableMethodImplementation(implementation);
+        final List<BuilderInstruction> instructions = mutable.getInstructions();
+        int count = 0;
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            final BuilderInstruction replacement = replace(instructions.get(i), instructions.get(i + 1), callerType);
+            if (replacement == null) {
+                continue;
+            }
+            final boolean getter = replacement.getOpcode().setsRegister();
+            mutable.replaceInstruction(i, replacement);
+            //结果直接写入move-result的寄存器
+            if (getter) {
+                mutable.removeInstruction(i + 1);
+            }
+            count++;
+        }
+        inlinedCounts.put(ReferenceUtil.getMethodDescriptor(method), count);
+        inlinedInvokes += count;
+        return new ImmutableMethod(method.getDefiningClass(),
+                method.getName(),
+                method.getParameters(),
+                method.getReturnType(),
+                method.getAccessFlags(),
+                method.getAnnotations(),
+                method.getHiddenApiRestrictions(),
+                mutable);
+    }
+
+    //返回替换invoke的字段读写指令,不能内联返回null
+    private BuilderInstruction replace(Instruction instruction, Instruction next, String callerType) {
+        final Opcode opcode = instruction.getOpcode();
+        if (opcode != Opcode.INVOKE_STATIC && opcode != Opcode.INVOKE_DIRECT && opcode != Opcode.INVOKE_VIRTUAL) {
+            return null;
+        }
+        final Instruction35c invoke = (Instruction35c) instruction;
+        final MethodReference methodRef = (MethodReference) invoke.getReference();
+        final Accessor accessor = accessors.get(ReferenceUtil.getMethodDescriptor(methodRef));
+        if (accessor == null || !accessor.canInline(opcode, callerType)) {
+            return null;
+        }
+        final boolean isStatic = opcode == Opcode.INVOKE_STATIC;
+        if (accessor.getter) {
+            //没有使用返回值的调用不处理
+            if (next.getOpcode() != Opcode.MOVE_RESULT
+                    && next.getOpcode() != Opcode.MOVE_RESULT_WIDE
+                    && next.getOpcode() != Opcode.MOVE_RESULT_OBJECT) {
+                return null;
+            }
+            final int dest = ((OneRegisterInstruction) next).getRegisterA();
+            if (isStatic) {
+                return new BuilderInstruction21c(accessor.opcode, dest, accessor.field);
+            }
+            //iget目标寄存器只有4位
+            if (dest > 0xf) {
+                return null;
+            }
+            return new BuilderInstruction22c(accessor.opcode, dest, invoke.getRegisterC(), accessor.field);
+        }
+        if (isStatic) {
+            return new BuilderInstruction21c(accessor.opcode, invoke.getRegisterC(), accessor.field);
+        }
+        return new BuilderInstruction22c(accessor.opcode, invoke.getRegisterD(), invoke.getRegisterC(), accessor.field);
+    }
+
+    //所有被内联的调用数
+    public int getInlinedInvokes() {
+        return inlinedInvokes;
+    }
+
+    //方法描述到被内联的调用数
+    @Nonnull
+    public Map<String, Integer> getInlinedCounts() {
+        return inlinedCounts;
+    }
+
+    /**
+     * 识别出的访问方法,增量转换时访问方法改变需要重新生成
+     */
+    @Nonnull
+    public List<String> getAccessors() {
+        final List<String> list = new ArrayList<>(accessors.size());
+        for (Map.Entry<String, Accessor> entry : accessors.entrySet()) {
+            final Accessor accessor = entry.getValue();
+            list.add(entry.getKey() + ' ' + accessor.accessFlags + ' ' + accessor.classAccessFlags
+                    + ' ' + accessor.opcode.name + ' ' + ReferenceUtil.getFieldDescriptor(accessor.field));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static class Accessor {
+        private final String definingClass;
+        private final int accessFlags;
+        private final int classAccessFlags;
+        private final boolean getter;
+        private final Opcode opcode;
+        private final FieldReference field;
+
+        private Accessor(String definingClass, int accessFlags, int classAccessFlags,
+                         boolean getter, Opcode opcode, FieldReference field) {
+            this.definingClass = definingClass;
+            this.accessFlags = accessFlags;
+            this.classAccessFlags = classAccessFlags;
+            this.getter = getter;
+            this.opcode = opcode;
+            this.field = field;
+        }
+
+        /**
+         * getter: iget vA, p0, F 或 sget vA, F 后面接return vA
+         * setter: iput p1, p0, F 或 sput p0, F 后面接return-void
+         */
+        static Accessor of(ClassDef classDef, Method method) {
+            final int flags = method.getAccessFlags();
+            if (AccessFlags.ABSTRACT.isSet(flags) || AccessFlags.NATIVE.isSet(flags)
+                    || AccessFlags.SYNCHRONIZED.isSet(flags) || AccessFlags.DECLARED_SYNCHRONIZED.isSet(flags)
+                    || AccessFlags.CONSTRUCTOR.isSet(flags) || method.getName().startsWith("<")) {
+                return null;
+            }
+            final MethodImplementation implementation = method.getImplementation();
+            if (implementation == null || implementation.getTryBlocks().size() != 0) {
+                return null;
+            }
+            final Iterator<? extends Instruction> iterator = implementation.getInstructions().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            final Instruction access = iterator.next();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            final Instruction ret = iterator.next();
+            if (iterator.hasNext()) {
+                return null;
+            }
+            final boolean isStatic = AccessFlags.STATIC.isSet(flags);
+            final int parameterCount = method.getParameterTypes().size();
+            final int firstParameter = implementation.getRegisterCount()
+                    - MethodUtil.getParameterRegisterCount(method.getParameterTypes(), isStatic);
+            final String name = access.getOpcode().name;
+            final boolean getter = name.startsWith(isStatic ? "sget" : "iget");
+            final boolean setter = name.startsWith(isStatic ? "sput" : "iput");
+            final FieldReference field;
+            if (isStatic && (getter || setter)) {
+                field = (FieldReference) ((Instruction21c) access).getReference();
+                //触发初始化的类必须一样
+                if (!field.getDefiningClass().equals(method.getDefiningClass())) {
+                    return null;
+                }
+            } else if (!isStatic && (getter || setter)) {
+                final Instruction22c insn = (Instruction22c) access;
+                if (insn.getRegisterB() != firstParameter) {
+                    return null;
+                }
+                field = (FieldReference) insn.getReference();
+            } else {
+                return null;
+            }
+            final int valueRegister = ((OneRegisterInstruction) access).getRegisterA();
+            if (getter) {
+                if (parameterCount != 0
+                        || ret.getOpcode() == Opcode.RETURN_VOID
+                        || !ret.getOpcode().name.startsWith("return")
+                        || ((OneRegisterInstruction) ret).getRegisterA() != valueRegister) {
+                    return null;
+                }
+            } else {
+                //值是唯一参数
+                final int paramRegister = isStatic ? firstParameter : firstParameter + 1;
+                if (parameterCount != 1
+                        || ret.getOpcode() != Opcode.RETURN_VOID
+                        || valueRegister != paramRegister) {
+                    return null;
+                }
+            }
+            return new Accessor(method.getDefiningClass(), flags, classDef.getAccessFlags(),
+                    getter, access.getOpcode(), field);
+        }
+
+        //方法是否确定不会被覆盖,并且调用者可以访问
+        boolean canInline(Opcode invoke, String callerType) {
+            final boolean isStatic = AccessFlags.STATIC.isSet(accessFlags);
+            final boolean isPrivate = AccessFlags.PRIVATE.isSet(accessFlags);
+            switch (invoke) {
+                case INVOKE_STATIC:
+                    if (!isStatic) {
+                        return false;
+                    }
+                    break;
+                case INVOKE_DIRECT:
+                    if (isStatic || !isPrivate) {
+                        return false;
+                    }
+                    break;
+                case INVOKE_VIRTUAL:
+                    if (isStatic || isPrivate
+                            || !AccessFlags.FINAL.isSet(accessFlags) && !AccessFlags.FINAL.isSet(classAccessFlags)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+            if (definingClass.equals(callerType)) {
+                return true;
+            }
+            if (isPrivate) {
+                return false;
+            }
+            if (AccessFlags.PUBLIC.isSet(accessFlags) && AccessFlags.PUBLIC.isSet(classAccessFlags)) {
+                return true;
+            }
+            //包内访问,protected方法也只处理同一个包
+            return getPackage(definingClass).equals(getPackage(callerType));
+        }
+
+        private static String getPackage(String type) {
+            final int idx = type.lastIndexOf('/');
+            return idx < 0 ? "" : type.substring(0, idx);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * 寄存器活跃分析,按指令计算入口及出口活跃的寄存器
+ * 可能抛异常的指令在try范围内时,异常处理入口活跃的寄存器在指令入口也活跃
+ */
+public final class Liveness {
+    private final List<Instruction> instructions;
+    private final RegisterOperands[] operands;
+    private final int[] addresses;
+    //正常执行的后继
+    private final int[][] successors;
+    //抛出异常时跳转的处理入口
+    private final int[][] handlers;
+    private final BitSet[] liveIn;
+    private final BitSet[] liveOut;
+
+    private Liveness(List<Instruction> instructions, RegisterOperands[] operands, int[] addresses,
+                     int[][] successors, int[][] handlers) {
+        this.instructions = instructions;
+        this.operands = operands;
+        this.addresses = addresses;
+        this.successors = successors;
+        this.handlers = handlers;
+        this.liveIn = new BitSet[instructions.size()];
+        this.liveOut = new BitSet[instructions.size()];
+        solve();
+    }
+
+    /**
+     * @return 包含不支持的指令时返回null
+     */
+    @Nullable
+    public static Liveness analyze(@Nonnull MethodImplementation implementation) {
+        final List<Instruction> instructions = new ArrayList<>();
+        for (Instruction instruction : implementation.getInstructions()) {
+            instructions.add(instruction);
+        }
+        final int count = instructions.size();
+        final RegisterOperands[] operands = new RegisterOperands[count];
+        final int[] addresses = new int[count];
+        final Map<Integer, Integer> indexes = new HashMap<>();
+        int address = 0;
+        for (int i = 0; i < count; i++) {
+            final RegisterOperands ops = RegisterOperands.of(instructions.get(i));
+            if (ops == null) {
+                return null;
+            }
+            operands[i] = ops;
+            addresses[i] = address;
+            indexes.put(address, i);
+            address += instructions.get(i).getCodeUnits();
+        }
+
+        final int[][] successors = new int[count][];
+        for (int i = 0; i < count; i++) {
+            final Instruction instruction = instructions.get(i);
+            final Opcode opcode = instruction.getOpcode();
+            final List<Integer> targets = new ArrayList<>(2);
+            if (opcode.canContinue() && i + 1 < count) {
+                targets.add(i + 1);
+            }
+            if (opcode == Opcode.PACKED_SWITCH || opcode == Opcode.SPARSE_SWITCH) {
+                final Integer payload = indexes.get(addresses[i] + ((OffsetInstruction) instruction).getCodeOffset());
+                if (payload == null) {
+                    return null;
+                }
+                for (SwitchElement element : ((SwitchPayload) instructions.get(payload)).getSwitchElements()) {
+                    if (!addTarget(targets, indexes, addresses[i] + element.getOffset())) {
+                        return null;
+                    }
+                }
+            } else if (instruction instanceof OffsetInstruction && opcode != Opcode.FILL_ARRAY_DATA) {
+                if (!addTarget(targets, indexes, addresses[i] + ((OffsetInstruction) instruction).getCodeOffset())) {
+                    return null;
+                }
+            }
+            successors[i] = toArray(targets);
+        }
+
+        final int[][] handlers = new int[count][];
+        final List<List<Integer>> handlerLists = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            handlerLists.add(null);
+        }
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            final int start = tryBlock.getStartCodeAddress();
+            final int end = start + tryBlock.getCodeUnitCount();
+            for (int i = 0; i < count; i++) {
+                if (addresses[i] < start || addresses[i] >= end || !instructions.get(i).getOpcode().canThrow()) {
+                    continue;
+                }
+                List<Integer> list = handlerLists.get(i);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    handlerLists.set(i, list);
+                }
+                for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                    if (!addTarget(list, indexes, handler.getHandlerCodeAddress())) {
+                        return null;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final List<Integer> list = handlerLists.get(i);
+            handlers[i] = list == null ? new int[0] : toArray(list);
+        }
+        return new Liveness(instructions, operands, addresses, successors, handlers);
+    }
+
+    private static boolean addTarget(List<Integer> targets, Map<Integer, Integer> indexes, int address) {
+        final Integer index = indexes.get(address);
+        if (index == null) {
+            return false;
+        }
+        if (!targets.contains(index)) {
+            targets.add(index);
+        }
+        return true;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    //逆序迭代到不再变化
+    private void solve() {
+        final int count = instructions.size();
+        for (int i = 0; i < count; i++) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = count - 1; i >= 0; i--) {
+                final BitSet out = new BitSet();
+                for (int s : successors[i]) {
+                    out.or(liveIn[s]);
+                }
+                final BitSet in = (BitSet) out.clone();
+                in.andNot(operands[i].defs);
+                in.or(operands[i].uses);
+                //抛出异常时结果寄存器没有写入
+                for (int h : handlers[i]) {
+                    in.or(liveIn[h]);
+                }
+                if (!out.equals(liveOut[i]) || !in.equals(liveIn[i])) {
+                    liveOut[i] = out;
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return instructions.size();
+    }
+
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public RegisterOperands getOperands(int index) {
+        return operands[index];
+    }
+
+    //指令的代码单元偏移
+    public int getAddress(int index) {
+        return addresses[index];
+    }
+
+    public int[] getSuccessors(int index) {
+        return successors[index];
+    }
+
+    public int[] getHandlers(int index) {
+        return handlers[index];
+    }
+
+    public BitSet getLiveIn(int index) {
+        return liveIn[index];
+    }
+
+    //正常执行后活跃的寄存器
+    public BitSet getLiveOut(int index) {
+        return liveOut[index];
+    }
+}
@@ -0,0 +1,93 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 生成符号dex前对转换的方法做的优化,先内联访问方法再做窥孔优化
+ * 在符号dex里处理,符号表及生成的代码都只看到优化后的指令
+ */
+public class MethodOptimizer {
+    @Nullable
+    private final AccessorInliner accessorInliner;
+    private final boolean peephole;
+    //处理过的方法,符号dex会多次读取方法列表
+    private final Map<String, Method> optimizedMethods = new HashMap<>();
+    //每个方法窥孔优化删除的指令数
+    private final Map<String, Integer> removedCounts = new TreeMap<>();
+    private int removedInstructions;
+
+    public MethodOptimizer(@Nullable AccessorInliner accessorInliner, boolean peephole) {
+        this.accessorInliner = accessorInliner;
+        this.peephole = peephole;
+    }
+
+    @Nonnull
+    public Method optimize(@Nonnull Method method) {
+        final String descriptor = ReferenceUtil.getMethodDescriptor(method);
+        Method optimized = optimizedMethods.get(descriptor);
+        if (optimized == null) {
+            optimized = optimizeMethod(method, descriptor);
+            optimizedMethods.put(descriptor, optimized);
+        }
+        return optimized;
+    }
+
+    private Method optimizeMethod(Method method, String descriptor) {
+        Method result = accessorInliner == null ? method : accessorInliner.inline(method);
+        final MethodImplementation implementation = result.getImplementation();
+        if (!peephole || implementation == null) {
+            return result;
+        }
+        final MethodImplementation optimized = PeepholeOptimizer.optimize(implementation);
+        if (optimized == implementation) {
+            return result;
+        }
+        final int removed = countInstructions(implementation) - countInstructions(optimized);
+        if (removed > 0) {
+            removedCounts.put(descriptor, removed);
+            removedInstructions += removed;
+        }
+        return new ImmutableMethod(result.getDefiningClass(),
+                result.getName(),
+                result.getParameters(),
+                result.getReturnType(),
+                result.getAccessFlags(),
+                result.getAnnotations(),
+                result.getHiddenApiRestrictions(),
+                optimized);
+    }
+
+    private static int countInstructions(MethodImplementation implementation) {
+        int count = 0;
+        for (Instruction ignored : implementation.getInstructions()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Nullable
+    public AccessorInliner getAccessorInliner() {
+        return accessorInliner;
+    }
+
+    //窥孔优化删除的所有指令数
+    public int getRemovedInstructions() {
+        return removedInstructions;
+    }
+
+    //方法描述到删除的指令数
+    @Nonnull
+    public Map<String, Integer> getRemovedCounts() {
+        return removedCounts;
+    }
+}
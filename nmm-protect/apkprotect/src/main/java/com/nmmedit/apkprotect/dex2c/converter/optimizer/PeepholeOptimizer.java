@@ -0,0 +1,533 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.BuilderOffsetInstruction;
+import org.jf.dexlib2.builder.BuilderTryBlock;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * 窥孔优化,减少解释执行的指令数
+ * 常量传播及折叠,条件确定的分支改为goto或删除,删除不可达代码,结果不再使用的写入,nop,自身move及跳到下一条的goto
+ * const/move后面紧跟move时直接写入目标寄存器
+ * 只删除或替换不会抛异常的指令(除数确定不为0的除法除外),try范围由MutableMethodImplementation调整
+ */
+public final class PeepholeOptimizer {
+    //每轮根据上一轮结果重新分析,一般几轮就不再变化
+    private static final int MAX_ROUNDS = 16;
+    //不是常量
+    private static final long VARYING = Long.MIN_VALUE;
+
+    private PeepholeOptimizer() {
+    }
+
+    /**
+     * @return 没有优化时返回原方法实现
+     */
+    @Nonnull
+    public static MethodImplementation optimize(@Nonnull MethodImplementation implementation) {
+        final MutableMethodImplementation mutable = new MutableMethodImplementation(implementation);
+        boolean changed = false;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            final Liveness liveness = Liveness.analyze(mutable);
+            if (liveness == null) {
+                break;
+            }
+            final TreeMap<Integer, BuilderInstruction> edits = findEdits(liveness, mutable);
+            if (edits.isEmpty()) {
+                break;
+            }
+            //从后往前修改,前面的索引不变
+            for (Map.Entry<Integer, BuilderInstruction> edit : edits.descendingMap().entrySet()) {
+                if (edit.getValue() == null) {
+                    mutable.removeInstruction(edit.getKey());
+                } else {
+                    mutable.replaceInstruction(edit.getKey(), edit.getValue());
+                }
+            }
+            changed = true;
+        }
+        if (!changed) {
+            return implementation;
+        }
+        //删除指令后可能留下空的try
+        final List<TryBlock<? extends ExceptionHandler>> tryBlocks = new ArrayList<>();
+        for (BuilderTryBlock tryBlock : mutable.getTryBlocks()) {
+            if (tryBlock.getCodeUnitCount() > 0) {
+                tryBlocks.add(tryBlock);
+            }
+        }
+        return new ImmutableMethodImplementation(mutable.getRegisterCount(), mutable.getInstructions(), tryBlocks, null);
+    }
+
+    //索引到替换的指令,值为null表示删除
+    private static TreeMap<Integer, BuilderInstruction> findEdits(Liveness liveness, MutableMethodImplementation mutable) {
+        final int count = liveness.size();
+        final List<Instruction> instructions = liveness.getInstructions();
+        final Map<Integer, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            indexes.put(liveness.getAddress(i), i);
+        }
+        //异常处理入口总是当作可达,避免try指向被删除的代码
+        final boolean[] handlerEntries = new boolean[count];
+        for (TryBlock<? extends ExceptionHandler> tryBlock : mutable.getTryBlocks()) {
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                final Integer index = indexes.get(handler.getHandlerCodeAddress());
+                if (index != null) {
+                    handlerEntries[index] = true;
+                }
+            }
+        }
+        //除了顺序执行以外还能跳转过来的指令
+        final boolean[] targets = handlerEntries.clone();
+        for (int i = 0; i < count; i++) {
+            for (int s : liveness.getSuccessors(i)) {
+                if (s != i + 1) {
+                    targets[s] = true;
+                }
+            }
+        }
+        final long[][] states = propagateConstants(liveness, mutable.getRegisterCount(), handlerEntries);
+
+        final TreeMap<Integer, BuilderInstruction> edits = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            if (edits.containsKey(i)) {
+                continue;
+            }
+            final Instruction instruction = instructions.get(i);
+            final Opcode opcode = instruction.getOpcode();
+            final long[] state = states[i];
+            //数据前面对齐用的nop由MutableMethodImplementation重新添加
+            if (opcode.format.isPayloadFormat) {
+                continue;
+            }
+            if (state == null || opcode == Opcode.NOP) {
+                //不可达代码
+                edits.put(i, null);
+                continue;
+            }
+            final RegisterOperands operands = liveness.getOperands(i);
+            //写入的寄存器后面都不再读取
+            if (isPure(opcode) && !operands.defs.isEmpty() && !operands.defs.intersects(liveness.getLiveOut(i))) {
+                edits.put(i, null);
+                continue;
+            }
+            if (isMove(opcode) && ((TwoRegisterInstruction) instruction).getRegisterA() == ((TwoRegisterInstruction) instruction).getRegisterB()) {
+                edits.put(i, null);
+                continue;
+            }
+            //跳到下一条指令
+            if (instruction instanceof OffsetInstruction && !isSwitch(opcode) && opcode != Opcode.FILL_ARRAY_DATA
+                    && jumpsToNext(liveness, i)) {
+                edits.put(i, null);
+                continue;
+            }
+            if (opcode.format == Format.Format21t || opcode.format == Format.Format22t) {
+                final Boolean taken = evaluateCondition(instruction, state);
+                if (taken != null) {
+                    edits.put(i, taken
+                            ? new BuilderInstruction20t(Opcode.GOTO_16, ((BuilderOffsetInstruction) instruction).getTarget())
+                            : null);
+                }
+                continue;
+            }
+            //结果是常量的运算及move改为const
+            if (!isConst(opcode)) {
+                final long value = constantValue(instruction, state);
+                if (value != VARYING) {
+                    final BuilderInstruction constInsn = newConst(((OneRegisterInstruction) instruction).getRegisterA(), (int) value);
+                    if (constInsn != null && constInsn.getCodeUnits() <= instruction.getCodeUnits()) {
+                        edits.put(i, constInsn);
+                        continue;
+                    }
+                }
+            }
+            //const及move结果只用于紧跟的move,直接写入目标寄存器
+            if (i + 1 < count && !targets[i + 1] && states[i + 1] != null) {
+                final BuilderInstruction coalesced = coalesce(instruction, instructions.get(i + 1), liveness.getLiveOut(i + 1));
+                if (coalesced != null) {
+                    edits.put(i, coalesced);
+                    edits.put(i + 1, null);
+                }
+            }
+        }
+        return edits;
+    }
+
+    private static boolean jumpsToNext(Liveness liveness, int index) {
+        for (int s : liveness.getSuccessors(index)) {
+            if (s != index + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 每条指令入口的寄存器常量值,不可达的指令为null
+     * 分支条件确定时只沿实际走的方向传播
+     */
+    private static long[][] propagateConstants(Liveness liveness, int registerCount, boolean[] handlerEntries) {
+        final int count = liveness.size();
+        final long[][] states = new long[count][];
+        final Deque<Integer> worklist = new ArrayDeque<>();
+        final long[] varying = new long[registerCount];
+        Arrays.fill(varying, VARYING);
+        if (count > 0) {
+            states[0] = varying.clone();
+            worklist.add(0);
+        }
+        for (int i = 0; i < count; i++) {
+            if (handlerEntries[i] && states[i] == null) {
+                states[i] = varying.clone();
+                worklist.add(i);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            final int i = worklist.poll();
+            final Instruction instruction = liveness.getInstructions().get(i);
+            final long[] state = states[i].clone();
+            final long value = constantValue(instruction, state);
+            final BitSet defs = liveness.getOperands(i).defs;
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                state[d] = VARYING;
+            }
+            if (value != VARYING) {
+                state[((OneRegisterInstruction) instruction).getRegisterA()] = value;
+            }
+            final int[] successors = liveness.getSuccessors(i);
+            final Boolean taken = evaluateCondition(instruction, states[i]);
+            for (int s : successors) {
+                //条件确定时跳过另一个方向,跳转目标就是下一条时两个方向一样
+                if (taken != null && successors.length == 2 && (s == i + 1) == taken) {
+                    continue;
+                }
+                merge(states, s, state, worklist);
+            }
+            //异常处理入口一开始就是全部不确定,不需要合并
+        }
+        return states;
+    }
+
+    private static void merge(long[][] states, int index, long[] state, Deque<Integer> worklist) {
+        final long[] target = states[index];
+        if (target == null) {
+            states[index] = state.clone();
+            worklist.add(index);
+            return;
+        }
+        boolean changed = false;
+        for (int r = 0; r < target.length; r++) {
+            if (target[r] != state[r] && target[r] != VARYING) {
+                target[r] = VARYING;
+                changed = true;
+            }
+        }
+        if (changed) {
+            worklist.add(index);
+        }
+    }
+
+    //返回分支是否跳转,条件不确定返回null
+    private static Boolean evaluateCondition(Instruction instruction, long[] state) {
+        final Opcode opcode = instruction.getOpcode();
+        final long a;
+        final long b;
+        if (opcode.format == Format.Format21t) {
+            a = state[((OneRegisterInstruction) instruction).getRegisterA()];
+            b = 0;
+        } else if (opcode.format == Format.Format22t) {
+            a = state[((TwoRegisterInstruction) instruction).getRegisterA()];
+            b = state[((TwoRegisterInstruction) instruction).getRegisterB()];
+        } else {
+            return null;
+        }
+        if (a == VARYING || b == VARYING) {
+            return null;
+        }
+        switch (opcode) {
+            case IF_EQ:
+            case IF_EQZ:
+                return a == b;
+            case IF_NE:
+            case IF_NEZ:
+                return a != b;
+            case IF_LT:
+            case IF_LTZ:
+                return a < b;
+            case IF_GE:
+            case IF_GEZ:
+                return a >= b;
+            case IF_GT:
+            case IF_GTZ:
+                return a > b;
+            case IF_LE:
+            case IF_LEZ:
+                return a <= b;
+            default:
+                return null;
+        }
+    }
+
+    //指令写入的int常量,不是常量返回VARYING
+    private static long constantValue(Instruction instruction, long[] state) {
+        final Opcode opcode = instruction.getOpcode();
+        switch (opcode) {
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+                return ((NarrowLiteralInstruction) instruction).getNarrowLiteral();
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+                return state[((TwoRegisterInstruction) instruction).getRegisterB()];
+            case NEG_INT:
+            case NOT_INT:
+            case INT_TO_BYTE:
+            case INT_TO_CHAR:
+            case INT_TO_SHORT: {
+                final long b = state[((TwoRegisterInstruction) instruction).getRegisterB()];
+                return b == VARYING ? VARYING : unary(opcode, (int) b);
+            }
+            default:
+                break;
+        }
+        //add-int, add-int/2addr, add-int/lit8, rsub-int等
+        final String name = opcode.name;
+        final int dash = name.indexOf("-int");
+        if (dash < 0 || name.contains("-to-")) {
+            return VARYING;
+        }
+        final long a;
+        final long b;
+        switch (opcode.format) {
+            case Format23x: {
+                final ThreeRegisterInstruction insn = (ThreeRegisterInstruction) instruction;
+                a = state[insn.getRegisterB()];
+                b = state[insn.getRegisterC()];
+                break;
+            }
+            case Format12x: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                a = state[insn.getRegisterA()];
+                b = state[insn.getRegisterB()];
+                break;
+            }
+            case Format22s:
+            case Format22b: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                a = state[insn.getRegisterB()];
+                b = ((NarrowLiteralInstruction) instruction).getNarrowLiteral();
+                break;
+            }
+            default:
+                return VARYING;
+        }
+        if (a == VARYING || b == VARYING) {
+            return VARYING;
+        }
+        return binary(name.substring(0, dash), (int) a, (int) b);
+    }
+
+    private static long unary(Opcode opcode, int value) {
+        switch (opcode) {
+            case NEG_INT:
+                return -value;
+            case NOT_INT:
+                return ~value;
+            case INT_TO_BYTE:
+                return (byte) value;
+            case INT_TO_CHAR:
+                return (char) value;
+            case INT_TO_SHORT:
+                return (short) value;
+            default:
+                return VARYING;
+        }
+    }
+
+    //int运算,除数为0时会抛异常,不能折叠
+    private static long binary(String op, int a, int b) {
+        switch (op) {
+            case "add":
+                return a + b;
+            case "sub":
+                return a - b;
+            case "rsub":
+                return b - a;
+            case "mul":
+                return a * b;
+            case "div":
+                return b == 0 ? VARYING : a / b;
+            case "rem":
+                return b == 0 ? VARYING : a % b;
+            case "and":
+                return a & b;
+            case "or":
+                return a | b;
+            case "xor":
+                return a ^ b;
+            case "shl":
+                return a << b;
+            case "shr":
+                return a >> b;
+            case "ushr":
+                return a >>> b;
+            default:
+                return VARYING;
+        }
+    }
+
+    /**
+     * const vA, #; move vB, vA 或 move vA, vC; move vB, vA,vA后面不再使用时合并为一条
+     */
+    private static BuilderInstruction coalesce(Instruction first, Instruction second, BitSet liveOut) {
+        final Opcode opcode = first.getOpcode();
+        final Opcode moveOpcode = second.getOpcode();
+        if (!isMove(moveOpcode) || !(first instanceof OneRegisterInstruction)) {
+            return null;
+        }
+        final boolean wide = moveOpcode.setsWideRegister();
+        final int a = ((OneRegisterInstruction) first).getRegisterA();
+        final TwoRegisterInstruction move = (TwoRegisterInstruction) second;
+        final int dest = move.getRegisterA();
+        if (move.getRegisterB() != a || dest == a || liveOut.get(a) || wide && liveOut.get(a + 1)) {
+            return null;
+        }
+        final BuilderInstruction replacement;
+        if (isConst(opcode) && opcode.setsWideRegister() == wide) {
+            if (wide) {
+                replacement = newConstWide(dest, ((WideLiteralInstruction) first).getWideLiteral());
+            } else {
+                replacement = newConst(dest, ((NarrowLiteralInstruction) first).getNarrowLiteral());
+            }
+        } else if (family(opcode) == family(moveOpcode)) {
+            final int source = ((TwoRegisterInstruction) first).getRegisterB();
+            //宽寄存器重叠的move不处理
+            if (wide && Math.abs(dest - source) == 1) {
+                return null;
+            }
+            replacement = newMove(family(opcode), dest, source);
+        } else {
+            return null;
+        }
+        if (replacement == null || replacement.getCodeUnits() > first.getCodeUnits() + second.getCodeUnits()) {
+            return null;
+        }
+        return replacement;
+    }
+
+    //不会抛异常也没有其他作用,只写入寄存器的指令
+    private static boolean isPure(Opcode opcode) {
+        return opcode.setsRegister() && !opcode.canThrow()
+                && opcode != Opcode.MOVE_EXCEPTION
+                && opcode != Opcode.MOVE_RESULT
+                && opcode != Opcode.MOVE_RESULT_WIDE
+                && opcode != Opcode.MOVE_RESULT_OBJECT;
+    }
+
+    private static boolean isConst(Opcode opcode) {
+        switch (opcode) {
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+            case CONST_WIDE_16:
+            case CONST_WIDE_32:
+            case CONST_WIDE:
+            case CONST_WIDE_HIGH16:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isMove(Opcode opcode) {
+        return family(opcode) != null;
+    }
+
+    private static boolean isSwitch(Opcode opcode) {
+        return opcode == Opcode.PACKED_SWITCH || opcode == Opcode.SPARSE_SWITCH;
+    }
+
+    //move指令的类型,不是move返回null
+    private static Opcode family(Opcode opcode) {
+        switch (opcode) {
+            case MOVE:
+            case MOVE_FROM16:
+            case MOVE_16:
+                return Opcode.MOVE;
+            case MOVE_WIDE:
+            case MOVE_WIDE_FROM16:
+            case MOVE_WIDE_16:
+                return Opcode.MOVE_WIDE;
+            case MOVE_OBJECT:
+            case MOVE_OBJECT_FROM16:
+            case MOVE_OBJECT_16:
+                return Opcode.MOVE_OBJECT;
+            default:
+                return null;
+        }
+    }
+
+    //根据寄存器及常量大小选择最短的指令,寄存器超出范围返回null
+    private static BuilderInstruction newConst(int register, int value) {
+        if (register <= 0xf && value >= -8 && value <= 7) {
+            return new BuilderInstruction11n(Opcode.CONST_4, register, value);
+        }
+        if (register > 0xff) {
+            return null;
+        }
+        if (value == (short) value) {
+            return new BuilderInstruction21s(Opcode.CONST_16, register, value);
+        }
+        if ((value & 0xffff) == 0) {
+            return new BuilderInstruction21ih(Opcode.CONST_HIGH16, register, value);
+        }
+        return new BuilderInstruction31i(Opcode.CONST, register, value);
+    }
+
+    private static BuilderInstruction newConstWide(int register, long value) {
+        if (register > 0xff) {
+            return null;
+        }
+        if (value == (short) value) {
+            return new BuilderInstruction21s(Opcode.CONST_WIDE_16, register, (int) value);
+        }
+        if (value == (int) value) {
+            return new BuilderInstruction31i(Opcode.CONST_WIDE_32, register, (int) value);
+        }
+        if ((value & 0xffffffffffffL) == 0) {
+            return new BuilderInstruction21lh(Opcode.CONST_WIDE_HIGH16, register, value);
+        }
+        return new BuilderInstruction51l(Opcode.CONST_WIDE, register, value);
+    }
+
+    private static BuilderInstruction newMove(Opcode family, int dest, int source) {
+        if (dest <= 0xf && source <= 0xf) {
+            return new BuilderInstruction12x(family, dest, source);
+        }
+        if (dest <= 0xff) {
+            final Opcode opcode = family == Opcode.MOVE ? Opcode.MOVE_FROM16
+                    : family == Opcode.MOVE_WIDE ? Opcode.MOVE_WIDE_FROM16 : Opcode.MOVE_OBJECT_FROM16;
+            return new BuilderInstruction22x(opcode, dest, source);
+        }
+        final Opcode opcode = family == Opcode.MOVE ? Opcode.MOVE_16
+                : family == Opcode.MOVE_WIDE ? Opcode.MOVE_WIDE_16 : Opcode.MOVE_OBJECT_16;
+        return new BuilderInstruction32x(opcode, dest, source);
+    }
+}
@@ -0,0 +1,295 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.*;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.*;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * 根据寄存器活跃范围重新编号,生命周期不重叠的寄存器共用一个编号,减少寄存器数量
+ * 寄存器少了jni函数可以直接使用栈内存,解释器初始化及标记的寄存器也更少
+ * 只改寄存器编号,指令格式及偏移都不变,异常表不需要修改
+ * 参数仍然在最后的寄存器里,宽寄存器及range指令的寄存器保持连续
+ */
+public final class RegisterAllocator {
+
+    private RegisterAllocator() {
+    }
+
+    /**
+     * @param parameterRegisterCount 参数占用的寄存器数量,包括this
+     * @return 不能减少寄存器时返回原方法实现
+     */
+    @Nonnull
+    public static MethodImplementation allocate(@Nonnull MethodImplementation implementation, int parameterRegisterCount) {
+        final int registerCount = implementation.getRegisterCount();
+        final int firstParameter = registerCount - parameterRegisterCount;
+        if (firstParameter <= 1) {
+            return implementation;
+        }
+        final Liveness liveness = Liveness.analyze(implementation);
+        if (liveness == null) {
+            return implementation;
+        }
+        final int[] map = allocate(liveness, registerCount, firstParameter);
+        if (map == null) {
+            return implementation;
+        }
+        int newCount = 0;
+        for (int register : map) {
+            newCount = Math.max(newCount, register + 1);
+        }
+        if (newCount >= registerCount) {
+            return implementation;
+        }
+        final List<Instruction> instructions = new ArrayList<>(liveness.size());
+        for (Instruction instruction : liveness.getInstructions()) {
+            instructions.add(rewrite(instruction, map));
+        }
+        return new ImmutableMethodImplementation(newCount, instructions, implementation.getTryBlocks(), null);
+    }
+
+    //返回旧寄存器到新寄存器的映射,失败返回null
+    private static int[] allocate(Liveness liveness, int registerCount, int firstParameter) {
+        //相邻两个寄存器是否必须保持连续
+        final boolean[] linked = new boolean[registerCount];
+        final int[] limits = new int[registerCount];
+        final boolean[] used = new boolean[registerCount];
+        Arrays.fill(limits, 0xffff);
+        for (int i = 0; i < liveness.size(); i++) {
+            final RegisterOperands operands = liveness.getOperands(i);
+            for (int[] range : operands.linked) {
+                if (range[1] >= registerCount) {
+                    return null;
+                }
+                for (int r = range[0]; r < range[1]; r++) {
+                    linked[r] = true;
+                }
+            }
+            for (int[] limit : operands.limits) {
+                if (limit[0] >= registerCount) {
+                    return null;
+                }
+                limits[limit[0]] = Math.min(limits[limit[0]], limit[1]);
+                used[limit[0]] = true;
+            }
+        }
+        //参数不能和其他寄存器连在一起
+        if (linked[firstParameter - 1]) {
+            return null;
+        }
+
+        //寄存器冲突,写入的寄存器和写入后仍然活跃的寄存器不能共用
+        final BitSet[] interference = new BitSet[registerCount];
+        for (int r = 0; r < registerCount; r++) {
+            interference[r] = new BitSet();
+        }
+        for (int i = 0; i < liveness.size(); i++) {
+            final BitSet defs = liveness.getOperands(i).defs;
+            final BitSet out = liveness.getLiveOut(i);
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                for (int r = out.nextSetBit(0); r >= 0; r = out.nextSetBit(r + 1)) {
+                    if (r != d) {
+                        interference[d].set(r);
+                        interference[r].set(d);
+                    }
+                }
+            }
+        }
+
+        //连续的寄存器组成一块,整块分配
+        final List<int[]> blocks = new ArrayList<>();
+        final int[] blockOf = new int[registerCount];
+        Arrays.fill(blockOf, -1);
+        for (int r = 0; r < firstParameter; r++) {
+            if (!used[r] && !(r > 0 && linked[r - 1])) {
+                continue;
+            }
+            if (r > 0 && linked[r - 1] && blockOf[r - 1] >= 0) {
+                blocks.get(blockOf[r - 1])[1] = r;
+            } else {
+                blocks.add(new int[]{r, r});
+            }
+            blockOf[r] = blocks.size() - 1;
+        }
+        final int blockCount = blocks.size();
+        final int[] maxBase = new int[blockCount];
+        final BitSet[] conflicts = new BitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            final int[] block = blocks.get(b);
+            int max = Integer.MAX_VALUE;
+            conflicts[b] = new BitSet();
+            for (int r = block[0]; r <= block[1]; r++) {
+                max = Math.min(max, limits[r] - (r - block[0]));
+                final BitSet rc = interference[r];
+                for (int o = rc.nextSetBit(0); o >= 0 && o < firstParameter; o = rc.nextSetBit(o + 1)) {
+                    if (blockOf[o] >= 0 && blockOf[o] != b) {
+                        conflicts[b].set(blockOf[o]);
+                    }
+                }
+            }
+            maxBase[b] = max;
+        }
+
+        //编码限制紧的先分配,再按大小及原顺序
+        final Integer[] order = new Integer[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (x, y) -> {
+            if (maxBase[x] != maxBase[y]) {
+                return Integer.compare(maxBase[x], maxBase[y]);
+            }
+            final int sx = blocks.get(x)[1] - blocks.get(x)[0];
+            final int sy = blocks.get(y)[1] - blocks.get(y)[0];
+            if (sx != sy) {
+                return Integer.compare(sy, sx);
+            }
+            return Integer.compare(blocks.get(x)[0], blocks.get(y)[0]);
+        });
+        final int[] bases = new int[blockCount];
+        Arrays.fill(bases, -1);
+        int localCount = 0;
+        for (int b : order) {
+            final int size = blocks.get(b)[1] - blocks.get(b)[0] + 1;
+            int base = 0;
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                final BitSet bc = conflicts[b];
+                for (int o = bc.nextSetBit(0); o >= 0; o = bc.nextSetBit(o + 1)) {
+                    if (bases[o] < 0) {
+                        continue;
+                    }
+                    final int otherEnd = bases[o] + blocks.get(o)[1] - blocks.get(o)[0] + 1;
+                    if (base < otherEnd && bases[o] < base + size) {
+                        base = otherEnd;
+                        moved = true;
+                    }
+                }
+            }
+            if (base > maxBase[b]) {
+                return null;
+            }
+            bases[b] = base;
+            localCount = Math.max(localCount, base + size);
+        }
+        if (localCount > firstParameter) {
+            return null;
+        }
+
+        final int[] map = new int[registerCount];
+        for (int r = 0; r < firstParameter; r++) {
+            map[r] = blockOf[r] < 0 ? 0 : bases[blockOf[r]] + r - blocks.get(blockOf[r])[0];
+        }
+        //参数紧跟在局部寄存器后面,编号只会变小
+        for (int r = firstParameter; r < registerCount; r++) {
+            map[r] = localCount + r - firstParameter;
+        }
+        return map;
+    }
+
+    private static Instruction rewrite(Instruction instruction, int[] map) {
+        final Opcode opcode = instruction.getOpcode();
+        switch (opcode.format) {
+            case Format11x:
+                return new ImmutableInstruction11x(opcode, map[((Instruction11x) instruction).getRegisterA()]);
+            case Format11n: {
+                final Instruction11n insn = (Instruction11n) instruction;
+                return new ImmutableInstruction11n(opcode, map[insn.getRegisterA()], insn.getNarrowLiteral());
+            }
+            case Format21s: {
+                final Instruction21s insn = (Instruction21s) instruction;
+                return new ImmutableInstruction21s(opcode, map[insn.getRegisterA()], insn.getNarrowLiteral());
+            }
+            case Format21ih: {
+                final Instruction21ih insn = (Instruction21ih) instruction;
+                return new ImmutableInstruction21ih(opcode, map[insn.getRegisterA()], insn.getNarrowLiteral());
+            }
+            case Format21lh: {
+                final Instruction21lh insn = (Instruction21lh) instruction;
+                return new ImmutableInstruction21lh(opcode, map[insn.getRegisterA()], insn.getWideLiteral());
+            }
+            case Format31i: {
+                final Instruction31i insn = (Instruction31i) instruction;
+                return new ImmutableInstruction31i(opcode, map[insn.getRegisterA()], insn.getNarrowLiteral());
+            }
+            case Format51l: {
+                final Instruction51l insn = (Instruction51l) instruction;
+                return new ImmutableInstruction51l(opcode, map[insn.getRegisterA()], insn.getWideLiteral());
+            }
+            case Format21c: {
+                final Instruction21c insn = (Instruction21c) instruction;
+                return new ImmutableInstruction21c(opcode, map[insn.getRegisterA()], insn.getReference());
+            }
+            case Format31c: {
+                final Instruction31c insn = (Instruction31c) instruction;
+                return new ImmutableInstruction31c(opcode, map[insn.getRegisterA()], insn.getReference());
+            }
+            case Format21t: {
+                final Instruction21t insn = (Instruction21t) instruction;
+                return new ImmutableInstruction21t(opcode, map[insn.getRegisterA()], insn.getCodeOffset());
+            }
+            case Format31t: {
+                final Instruction31t insn = (Instruction31t) instruction;
+                return new ImmutableInstruction31t(opcode, map[insn.getRegisterA()], insn.getCodeOffset());
+            }
+            case Format22t: {
+                final Instruction22t insn = (Instruction22t) instruction;
+                return new ImmutableInstruction22t(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()], insn.getCodeOffset());
+            }
+            case Format12x: {
+                final Instruction12x insn = (Instruction12x) instruction;
+                return new ImmutableInstruction12x(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()]);
+            }
+            case Format22x: {
+                final Instruction22x insn = (Instruction22x) instruction;
+                return new ImmutableInstruction22x(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()]);
+            }
+            case Format32x: {
+                final Instruction32x insn = (Instruction32x) instruction;
+                return new ImmutableInstruction32x(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()]);
+            }
+            case Format22b: {
+                final Instruction22b insn = (Instruction22b) instruction;
+                return new ImmutableInstruction22b(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()], insn.getNarrowLiteral());
+            }
+            case Format22s: {
+                final Instruction22s insn = (Instruction22s) instruction;
+                return new ImmutableInstruction22s(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()], insn.getNarrowLiteral());
+            }
+            case Format22c: {
+                final Instruction22c insn = (Instruction22c) instruction;
+                return new ImmutableInstruction22c(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()], insn.getReference());
+            }
+            case Format23x: {
+                final Instruction23x insn = (Instruction23x) instruction;
+                return new ImmutableInstruction23x(opcode, map[insn.getRegisterA()], map[insn.getRegisterB()], map[insn.getRegisterC()]);
+            }
+            case Format35c: {
+                final Instruction35c insn = (Instruction35c) instruction;
+                final int count = insn.getRegisterCount();
+                return new ImmutableInstruction35c(opcode, count,
+                        count > 0 ? map[insn.getRegisterC()] : 0,
+                        count > 1 ? map[insn.getRegisterD()] : 0,
+                        count > 2 ? map[insn.getRegisterE()] : 0,
+                        count > 3 ? map[insn.getRegisterF()] : 0,
+                        count > 4 ? map[insn.getRegisterG()] : 0,
+                        insn.getReference());
+            }
+            case Format3rc: {
+                final Instruction3rc insn = (Instruction3rc) instruction;
+                final int count = insn.getRegisterCount();
+                return new ImmutableInstruction3rc(opcode, count > 0 ? map[insn.getStartRegister()] : 0, count, insn.getReference());
+            }
+            default:
+                //没有寄存器的指令
+                return instruction;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.nmmedit.apkprotect.dex2c.converter.optimizer;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 指令的寄存器操作数,包括读写,是否宽寄存器及编码允许的最大寄存器号
+ * 宽寄存器占用连续两个寄存器,range指令的寄存器也必须连续,重新分配时不能拆开
+ */
+public final class RegisterOperands {
+    private static final RegisterOperands NONE = new RegisterOperands();
+
+    //读写的寄存器,宽寄存器包含高位
+    final BitSet uses = new BitSet();
+    final BitSet defs = new BitSet();
+    //每个出现的寄存器,它在指令编码里允许的最大值,及占用的寄存器数量
+    final List<int[]> limits = new ArrayList<>(4);
+    //必须保持连续的寄存器区间[lo, hi]
+    final List<int[]> linked = new ArrayList<>(2);
+
+    private RegisterOperands() {
+    }
+
+    public BitSet getUses() {
+        return uses;
+    }
+
+    public BitSet getDefs() {
+        return defs;
+    }
+
+    //第index个操作数是否宽寄存器
+    public boolean isWide(int index) {
+        return limits.get(index)[2] == 2;
+    }
+
+    //指令编码里的寄存器,按操作数顺序
+    public int[] getRegisters() {
+        final int[] registers = new int[limits.size()];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = limits.get(i)[0];
+        }
+        return registers;
+    }
+
+    private void add(int register, boolean use, boolean def, boolean wide, int limit) {
+        final int count = wide ? 2 : 1;
+        if (use) {
+            uses.set(register, register + count);
+        }
+        if (def) {
+            defs.set(register, register + count);
+        }
+        limits.add(new int[]{register, limit, count});
+        if (wide) {
+            linked.add(new int[]{register, register + 1});
+        }
+    }
+
+    /**
+     * @return 不支持的指令返回null
+     */
+    @Nullable
+    public static RegisterOperands of(Instruction instruction) {
+        final Opcode opcode = instruction.getOpcode();
+        final String name = opcode.name;
+        final RegisterOperands operands = new RegisterOperands();
+        switch (opcode.format) {
+            case Format10t:
+            case Format10x:
+            case Format20t:
+            case Format30t:
+            case Format20bc:
+            case ArrayPayload:
+            case PackedSwitchPayload:
+            case SparseSwitchPayload:
+                return NONE;
+            case Format11x: {
+                final int a = ((OneRegisterInstruction) instruction).getRegisterA();
+                final boolean def = opcode.setsRegister();
+                operands.add(a, !def, def, name.contains("wide"), 0xff);
+                return operands;
+            }
+            case Format11n:
+            case Format21s:
+            case Format21ih:
+            case Format21lh:
+            case Format31i:
+            case Format31c:
+            case Format51l: {
+                final int a = ((OneRegisterInstruction) instruction).getRegisterA();
+                operands.add(a, false, true, opcode.setsWideRegister(), opcode.format == Format.Format11n ? 0xf : 0xff);
+                return operands;
+            }
+            case Format21c: {
+                final int a = ((OneRegisterInstruction) instruction).getRegisterA();
+                //check-cast读写同一个寄存器
+                final boolean def = opcode.setsRegister();
+                final boolean use = !def || opcode == Opcode.CHECK_CAST;
+                operands.add(a, use, def, opcode.setsWideRegister() || name.equals("sput-wide"), 0xff);
+                return operands;
+            }
+            case Format21t:
+            case Format31t:
+                operands.add(((OneRegisterInstruction) instruction).getRegisterA(), true, false, false, 0xff);
+                return operands;
+            case Format22t: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                operands.add(insn.getRegisterA(), true, false, false, 0xf);
+                operands.add(insn.getRegisterB(), true, false, false, 0xf);
+                return operands;
+            }
+            case Format12x: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                if (name.endsWith("/2addr")) {
+                    final boolean wide = isWideArithmetic(name);
+                    operands.add(insn.getRegisterA(), true, true, wide, 0xf);
+                    operands.add(insn.getRegisterB(), true, false, wide && !isShift(name), 0xf);
+                } else {
+                    operands.add(insn.getRegisterA(), false, true, opcode.setsWideRegister(), 0xf);
+                    operands.add(insn.getRegisterB(), true, false, isWideSource(name), 0xf);
+                }
+                return operands;
+            }
+            case Format22x:
+            case Format32x: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                final boolean wide = opcode.setsWideRegister();
+                operands.add(insn.getRegisterA(), false, true, wide, opcode.format == Format.Format22x ? 0xff : 0xffff);
+                operands.add(insn.getRegisterB(), true, false, wide, 0xffff);
+                return operands;
+            }
+            case Format22b:
+            case Format22s: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                final int limit = opcode.format == Format.Format22b ? 0xff : 0xf;
+                operands.add(insn.getRegisterA(), false, true, false, limit);
+                operands.add(insn.getRegisterB(), true, false, false, limit);
+                return operands;
+            }
+            case Format22c: {
+                final TwoRegisterInstruction insn = (TwoRegisterInstruction) instruction;
+                final boolean def = opcode.setsRegister();
+                operands.add(insn.getRegisterA(), !def, def, name.startsWith("iget-wide") || name.startsWith("iput-wide"), 0xf);
+                operands.add(insn.getRegisterB(), true, false, false, 0xf);
+                return operands;
+            }
+            case Format23x: {
+                final ThreeRegisterInstruction insn = (ThreeRegisterInstruction) instruction;
+                if (name.startsWith("aget") || name.startsWith("aput")) {
+                    final boolean def = name.startsWith("aget");
+                    operands.add(insn.getRegisterA(), !def, def, name.endsWith("-wide"), 0xff);
+                    operands.add(insn.getRegisterB(), true, false, false, 0xff);
+                    operands.add(insn.getRegisterC(), true, false, false, 0xff);
+                } else if (name.startsWith("cmp")) {
+                    final boolean wide = isWideArithmetic(name);
+                    operands.add(insn.getRegisterA(), false, true, false, 0xff);
+                    operands.add(insn.getRegisterB(), true, false, wide, 0xff);
+                    operands.add(insn.getRegisterC(), true, false, wide, 0xff);
+                } else {
+                    final boolean wide = isWideArithmetic(name);
+                    operands.add(insn.getRegisterA(), false, true, wide, 0xff);
+                    operands.add(insn.getRegisterB(), true, false, wide, 0xff);
+                    operands.add(insn.getRegisterC(), true, false, wide && !isShift(name), 0xff);
+                }
+                return operands;
+            }
+            case Format35c:
+                return of35c(operands, (Instruction35c) instruction) ? operands : null;
+            case Format3rc: {
+                final Instruction3rc insn = (Instruction3rc) instruction;
+                final int start = insn.getStartRegister();
+                final int count = insn.getRegisterCount();
+                if (count > 0) {
+                    for (int i = 0; i < count; i++) {
+                        operands.add(start + i, true, false, false, i == 0 ? 0xffff - (count - 1) : 0xffff);
+                    }
+                    operands.linked.add(new int[]{start, start + count - 1});
+                }
+                return operands;
+            }
+            default:
+                //odex指令及invoke-polymorphic等转换器本身也不支持
+                return null;
+        }
+    }
+
+    private static boolean of35c(RegisterOperands operands, Instruction35c insn) {
+        final int count = insn.getRegisterCount();
+        final int[] registers = {insn.getRegisterC(), insn.getRegisterD(), insn.getRegisterE(),
+                insn.getRegisterF(), insn.getRegisterG()};
+        final Opcode opcode = insn.getOpcode();
+        if (opcode.referenceType == ReferenceType.TYPE) {
+            //filled-new-array
+            for (int i = 0; i < count; i++) {
+                operands.add(registers[i], true, false, false, 0xf);
+            }
+            return true;
+        }
+        if (opcode.referenceType != ReferenceType.METHOD) {
+            return false;
+        }
+        //根据方法参数类型确定哪些是宽寄存器
+        final MethodReference method = (MethodReference) insn.getReference();
+        int pos = 0;
+        if (opcode != Opcode.INVOKE_STATIC) {
+            operands.add(registers[pos++], true, false, false, 0xf);
+        }
+        for (CharSequence type : method.getParameterTypes()) {
+            final char c = type.charAt(0);
+            if (c == 'J' || c == 'D') {
+                if (pos + 1 >= count || registers[pos + 1] != registers[pos] + 1) {
+                    return false;
+                }
+                operands.add(registers[pos], true, false, true, 0xf - 1);
+                pos += 2;
+            } else {
+                if (pos >= count) {
+                    return false;
+                }
+                operands.add(registers[pos++], true, false, false, 0xf);
+            }
+        }
+        return pos == count;
+    }
+
+    //long,double运算
+    private static boolean isWideArithmetic(String name) {
+        return name.contains("-long") || name.contains("-double");
+    }
+
+    //移位数量总是int
+    private static boolean isShift(String name) {
+        return name.startsWith("shl-") || name.startsWith("shr-") || name.startsWith("ushr-");
+    }
+
+    //12x格式指令的源寄存器是否宽寄存器
+    private static boolean isWideSource(String name) {
+        if (name.equals("move-wide")) {
+            return true;
+        }
+        final int to = name.indexOf("-to-");
+        if (to > 0) {
+            final String from = name.substring(0, to);
+            return from.equals("long") || from.equals("double");
+        }
+        //neg-long, not-long, neg-double
+        return isWideArithmetic(name);
+    }
+}
@@ -1,31 +1,47 @@
 package com.nmmedit.apkprotect.dex2c.converter.structs;
 
 
+import com.nmmedit.apkprotect.dex2c.converter.FastNativeChecker;
 import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
 import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
 import org.jf.dexlib2.HiddenApiRestriction;
 import org.jf.dexlib2.base.reference.BaseTypeReference;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.util.ReferenceUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 /**
  * 把原本class里除了构造方法和抽象方法及native方法以外所有方法转换为native方法
+ * fastNativeMethods里的方法再加上编译期可见的@FastNative注解,ART调用时不切换线程状态
  */
 
 public class ClassMethodToNative extends BaseTypeReference implements ClassDef {
     private final ClassDef classDef;
     private final ClassAndMethodFilter filter;
+    @Nullable
+    private final Set<String> fastNativeMethods;
 
     public ClassMethodToNative(ClassDef classDef, ClassAndMethodFilter filter) {
+        this(classDef, filter, null);
+    }
+
+    /**
+     * @param fastNativeMethods 需要加@FastNative的方法描述
+     */
+    public ClassMethodToNative(ClassDef classDef, ClassAndMethodFilter filter, @Nullable Set<String> fastNativeMethods) {
         this.classDef = classDef;
         this.filter = filter;
+        this.fastNativeMethods = fastNativeMethods;
     }
 
     @Nonnull
@@ -127,6 +143,8 @@ public class ClassMethodToNative extends BaseTypeReference implements ClassDef {
     //方法转换为native方法
     private Method methodToNative(final Method method) {
         if (filter.acceptMethod(method)) {
+            final boolean fastNative = fastNativeMethods != null
+                    && fastNativeMethods.contains(ReferenceUtil.getMethodDescriptor(method));
 
             return new Method() {
 
@@ -181,6 +199,9 @@ public class ClassMethodToNative extends BaseTypeReference implements ClassDef {
                 @Nonnull
                 @Override
                 public Set<? extends Annotation> getAnnotations() {
+                    if (fastNative) {
+                        return withFastNative(method.getAnnotations());
+                    }
                     return method.getAnnotations();
                 }
 
@@ -202,6 +223,18 @@ public class ClassMethodToNative extends BaseTypeReference implements ClassDef {
         }
     }
 
+    private static Set<Annotation> withFastNative(Set<? extends Annotation> annotations) {
+        final Set<Annotation> set = new HashSet<>();
+        for (Annotation annotation : annotations) {
+            if (!FastNativeChecker.FAST_NATIVE.equals(annotation.getType())) {
+                set.add(annotation);
+            }
+        }
+        //ART只识别编译期可见的注解
+        set.add(new ImmutableAnnotation(AnnotationVisibility.BUILD, FastNativeChecker.FAST_NATIVE, Collections.emptySet()));
+        return set;
+    }
+
     private class MethodIter implements Iterator<Method> {
         private final Iterator<? extends Method> iter;
 
@@ -1,5 +1,6 @@
 package com.nmmedit.apkprotect.dex2c.converter.structs;
 
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.MethodOptimizer;
 import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
 import org.jf.dexlib2.base.reference.BaseTypeReference;
 import org.jf.dexlib2.iface.Annotation;
@@ -22,9 +23,18 @@ public class ClassToSymDex extends BaseTypeReference implements ClassDef {
 
     private final ClassAndMethodFilter filter;
 
+    //不为null时优化方法代码
+    @Nullable
+    private final MethodOptimizer methodOptimizer;
+
     public ClassToSymDex(ClassDef classDef, ClassAndMethodFilter filter) {
+        this(classDef, filter, null);
+    }
+
+    public ClassToSymDex(ClassDef classDef, ClassAndMethodFilter filter, @Nullable MethodOptimizer methodOptimizer) {
         this.classDef = classDef;
         this.filter = filter;
+        this.methodOptimizer = methodOptimizer;
     }
 
     @Nonnull
@@ -107,7 +117,7 @@ public class ClassToSymDex extends BaseTypeReference implements ClassDef {
         ArrayList<Method> newMethods = new ArrayList<>();
         for (Method method : methods) {
             if (filter.acceptMethod(method)) {
-                newMethods.add(method);
+                newMethods.add(methodOptimizer == null ? method : methodOptimizer.optimize(method));
             }
         }
         return newMethods;
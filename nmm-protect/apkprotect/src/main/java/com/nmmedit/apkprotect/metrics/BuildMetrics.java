@@ -0,0 +1,238 @@
+package com.nmmedit.apkprotect.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次apk处理的各阶段统计,同时产生jfr事件,完成后写入json文件
+ * cpu时间及分配内存只统计调用线程,并行处理的部分需要通过{@link Phase#addUsage}加上工作线程的统计
+ */
+public class BuildMetrics {
+    private final String apk;
+    private final long startNanos;
+    private final long startProcessCpuNanos;
+
+    private final List<PhaseRecord> phases = new ArrayList<>();
+    private final List<DexMetrics> dexes = new ArrayList<>();
+
+    public BuildMetrics(@Nonnull String apk) {
+        this.apk = apk;
+        this.startNanos = System.nanoTime();
+        this.startProcessCpuNanos = getProcessCpuNanos();
+    }
+
+    @Nonnull
+    public Phase phase(@Nonnull String name) {
+        return phase(name, null);
+    }
+
+    /**
+     * 开始一个阶段,在finally里调用{@link Phase#close}结束
+     *
+     * @param detail 附加信息,比如abi
+     */
+    @Nonnull
+    public Phase phase(@Nonnull String name, @Nullable String detail) {
+        return new Phase(name, detail);
+    }
+
+    public synchronized void addDexMetrics(@Nonnull DexMetrics metrics) {
+        dexes.add(metrics);
+    }
+
+    private synchronized void addPhase(PhaseRecord record) {
+        phases.add(record);
+    }
+
+    public synchronized void writeJson(@Nonnull File file) throws IOException {
+        final long processCpuNanos = getProcessCpuNanos();
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            writer.write("{\n");
+            writer.write("  \"apk\": " + quote(apk) + ",\n");
+            writer.write("  \"wallMillis\": " + toMillis(System.nanoTime() - startNanos) + ",\n");
+            //守护模式下同时运行的其他任务也会计算在内
+            writer.write("  \"processCpuMillis\": " + toMillis(ThreadUsage.diff(startProcessCpuNanos, processCpuNanos)) + ",\n");
+
+            writer.write("  \"phases\": [");
+            for (int i = 0; i < phases.size(); i++) {
+                final PhaseRecord phase = phases.get(i);
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write("    {\"name\": " + quote(phase.name)
+                        + ", \"detail\": " + quote(phase.detail)
+                        + ", \"wallMillis\": " + toMillis(phase.wallNanos)
+                        + ", \"cpuMillis\": " + toMillis(phase.cpuNanos)
+                        + ", \"allocatedBytes\": " + phase.allocatedBytes
+                        + "}");
+            }
+            writer.write("\n  ],\n");
+
+            writer.write("  \"dexes\": [");
+            for (int i = 0; i < dexes.size(); i++) {
+                final DexMetrics dex = dexes.get(i);
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write("    {\"name\": " + quote(dex.getDexName())
+                        + ", \"classes\": " + dex.getClasses()
+                        + ", \"methods\": " + dex.getMethods()
+                        + ", \"bytecodeBytes\": " + dex.getBytecodeBytes()
+                        + ", \"cSourceBytes\": " + dex.getCSourceBytes()
+                        + ", \"reused\": " + dex.isReused()
+                        + ", \"changedClasses\": " + dex.getChangedClasses()
+                        + ", \"dedupedMethods\": " + dex.getDedupedMethods()
+                        + ", \"dedupedBytes\": " + dex.getDedupedBytes()
+                        + ", \"compactedMethods\": " + dex.getCompactedMethods()
+                        + ", \"stackMethods\": " + dex.getStackMethods()
+                        + ", \"inlinedInvokes\": " + dex.getInlinedInvokes()
+                        + ", \"peepholeRemoved\": " + dex.getPeepholeRemoved()
+                        + ", \"fastNativeMethods\": " + dex.getFastNativeMethods()
+                        + ", \"directMethods\": " + dex.getDirectMethods()
+                        + ", \"intrinsicMethods\": " + dex.getIntrinsicMethods()
+                        + ", \"compressedBlocks\": " + dex.getCompressedBlocks()
+                        + ", \"blockRawBytes\": " + dex.getBlockRawBytes()
+                        + ", \"blockCompressedBytes\": " + dex.getBlockCompressedBytes()
+                        + ", \"wallMillis\": " + toMillis(dex.getWallNanos())
+                        + ", \"cpuMillis\": " + toMillis(dex.getCpuNanos())
+                        + ", \"allocatedBytes\": " + dex.getAllocatedBytes()
+                        + "}");
+            }
+            writer.write("\n  ]\n");
+            writer.write("}\n");
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static long getProcessCpuNanos() {
+        final OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    private static class PhaseRecord {
+        final String name;
+        final String detail;
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+
+        PhaseRecord(String name, String detail, long wallNanos, long cpuNanos, long allocatedBytes) {
+            this.name = name;
+            this.detail = detail;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    public class Phase implements AutoCloseable {
+        private final String name;
+        @Nullable
+        private final String detail;
+        private final long startNanos;
+        private final ThreadUsage startUsage;
+        private final PhaseEvent event;
+
+        //其他工作线程的统计
+        private long extraCpuNanos;
+        private long extraAllocatedBytes;
+        private boolean closed;
+
+        private Phase(String name, @Nullable String detail) {
+            this.name = name;
+            this.detail = detail;
+            this.event = new PhaseEvent();
+            this.event.begin();
+            this.startUsage = ThreadUsage.now();
+            this.startNanos = System.nanoTime();
+        }
+
+        //并行处理时加上工作线程的cpu时间及分配内存
+        public void addUsage(long cpuNanos, long allocatedBytes) {
+            if (cpuNanos > 0) {
+                extraCpuNanos += cpuNanos;
+            }
+            if (allocatedBytes > 0) {
+                extraAllocatedBytes += allocatedBytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final long wallNanos = System.nanoTime() - startNanos;
+            final ThreadUsage endUsage = ThreadUsage.now();
+            long cpuNanos = ThreadUsage.diff(startUsage.cpuNanos, endUsage.cpuNanos);
+            if (cpuNanos >= 0) {
+                cpuNanos += extraCpuNanos;
+            }
+            long allocatedBytes = ThreadUsage.diff(startUsage.allocatedBytes, endUsage.allocatedBytes);
+            if (allocatedBytes >= 0) {
+                allocatedBytes += extraAllocatedBytes;
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.apk = apk;
+                event.phase = name;
+                event.detail = detail;
+                event.cpuTime = cpuNanos;
+                event.allocated = allocatedBytes;
+                event.commit();
+            }
+            addPhase(new PhaseRecord(name, detail, wallNanos, cpuNanos, allocatedBytes));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.nmmedit.apkprotect.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * 单个dex转换为c代码的jfr事件
+ */
+@Name("com.nmmedit.apkprotect.DexConvert")
+@Label("Dex Convert")
+@Category({"nmmp", "Protect"})
+@StackTrace(false)
+class DexConvertEvent extends Event {
+    @Label("Dex")
+    String dex;
+
+    @Label("Classes")
+    int classes;
+
+    @Label("Methods")
+    int methods;
+
+    @Label("Bytecode Size")
+    @DataAmount
+    long bytecodeBytes;
+
+    @Label("C Source Size")
+    @DataAmount
+    long cSourceBytes;
+
+    //增量模式下直接使用上次生成的代码
+    @Label("Reused")
+    boolean reused;
+
+    @Label("Changed Classes")
+    int changedClasses;
+
+    @Label("Deduplicated Methods")
+    int dedupedMethods;
+
+    @Label("Deduplicated Size")
+    @DataAmount
+    long dedupedBytes;
+
+    @Label("Register Compacted Methods")
+    int compactedMethods;
+
+    //寄存器减少后可以使用栈内存的方法
+    @Label("Stack Register Methods")
+    int stackMethods;
+
+    @Label("Inlined Accessor Calls")
+    int inlinedInvokes;
+
+    @Label("Peephole Removed Instructions")
+    int peepholeRemoved;
+
+    @Label("FastNative Methods")
+    int fastNativeMethods;
+
+    @Label("Direct Call Methods")
+    int directMethods;
+
+    @Label("Intrinsic Methods")
+    int intrinsicMethods;
+
+    @Label("Compressed Blocks")
+    int compressedBlocks;
+
+    @Label("Block Raw Size")
+    @DataAmount
+    long blockRawBytes;
+
+    @Label("Block Compressed Size")
+    @DataAmount
+    long blockCompressedBytes;
+
+    @Label("Thread CPU Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long cpuTime;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,237 @@
+package com.nmmedit.apkprotect.metrics;
+
+import javax.annotation.Nonnull;
+
+/**
+ * 单个dex转换统计,在转换线程里创建及结束
+ */
+public class DexMetrics {
+    private final String dexName;
+    private final long startNanos;
+    private final ThreadUsage startUsage;
+    private final DexConvertEvent event;
+
+    private int classes;
+    private int methods;
+    private long bytecodeBytes;
+    private long cSourceBytes;
+    private boolean reused;
+    private int changedClasses;
+    private int dedupedMethods;
+    private long dedupedBytes;
+    private int compactedMethods;
+    private int stackMethods;
+    private int inlinedInvokes;
+    private int peepholeRemoved;
+    private int fastNativeMethods;
+    private int directMethods;
+    private int intrinsicMethods;
+    private int compressedBlocks;
+    private long blockRawBytes;
+    private long blockCompressedBytes;
+
+    private long wallNanos;
+    private long cpuNanos;
+    private long allocatedBytes;
+
+    private DexMetrics(String dexName) {
+        this.dexName = dexName;
+        this.event = new DexConvertEvent();
+        this.event.begin();
+        this.startUsage = ThreadUsage.now();
+        this.startNanos = System.nanoTime();
+    }
+
+    @Nonnull
+    public static DexMetrics begin(@Nonnull String dexName) {
+        return new DexMetrics(dexName);
+    }
+
+    public void setClasses(int classes) {
+        this.classes = classes;
+    }
+
+    //每个转换的方法及其字节码大小
+    public void addMethod(long bytecodeBytes) {
+        this.methods++;
+        this.bytecodeBytes += bytecodeBytes;
+    }
+
+    public void setCSourceBytes(long cSourceBytes) {
+        this.cSourceBytes = cSourceBytes;
+    }
+
+    public void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    //增量模式下需要重新生成代码的class数
+    public void setChangedClasses(int changedClasses) {
+        this.changedClasses = changedClasses;
+    }
+
+    //去重共用函数的方法数及节省的数据大小
+    public void setDeduped(int dedupedMethods, long dedupedBytes) {
+        this.dedupedMethods = dedupedMethods;
+        this.dedupedBytes = dedupedBytes;
+    }
+
+    //寄存器重新分配后寄存器减少的方法数,及因此可以使用栈内存的方法数
+    public void setRegisterCompaction(int compactedMethods, int stackMethods) {
+        this.compactedMethods = compactedMethods;
+        this.stackMethods = stackMethods;
+    }
+
+    //直接读写字段替换掉的getter/setter调用数
+    public void setInlinedInvokes(int inlinedInvokes) {
+        this.inlinedInvokes = inlinedInvokes;
+    }
+
+    //窥孔优化删除的指令数
+    public void setPeepholeRemoved(int peepholeRemoved) {
+        this.peepholeRemoved = peepholeRemoved;
+    }
+
+    //加了@FastNative的方法数
+    public void setFastNativeMethods(int fastNativeMethods) {
+        this.fastNativeMethods = fastNativeMethods;
+    }
+
+    //可以直接调用的方法引用数
+    public void setDirectMethods(int directMethods) {
+        this.directMethods = directMethods;
+    }
+
+    //解释器内部执行的jdk方法引用数
+    public void setIntrinsicMethods(int intrinsicMethods) {
+        this.intrinsicMethods = intrinsicMethods;
+    }
+
+    //压缩字节码的块数及压缩前后大小
+    public void setCompressedBytecode(int compressedBlocks, long blockRawBytes, long blockCompressedBytes) {
+        this.compressedBlocks = compressedBlocks;
+        this.blockRawBytes = blockRawBytes;
+        this.blockCompressedBytes = blockCompressedBytes;
+    }
+
+    public void end() {
+        wallNanos = System.nanoTime() - startNanos;
+        final ThreadUsage endUsage = ThreadUsage.now();
+        cpuNanos = ThreadUsage.diff(startUsage.cpuNanos, endUsage.cpuNanos);
+        allocatedBytes = ThreadUsage.diff(startUsage.allocatedBytes, endUsage.allocatedBytes);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.dex = dexName;
+            event.classes = classes;
+            event.methods = methods;
+            event.bytecodeBytes = bytecodeBytes;
+            event.cSourceBytes = cSourceBytes;
+            event.reused = reused;
+            event.changedClasses = changedClasses;
+            event.dedupedMethods = dedupedMethods;
+            event.dedupedBytes = dedupedBytes;
+            event.compactedMethods = compactedMethods;
+            event.stackMethods = stackMethods;
+            event.inlinedInvokes = inlinedInvokes;
+            event.peepholeRemoved = peepholeRemoved;
+            event.fastNativeMethods = fastNativeMethods;
+            event.directMethods = directMethods;
+            event.intrinsicMethods = intrinsicMethods;
+            event.compressedBlocks = compressedBlocks;
+            event.blockRawBytes = blockRawBytes;
+            event.blockCompressedBytes = blockCompressedBytes;
+            event.cpuTime = cpuNanos;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    public String getDexName() {
+        return dexName;
+    }
+
+    public int getClasses() {
+        return classes;
+    }
+
+    public int getMethods() {
+        return methods;
+    }
+
+    public long getBytecodeBytes() {
+        return bytecodeBytes;
+    }
+
+    public long getCSourceBytes() {
+        return cSourceBytes;
+    }
+
+    public boolean isReused() {
+        return reused;
+    }
+
+    public int getChangedClasses() {
+        return changedClasses;
+    }
+
+    public int getDedupedMethods() {
+        return dedupedMethods;
+    }
+
+    public long getDedupedBytes() {
+        return dedupedBytes;
+    }
+
+    public int getCompactedMethods() {
+        return compactedMethods;
+    }
+
+    public int getStackMethods() {
+        return stackMethods;
+    }
+
+    public int getInlinedInvokes() {
+        return inlinedInvokes;
+    }
+
+    public int getPeepholeRemoved() {
+        return peepholeRemoved;
+    }
+
+    public int getFastNativeMethods() {
+        return fastNativeMethods;
+    }
+
+    public int getDirectMethods() {
+        return directMethods;
+    }
+
+    public int getIntrinsicMethods() {
+        return intrinsicMethods;
+    }
+
+    public int getCompressedBlocks() {
+        return compressedBlocks;
+    }
+
+    public long getBlockRawBytes() {
+        return blockRawBytes;
+    }
+
+    public long getBlockCompressedBytes() {
+        return blockCompressedBytes;
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+}
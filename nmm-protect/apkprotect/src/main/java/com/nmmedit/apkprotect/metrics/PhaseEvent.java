@@ -0,0 +1,30 @@
+package com.nmmedit.apkprotect.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * 处理流程每个阶段的jfr事件,持续时间即为墙钟时间
+ */
+@Name("com.nmmedit.apkprotect.Phase")
+@Label("Protect Phase")
+@Category({"nmmp", "Protect"})
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Apk")
+    String apk;
+
+    @Label("Phase")
+    String phase;
+
+    //abi等附加信息
+    @Label("Detail")
+    String detail;
+
+    @Label("Thread CPU Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long cpuTime;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,42 @@
+package com.nmmedit.apkprotect.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 当前线程cpu时间及分配内存快照,不支持的jvm返回-1
+ * 只统计java线程,cmake等子进程不包含在内
+ */
+public final class ThreadUsage {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    public final long cpuNanos;
+    public final long allocatedBytes;
+
+    private ThreadUsage(long cpuNanos, long allocatedBytes) {
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public static ThreadUsage now() {
+        long cpu = -1;
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            cpu = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        long allocated = -1;
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return new ThreadUsage(cpu, allocated);
+    }
+
+    public static long diff(long start, long end) {
+        if (start < 0 || end < 0) {
+            return -1;
+        }
+        return end - start;
+    }
+}
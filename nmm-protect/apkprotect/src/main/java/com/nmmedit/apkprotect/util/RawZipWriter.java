@@ -0,0 +1,406 @@
+package com.nmmedit.apkprotect.util;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * 生成zip文件,从其他zip复制的文件直接复制压缩后的数据,crc及大小从原zip中央目录读取,
+ * 不需要解压再压缩,只有新加入的文件才需要压缩
+ * 不支持zip64
+ */
+public class RawZipWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    //文件名使用utf-8编码
+    private static final int FLAG_UTF8 = 0x800;
+    //大小和crc写在数据后面
+    private static final int FLAG_DATA_DESCRIPTOR = 0x8;
+
+    private static final int BUF_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final byte[] buf = new byte[BUF_SIZE];
+
+    public RawZipWriter(@Nonnull File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * 从zip文件复制所有符合条件的文件,顺序和原zip一样,忽略目录
+     *
+     * @param zipFile 源zip
+     * @param filter  根据文件名判断是否需要复制
+     * @return 复制的文件数
+     */
+    public int copyEntries(@Nonnull File zipFile, @Nonnull Predicate<String> filter) throws IOException {
+        int count = 0;
+        try (FileChannel in = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            for (CentralEntry entry : readCentralDirectory(in)) {
+                if (entry.name.isEmpty() || entry.name.endsWith("/") || !filter.test(entry.name)) {
+                    continue;
+                }
+                copyEntry(in, entry);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 加入新文件,使用deflate压缩
+     */
+    public void putFile(@Nonnull String name, @Nonnull File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            putStream(name, in);
+        }
+    }
+
+    public void putBytes(@Nonnull String name, @Nonnull byte[] data) throws IOException {
+        putStream(name, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * 先写入文件头,压缩完成后再回写crc及大小,不需要把整个文件放入内存
+     */
+    public void putStream(@Nonnull String name, @Nonnull InputStream in) throws IOException {
+        final CentralEntry entry = new CentralEntry();
+        entry.versionMadeBy = 20;
+        entry.versionNeeded = 20;
+        entry.flags = FLAG_UTF8;
+        entry.method = METHOD_DEFLATED;
+        entry.dosTime = toDosTime(System.currentTimeMillis());
+        entry.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        entry.name = name;
+        entry.extra = new byte[0];
+        entry.comment = new byte[0];
+        addName(name);
+
+        entry.localHeaderOffset = checkOffset(channel.position());
+        writeFully(channel, localHeader(entry));
+
+        final CRC32 crc32 = new CRC32();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final byte[] out = new byte[BUF_SIZE];
+        long size = 0;
+        long compressedSize = 0;
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                crc32.update(buf, 0, len);
+                size += len;
+                deflater.setInput(buf, 0, len);
+                while (!deflater.needsInput()) {
+                    compressedSize += deflate(deflater, out);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressedSize += deflate(deflater, out);
+            }
+        } finally {
+            deflater.end();
+        }
+        entry.crc = crc32.getValue();
+        entry.size = checkOffset(size);
+        entry.compressedSize = checkOffset(compressedSize);
+
+        //回写crc及大小
+        final ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt((int) entry.crc);
+        sizes.putInt((int) entry.compressedSize);
+        sizes.putInt((int) entry.size);
+        sizes.flip();
+        final long end = channel.position();
+        channel.position(entry.localHeaderOffset + 14);
+        writeFully(channel, sizes);
+        channel.position(end);
+
+        entries.add(entry);
+    }
+
+    private int deflate(Deflater deflater, byte[] out) throws IOException {
+        final int n = deflater.deflate(out);
+        if (n > 0) {
+            writeFully(channel, ByteBuffer.wrap(out, 0, n));
+        }
+        return n;
+    }
+
+    //复制原压缩数据,重新生成本地文件头
+    private void copyEntry(FileChannel in, CentralEntry src) throws IOException {
+        addName(src.name);
+        final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, header, src.localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIG) {
+            throw new ZipException("Bad local header: " + src.name);
+        }
+        final long dataOffset = src.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+        final CentralEntry entry = src.copy();
+        //大小已经写在文件头里,不需要数据描述符
+        entry.flags &= ~FLAG_DATA_DESCRIPTOR;
+        entry.localHeaderOffset = checkOffset(channel.position());
+        writeFully(channel, localHeader(entry));
+
+        long position = dataOffset;
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            final long n = in.transferTo(position, remaining, channel);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of zip: " + src.name);
+            }
+            position += n;
+            remaining -= n;
+        }
+        entries.add(entry);
+    }
+
+    private void addName(String name) throws ZipException {
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            final long cdOffset = checkOffset(channel.position());
+            final ByteArrayOutputStream cd = new ByteArrayOutputStream();
+            for (CentralEntry entry : entries) {
+                cd.write(centralHeader(entry));
+            }
+            final byte[] cdBytes = cd.toByteArray();
+            writeFully(channel, ByteBuffer.wrap(cdBytes));
+            if (entries.size() > 0xffff) {
+                throw new ZipException("Too many entries: " + entries.size());
+            }
+
+            final ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIR_SIG);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) entries.size());
+            end.putShort((short) entries.size());
+            end.putInt(cdBytes.length);
+            end.putInt((int) cdOffset);
+            end.putShort((short) 0);
+            end.flip();
+            writeFully(channel, end);
+        } finally {
+            channel.close();
+        }
+    }
+
+    //本地文件头不带扩展数据
+    private static ByteBuffer localHeader(CentralEntry entry) {
+        final ByteBuffer buffer = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.nameBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(LOCAL_HEADER_SIG);
+        buffer.putShort((short) entry.versionNeeded);
+        buffer.putShort((short) entry.flags);
+        buffer.putShort((short) entry.method);
+        buffer.putInt((int) entry.dosTime);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) entry.compressedSize);
+        buffer.putInt((int) entry.size);
+        buffer.putShort((short) entry.nameBytes.length);
+        buffer.putShort((short) 0);
+        buffer.put(entry.nameBytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] centralHeader(CentralEntry entry) {
+        final ByteBuffer buffer = ByteBuffer.allocate(CENTRAL_HEADER_SIZE
+                + entry.nameBytes.length + entry.extra.length + entry.comment.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CENTRAL_HEADER_SIG);
+        buffer.putShort((short) entry.versionMadeBy);
+        buffer.putShort((short) entry.versionNeeded);
+        buffer.putShort((short) entry.flags);
+        buffer.putShort((short) entry.method);
+        buffer.putInt((int) entry.dosTime);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) entry.compressedSize);
+        buffer.putInt((int) entry.size);
+        buffer.putShort((short) entry.nameBytes.length);
+        buffer.putShort((short) entry.extra.length);
+        buffer.putShort((short) entry.comment.length);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) entry.internalAttributes);
+        buffer.putInt((int) entry.externalAttributes);
+        buffer.putInt((int) entry.localHeaderOffset);
+        buffer.put(entry.nameBytes);
+        buffer.put(entry.extra);
+        buffer.put(entry.comment);
+        return buffer.array();
+    }
+
+    //从文件末尾查找中央目录结束标记,然后读取所有中央目录项
+    private static List<CentralEntry> readCentralDirectory(FileChannel in) throws IOException {
+        final long fileSize = in.size();
+        if (fileSize < END_OF_CENTRAL_DIR_SIZE) {
+            throw new ZipException("Not a zip file");
+        }
+        //zip注释最长65535
+        final int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIR_SIZE + 0xffff);
+        final ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, tail, fileSize - tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIR_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+        final int count = tail.getShort(eocd + 10) & 0xffff;
+        final long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        final long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+            throw new ZipException("Zip64 not supported");
+        }
+
+        final ByteBuffer cd = ByteBuffer.allocate((int) cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, cd, cdOffset);
+        final List<CentralEntry> entries = new ArrayList<>(count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (cd.getInt(pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Bad central directory");
+            }
+            final CentralEntry entry = new CentralEntry();
+            entry.versionMadeBy = cd.getShort(pos + 4) & 0xffff;
+            entry.versionNeeded = cd.getShort(pos + 6) & 0xffff;
+            entry.flags = cd.getShort(pos + 8) & 0xffff;
+            entry.method = cd.getShort(pos + 10) & 0xffff;
+            entry.dosTime = cd.getInt(pos + 12) & 0xffffffffL;
+            entry.crc = cd.getInt(pos + 16) & 0xffffffffL;
+            entry.compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+            entry.size = cd.getInt(pos + 24) & 0xffffffffL;
+            final int nameLen = cd.getShort(pos + 28) & 0xffff;
+            final int extraLen = cd.getShort(pos + 30) & 0xffff;
+            final int commentLen = cd.getShort(pos + 32) & 0xffff;
+            entry.internalAttributes = cd.getShort(pos + 36) & 0xffff;
+            entry.externalAttributes = cd.getInt(pos + 38) & 0xffffffffL;
+            entry.localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+            pos += CENTRAL_HEADER_SIZE;
+            entry.nameBytes = new byte[nameLen];
+            cd.position(pos);
+            cd.get(entry.nameBytes);
+            entry.extra = new byte[extraLen];
+            cd.get(entry.extra);
+            entry.comment = new byte[commentLen];
+            cd.get(entry.comment);
+            pos += nameLen + extraLen + commentLen;
+            //没有utf-8标记时一般也是ascii,apk里都按utf-8处理
+            entry.name = new String(entry.nameBytes, StandardCharsets.UTF_8);
+            if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED) {
+                throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static long checkOffset(long value) throws ZipException {
+        if (value >= 0xffffffffL) {
+            throw new ZipException("Zip64 not supported");
+        }
+        return value;
+    }
+
+    private static long toDosTime(long time) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5
+                | c.get(Calendar.SECOND) >> 1;
+    }
+
+    //中央目录里的文件信息
+    private static class CentralEntry {
+        int versionMadeBy;
+        int versionNeeded;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        int internalAttributes;
+        long externalAttributes;
+        long localHeaderOffset;
+        byte[] nameBytes;
+        byte[] extra;
+        byte[] comment;
+        String name;
+
+        CentralEntry copy() {
+            final CentralEntry entry = new CentralEntry();
+            entry.versionMadeBy = versionMadeBy;
+            entry.versionNeeded = versionNeeded;
+            entry.flags = flags;
+            entry.method = method;
+            entry.dosTime = dosTime;
+            entry.crc = crc;
+            entry.compressedSize = compressedSize;
+            entry.size = size;
+            entry.internalAttributes = internalAttributes;
+            entry.externalAttributes = externalAttributes;
+            entry.localHeaderOffset = localHeaderOffset;
+            entry.nameBytes = nameBytes;
+            entry.extra = extra;
+            entry.comment = comment;
+            entry.name = name;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.nmmedit.apkprotect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NativeLibCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testKey() throws IOException {
+        final File src = tmp.newFolder("dex2c");
+        writeFile(new File(src, "generated/a_native_functions.c"), 10);
+        final File script = writeFile(new File(tmp.getRoot(), "build.sh"), 5);
+
+        final BuildNativeLib.CMakeOptions arm = options("/out1", "armeabi-v7a");
+        final byte[] digest = NativeLibCache.digestSources(src, script);
+        final String key = NativeLibCache.computeKey(digest, arm);
+        //输出目录不影响key
+        assertEquals(key, NativeLibCache.computeKey(digest, options("/out2", "armeabi-v7a")));
+        assertNotEquals(key, NativeLibCache.computeKey(digest, options("/out1", "x86")));
+
+        //源码改变key也改变
+        writeFile(new File(src, "generated/a_native_functions.c"), 11);
+        assertNotEquals(key, NativeLibCache.computeKey(NativeLibCache.digestSources(src, script), arm));
+    }
+
+    @Test
+    public void testLru() throws IOException {
+        final NativeLibCache cache = new NativeLibCache(tmp.newFolder("cache"), 250);
+        final File out = tmp.newFolder("out");
+        final List<File> libs = Collections.singletonList(writeFile(new File(out, "libnmmp.so"), 100));
+
+        cache.put("a", libs);
+        cache.put("b", libs);
+        //让a成为最近使用
+        new File(cache.getCacheDir(), "b").setLastModified(1000);
+        new File(cache.getCacheDir(), "a").setLastModified(2000);
+        //超出容量,删除最久没使用的b
+        cache.put("c", libs);
+
+        final List<File> restored = Collections.singletonList(new File(tmp.newFolder("restore"), "libnmmp.so"));
+        assertNull(cache.get("b", restored));
+        assertNotNull(cache.get("c", restored));
+        assertNotNull(cache.get("a", restored));
+        assertArrayEquals(Files.readAllBytes(libs.get(0).toPath()), Files.readAllBytes(restored.get(0).toPath()));
+
+        //缺少文件的缓存不能使用
+        assertNull(cache.get("a", Arrays.asList(restored.get(0), new File(out, "libnmmvm.so"))));
+    }
+
+    @Test
+    public void testPutKeepsOtherTempDir() throws IOException {
+        final File cacheDir = tmp.newFolder("cache");
+        final File out = tmp.newFolder("out");
+        final List<File> libs = Collections.singletonList(writeFile(new File(out, "libnmmp.so"), 100));
+        //另一个进程正在写入同一个缓存
+        final File otherTemp = writeFile(new File(cacheDir, ".tmp-a/libnmmp.so"), 50);
+
+        final NativeLibCache cache = new NativeLibCache(cacheDir, 1024);
+        cache.put("a", libs);
+        assertEquals(50, otherTemp.length());
+        assertEquals(100, new File(cacheDir, "a/libnmmp.so").length());
+
+        //缓存已经存在时,改名失败也不报错
+        cache.put("a", libs);
+        assertEquals(100, new File(cacheDir, "a/libnmmp.so").length());
+    }
+
+    @Test
+    public void testEvictWhileGet() throws IOException {
+        final File cacheDir = tmp.newFolder("cache");
+        final File out = tmp.newFolder("out");
+        final List<File> libs = Arrays.asList(writeFile(new File(out, "libnmmp.so"), 100),
+                writeFile(new File(out, "libnmmvm.so"), 100));
+        //模拟另一个进程,容量只够放一个缓存
+        final NativeLibCache other = new NativeLibCache(cacheDir, 200);
+        other.put("a", libs);
+        new File(cacheDir, "a").setLastModified(1000);
+
+        final NativeLibCache cache = new NativeLibCache(cacheDir, 200) {
+            @Override
+            void beforeCopy(File lib) throws IOException {
+                //复制完第一个so后,另一个进程放入新缓存并删除a
+                if (lib.getName().equals("libnmmvm.so")) {
+                    other.put("b", libs);
+                }
+            }
+        };
+        final File restore = tmp.newFolder("restore");
+        assertNull(cache.get("a", Arrays.asList(new File(restore, "libnmmp.so"), new File(restore, "libnmmvm.so"))));
+        assertFalse(new File(cacheDir, "a").exists());
+        //删除时的临时目录也要清理
+        final File[] entries = cacheDir.listFiles();
+        assertEquals(1, entries.length);
+        assertEquals("b", entries[0].getName());
+    }
+
+    private static BuildNativeLib.CMakeOptions options(String projectHome, String abi) {
+        return new BuildNativeLib.CMakeOptions("/cmake", "/sdk", "/ndk", 21, projectHome,
+                BuildNativeLib.CMakeOptions.BuildType.RELEASE, abi);
+    }
+
+    private static File writeFile(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            final byte[] bytes = new byte[size];
+            Arrays.fill(bytes, (byte) size);
+            out.write(bytes);
+        }
+        return file;
+    }
+}
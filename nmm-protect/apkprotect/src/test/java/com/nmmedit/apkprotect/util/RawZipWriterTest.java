@@ -0,0 +1,107 @@
+package com.nmmedit.apkprotect.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
+
+import static org.junit.Assert.*;
+
+public class RawZipWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testCopyAndPut() throws IOException {
+        final Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("res/layout/main.xml", repeat("<LinearLayout/>", 500));
+        contents.put("assets/中文.txt", repeat("hello", 100));
+        contents.put("classes.dex", repeat("dex", 10));
+        contents.put("resources.arsc", repeat("arsc", 1000));
+
+        final File in = tmp.newFile("in.apk");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(in))) {
+            out.putNextEntry(new ZipEntry("res/"));
+            out.closeEntry();
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                final ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                if (entry.getKey().equals("resources.arsc")) {
+                    //不压缩的文件也要原样复制
+                    final CRC32 crc32 = new CRC32();
+                    crc32.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc32.getValue());
+                }
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+
+        final File outFile = tmp.newFile("out.apk");
+        final byte[] newDex = repeat("new dex", 2000);
+        try (RawZipWriter writer = new RawZipWriter(outFile)) {
+            assertEquals(3, writer.copyEntries(in, name -> !name.equals("classes.dex")));
+            writer.putBytes("classes.dex", newDex);
+            try {
+                writer.putBytes("resources.arsc", newDex);
+                fail();
+            } catch (ZipException ignored) {
+            }
+        }
+        contents.put("classes.dex", newDex);
+
+        try (ZipFile src = new ZipFile(in);
+             ZipFile zipFile = new ZipFile(outFile)) {
+            final List<String> names = new ArrayList<>();
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                assertArrayEquals(entry.getName(), contents.get(entry.getName()), read(zipFile.getInputStream(entry)));
+                if (!entry.getName().equals("classes.dex")) {
+                    final ZipEntry srcEntry = src.getEntry(entry.getName());
+                    assertEquals(srcEntry.getMethod(), entry.getMethod());
+                    assertEquals(srcEntry.getCompressedSize(), entry.getCompressedSize());
+                    assertEquals(srcEntry.getCrc(), entry.getCrc());
+                }
+            }
+            //原文件顺序不变,新文件在后面
+            assertEquals(Arrays.asList("res/layout/main.xml", "assets/中文.txt", "resources.arsc", "classes.dex"), names);
+        }
+
+        //按本地文件头顺序读取也需要正确
+        try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(outFile))) {
+            ZipEntry entry;
+            int count = 0;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                assertArrayEquals(entry.getName(), contents.get(entry.getName()), read(zipIn));
+                count++;
+            }
+            assertEquals(4, count);
+        }
+    }
+
+    private static byte[] repeat(String s, int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s).append(i);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,16 +1,66 @@
 package com.nmmedit.dex2c;
 
 import com.nmmedit.apkprotect.dex2c.Dex2c;
+import com.nmmedit.apkprotect.dex2c.Dex2cOptions;
+import com.nmmedit.apkprotect.dex2c.DexConfig;
+import com.nmmedit.apkprotect.dex2c.GlobalDexConfig;
+import com.nmmedit.apkprotect.dex2c.converter.Intrinsics;
+import com.nmmedit.apkprotect.dex2c.converter.Lz4Block;
+import com.nmmedit.apkprotect.dex2c.converter.MyMethodUtil;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.InstructionRewriter;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.NoneInstructionRewriter;
+import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.RandomInstructionRewriter;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction22b;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
 
 public class Dex2cTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void testParseDex() throws IOException {
         Dex2c.parseDex(this.getClass().getResourceAsStream("/classes2.dex"));
@@ -29,6 +79,584 @@ public class Dex2cTest {
                 outdir);
     }
 
+    @Test
+    public void testIncrementalHandleDex() throws IOException {
+        final File dex = tempFolder.newFile("classes.dex");
+        try (InputStream in = this.getClass().getResourceAsStream("/classes2.dex")) {
+            Files.copy(in, dex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        final File outDir = tempFolder.newFolder("incremental");
+        final Dex2cOptions options = new Dex2cOptions().setIncremental(true);
+
+        final DexConfig first = Dex2c.handleDex(dex, Dex2c.testFilter, new RandomInstructionRewriter(1), outDir, options);
+        assertTrue(first.getIncrementalStateFile().isFile());
+
+        //没有改变,复用上次的c代码
+        final byte[] marker = "reused".getBytes();
+        Files.write(first.getNativeFunctionsFile().toPath(), marker);
+        final DexConfig second = Dex2c.handleDex(dex, Dex2c.testFilter, new RandomInstructionRewriter(1), outDir, options);
+        assertArrayEquals(marker, Files.readAllBytes(second.getNativeFunctionsFile().toPath()));
+        assertEquals(first.getNativeClasses(), second.getNativeClasses());
+        assertEquals(first.getNativeMethodOffsets(), second.getNativeMethodOffsets());
+
+        //opcode改变后需要重新生成
+        final DexConfig third = Dex2c.handleDex(dex, Dex2c.testFilter, new RandomInstructionRewriter(2), outDir, options);
+        assertFalse(Arrays.equals(marker, Files.readAllBytes(third.getNativeFunctionsFile().toPath())));
+    }
+
+    @Test
+    public void testHandleDexUnloadsSymbols() throws IOException {
+        final InstructionRewriter instructionRewriter = new NoneInstructionRewriter();
+        handleTestDex(tempFolder.newFolder("unload"), instructionRewriter, new Dex2cOptions());
+        //转换完成后当前线程不再保留dex符号
+        final ImmutableMethodImplementation implementation = new ImmutableMethodImplementation(1, Arrays.asList(
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("a")),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null);
+        try {
+            instructionRewriter.instructionRewriter(implementation);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("No dex file loaded", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testClassIncrementalHandleDex() throws IOException {
+        final DexBackedDexFile dexFile = loadTestDex();
+        //先转换少一个class的dex,再转换完整的dex
+        final File dex = tempFolder.newFile("classes.dex");
+        final DexPool dexPool = new DexPool(Opcodes.getDefault());
+        for (ClassDef classDef : dexFile.getClasses()) {
+            if (!classDef.getType().equals("Ltests/arraycopy/ImplA;")) {
+                dexPool.internClass(classDef);
+            }
+        }
+        dexPool.writeTo(new FileDataStore(dex));
+
+        final File outDir = tempFolder.newFolder("class-incremental");
+        final Dex2cOptions options = new Dex2cOptions().setIncremental(true);
+        final DexConfig first = Dex2c.handleDex(dex, Dex2c.testFilter, new RandomInstructionRewriter(1), outDir, options);
+        final String function = "static void Java_tests_arraycopy_Main_initByteArray___3B_V(";
+        final String firstCode = readFunction(first.getNativeFunctionsFile(), function);
+
+        try (InputStream in = this.getClass().getResourceAsStream("/classes2.dex")) {
+            Files.copy(in, dex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        final DexConfig second = Dex2c.handleDex(dex, Dex2c.testFilter, new RandomInstructionRewriter(1), outDir, options);
+        //只重新生成新增的class,其他class的代码和上次一样
+        assertFalse(second.getMetrics().isReused());
+        assertEquals(1, second.getMetrics().getChangedClasses());
+        assertEquals(firstCode, readFunction(second.getNativeFunctionsFile(), function));
+        final String code = new String(Files.readAllBytes(second.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(code.contains("Java_tests_arraycopy_ImplA_iFunc1__I_I("));
+    }
+
+    private static String readFunction(File file, String prototype) throws IOException {
+        final String code = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        final int start = code.indexOf(prototype);
+        assertTrue(start >= 0);
+        return code.substring(start, code.indexOf("\n}\n", start));
+    }
+
+    @Test
+    public void testParallelHandleDexes() throws IOException {
+        final File dexDir = tempFolder.newFolder("dex");
+        final List<File> dexFiles = new ArrayList<>();
+        for (String name : new String[]{"classes.dex", "classes2.dex", "classes3.dex"}) {
+            final File file = new File(dexDir, name);
+            try (InputStream in = this.getClass().getResourceAsStream("/classes2.dex")) {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dexFiles.add(file);
+        }
+        final InstructionRewriter instructionRewriter = new NoneInstructionRewriter();
+
+        final File serialDir = tempFolder.newFolder("serial");
+        final GlobalDexConfig serial = Dex2c.handleDexes(dexFiles, Dex2c.testFilter, instructionRewriter,
+                serialDir, new Dex2cOptions());
+        final File parallelDir = tempFolder.newFolder("parallel");
+        final GlobalDexConfig parallel = Dex2c.handleDexes(dexFiles, Dex2c.testFilter, instructionRewriter,
+                parallelDir, new Dex2cOptions().setThreads(3));
+
+        //顺序和生成的文件都必须和单线程处理一样
+        assertEquals(serial.getConfigs().size(), parallel.getConfigs().size());
+        for (int i = 0; i < serial.getConfigs().size(); i++) {
+            assertEquals(serial.getConfigs().get(i).getDexName(), parallel.getConfigs().get(i).getDexName());
+        }
+        final File[] files = serialDir.listFiles();
+        assertEquals(files.length, parallelDir.listFiles().length);
+        for (File file : files) {
+            assertArrayEquals(file.getName(),
+                    Files.readAllBytes(file.toPath()),
+                    Files.readAllBytes(new File(parallelDir, file.getName()).toPath()));
+        }
+    }
+
+    @Test
+    public void testShardedHandleDex() throws IOException {
+        final File outDir = tempFolder.newFolder("shards");
+        final InstructionRewriter instructionRewriter = new NoneInstructionRewriter();
+
+        DexConfig config = handleTestDex(outDir, instructionRewriter, new Dex2cOptions().setShards(4));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(config.getShardFunctionsFile(i).isFile());
+        }
+        assertTrue(config.getShardHeaderFile().isFile());
+        //主文件只包含注册代码,方法实现都在分片里
+        final String mainCode = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(mainCode.contains(config.getShardHeaderFile().getName()));
+        assertFalse(mainCode.contains("vmInterpret("));
+
+        //分片数减少时旧分片必须删除
+        config = handleTestDex(outDir, instructionRewriter, new Dex2cOptions().setShards(2));
+        assertEquals(3, config.getShardFiles().size());
+        assertFalse(config.getShardFunctionsFile(2).exists());
+
+        config = handleTestDex(outDir, instructionRewriter, new Dex2cOptions());
+        assertTrue(config.getShardFiles().isEmpty());
+    }
+
+    @Test
+    public void testBinaryDataHandleDex() throws IOException {
+        final File outDir = tempFolder.newFolder("blob");
+        final InstructionRewriter instructionRewriter = new NoneInstructionRewriter();
+
+        final DexConfig plain = handleTestDex(tempFolder.newFolder("plain"), instructionRewriter, new Dex2cOptions());
+        DexConfig config = handleTestDex(outDir, instructionRewriter, new Dex2cOptions().setBinaryData(true));
+        final byte[] blob = Files.readAllBytes(config.getDataBlobFile().toPath());
+        final String resolverCode = new String(Files.readAllBytes(config.getResolverFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(resolverCode.contains(".incbin"));
+        assertFalse(resolverCode.contains("static const u1 gBaseStrPtr[]"));
+        final String code = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        assertFalse(code.contains("static const u2 insns[]"));
+
+        //字符串,类型,签名及方法等表在blob里的数据和不使用blob时生成的数组一样
+        final String plainResolver = new String(Files.readAllBytes(plain.getResolverFile().toPath()), StandardCharsets.UTF_8);
+        final Matcher tableMatcher = Pattern.compile("#define (g\\w+) \\(\\*\\(const (\\w+) \\(\\*\\)\\[(\\d+)]\\) \\("
+                + config.getDataBlobSymbol() + " \\+ 0x(\\p{XDigit}+)\\)\\)").matcher(resolverCode);
+        final Set<String> tables = new TreeSet<>();
+        while (tableMatcher.find()) {
+            final String name = tableMatcher.group(1);
+            final byte[] expected = encodeTable(plainResolver, tableMatcher.group(2), name);
+            final int offset = Integer.parseInt(tableMatcher.group(4), 16);
+            assertEquals(name, expected.length, Integer.parseInt(tableMatcher.group(3)) * getStructSize(tableMatcher.group(2)));
+            assertArrayEquals(name, expected, Arrays.copyOfRange(blob, offset, offset + expected.length));
+            tables.add(name);
+        }
+        assertTrue(tables.containsAll(Arrays.asList("gBaseStrPtr", "gStringIds", "gTypeIds", "gSignatureIds", "gFieldIds", "gMethodIds")));
+
+        //方法的字节码及异常表
+        final Map<String, String> plainFunctions = splitFunctions(
+                new String(Files.readAllBytes(plain.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8));
+        final Map<String, String> functions = splitFunctions(code);
+        final String symbol = Pattern.quote(config.getDataBlobSymbol());
+        final Pattern insnsPattern = Pattern.compile("const u2 \\*insns = \\(const u2 \\*\\) \\(" + symbol + " \\+ 0x(\\p{XDigit}+)\\);\n" +
+                " +const u1 \\*tries = (?:NULL|" + symbol + " \\+ 0x(\\p{XDigit}+));");
+        int methods = 0;
+        for (Map.Entry<String, String> entry : functions.entrySet()) {
+            final String plainFunction = plainFunctions.get(entry.getKey());
+            if (!plainFunction.contains("static const u2 insns[]")) {
+                continue;
+            }
+            final Matcher matcher = insnsPattern.matcher(entry.getValue());
+            assertTrue(entry.getKey(), matcher.find());
+            final byte[] insns = parseHexArray(plainFunction, "static const u2 insns[] = {");
+            final int insnsOffset = Integer.parseInt(matcher.group(1), 16);
+            assertArrayEquals(entry.getKey(), insns, Arrays.copyOfRange(blob, insnsOffset, insnsOffset + insns.length));
+            if (matcher.group(2) == null) {
+                assertFalse(plainFunction.contains("static const u1 tries[]"));
+            } else {
+                final byte[] tries = parseHexArray(plainFunction, "static const u1 tries[] = {");
+                final int triesOffset = Integer.parseInt(matcher.group(2), 16);
+                assertArrayEquals(entry.getKey(), tries, Arrays.copyOfRange(blob, triesOffset, triesOffset + tries.length));
+            }
+            methods++;
+        }
+        assertEquals(config.getMetrics().getMethods(), methods);
+
+        //关闭后不能留下旧数据
+        config = handleTestDex(outDir, instructionRewriter, new Dex2cOptions());
+        assertFalse(config.getDataBlobFile().exists());
+    }
+
+    //结构体各字段大小,负数为字段后面的填充,和c代码里的内存布局一样
+    private static int[] getStructLayout(String type) {
+        switch (type) {
+            case "u1":
+                return new int[]{1};
+            case "u2":
+                return new int[]{2};
+            case "u4":
+            case "StringId":
+            case "TypeId":
+            case "ClassId":
+            case "SignatureId":
+                return new int[]{4};
+            case "FieldId":
+                return new int[]{2, -2, 4, 2, -2};
+            case "MethodId":
+                return new int[]{2, -2, 4, 4, 4};
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    private static int getStructSize(String type) {
+        int size = 0;
+        for (int field : getStructLayout(type)) {
+            size += Math.abs(field);
+        }
+        return size;
+    }
+
+    //把不使用blob时生成的c数组按结构体布局转为小端字节
+    private static byte[] encodeTable(String code, String type, String name) {
+        final Matcher start = Pattern.compile("static const " + type + " " + name + "\\[] ?= ?\\{").matcher(code);
+        assertTrue(name, start.find());
+        final String array = code.substring(start.end(), code.indexOf("};", start.end()));
+        final Matcher matcher = Pattern.compile("(?<![\\w.])(0x\\p{XDigit}+|\\d+)").matcher(array);
+        final int[] layout = getStructLayout(type);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int field = 0;
+        while (matcher.find()) {
+            final String literal = matcher.group(1);
+            final long value = literal.startsWith("0x") ? Long.parseLong(literal.substring(2), 16) : Long.parseLong(literal);
+            for (int i = 0; i < layout[field]; i++) {
+                out.write((int) (value >>> (i * 8)));
+            }
+            field++;
+            //跳过填充
+            while (field < layout.length && layout[field] < 0) {
+                for (int i = layout[field]; i < 0; i++) {
+                    out.write(0);
+                }
+                field++;
+            }
+            field %= layout.length;
+        }
+        assertEquals(name, 0, field);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDedupeHandleDex() throws IOException {
+        //add1和add1Copy完全一样,add1Virtual只有字节码一样,times3不一样
+        final String type = "Ltests/Dedupe;";
+        final int staticFlags = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue();
+        final List<ImmutableMethod> methods = Arrays.asList(
+                intMethod(type, "add1", staticFlags, Opcode.ADD_INT_LIT8, 1),
+                intMethod(type, "add1Copy", staticFlags, Opcode.ADD_INT_LIT8, 1),
+                intMethod(type, "add1Virtual", AccessFlags.PUBLIC.getValue(), Opcode.ADD_INT_LIT8, 1),
+                intMethod(type, "times3", staticFlags, Opcode.MUL_INT_LIT8, 3));
+        final DexPool dexPool = new DexPool(Opcodes.getDefault());
+        dexPool.internClass(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                null, null, null, null, methods));
+        final File dex = tempFolder.newFile("classes.dex");
+        dexPool.writeTo(new FileDataStore(dex));
+
+        final DexConfig config = Dex2c.handleDex(dex, Dex2c.testFilter, new NoneInstructionRewriter(),
+                tempFolder.newFolder("dedupe"), new Dex2cOptions().setDedupeMethods(true));
+        //add-int/lit8加return共3个代码单元,add1Copy整个函数共用,add1Virtual共用字节码
+        assertEquals(1, config.getMetrics().getDedupedMethods());
+        assertEquals(2 * 3 * 2, config.getMetrics().getDedupedBytes());
+
+        final String code = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        assertFalse(code.contains("static const u2 insns[]"));
+        final Map<String, String> functions = splitFunctions(code);
+        //去掉注册本地方法的函数
+        functions.keySet().removeIf(name -> !name.startsWith("Java_tests_"));
+        final String add1 = getJniFunctionName(methods.get(0));
+        assertEquals(new TreeSet<>(Arrays.asList(add1, getJniFunctionName(methods.get(2)), getJniFunctionName(methods.get(3)))),
+                functions.keySet());
+        //add1Copy注册为add1的函数
+        assertEquals(2, code.split(Pattern.quote("(void *) " + add1 + "}"), -1).length - 1);
+
+        final Pattern insnsPattern = Pattern.compile("const u2 \\*insns = (\\w+);");
+        final Map<String, String> insnsArrays = new TreeMap<>();
+        for (Map.Entry<String, String> entry : functions.entrySet()) {
+            final Matcher matcher = insnsPattern.matcher(entry.getValue());
+            assertTrue(entry.getKey(), matcher.find());
+            insnsArrays.put(entry.getKey(), matcher.group(1));
+        }
+        assertEquals(insnsArrays.get(add1), insnsArrays.get(getJniFunctionName(methods.get(2))));
+        assertNotEquals(insnsArrays.get(add1), insnsArrays.get(getJniFunctionName(methods.get(3))));
+    }
+
+    //int方法,参数在v1,结果放到v0返回
+    private static ImmutableMethod intMethod(String type, String name, int accessFlags, Opcode opcode, int literal) {
+        return new ImmutableMethod(type, name, Collections.singletonList(new ImmutableMethodParameter("I", null, null)),
+                "I", accessFlags, null, null,
+                new ImmutableMethodImplementation(2, Arrays.asList(
+                        new ImmutableInstruction22b(opcode, 0, 1, literal),
+                        new ImmutableInstruction11x(Opcode.RETURN, 0)), null, null));
+    }
+
+    private static String getJniFunctionName(MethodReference method) {
+        final String type = method.getDefiningClass();
+        return MyMethodUtil.getJniFunctionName(type.substring(1, type.length() - 1),
+                method.getName(), method.getParameterTypes(), method.getReturnType());
+    }
+
+    @Test
+    public void testPruneSymbolsHandleDex() throws IOException {
+        final InstructionRewriter instructionRewriter = new NoneInstructionRewriter();
+
+        final DexConfig full = handleTestDex(tempFolder.newFolder("full"), instructionRewriter, new Dex2cOptions());
+        final DexConfig pruned = handleTestDex(tempFolder.newFolder("pruned"), instructionRewriter, new Dex2cOptions().setPruneSymbols(true));
+        assertTrue(pruned.getResolverFile().length() < full.getResolverFile().length());
+        //注册本地方法的类及方法不变
+        assertEquals(full.getNativeClasses(), pruned.getNativeClasses());
+        assertEquals(full.getNativeMethodOffsets(), pruned.getNativeMethodOffsets());
+    }
+
+    @Test
+    public void testRelocationFreeHandleDex() throws IOException {
+        final DexConfig plain = handleTestDex(tempFolder.newFolder("plain"), new NoneInstructionRewriter(), new Dex2cOptions());
+        final DexConfig config = handleTestDex(tempFolder.newFolder("reloc"), new NoneInstructionRewriter(),
+                new Dex2cOptions().setRelocationFree(true));
+        final String plainCode = new String(Files.readAllBytes(plain.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        final String code = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+
+        //不使用时每项都有函数指针,需要重定位
+        final List<String> plainEntries = new ArrayList<>();
+        final List<String> functionNames = new ArrayList<>();
+        final Matcher plainMatcher = Pattern.compile("\\{(\\d+, \\d+), \\(void \\*\\) (\\w+)}")
+                .matcher(getArray(plainCode, "static const MyNativeMethod gNativeMethods[] = {"));
+        while (plainMatcher.find()) {
+            plainEntries.add(plainMatcher.group(1));
+            functionNames.add(plainMatcher.group(2));
+        }
+        assertEquals(config.getMetrics().getMethods(), functionNames.size());
+
+        //只剩名称及签名索引,顺序不变
+        final String nativeMethods = getArray(code, "static const MyNativeMethod gNativeMethods[] = {");
+        assertFalse(nativeMethods.contains("(void *)"));
+        final List<String> entries = new ArrayList<>();
+        final Matcher entryMatcher = Pattern.compile("\\{(\\d+, \\d+)}").matcher(nativeMethods);
+        while (entryMatcher.find()) {
+            entries.add(entryMatcher.group(1));
+        }
+        assertEquals(plainEntries, entries);
+
+        //函数地址由跳转表按midx返回,每个方法一项
+        final Matcher caseMatcher = Pattern.compile("case (\\d+): return \\(void \\*\\) (\\w+);")
+                .matcher(code.substring(code.indexOf("static void *getNativeFunction(u4 idx) {")));
+        final List<String> cases = new ArrayList<>();
+        while (caseMatcher.find()) {
+            assertEquals(cases.size(), Integer.parseInt(caseMatcher.group(1)));
+            cases.add(caseMatcher.group(2));
+        }
+        assertEquals(functionNames, cases);
+        final Map<String, String> functions = splitFunctions(code);
+        assertTrue(functions.keySet().containsAll(cases));
+        assertTrue(code.contains("getNativeFunction(data.offset + midx)"));
+    }
+
+    //c数组初始化列表的内容
+    private static String getArray(String code, String declaration) {
+        final int start = code.indexOf(declaration);
+        assertTrue(declaration, start >= 0);
+        return code.substring(start + declaration.length(), code.indexOf("};", start));
+    }
+
+    @Test
+    public void testCompressBytecodeHandleDex() throws IOException {
+        final DexConfig plain = handleTestDex(tempFolder.newFolder("plain"), new NoneInstructionRewriter(), new Dex2cOptions());
+        final DexConfig config = handleTestDex(tempFolder.newFolder("lz4"), new NoneInstructionRewriter(),
+                new Dex2cOptions().setCompressBytecode(true));
+        final String code = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        assertFalse(code.contains("static const u2 insns[]"));
+        assertTrue(code.contains("#include \"BlockCache.h\""));
+
+        //解压生成的所有块
+        final byte[] data = parseHexArray(code, "static const u1 gCompressedData[] = {");
+        final Matcher blockMatcher = Pattern.compile("\\{\\.offset=0x(\\p{XDigit}+), \\.size=0x(\\p{XDigit}+), \\.rawSize=0x(\\p{XDigit}+)}").matcher(code);
+        final List<byte[]> blocks = new ArrayList<>();
+        long rawSize = 0;
+        while (blockMatcher.find()) {
+            final int offset = Integer.parseInt(blockMatcher.group(1), 16);
+            final int size = Integer.parseInt(blockMatcher.group(2), 16);
+            final int blockRawSize = Integer.parseInt(blockMatcher.group(3), 16);
+            blocks.add(Lz4Block.decompress(Arrays.copyOfRange(data, offset, offset + size), blockRawSize));
+            rawSize += blockRawSize;
+        }
+        assertEquals(config.getMetrics().getCompressedBlocks(), blocks.size());
+        assertEquals(config.getMetrics().getBlockRawBytes(), rawSize);
+
+        //每个方法在块里的字节码及异常表和不压缩时生成的数组完全一样
+        final Map<String, String> plainFunctions = splitFunctions(
+                new String(Files.readAllBytes(plain.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8));
+        final Map<String, String> functions = splitFunctions(code);
+        assertFalse(functions.isEmpty());
+        assertEquals(plainFunctions.keySet(), functions.keySet());
+        final Pattern locationPattern = Pattern.compile("_loadBlock\\((\\d+)\\);\n" +
+                " +const u2 \\*insns = \\(const u2 \\*\\) \\(block \\+ 0x(\\p{XDigit}+)\\);\n" +
+                " +const u1 \\*tries = (?:NULL|block \\+ 0x(\\p{XDigit}+));");
+        int methods = 0;
+        for (Map.Entry<String, String> entry : functions.entrySet()) {
+            final String plainFunction = plainFunctions.get(entry.getKey());
+            //注册本地方法等函数没有字节码
+            if (!plainFunction.contains("static const u2 insns[]")) {
+                continue;
+            }
+            final Matcher matcher = locationPattern.matcher(entry.getValue());
+            assertTrue(entry.getKey(), matcher.find());
+            final byte[] block = blocks.get(Integer.parseInt(matcher.group(1)));
+
+            final byte[] insns = parseHexArray(plainFunction, "static const u2 insns[] = {");
+            final int insnsOffset = Integer.parseInt(matcher.group(2), 16);
+            assertArrayEquals(entry.getKey(), insns, Arrays.copyOfRange(block, insnsOffset, insnsOffset + insns.length));
+            if (matcher.group(3) == null) {
+                assertFalse(plainFunction.contains("static const u1 tries[]"));
+            } else {
+                final byte[] tries = parseHexArray(plainFunction, "static const u1 tries[] = {");
+                final int triesOffset = Integer.parseInt(matcher.group(3), 16);
+                assertArrayEquals(entry.getKey(), tries, Arrays.copyOfRange(block, triesOffset, triesOffset + tries.length));
+            }
+            methods++;
+        }
+        assertEquals(config.getMetrics().getMethods(), methods);
+    }
+
+    //按jni函数名分开生成的代码
+    private static Map<String, String> splitFunctions(String code) {
+        final Map<String, String> functions = new TreeMap<>();
+        final Matcher matcher = Pattern.compile("\n\\S[^\n]* (Java_\\w+)\\(JNIEnv").matcher(code);
+        while (matcher.find()) {
+            functions.put(matcher.group(1), code.substring(matcher.start(), code.indexOf("\n}\n", matcher.start())));
+        }
+        return functions;
+    }
+
+    //解析c数组,u2按小端转为字节
+    private static byte[] parseHexArray(String code, String declaration) {
+        final String array = getArray(code, declaration);
+        final boolean isU2 = declaration.contains(" u2 ");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Matcher matcher = Pattern.compile("0x(\\p{XDigit}+)").matcher(array);
+        while (matcher.find()) {
+            final int value = Integer.parseInt(matcher.group(1), 16);
+            out.write(value);
+            if (isU2) {
+                out.write(value >> 8);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCompactRegistersHandleDex() throws IOException {
+        final DexConfig config = handleTestDex(tempFolder.newFolder("regs"), new NoneInstructionRewriter(),
+                new Dex2cOptions().setCompactRegisters(true));
+        assertTrue(config.getMetrics().getCompactedMethods() > 0);
+        assertTrue(config.getMetrics().getStackMethods() > 0);
+    }
+
+    @Test
+    public void testDirectCallsHandleDex() throws IOException {
+        final DexConfig config = handleTestDex(tempFolder.newFolder("direct"), new NoneInstructionRewriter(),
+                new Dex2cOptions().setDirectCalls(true).setKeepDexFiles(true));
+        final String code = new String(Files.readAllBytes(config.getNativeFunctionsFile().toPath()), StandardCharsets.UTF_8);
+        final String resolver = new String(Files.readAllBytes(config.getResolverFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(resolver.contains("if (getDirectMethod(idx, &directFn, &directInvoker)) {"));
+
+        //转换的方法里调用目标确定的和可以被覆盖的
+        final Set<String> expected = new TreeSet<>();
+        final Set<String> overridable = new TreeSet<>();
+        for (ClassDef classDef : loadTestDex().getClasses()) {
+            if (!Dex2c.testFilter.acceptClass(classDef)) {
+                continue;
+            }
+            final boolean finalClass = AccessFlags.FINAL.isSet(classDef.getAccessFlags());
+            for (Method method : classDef.getMethods()) {
+                final int flags = method.getAccessFlags();
+                if (method.getImplementation() == null || !Dex2c.testFilter.acceptMethod(method)
+                        || AccessFlags.SYNCHRONIZED.isSet(flags) || AccessFlags.DECLARED_SYNCHRONIZED.isSet(flags)) {
+                    continue;
+                }
+                if (finalClass || AccessFlags.STATIC.isSet(flags)
+                        || AccessFlags.PRIVATE.isSet(flags) || AccessFlags.FINAL.isSet(flags)) {
+                    expected.add(ReferenceUtil.getMethodDescriptor(method));
+                } else {
+                    overridable.add(ReferenceUtil.getMethodDescriptor(method));
+                }
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertFalse(overridable.isEmpty());
+
+        //getDirectMethod的case是符号dex里的方法索引
+        final List<? extends MethodReference> methodSection = readDex(config.getSymbolDexFile()).getMethodSection();
+        final Matcher matcher = Pattern.compile("case (\\d+):\n +\\*fn = \\(const void \\*\\) (\\w+);").matcher(code);
+        final Set<String> direct = new TreeSet<>();
+        while (matcher.find()) {
+            final MethodReference method = methodSection.get(Integer.parseInt(matcher.group(1)));
+            assertEquals(getJniFunctionName(method), matcher.group(2));
+            assertTrue(direct.add(ReferenceUtil.getMethodDescriptor(method)));
+        }
+        assertEquals(expected, direct);
+        assertEquals(expected.size(), config.getMetrics().getDirectMethods());
+    }
+
+    @Test
+    public void testIntrinsicsHandleDex() throws IOException {
+        final DexConfig config = handleTestDex(tempFolder.newFolder("intrinsics"), new NoneInstructionRewriter(),
+                new Dex2cOptions().setIntrinsics(true).setKeepDexFiles(true));
+        final String resolver = new String(Files.readAllBytes(config.getResolverFile().toPath()), StandardCharsets.UTF_8);
+        assertTrue(resolver.contains("__atomic_store_n(&method->intrinsic, getIntrinsic(idx), __ATOMIC_RELAXED);"));
+
+        //测试dex里调用的内部实现方法
+        final Map<String, String> expected = new TreeMap<>();
+        for (String type : new String[]{"I", "J", "F", "D"}) {
+            expected.put("Ljava/lang/Math;->abs(" + type + ")" + type, "VM_INTRINSIC_MATH_ABS_" + type);
+            expected.put("Ljava/lang/Math;->min(" + type + type + ")" + type, "VM_INTRINSIC_MATH_MIN_" + type + type);
+            expected.put("Ljava/lang/Math;->max(" + type + type + ")" + type, "VM_INTRINSIC_MATH_MAX_" + type + type);
+        }
+        expected.put("Ljava/lang/Math;->sqrt(D)D", "VM_INTRINSIC_MATH_SQRT");
+
+        //getIntrinsic的case是符号dex里的方法索引
+        final List<? extends MethodReference> methodSection = readDex(config.getSymbolDexFile()).getMethodSection();
+        final Matcher matcher = Pattern.compile("case (\\d+):\n +return (VM_INTRINSIC_\\w+);").matcher(resolver);
+        final Map<String, String> intrinsics = new TreeMap<>();
+        while (matcher.find()) {
+            final MethodReference method = methodSection.get(Integer.parseInt(matcher.group(1)));
+            assertNull(intrinsics.put(ReferenceUtil.getMethodDescriptor(method), matcher.group(2)));
+        }
+        assertEquals(expected, intrinsics);
+        assertEquals(expected.size(), config.getMetrics().getIntrinsicMethods());
+        //同一个类里不在列表中的方法
+        assertFalse(intrinsics.containsKey("Ljava/lang/Math;->sin(D)D"));
+        assertFalse(intrinsics.containsKey("Ljava/lang/String;->equals(Ljava/lang/Object;)Z"));
+
+        assertEquals("VM_INTRINSIC_STRING_LENGTH",
+                Intrinsics.get(new ImmutableMethodReference("Ljava/lang/String;", "length", null, "I")));
+        assertEquals("VM_INTRINSIC_STRING_CHAR_AT",
+                Intrinsics.get(new ImmutableMethodReference("Ljava/lang/String;", "charAt", Collections.singletonList("I"), "C")));
+        assertEquals("VM_INTRINSIC_MATH_SQRT",
+                Intrinsics.get(new ImmutableMethodReference("Ljava/lang/StrictMath;", "sqrt", Collections.singletonList("D"), "D")));
+        //签名或者类不一样
+        assertNull(Intrinsics.get(new ImmutableMethodReference("Ljava/lang/Math;", "min", Arrays.asList("I", "J"), "J")));
+        assertNull(Intrinsics.get(new ImmutableMethodReference("Ltests/Math;", "min", Arrays.asList("I", "I"), "I")));
+    }
+
+    private DexBackedDexFile loadTestDex() throws IOException {
+        try (InputStream in = new BufferedInputStream(this.getClass().getResourceAsStream("/classes2.dex"))) {
+            return DexBackedDexFile.fromInputStream(Opcodes.getDefault(), in);
+        }
+    }
+
+    private static DexBackedDexFile readDex(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return DexBackedDexFile.fromInputStream(Opcodes.getDefault(), in);
+        }
+    }
+
+    private DexConfig handleTestDex(File outDir, InstructionRewriter instructionRewriter, Dex2cOptions options) throws IOException {
+        try (InputStream in = this.getClass().getResourceAsStream("/classes2.dex")) {
+            return Dex2c.handleDex(in, "classes2.dex", Dex2c.testFilter, instructionRewriter, outDir, options);
+        }
+    }
+
     @Test
     public void testDexConvert() throws IOException {
 //        File dexdir = new File("/home/mao/estest/");
@@ -0,0 +1,62 @@
+package com.nmmedit.dex2c.converter;
+
+import com.nmmedit.apkprotect.dex2c.converter.CEmitter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CEmitterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testNumberFormat() throws IOException {
+        final StringWriter expected = new StringWriter();
+        final StringWriter out = new StringWriter();
+        final CEmitter emitter = new CEmitter(out);
+        final Random random = new Random(0);
+        final long[] specials = {0, 1, 9, 10, 15, 16, 255, 256, 0xffff, 0x10000, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                0xffffffffL, Long.MAX_VALUE, Long.MIN_VALUE, -1};
+        for (int i = 0; i < 100000; i++) {
+            final long v = i < specials.length ? specials[i] : random.nextLong() >> random.nextInt(64);
+            expected.write(String.format("%d,0x%04x,0x%x,", v, v, v));
+            emitter.dec(v).print(',').hex(v, 4).print(',').hex(v, 1).print(',');
+
+            final int u = (int) v;
+            expected.write(String.format("0x%02x,0x%04x\n", u & 0xff, u & 0xffff));
+            emitter.hexU1(u & 0xff).print(',').hexU2(u & 0xffff).print('\n');
+        }
+        emitter.flush();
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void testUtf8File() throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        final File file = tmp.newFile("out.c");
+        try (CEmitter emitter = CEmitter.open(file)) {
+            //多字节字符及代理对跨越缓冲区边界
+            for (int i = 0; i < 50000; i++) {
+                final String s = i % 3 == 0 ? "//注释😀" : "    0x" + i + ",";
+                expected.append(s);
+                emitter.print(s);
+                if (i % 7 == 0) {
+                    expected.append('\uD83D');
+                    emitter.write('\uD83D');
+                    expected.append('\uDE01');
+                    emitter.write('\uDE01');
+                }
+            }
+        }
+        assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+}
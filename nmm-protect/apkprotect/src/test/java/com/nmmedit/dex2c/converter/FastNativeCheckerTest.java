@@ -0,0 +1,94 @@
+package com.nmmedit.dex2c.converter;
+
+import com.google.common.collect.ImmutableList;
+import com.nmmedit.apkprotect.dex2c.converter.FastNativeChecker;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FastNativeCheckerTest {
+    private static final String FOO = "Lp/Foo;";
+
+    @Test
+    public void testCheck() {
+        //读本类静态字段
+        assertEquals(3, FastNativeChecker.check(method(0,
+                new ImmutableInstruction21c(Opcode.SGET, 0, new ImmutableFieldReference(FOO, "s", "I")),
+                new ImmutableInstruction11x(Opcode.RETURN, 0))));
+        //本类实例字段
+        assertEquals(3, FastNativeChecker.check(method(0,
+                new ImmutableInstruction22c(Opcode.IGET, 0, 1, new ImmutableFieldReference(FOO, "i", "I")),
+                new ImmutableInstruction11x(Opcode.RETURN, 0))));
+        //基本类型数组及向后跳转
+        assertEquals(6, FastNativeChecker.check(method(0,
+                new ImmutableInstruction22c(Opcode.NEW_ARRAY, 0, 1, new ImmutableTypeReference("[I")),
+                new ImmutableInstruction21t(Opcode.IF_EQZ, 1, 3),
+                new ImmutableInstruction10x(Opcode.NOP),
+                new ImmutableInstruction11x(Opcode.RETURN_OBJECT, 0))));
+
+        //其他class的静态字段可能触发初始化
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction21c(Opcode.SGET, 0, new ImmutableFieldReference("Lp/Bar;", "s", "I")),
+                new ImmutableInstruction11x(Opcode.RETURN, 0))));
+        //解析其他class的实例字段要FindClass
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction22c(Opcode.IGET, 0, 1, new ImmutableFieldReference("Lp/Bar;", "i", "I")),
+                new ImmutableInstruction11x(Opcode.RETURN, 0))));
+        //循环
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction21t(Opcode.IF_EQZ, 1, 3),
+                new ImmutableInstruction10t(Opcode.GOTO, -2),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID))));
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0,
+                        new ImmutableMethodReference(FOO, "run", null, "V")),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID))));
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("s")),
+                new ImmutableInstruction11x(Opcode.RETURN_OBJECT, 0))));
+        assertEquals(-1, FastNativeChecker.check(method(0,
+                new ImmutableInstruction22c(Opcode.NEW_ARRAY, 0, 1, new ImmutableTypeReference("[Ljava/lang/String;")),
+                new ImmutableInstruction11x(Opcode.RETURN_OBJECT, 0))));
+        assertEquals(-1, FastNativeChecker.check(method(AccessFlags.DECLARED_SYNCHRONIZED.getValue(),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID))));
+    }
+
+    @Test
+    public void testTryBlocks() {
+        final List<Instruction> instructions = Arrays.asList(
+                new ImmutableInstruction23x(Opcode.DIV_INT, 0, 1, 1),
+                new ImmutableInstruction11x(Opcode.RETURN, 0),
+                new ImmutableInstruction11x(Opcode.MOVE_EXCEPTION, 0),
+                new ImmutableInstruction11x(Opcode.RETURN, 1));
+        assertEquals(5, FastNativeChecker.check(method(instructions,
+                new ImmutableTryBlock(0, 2, ImmutableList.of(new ImmutableExceptionHandler(null, 3))))));
+        //匹配异常类型需要查找class
+        assertEquals(-1, FastNativeChecker.check(method(instructions,
+                new ImmutableTryBlock(0, 2, ImmutableList.of(new ImmutableExceptionHandler("Ljava/lang/ArithmeticException;", 3))))));
+    }
+
+    private static ImmutableMethod method(int accessFlags, Instruction... instructions) {
+        return new ImmutableMethod(FOO, "m", null, "V", AccessFlags.STATIC.getValue() | accessFlags, null, null,
+                new ImmutableMethodImplementation(2, Arrays.asList(instructions), null, null));
+    }
+
+    private static ImmutableMethod method(List<Instruction> instructions, ImmutableTryBlock tryBlock) {
+        return new ImmutableMethod(FOO, "m", null, "I", AccessFlags.STATIC.getValue(), null, null,
+                new ImmutableMethodImplementation(2, instructions, ImmutableList.of(tryBlock), null));
+    }
+}
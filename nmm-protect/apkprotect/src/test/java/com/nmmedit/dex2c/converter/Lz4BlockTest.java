@@ -0,0 +1,57 @@
+package com.nmmedit.dex2c.converter;
+
+import com.nmmedit.apkprotect.dex2c.converter.Lz4Block;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lz4BlockTest {
+
+    @Test
+    public void testRoundTrip() {
+        final Random random = new Random(0);
+        for (int length : new int[]{0, 1, 12, 13, 17, 255, 4096, 70000}) {
+            //随机数据,全相同数据,及有重复片段的数据
+            final byte[] randomData = new byte[length];
+            random.nextBytes(randomData);
+            assertRoundTrip(randomData);
+
+            final byte[] sameData = new byte[length];
+            Arrays.fill(sameData, (byte) 7);
+            assertRoundTrip(sameData);
+
+            final byte[] mixed = new byte[length];
+            for (int i = 0; i < length; i++) {
+                mixed[i] = (byte) (i % 300 < 40 ? random.nextInt(4) : i % 23);
+            }
+            assertRoundTrip(mixed);
+        }
+    }
+
+    @Test
+    public void testDex() throws IOException {
+        final byte[] dex;
+        try (InputStream in = this.getClass().getResourceAsStream("/classes2.dex")) {
+            dex = new byte[in.available()];
+            int n = 0;
+            while (n < dex.length) {
+                n += in.read(dex, n, dex.length - n);
+            }
+        }
+        final byte[] compressed = assertRoundTrip(dex);
+        assertTrue(compressed.length < dex.length / 2);
+    }
+
+    private static byte[] assertRoundTrip(byte[] data) {
+        final byte[] compressed = Lz4Block.compress(data);
+        assertTrue(compressed.length <= Lz4Block.maxCompressedLength(data.length));
+        assertArrayEquals(data, Lz4Block.decompress(compressed, data.length));
+        return compressed;
+    }
+}
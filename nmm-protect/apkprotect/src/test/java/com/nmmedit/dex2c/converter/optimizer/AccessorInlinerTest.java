@@ -0,0 +1,127 @@
+package com.nmmedit.dex2c.converter.optimizer;
+
+import com.google.common.collect.ImmutableList;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.AccessorInliner;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.Liveness;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.*;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AccessorInlinerTest {
+    private static final String FOO = "Lp/Foo;";
+    private static final String BAR = "Lq/Bar;";
+
+    private static final ImmutableFieldReference FIELD_I = new ImmutableFieldReference(FOO, "i", "I");
+    private static final ImmutableFieldReference FIELD_W = new ImmutableFieldReference(FOO, "w", "J");
+    private static final ImmutableFieldReference FIELD_S = new ImmutableFieldReference(FOO, "s", "I");
+
+    private static final ImmutableMethodReference GET_I = new ImmutableMethodReference(FOO, "getI", null, "I");
+    private static final ImmutableMethodReference OPEN = new ImmutableMethodReference(FOO, "open", null, "I");
+    private static final ImmutableMethodReference SET_W = new ImmutableMethodReference(FOO, "setW", ImmutableList.of("J"), "V");
+    private static final ImmutableMethodReference GET_S = new ImmutableMethodReference(FOO, "getS", null, "I");
+
+    @Test
+    public void testInline() {
+        final List<ImmutableMethod> fooMethods = new ArrayList<>();
+        fooMethods.add(method(FOO, "getI", "", "I", AccessFlags.PUBLIC.getValue() | AccessFlags.FINAL.getValue(), 2,
+                new ImmutableInstruction22c(Opcode.IGET, 0, 1, FIELD_I),
+                new ImmutableInstruction11x(Opcode.RETURN, 0)));
+        //可以被覆盖
+        fooMethods.add(method(FOO, "open", "", "I", AccessFlags.PUBLIC.getValue(), 2,
+                new ImmutableInstruction22c(Opcode.IGET, 0, 1, FIELD_I),
+                new ImmutableInstruction11x(Opcode.RETURN, 0)));
+        fooMethods.add(method(FOO, "setW", "J", "V", AccessFlags.PRIVATE.getValue(), 3,
+                new ImmutableInstruction22c(Opcode.IPUT_WIDE, 1, 0, FIELD_W),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID)));
+        fooMethods.add(method(FOO, "getS", "", "I", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), 1,
+                new ImmutableInstruction21c(Opcode.SGET, 0, FIELD_S),
+                new ImmutableInstruction11x(Opcode.RETURN, 0)));
+
+        final List<Instruction> run = Arrays.asList(
+                new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 4, 0, 0, 0, 0, GET_I),
+                new ImmutableInstruction11x(Opcode.MOVE_RESULT, 0),
+                new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 4, 0, 0, 0, 0, OPEN),
+                new ImmutableInstruction11x(Opcode.MOVE_RESULT, 1),
+                new ImmutableInstruction21s(Opcode.CONST_WIDE_16, 2, 1),
+                new ImmutableInstruction35c(Opcode.INVOKE_DIRECT, 3, 4, 2, 3, 0, 0, SET_W),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0, GET_S),
+                new ImmutableInstruction11x(Opcode.MOVE_RESULT, 0),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        //try覆盖到最后一个move-result,异常处理在最后
+        final ImmutableTryBlock tryBlock = new ImmutableTryBlock(0, 17,
+                ImmutableList.of(new ImmutableExceptionHandler(null, 18)));
+        final ImmutableMethod runMethod = new ImmutableMethod(FOO, "run", null, "V", AccessFlags.PUBLIC.getValue(),
+                null, null, new ImmutableMethodImplementation(5, run, ImmutableList.of(tryBlock), null));
+        fooMethods.add(runMethod);
+
+        final ImmutableMethod callMethod = method(BAR, "call", FOO, "I", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), 2,
+                new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 1, 1, 0, 0, 0, 0, GET_I),
+                new ImmutableInstruction11x(Opcode.MOVE_RESULT, 0),
+                new ImmutableInstruction11x(Opcode.RETURN, 0));
+        //其他包不能访问private方法
+        final ImmutableMethod privateMethod = method(BAR, "set", FOO, "V", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), 3,
+                new ImmutableInstruction21s(Opcode.CONST_WIDE_16, 0, 1),
+                new ImmutableInstruction35c(Opcode.INVOKE_DIRECT, 3, 2, 0, 1, 0, 0, SET_W),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+
+        final ImmutableClassDef foo = new ImmutableClassDef(FOO, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                null, null, null, null, fooMethods);
+        final ImmutableClassDef bar = new ImmutableClassDef(BAR, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                null, null, null, null, Arrays.asList(callMethod, privateMethod));
+        final AccessorInliner inliner = new AccessorInliner(Arrays.asList(foo, bar));
+        assertEquals(4, inliner.getAccessors().size());
+
+        final MethodImplementation inlinedRun = inliner.inline(runMethod).getImplementation();
+        assertNotNull(inlinedRun);
+        assertEquals(Arrays.asList(Opcode.IGET, Opcode.INVOKE_VIRTUAL, Opcode.MOVE_RESULT, Opcode.CONST_WIDE_16,
+                Opcode.IPUT_WIDE, Opcode.SGET, Opcode.RETURN_VOID, Opcode.RETURN_VOID), opcodes(inlinedRun));
+        final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = inlinedRun.getTryBlocks();
+        assertEquals(1, tryBlocks.size());
+        assertEquals(0, tryBlocks.get(0).getStartCodeAddress());
+        assertEquals(12, tryBlocks.get(0).getCodeUnitCount());
+        assertEquals(13, tryBlocks.get(0).getExceptionHandlers().get(0).getHandlerCodeAddress());
+        assertNotNull(Liveness.analyze(inlinedRun));
+
+        final Method inlinedCall = inliner.inline(callMethod);
+        assertEquals(Arrays.asList(Opcode.IGET, Opcode.RETURN), opcodes(inlinedCall.getImplementation()));
+        assertSame(privateMethod, inliner.inline(privateMethod));
+        //重复读取使用同一个结果
+        assertSame(inlinedCall, inliner.inline(callMethod));
+
+        assertEquals(4, inliner.getInlinedInvokes());
+        assertEquals(Integer.valueOf(3), inliner.getInlinedCounts().get("Lp/Foo;->run()V"));
+        assertEquals(Integer.valueOf(1), inliner.getInlinedCounts().get("Lq/Bar;->call(Lp/Foo;)I"));
+    }
+
+    private static ImmutableMethod method(String type, String name, String params, String returnType,
+                                          int accessFlags, int registers, Instruction... instructions) {
+        final List<ImmutableMethodParameter> parameters = new ArrayList<>();
+        if (!params.isEmpty()) {
+            parameters.add(new ImmutableMethodParameter(params, null, null));
+        }
+        return new ImmutableMethod(type, name, parameters, returnType, accessFlags, null, null,
+                new ImmutableMethodImplementation(registers, Arrays.asList(instructions), null, null));
+    }
+
+    private static List<Opcode> opcodes(MethodImplementation implementation) {
+        final List<Opcode> opcodes = new ArrayList<>();
+        for (Instruction instruction : implementation.getInstructions()) {
+            opcodes.add(instruction.getOpcode());
+        }
+        return opcodes;
+    }
+}
@@ -0,0 +1,157 @@
+package com.nmmedit.dex2c.converter.optimizer;
+
+import com.google.common.collect.ImmutableList;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.Liveness;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.PeepholeOptimizer;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeepholeOptimizerTest {
+    private static final ImmutableMethodReference FOO = new ImmutableMethodReference("Lp/Foo;", "foo", ImmutableList.of("I"), "V");
+
+    @Test
+    public void testFoldConstants() {
+        final List<Instruction> instructions = Arrays.asList(
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, 1),
+                new ImmutableInstruction11n(Opcode.CONST_4, 1, 2),
+                new ImmutableInstruction23x(Opcode.ADD_INT, 2, 0, 1),
+                //不会跳转
+                new ImmutableInstruction21t(Opcode.IF_EQZ, 2, 8),
+                new ImmutableInstruction11n(Opcode.CONST_4, 3, 5),
+                new ImmutableInstruction12x(Opcode.MOVE, 0, 3),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0, FOO),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                //不可达
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, 0),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0, FOO),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        final MethodImplementation optimized = PeepholeOptimizer.optimize(
+                new ImmutableMethodImplementation(4, instructions, null, null));
+        final List<Instruction> result = toList(optimized);
+        assertEquals(Arrays.asList(Opcode.CONST_4, Opcode.INVOKE_STATIC, Opcode.RETURN_VOID), opcodes(result));
+        assertEquals(0, ((OneRegisterInstruction) result.get(0)).getRegisterA());
+        assertEquals(5, ((NarrowLiteralInstruction) result.get(0)).getNarrowLiteral());
+    }
+
+    @Test
+    public void testKeepTryBlocks() {
+        final List<Instruction> instructions = Arrays.asList(
+                new ImmutableInstruction11n(Opcode.CONST_4, 0, 7),
+                new ImmutableInstruction11n(Opcode.CONST_4, 1, 0),
+                //除数为0,不能折叠
+                new ImmutableInstruction23x(Opcode.DIV_INT, 2, 0, 1),
+                new ImmutableInstruction12x(Opcode.MOVE, 3, 2),
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 1, 2, 0, 0, 0, 0, FOO),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                new ImmutableInstruction11x(Opcode.MOVE_EXCEPTION, 0),
+                new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        final ImmutableTryBlock tryBlock = new ImmutableTryBlock(2, 6,
+                ImmutableList.of(new ImmutableExceptionHandler(null, 9)));
+        final MethodImplementation optimized = PeepholeOptimizer.optimize(
+                new ImmutableMethodImplementation(4, instructions, ImmutableList.of(tryBlock), null));
+        assertEquals(Arrays.asList(Opcode.CONST_4, Opcode.CONST_4, Opcode.DIV_INT, Opcode.INVOKE_STATIC,
+                Opcode.RETURN_VOID, Opcode.MOVE_EXCEPTION, Opcode.RETURN_VOID), opcodes(toList(optimized)));
+        final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = optimized.getTryBlocks();
+        assertEquals(1, tryBlocks.size());
+        assertEquals(2, tryBlocks.get(0).getStartCodeAddress());
+        assertEquals(5, tryBlocks.get(0).getCodeUnitCount());
+        assertEquals(8, tryBlocks.get(0).getExceptionHandlers().get(0).getHandlerCodeAddress());
+    }
+
+    @Test
+    public void testOptimizeDex() throws IOException {
+        final DexBackedDexFile dexFile;
+        try (InputStream in = new BufferedInputStream(this.getClass().getResourceAsStream("/classes2.dex"))) {
+            dexFile = DexBackedDexFile.fromInputStream(Opcodes.getDefault(), in);
+        }
+        int removed = 0;
+        for (DexBackedClassDef classDef : dexFile.getClasses()) {
+            for (DexBackedMethod method : classDef.getMethods()) {
+                final MethodImplementation implementation = method.getImplementation();
+                if (implementation == null) {
+                    continue;
+                }
+                final MethodImplementation optimized = PeepholeOptimizer.optimize(implementation);
+                if (optimized == implementation) {
+                    continue;
+                }
+                final List<Instruction> before = toList(implementation);
+                final List<Instruction> after = toList(optimized);
+                assertTrue(method.toString(), after.size() <= before.size());
+                removed += before.size() - after.size();
+                assertNotNull(method.toString(), Liveness.analyze(optimized));
+                assertValid(method.toString(), optimized);
+            }
+        }
+        assertTrue(removed > 0);
+    }
+
+    //跳转目标,数据对齐及try范围都在代码内
+    private static void assertValid(String method, MethodImplementation implementation) {
+        int address = 0;
+        final List<Integer> addresses = new ArrayList<>();
+        for (Instruction instruction : implementation.getInstructions()) {
+            addresses.add(address);
+            if (instruction.getOpcode().format.isPayloadFormat) {
+                assertEquals(method, 0, address % 2);
+            }
+            address += instruction.getCodeUnits();
+        }
+        int index = 0;
+        for (Instruction instruction : implementation.getInstructions()) {
+            if (instruction instanceof OffsetInstruction) {
+                assertTrue(method, addresses.contains(addresses.get(index) + ((OffsetInstruction) instruction).getCodeOffset()));
+            }
+            index++;
+        }
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            assertTrue(method, tryBlock.getCodeUnitCount() > 0);
+            assertTrue(method, addresses.contains(tryBlock.getStartCodeAddress()));
+            assertTrue(method, tryBlock.getStartCodeAddress() + tryBlock.getCodeUnitCount() <= address);
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                assertTrue(method, addresses.contains(handler.getHandlerCodeAddress()));
+            }
+        }
+    }
+
+    private static List<Instruction> toList(MethodImplementation implementation) {
+        final List<Instruction> list = new ArrayList<>();
+        for (Instruction instruction : implementation.getInstructions()) {
+            list.add(instruction);
+        }
+        return list;
+    }
+
+    private static List<Opcode> opcodes(List<Instruction> instructions) {
+        final List<Opcode> opcodes = new ArrayList<>();
+        for (Instruction instruction : instructions) {
+            opcodes.add(instruction.getOpcode());
+        }
+        return opcodes;
+    }
+}
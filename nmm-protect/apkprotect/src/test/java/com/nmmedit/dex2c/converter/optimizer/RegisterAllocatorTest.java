@@ -0,0 +1,145 @@
+package com.nmmedit.dex2c.converter.optimizer;
+
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.Liveness;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.RegisterAllocator;
+import com.nmmedit.apkprotect.dex2c.converter.optimizer.RegisterOperands;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.util.MethodUtil;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RegisterAllocatorTest {
+
+    @Test
+    public void testCompactDex() throws IOException {
+        final DexBackedDexFile dexFile;
+        try (InputStream in = new BufferedInputStream(this.getClass().getResourceAsStream("/classes2.dex"))) {
+            dexFile = DexBackedDexFile.fromInputStream(Opcodes.getDefault(), in);
+        }
+        int compacted = 0;
+        for (DexBackedClassDef classDef : dexFile.getClasses()) {
+            for (DexBackedMethod method : classDef.getMethods()) {
+                final MethodImplementation implementation = method.getImplementation();
+                if (implementation == null) {
+                    continue;
+                }
+                final int parameterRegisterCount = MethodUtil.getParameterRegisterCount(method.getParameterTypes(),
+                        AccessFlags.STATIC.isSet(method.getAccessFlags()));
+                final MethodImplementation allocated = RegisterAllocator.allocate(implementation, parameterRegisterCount);
+                if (allocated == implementation) {
+                    continue;
+                }
+                compacted++;
+                assertTrue(allocated.getRegisterCount() < implementation.getRegisterCount());
+                assertEquivalent(method.toString(), implementation, allocated, parameterRegisterCount);
+            }
+        }
+        assertTrue(compacted > 0);
+    }
+
+    /**
+     * 同时执行新旧代码,每条指令读取的寄存器里必须是旧代码里同一个寄存器写入的值
+     */
+    private static void assertEquivalent(String method, MethodImplementation original, MethodImplementation allocated,
+                                         int parameterRegisterCount) {
+        final Liveness liveness = Liveness.analyze(original);
+        assertNotNull(method, liveness);
+        final List<Instruction> instructions = new ArrayList<>();
+        for (Instruction instruction : allocated.getInstructions()) {
+            instructions.add(instruction);
+        }
+        assertEquals(method, liveness.size(), instructions.size());
+
+        final int oldCount = original.getRegisterCount();
+        final int newCount = allocated.getRegisterCount();
+        final int[] map = new int[oldCount + 1];
+        Arrays.fill(map, -1);
+        for (int r = oldCount - parameterRegisterCount; r < oldCount; r++) {
+            map[r] = newCount - (oldCount - r);
+        }
+        for (int i = 0; i < liveness.size(); i++) {
+            final Instruction oldInsn = liveness.getInstructions().get(i);
+            final Instruction newInsn = instructions.get(i);
+            assertEquals(method, oldInsn.getOpcode(), newInsn.getOpcode());
+            assertEquals(method, oldInsn.getCodeUnits(), newInsn.getCodeUnits());
+            final RegisterOperands oldOps = liveness.getOperands(i);
+            final int[] oldRegs = oldOps.getRegisters();
+            final int[] newRegs = RegisterOperands.of(newInsn).getRegisters();
+            for (int j = 0; j < oldRegs.length; j++) {
+                mapRegister(method, map, oldRegs[j], newRegs[j]);
+                //宽寄存器高位
+                if (oldOps.isWide(j)) {
+                    mapRegister(method, map, oldRegs[j] + 1, newRegs[j] + 1);
+                }
+            }
+        }
+
+        //每个新寄存器里保存的是哪个旧寄存器的值,-1表示不确定
+        final int[][] states = new int[liveness.size()][];
+        final int[] entry = new int[newCount];
+        Arrays.fill(entry, -1);
+        for (int r = oldCount - parameterRegisterCount; r < oldCount; r++) {
+            entry[map[r]] = r;
+        }
+        final Deque<Integer> worklist = new ArrayDeque<>();
+        states[0] = entry;
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            final int i = worklist.poll();
+            final int[] state = states[i].clone();
+            final RegisterOperands ops = liveness.getOperands(i);
+            final BitSet uses = ops.getUses();
+            for (int u = uses.nextSetBit(0); u >= 0; u = uses.nextSetBit(u + 1)) {
+                assertEquals(method + " @" + liveness.getAddress(i) + " v" + u, u, state[map[u]]);
+            }
+            for (int h : liveness.getHandlers(i)) {
+                merge(states, h, state, worklist);
+            }
+            final BitSet defs = ops.getDefs();
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                state[map[d]] = d;
+            }
+            for (int s : liveness.getSuccessors(i)) {
+                merge(states, s, state, worklist);
+            }
+        }
+    }
+
+    private static void mapRegister(String method, int[] map, int oldRegister, int newRegister) {
+        if (map[oldRegister] < 0) {
+            map[oldRegister] = newRegister;
+        }
+        assertEquals(method + " v" + oldRegister, map[oldRegister], newRegister);
+    }
+
+    private static void merge(int[][] states, int index, int[] state, Deque<Integer> worklist) {
+        final int[] target = states[index];
+        if (target == null) {
+            states[index] = state.clone();
+            worklist.add(index);
+            return;
+        }
+        boolean changed = false;
+        for (int r = 0; r < target.length; r++) {
+            if (target[r] != state[r] && target[r] != -1) {
+                target[r] = -1;
+                changed = true;
+            }
+        }
+        if (changed) {
+            worklist.add(index);
+        }
+    }
+}
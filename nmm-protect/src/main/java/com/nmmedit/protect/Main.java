@@ -2,6 +2,8 @@ package com.nmmedit.protect;
 
 import com.nmmedit.apkprotect.ApkFolders;
 import com.nmmedit.apkprotect.ApkProtect;
+import com.nmmedit.apkprotect.NativeLibCache;
+import com.nmmedit.apkprotect.dex2c.Dex2cOptions;
 import com.nmmedit.apkprotect.dex2c.converter.instructionrewriter.RandomInstructionRewriter;
 import com.nmmedit.apkprotect.dex2c.filters.BasicKeepConfig;
 import com.nmmedit.apkprotect.dex2c.filters.ClassAndMethodFilter;
@@ -13,22 +15,51 @@ import org.jf.dexlib2.iface.Method;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 public class Main {
 
     public static void main(String[] args) throws IOException {
+        final Options options = new Options();
+        args = options.parse(args);
+        if (args.length >= 2 && "--watch".equals(args[0])) {
+            //服务模式,监听目录里新加入的apk
+            final int jobs = args.length >= 3 ? Integer.parseInt(args[2]) : 2;
+            try {
+                new ProtectService(new File(args[1]), jobs, options, createNativeLibCache()).run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         if (args.length < 1) {
             System.err.println("No Input apk.");
-            System.err.println("<inApk> ");
+            System.err.println("[options] <inApk> [mapping]");
+            System.err.println("[options] --watch <dir> [jobs]");
+            System.err.println("options:");
+            System.err.println("  --shards <n>  split generated native functions into n c files, 0 for cpu count");
+            System.err.println("  --incremental  keep opcodes and reuse code generated last time for unchanged classes");
             System.exit(-1);
         }
         final File apk = new File(args[0]);
         final File outDir = new File(apk.getParentFile(), "build");
 
+        final ClassAndMethodFilter filterConfig = createFilter(args.length == 2 ? new File(args[1]) : null);
+
+        final ApkFolders apkFolders = new ApkFolders(apk, outDir);
+
+        final ApkProtect apkProtect = createApkProtect(apkFolders, filterConfig,
+                Runtime.getRuntime().availableProcessors(), options, createNativeLibCache());
+        apkProtect.run();
+    }
 
+    static ClassAndMethodFilter createFilter(File mappingFile) throws IOException {
         ClassAndMethodFilter filterConfig = new BasicKeepConfig();
-        if (args.length == 2) {
-            final MappingReader mappingReader = new MappingReader(new File(args[1]));
+        if (mappingFile != null) {
+            final MappingReader mappingReader = new MappingReader(mappingFile);
             filterConfig = new ProguardMappingConfig(new BasicKeepConfig(), mappingReader) {
                 @Override
                 protected boolean keepClass(ClassDef classDef) {
@@ -44,17 +75,100 @@ public class Main {
                 }
             };
         }
+        return filterConfig;
+    }
 
-        final ApkFolders apkFolders = new ApkFolders(apk, outDir);
-
+    /**
+     * 每个任务都需要新建,指令重写器保存了随机opcode,不能在任务间共用
+     *
+     * @param cpus 任务可以使用的cpu数
+     */
+    static ApkProtect createApkProtect(ApkFolders apkFolders,
+                                       ClassAndMethodFilter filterConfig,
+                                       int cpus,
+                                       Options options,
+                                       NativeLibCache nativeLibCache) throws IOException {
         //apk签名验证相关，不使用
         final ApkVerifyCodeGenerator apkVerifyCodeGenerator = null;
 
-        final ApkProtect apkProtect = new ApkProtect.Builder(apkFolders)
-                .setInstructionRewriter(new RandomInstructionRewriter())
+        //增量转换需要每次使用同样的opcode,否则指令重写器改变后所有代码都要重新生成
+        final RandomInstructionRewriter instructionRewriter = options.incremental
+                ? new RandomInstructionRewriter(loadOpcodeSeed(apkFolders.getOpcodeSeedFile()))
+                : new RandomInstructionRewriter();
+
+        return new ApkProtect.Builder(apkFolders)
+                .setInstructionRewriter(instructionRewriter)
                 .setApkVerifyCodeGenerator(apkVerifyCodeGenerator)
                 .setFilter(filterConfig)
+                .setDex2cOptions(new Dex2cOptions()
+                        //多个dex同时转换
+                        .setThreads(cpus)
+                        //方法实现分到多个c文件,ninja可以并行编译,默认不分
+                        .setShards(options.shards == 0 ? cpus : options.shards)
+                        //输出目录里保存上次的转换结果,只重新生成改变的class
+                        .setIncremental(options.incremental))
+                //多个abi同时编译,总任务数和cpu数一样
+                .setNativeBuildJobs(cpus)
+                //源码及编译配置没变时直接使用上次编译的so
+                .setNativeLibCache(nativeLibCache)
                 .build();
-        apkProtect.run();
+    }
+
+    /**
+     * 命令行可选参数,放在其他参数前面
+     */
+    static class Options {
+        //生成的方法实现分成几个c文件,1表示不分,0表示和cpu数一样
+        int shards = 1;
+        //使用上次保存的opcode种子及生成的代码
+        boolean incremental;
+
+        //解析并去掉开头的可选参数,返回剩下的参数
+        String[] parse(String[] args) {
+            int i = 0;
+            while (i < args.length && args[i].startsWith("--") && !"--watch".equals(args[i])) {
+                final String option = args[i++];
+                if ("--shards".equals(option) && i < args.length) {
+                    shards = Integer.parseInt(args[i++]);
+                    if (shards < 0) {
+                        throw new IllegalArgumentException("shards < 0");
+                    }
+                } else if ("--incremental".equals(option)) {
+                    incremental = true;
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            return Arrays.copyOfRange(args, i, args.length);
+        }
+    }
+
+    //种子不存在时随机生成并保存,同一个输出目录以后都使用这个种子
+    private static long loadOpcodeSeed(File seedFile) throws IOException {
+        if (seedFile.isFile()) {
+            try {
+                return Long.parseLong(new String(Files.readAllBytes(seedFile.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException ignored) {
+                //文件损坏,重新生成
+            }
+        }
+        final long seed = new SecureRandom().nextLong();
+        final File parent = seedFile.getParentFile();
+        if (!parent.exists()) parent.mkdirs();
+        Files.write(seedFile.toPath(), Long.toString(seed).getBytes(StandardCharsets.UTF_8));
+        return seed;
+    }
+
+    private static NativeLibCache createNativeLibCache() {
+        return new NativeLibCache(getNativeLibCacheDir(), 512L * 1024 * 1024);
+    }
+
+    //缓存目录可以通过环境变量修改
+    private static File getNativeLibCacheDir() {
+        final String cacheDir = System.getenv("NMMP_CACHE_DIR");
+        if (cacheDir != null && !cacheDir.isEmpty()) {
+            return new File(cacheDir, "native-libs");
+        }
+        return new File(System.getProperty("user.home"), ".nmmp/native-libs");
     }
 }
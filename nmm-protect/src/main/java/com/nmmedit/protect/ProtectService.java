@@ -0,0 +1,165 @@
+package com.nmmedit.protect;
+
+import com.nmmedit.apkprotect.ApkFolders;
+import com.nmmedit.apkprotect.NativeLibCache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 常驻服务模式,监听目录,有新apk时加入队列处理,避免每个apk都重新启动jvm
+ * 提交apk时应先写入临时文件再重命名为.apk,防止读取到未写完的文件
+ * <p>
+ * 目录结构:
+ * watchDir/xxx.apk      待处理apk
+ * watchDir/xxx.mapping  可选的proguard mapping文件
+ * watchDir/out/xxx/     处理输出目录
+ * watchDir/done/        处理成功的apk
+ * watchDir/failed/      处理失败的apk及错误日志
+ */
+public class ProtectService {
+    private final File watchDir;
+    private final int jobs;
+    private final Job job;
+    private final ExecutorService executor;
+
+    //正在处理或排队中的apk
+    private final Set<String> running = Collections.synchronizedSet(new HashSet<>());
+
+    public ProtectService(@Nonnull File watchDir, int jobs, @Nonnull Main.Options options,
+                          @Nullable NativeLibCache nativeLibCache) {
+        this(watchDir, jobs, (apkFolders, mapping, cpus) ->
+                Main.createApkProtect(apkFolders, Main.createFilter(mapping), cpus, options, nativeLibCache).run());
+    }
+
+    ProtectService(@Nonnull File watchDir, int jobs, @Nonnull Job job) {
+        this.watchDir = watchDir;
+        this.jobs = Math.max(1, jobs);
+        this.job = job;
+        this.executor = Executors.newFixedThreadPool(this.jobs);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        if (!watchDir.exists() && !watchDir.mkdirs()) {
+            throw new IOException("Can't create " + watchDir);
+        }
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            //重命名到目录里也是ENTRY_CREATE事件
+            watchDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            //启动前已经存在的apk
+            scan();
+            System.out.println("Watching " + watchDir + ", jobs " + jobs);
+            while (true) {
+                final WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    onEvent(event.kind(), (Path) event.context());
+                }
+                if (!key.reset()) {
+                    throw new IOException(watchDir + " is no longer accessible");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    void onEvent(@Nonnull WatchEvent.Kind<?> kind, @Nullable Path path) {
+        if (kind == StandardWatchEventKinds.OVERFLOW) {
+            //事件丢失,重新扫描整个目录
+            scan();
+            return;
+        }
+        submit(new File(watchDir, path.toString()));
+    }
+
+    private void scan() {
+        final File[] files = watchDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            submit(file);
+        }
+    }
+
+    private void submit(File apk) {
+        if (!apk.isFile() || !apk.getName().endsWith(".apk")) {
+            return;
+        }
+        if (!running.add(apk.getName())) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                protect(apk);
+            } finally {
+                running.remove(apk.getName());
+            }
+        });
+    }
+
+    private void protect(File apk) {
+        final String baseName = getBaseName(apk);
+        final long start = System.currentTimeMillis();
+        System.out.println("Start " + apk.getName());
+        try {
+            //每个任务使用独立的输出目录,互不影响
+            final ApkFolders apkFolders = new ApkFolders(apk, new File(new File(watchDir, "out"), baseName));
+            final File mapping = new File(watchDir, baseName + ".mapping");
+            //cpu平均分给同时运行的任务
+            final int cpus = Math.max(1, Runtime.getRuntime().availableProcessors() / jobs);
+
+            job.protect(apkFolders, mapping.isFile() ? mapping : null, cpus);
+
+            moveTo(apk, "done");
+            if (mapping.isFile()) {
+                moveTo(mapping, "done");
+            }
+            System.out.println("Done " + apk.getName() + " " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Throwable e) {
+            System.err.println("Failed " + apk.getName() + ": " + e);
+            try {
+                final File failed = moveTo(apk, "failed");
+                try (PrintWriter writer = new PrintWriter(new File(failed.getParentFile(), baseName + ".log"), "UTF-8")) {
+                    e.printStackTrace(writer);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 处理一个apk,测试时可以替换为不需要ndk的实现
+     */
+    interface Job {
+        void protect(@Nonnull ApkFolders apkFolders, @Nullable File mapping, int cpus) throws Exception;
+    }
+
+    private File moveTo(File file, String dirName) throws IOException {
+        final File dir = new File(watchDir, dirName);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        final File dest = new File(dir, file.getName());
+        Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return dest;
+    }
+
+    private static String getBaseName(File file) {
+        final String name = file.getName();
+        final int i = name.lastIndexOf('.');
+        return i == -1 ? name : name.substring(0, i);
+    }
+}
@@ -0,0 +1,142 @@
+package com.nmmedit.protect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ProtectServiceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testWatch() throws Exception {
+        final File watchDir = tmp.newFolder("watch");
+        writeFile(new File(watchDir, "a.apk"));
+        writeFile(new File(watchDir, "a.mapping"));
+        //不是apk的文件不处理
+        writeFile(new File(watchDir, "readme.txt"));
+
+        final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+        final Map<String, File> outDirs = new ConcurrentHashMap<>();
+        final Map<String, File> mappings = new ConcurrentHashMap<>();
+        final ProtectService service = new ProtectService(watchDir, 2, (apkFolders, mapping, cpus) -> {
+            final String name = apkFolders.getInApk().getName();
+            counts.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+            outDirs.put(name, apkFolders.getOutRootDir());
+            if (mapping != null) {
+                mappings.put(name, mapping);
+            }
+            if (name.equals("bad.apk")) {
+                throw new IOException("broken apk");
+            }
+        });
+        final Thread thread = start(service);
+        try {
+            //启动前已经存在的apk
+            waitFor(() -> new File(watchDir, "done/a.apk").isFile());
+            //启动后加入的apk
+            writeFile(new File(watchDir, "b.apk"));
+            writeFile(new File(watchDir, "bad.apk"));
+            waitFor(() -> new File(watchDir, "done/b.apk").isFile() && new File(watchDir, "failed/bad.log").isFile());
+        } finally {
+            stop(thread);
+        }
+
+        for (String name : new String[]{"a.apk", "b.apk", "bad.apk"}) {
+            assertEquals(name, 1, counts.get(name).get());
+            assertFalse(name, new File(watchDir, name).exists());
+        }
+        assertEquals(3, counts.size());
+        assertEquals(new File(watchDir, "out/a"), outDirs.get("a.apk"));
+        assertEquals(new File(watchDir, "out/b"), outDirs.get("b.apk"));
+        assertEquals(new File(watchDir, "a.mapping"), mappings.get("a.apk"));
+        assertEquals(1, mappings.size());
+        assertTrue(new File(watchDir, "done/a.mapping").isFile());
+        assertTrue(new File(watchDir, "readme.txt").isFile());
+
+        assertTrue(new File(watchDir, "failed/bad.apk").isFile());
+        final String log = new String(Files.readAllBytes(new File(watchDir, "failed/bad.log").toPath()), StandardCharsets.UTF_8);
+        assertTrue(log.contains("broken apk"));
+    }
+
+    @Test
+    public void testDuplicateEvents() throws Exception {
+        final File watchDir = tmp.newFolder("watch");
+        writeFile(new File(watchDir, "a.apk"));
+
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ProtectService service = new ProtectService(watchDir, 2, (apkFolders, mapping, cpus) -> {
+            count.incrementAndGet();
+            started.countDown();
+            release.await();
+        });
+        final Thread thread = start(service);
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            //处理中的apk再次收到事件或者重新扫描都不能重复处理
+            service.onEvent(StandardWatchEventKinds.ENTRY_CREATE, Paths.get("a.apk"));
+            service.onEvent(StandardWatchEventKinds.OVERFLOW, null);
+            release.countDown();
+            waitFor(() -> new File(watchDir, "done/a.apk").isFile());
+
+            //处理完成后文件已经移走,迟到的事件会被忽略
+            service.onEvent(StandardWatchEventKinds.ENTRY_CREATE, Paths.get("a.apk"));
+            service.onEvent(StandardWatchEventKinds.OVERFLOW, null);
+
+            //丢失事件时重新扫描可以找到新加入的apk
+            writeFile(new File(watchDir, "c.apk"));
+            service.onEvent(StandardWatchEventKinds.OVERFLOW, null);
+            waitFor(() -> new File(watchDir, "done/c.apk").isFile());
+        } finally {
+            stop(thread);
+        }
+        assertEquals(2, count.get());
+    }
+
+    private static Thread start(ProtectService service) {
+        final Thread thread = new Thread(() -> {
+            try {
+                service.run();
+            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(Thread thread) throws InterruptedException {
+        thread.interrupt();
+        thread.join(TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static void writeFile(File file) throws IOException {
+        Files.write(file.toPath(), file.getName().getBytes(StandardCharsets.UTF_8));
+    }
+}
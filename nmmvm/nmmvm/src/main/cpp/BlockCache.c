@@ -0,0 +1,98 @@
+//
+// 压缩字节码块的解压及缓存
+//
+
+#include <stdlib.h>
+#include "BlockCache.h"
+
+static int readLength(const u1 **ip, const u1 *iend, size_t *length) {
+    u1 b;
+    do {
+        if (*ip >= iend) {
+            return -1;
+        }
+        b = *(*ip)++;
+        *length += b;
+    } while (b == 255);
+    return 0;
+}
+
+int lz4DecompressBlock(const u1 *src, int srcSize, u1 *dst, int dstCapacity) {
+    const u1 *ip = src;
+    const u1 *const iend = src + srcSize;
+    u1 *op = dst;
+    u1 *const oend = dst + dstCapacity;
+
+    while (ip < iend) {
+        const u1 token = *ip++;
+
+        //字面量
+        size_t length = token >> 4;
+        if (length == 15 && readLength(&ip, iend, &length)) {
+            return -1;
+        }
+        if ((size_t) (iend - ip) < length || (size_t) (oend - op) < length) {
+            return -1;
+        }
+        memcpy(op, ip, length);
+        ip += length;
+        op += length;
+
+        //最后一个序列只有字面量
+        if (ip >= iend) {
+            break;
+        }
+
+        //匹配
+        if (iend - ip < 2) {
+            return -1;
+        }
+        const size_t offset = ip[0] | (ip[1] << 8);
+        ip += 2;
+        if (offset == 0 || offset > (size_t) (op - dst)) {
+            return -1;
+        }
+        length = token & 15;
+        if (length == 15 && readLength(&ip, iend, &length)) {
+            return -1;
+        }
+        length += 4;
+        if ((size_t) (oend - op) < length) {
+            return -1;
+        }
+        const u1 *match = op - offset;
+        if (offset >= length) {
+            memcpy(op, match, length);
+            op += length;
+        } else {
+            //重叠复制,不能用memcpy
+            while (length--) {
+                *op++ = *match++;
+            }
+        }
+    }
+    return (int) (op - dst);
+}
+
+const u1 *decompressBlock(const u1 **cache, const CompressedBlock *block, const u1 *data) {
+    u1 *raw = (u1 *) malloc(block->rawSize);
+    if (raw == NULL) {
+        ALOGE("block cache: out of memory (%u bytes)", block->rawSize);
+        abort();
+    }
+    const int size = lz4DecompressBlock(data + block->offset, (int) block->size, raw, (int) block->rawSize);
+    if (UNLIKELY(size != (int) block->rawSize)) {
+        //数据是转换时生成的,出错说明so被修改
+        ALOGE("block cache: corrupt block at 0x%x", block->offset);
+        abort();
+    }
+
+    //release保证其他线程看到指针时数据已经写完,失败的线程释放自己的结果使用已发布的
+    const u1 *expected = NULL;
+    if (!__atomic_compare_exchange_n(cache, &expected, raw, false,
+                                     __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+        free(raw);
+        return expected;
+    }
+    return raw;
+}
@@ -0,0 +1,35 @@
+//
+// 压缩字节码块的解压及缓存
+//
+
+#ifndef NMMP_BLOCKCACHE_H
+#define NMMP_BLOCKCACHE_H
+
+#include "Common.h"
+
+//lz4压缩的数据块,包含多个方法的字节码及异常表
+typedef struct {
+    u4 offset;      //在压缩数据里的偏移
+    u4 size;        //压缩后大小
+    u4 rawSize;     //解压后大小
+} CompressedBlock;
+
+/*
+ * 解压lz4块格式数据(不包含帧头)
+ * 返回解压后大小,数据错误时返回-1
+ */
+int lz4DecompressBlock(const u1 *src, int srcSize, u1 *dst, int dstCapacity);
+
+//第一次加载时解压并发布到cache,多个线程同时解压只有一个结果被采用
+const u1 *decompressBlock(const u1 **cache, const CompressedBlock *block, const u1 *data);
+
+//已经解压过只需要一次acquire读
+static inline const u1 *loadBlock(const u1 **cache, const CompressedBlock *block, const u1 *data) {
+    const u1 *raw = __atomic_load_n(cache, __ATOMIC_ACQUIRE);
+    if (LIKELY(raw != NULL)) {
+        return raw;
+    }
+    return decompressBlock(cache, block, data);
+}
+
+#endif //NMMP_BLOCKCACHE_H
@@ -0,0 +1,41 @@
+//
+// 解释器寄存器帧的线程栈
+//
+
+#include <pthread.h>
+#include "FrameStack.h"
+
+__thread FrameStack gFrameStack;
+
+static pthread_key_t gFrameStackKey;
+static pthread_once_t gFrameStackOnce = PTHREAD_ONCE_INIT;
+
+//线程退出时释放栈
+static void freeFrameStack(void *base) {
+    free(base);
+    gFrameStack.base = NULL;
+    gFrameStack.top = 0;
+    gFrameStack.capacity = 0;
+}
+
+static void createFrameStackKey() {
+    pthread_key_create(&gFrameStackKey, freeFrameStack);
+}
+
+regptr_t *vmAllocFrameSlow(size_t size) {
+    FrameStack *stack = &gFrameStack;
+    if (stack->base == NULL && size <= FRAME_STACK_SIZE) {
+        pthread_once(&gFrameStackOnce, createFrameStackKey);
+        u1 *base = (u1 *) malloc(FRAME_STACK_SIZE);
+        if (base != NULL && pthread_setspecific(gFrameStackKey, base) == 0) {
+            stack->base = base;
+            stack->top = size;
+            stack->capacity = FRAME_STACK_SIZE;
+            memset(base, 0, size);
+            return (regptr_t *) base;
+        }
+        free(base);
+    }
+    //太大或者栈已经用完
+    return (regptr_t *) calloc(1, size);
+}
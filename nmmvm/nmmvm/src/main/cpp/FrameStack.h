@@ -0,0 +1,55 @@
+//
+// 解释器寄存器帧的线程栈
+//
+
+#ifndef NMMP_FRAMESTACK_H
+#define NMMP_FRAMESTACK_H
+
+#include <stdlib.h>
+#include "Common.h"
+
+//每个线程第一次使用时分配,超出部分从堆上分配
+#define FRAME_STACK_SIZE (128 * 1024)
+
+//寄存器后面跟着寄存器状态数组,一个状态一个字节,整体按寄存器大小对齐
+#define FRAME_SIZE(_regs) \
+    ((size_t) (_regs) * sizeof(regptr_t) + (((size_t) (_regs) + sizeof(regptr_t) - 1) & ~(sizeof(regptr_t) - 1)))
+
+typedef struct {
+    u1 *base;
+    size_t top;
+    size_t capacity;
+} FrameStack;
+
+extern __thread FrameStack gFrameStack;
+
+//初始化当前线程的栈,栈不够时从堆分配
+regptr_t *vmAllocFrameSlow(size_t size);
+
+/*
+ * 分配清零的寄存器及状态内存,必须按分配的相反顺序释放
+ * 方法调用本身是嵌套的,所以释放顺序总是正确的
+ */
+static inline regptr_t *vmAllocFrame(u4 registerCount) {
+    const size_t size = FRAME_SIZE(registerCount);
+    FrameStack *stack = &gFrameStack;
+    if (LIKELY(stack->capacity - stack->top >= size)) {
+        regptr_t *regs = (regptr_t *) (stack->base + stack->top);
+        stack->top += size;
+        memset(regs, 0, size);
+        return regs;
+    }
+    return vmAllocFrameSlow(size);
+}
+
+static inline void vmFreeFrame(regptr_t *regs) {
+    FrameStack *stack = &gFrameStack;
+    const uintptr_t offset = (uintptr_t) regs - (uintptr_t) stack->base;
+    if (LIKELY(offset < stack->capacity)) {
+        stack->top = offset;
+    } else {
+        free(regs);
+    }
+}
+
+#endif //NMMP_FRAMESTACK_H
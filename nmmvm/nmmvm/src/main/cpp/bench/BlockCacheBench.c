@@ -0,0 +1,153 @@
+//
+// 压缩字节码块第一次加载(解压)和之后加载的延迟对比,同时检查多线程同时加载只发布一个结果
+// 用ndk编译后push到设备上运行:
+// aarch64-linux-android21-clang -O2 -I.. -I../vm/include BlockCacheBench.c ../BlockCache.c -llog -o BlockCacheBench
+//
+
+#include <pthread.h>
+#include <stdlib.h>
+#include <time.h>
+#include "BlockCache.h"
+
+#define BLOCK_SIZE (32 * 1024)
+#define BLOCK_COUNT 256
+#define STEADY_LOOPS 20000000
+#define THREADS 8
+
+static double nowNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+//类似字节码的数据,由少量指令片段组合并随机修改寄存器,压缩率和真实dex接近
+static void fillBytecode(u1 *buf, int size) {
+    static const u1 opcodes[] = {0x12, 0x1a, 0x22, 0x38, 0x54, 0x5b, 0x6e, 0x70, 0x0c, 0x0a, 0x0e, 0x28, 0x71, 0xd8};
+    u1 snippets[64][24];
+    srand(1);
+    for (int i = 0; i < 64; i++) {
+        for (int j = 0; j < 24; j += 2) {
+            snippets[i][j] = opcodes[rand() % sizeof(opcodes)];
+            snippets[i][j + 1] = (u1) rand();
+        }
+    }
+    for (int i = 0; i < size; i += 2) {
+        const u1 *snippet = snippets[rand() % 64];
+        const int length = MIN(4 + (rand() % 10) * 2, size - i);
+        memcpy(buf + i, snippet, length);
+        if (rand() % 2) {
+            buf[i + 1] = (u1) (rand() % 16);
+        }
+        i += length - 2;
+    }
+}
+
+//和转换器里Lz4Block.compress一样的贪心压缩
+static int compress(const u1 *src, int length, u1 *dst) {
+    static int table[1 << 14];
+    int dp = 0, anchor = 0, sp = 0;
+    memset(table, -1, sizeof(table));
+    while (length >= 13 && sp < length - 12) {
+        u4 seq;
+        memcpy(&seq, src + sp, 4);
+        const u4 h = (seq * 2654435761u) >> 18;
+        int ref = table[h];
+        table[h] = sp;
+        if (ref < 0 || sp - ref > 0xffff || memcmp(src + ref, src + sp, 4) != 0) {
+            sp++;
+            continue;
+        }
+        int matchLength = 4;
+        while (sp + matchLength < length - 5 && src[sp + matchLength] == src[ref + matchLength]) {
+            matchLength++;
+        }
+        const int tokenPos = dp++;
+        int literalLength = sp - anchor;
+        dst[tokenPos] = (u1) ((literalLength >= 15 ? 15 : literalLength) << 4);
+        if (literalLength >= 15) {
+            for (literalLength -= 15; literalLength >= 255; literalLength -= 255) dst[dp++] = 255;
+            dst[dp++] = (u1) literalLength;
+        }
+        memcpy(dst + dp, src + anchor, sp - anchor);
+        dp += sp - anchor;
+        dst[dp++] = (u1) (sp - ref);
+        dst[dp++] = (u1) ((sp - ref) >> 8);
+        int ml = matchLength - 4;
+        dst[tokenPos] |= (u1) (ml >= 15 ? 15 : ml);
+        if (ml >= 15) {
+            for (ml -= 15; ml >= 255; ml -= 255) dst[dp++] = 255;
+            dst[dp++] = (u1) ml;
+        }
+        sp += matchLength;
+        anchor = sp;
+    }
+    int literalLength = length - anchor;
+    dst[dp++] = (u1) ((literalLength >= 15 ? 15 : literalLength) << 4);
+    if (literalLength >= 15) {
+        for (literalLength -= 15; literalLength >= 255; literalLength -= 255) dst[dp++] = 255;
+        dst[dp++] = (u1) literalLength;
+    }
+    memcpy(dst + dp, src + anchor, length - anchor);
+    return dp + length - anchor;
+}
+
+static u1 gRaw[BLOCK_SIZE];
+static u1 gData[BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+static CompressedBlock gBlock;
+static const u1 *gCache[BLOCK_COUNT];
+static const u1 *gRaceCache;
+static const u1 *gRaceResults[THREADS];
+
+static void *raceLoad(void *arg) {
+    gRaceResults[(long) arg] = loadBlock(&gRaceCache, &gBlock, gData);
+    return NULL;
+}
+
+int main() {
+    fillBytecode(gRaw, BLOCK_SIZE);
+    gBlock.offset = 0;
+    gBlock.size = (u4) compress(gRaw, BLOCK_SIZE, gData);
+    gBlock.rawSize = BLOCK_SIZE;
+    printf("block %d bytes, compressed %u bytes\n", BLOCK_SIZE, gBlock.size);
+
+    //第一次加载,每个缓存槽只加载一次
+    double start = nowNs();
+    for (int i = 0; i < BLOCK_COUNT; i++) {
+        loadBlock(&gCache[i], &gBlock, gData);
+    }
+    const double firstNs = (nowNs() - start) / BLOCK_COUNT;
+    for (int i = 0; i < BLOCK_COUNT; i++) {
+        if (memcmp(gCache[i], gRaw, BLOCK_SIZE) != 0) {
+            printf("decompress mismatch at block %d\n", i);
+            return 1;
+        }
+    }
+
+    //稳定状态,块已经解压
+    uintptr_t sum = 0;
+    start = nowNs();
+    for (int i = 0; i < STEADY_LOOPS; i++) {
+        sum += (uintptr_t) loadBlock(&gCache[i % BLOCK_COUNT], &gBlock, gData);
+    }
+    const double steadyNs = (nowNs() - start) / STEADY_LOOPS;
+
+    printf("first call: %.1f us per block\n", firstNs / 1000);
+    printf("steady state: %.2f ns per call (%lx)\n", steadyNs, (unsigned long) (sum & 0xf));
+
+    //多个线程同时第一次加载,必须得到同一个块
+    pthread_t threads[THREADS];
+    for (long i = 0; i < THREADS; i++) {
+        pthread_create(&threads[i], NULL, raceLoad, (void *) i);
+    }
+    for (int i = 0; i < THREADS; i++) {
+        pthread_join(threads[i], NULL);
+    }
+    for (int i = 1; i < THREADS; i++) {
+        if (gRaceResults[i] != gRaceResults[0]) {
+            printf("race: thread %d got a different block\n", i);
+            return 1;
+        }
+    }
+    printf("race: %d threads share one block\n", THREADS);
+    return 0;
+}
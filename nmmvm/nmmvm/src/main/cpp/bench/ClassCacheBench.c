@@ -0,0 +1,135 @@
+//
+// new-instance循环里每次FindClass和使用class全局引用表的耗时对比,同时检查多线程同时解析只发布一个全局引用
+// 解析代码和生成的resolver里dvmResolveClass一样,只是类型名直接写在表里
+// 需要jni运行环境,在主机上用jdk编译运行:
+// gcc -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux ClassCacheBench.c -L$JAVA_HOME/lib/server -ljvm -lpthread -o ClassCacheBench
+// LD_LIBRARY_PATH=$JAVA_HOME/lib/server ./ClassCacheBench
+//
+
+#include <jni.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <time.h>
+
+#define LOOPS 2000000
+#define THREADS 8
+
+static const char *const gClassNames[] = {
+        "java/util/ArrayList",
+        "java/lang/StringBuilder",
+        "java/util/HashMap",
+        "java/lang/Object",
+};
+#define CLASS_COUNT (sizeof(gClassNames) / sizeof(gClassNames[0]))
+
+static jclass gClasses[CLASS_COUNT];
+
+static JavaVM *gJvm;
+
+static double nowNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+//原来的解析,每次返回新的本地引用
+static jclass findClass(JNIEnv *env, unsigned int idx) {
+    return (*env)->FindClass(env, gClassNames[idx]);
+}
+
+static jclass publishClass(JNIEnv *env, jclass *slot, jclass clazz) {
+    jclass global = (jclass) (*env)->NewGlobalRef(env, clazz);
+    (*env)->DeleteLocalRef(env, clazz);
+    if (global == NULL) {
+        return NULL;
+    }
+    jclass expected = NULL;
+    if (!__atomic_compare_exchange_n(slot, &expected, global, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {
+        (*env)->DeleteGlobalRef(env, global);
+        return expected;
+    }
+    return global;
+}
+
+//使用全局引用表,返回的引用不需要释放
+static jclass resolveClass(JNIEnv *env, unsigned int idx) {
+    jclass clazz = __atomic_load_n(&gClasses[idx], __ATOMIC_ACQUIRE);
+    if (clazz != NULL) {
+        return clazz;
+    }
+    clazz = (*env)->FindClass(env, gClassNames[idx]);
+    if (clazz == NULL) {
+        return NULL;
+    }
+    return publishClass(env, &gClasses[idx], clazz);
+}
+
+//和解释器里new-instance一样,创建的对象放入寄存器,寄存器被覆盖时释放
+static double newInstanceLoop(JNIEnv *env, bool cached) {
+    const double start = nowNs();
+    for (int i = 0; i < LOOPS; i++) {
+        const unsigned int idx = (unsigned int) i % CLASS_COUNT;
+        jobject obj;
+        if (cached) {
+            obj = (*env)->AllocObject(env, resolveClass(env, idx));
+        } else {
+            jclass clazz = findClass(env, idx);
+            obj = (*env)->AllocObject(env, clazz);
+            (*env)->DeleteLocalRef(env, clazz);
+        }
+        (*env)->DeleteLocalRef(env, obj);
+    }
+    return (nowNs() - start) / LOOPS;
+}
+
+static jclass gRaceResults[THREADS];
+static jclass gRaceSlot;
+
+static void *raceResolve(void *arg) {
+    JNIEnv *env;
+    (*gJvm)->AttachCurrentThread(gJvm, (void **) &env, NULL);
+    jclass clazz = (*env)->FindClass(env, gClassNames[0]);
+    gRaceResults[(long) arg] = publishClass(env, &gRaceSlot, clazz);
+    (*gJvm)->DetachCurrentThread(gJvm);
+    return NULL;
+}
+
+int main() {
+    JavaVMInitArgs args;
+    args.version = JNI_VERSION_1_6;
+    args.nOptions = 0;
+    args.options = NULL;
+    args.ignoreUnrecognized = JNI_TRUE;
+    JNIEnv *env;
+    if (JNI_CreateJavaVM(&gJvm, (void **) &env, &args) != JNI_OK) {
+        printf("create jvm failed\n");
+        return 1;
+    }
+
+    //预热,类都已经加载
+    newInstanceLoop(env, false);
+    newInstanceLoop(env, true);
+
+    const double findNs = newInstanceLoop(env, false);
+    const double cachedNs = newInstanceLoop(env, true);
+    printf("new-instance with FindClass: %.1f ns per op\n", findNs);
+    printf("new-instance with class table: %.1f ns per op (%.1fx)\n", cachedNs, findNs / cachedNs);
+
+    //多个线程同时第一次解析,必须得到同一个全局引用
+    pthread_t threads[THREADS];
+    for (long i = 0; i < THREADS; i++) {
+        pthread_create(&threads[i], NULL, raceResolve, (void *) i);
+    }
+    for (int i = 0; i < THREADS; i++) {
+        pthread_join(threads[i], NULL);
+    }
+    for (int i = 0; i < THREADS; i++) {
+        if (gRaceResults[i] != gRaceSlot) {
+            printf("race: thread %d got a different reference\n", i);
+            return 1;
+        }
+    }
+    printf("race: %d threads share one global reference\n", THREADS);
+    return 0;
+}
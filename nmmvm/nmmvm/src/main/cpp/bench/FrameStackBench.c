@@ -0,0 +1,151 @@
+//
+// 寄存器帧用calloc/free分配和使用线程帧栈分配的耗时对比,分别测试16和64个寄存器的方法
+// 同时检查嵌套分配,清零,超大帧及线程退出
+// 用ndk编译后push到设备上运行:
+// aarch64-linux-android21-clang -O2 -I.. -I../vm/include FrameStackBench.c ../FrameStack.c -llog -o FrameStackBench
+//
+
+#include <pthread.h>
+#include <stdlib.h>
+#include <time.h>
+#include "FrameStack.h"
+
+#define LOOPS 10000000
+#define DEPTH 32
+#define THREADS 8
+
+static double nowNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+//原来生成的代码
+static regptr_t *callocFrame(u4 registerCount) {
+    const u2 flags_count = registerCount / sizeof(regptr_t) + ((registerCount % sizeof(regptr_t)) ? 1 : 0);
+    return (regptr_t *) calloc(registerCount, sizeof(regptr_t) + flags_count);
+}
+
+//模拟解释器使用寄存器,防止分配被优化掉
+__attribute__((noinline)) static regptr_t useFrame(regptr_t *regs, u4 registerCount) {
+    u1 *reg_flags = ((u1 *) regs) + registerCount * sizeof(regptr_t);
+    regs[registerCount - 1] = registerCount;
+    reg_flags[registerCount - 1] = 1;
+    return regs[0] + regs[registerCount - 1] + reg_flags[0];
+}
+
+//单层调用
+static double flatLoop(u4 registerCount, bool arena, regptr_t *sink) {
+    const double start = nowNs();
+    for (int i = 0; i < LOOPS; i++) {
+        regptr_t *regs = arena ? vmAllocFrame(registerCount) : callocFrame(registerCount);
+        *sink += useFrame(regs, registerCount);
+        if (arena) {
+            vmFreeFrame(regs);
+        } else {
+            free(regs);
+        }
+    }
+    return (nowNs() - start) / LOOPS;
+}
+
+//递归调用,每层一个帧
+static regptr_t recurse(u4 registerCount, bool arena, int depth) {
+    regptr_t *regs = arena ? vmAllocFrame(registerCount) : callocFrame(registerCount);
+    regptr_t result = useFrame(regs, registerCount);
+    if (depth > 1) {
+        result += recurse(registerCount, arena, depth - 1);
+    }
+    if (arena) {
+        vmFreeFrame(regs);
+    } else {
+        free(regs);
+    }
+    return result;
+}
+
+static double recursiveLoop(u4 registerCount, bool arena, regptr_t *sink) {
+    const int loops = LOOPS / DEPTH;
+    const double start = nowNs();
+    for (int i = 0; i < loops; i++) {
+        *sink += recurse(registerCount, arena, DEPTH);
+    }
+    return (nowNs() - start) / ((double) loops * DEPTH);
+}
+
+static bool isZero(const regptr_t *regs, u4 registerCount) {
+    const u1 *p = (const u1 *) regs;
+    for (size_t i = 0; i < FRAME_SIZE(registerCount); i++) {
+        if (p[i] != 0) {
+            return false;
+        }
+    }
+    return true;
+}
+
+static bool checkFrames() {
+    regptr_t *a = vmAllocFrame(16);
+    memset(a, 0xff, FRAME_SIZE(16));
+    regptr_t *b = vmAllocFrame(64);
+    if ((u1 *) b != (u1 *) a + FRAME_SIZE(16) || !isZero(b, 64)) {
+        return false;
+    }
+    //超过栈大小从堆分配
+    regptr_t *big = vmAllocFrame(FRAME_STACK_SIZE / sizeof(regptr_t));
+    const uintptr_t offset = (uintptr_t) big - (uintptr_t) gFrameStack.base;
+    if (offset < gFrameStack.capacity || !isZero(big, FRAME_STACK_SIZE / sizeof(regptr_t))) {
+        return false;
+    }
+    vmFreeFrame(big);
+    vmFreeFrame(b);
+    vmFreeFrame(a);
+    //释放后重新分配得到同一块内存,并且已经清零
+    regptr_t *c = vmAllocFrame(16);
+    const bool ok = c == a && isZero(c, 16) && gFrameStack.top == FRAME_SIZE(16);
+    vmFreeFrame(c);
+    return ok && gFrameStack.top == 0;
+}
+
+//线程退出时释放自己的栈
+static void *threadFrames(void *arg) {
+    regptr_t sink = 0;
+    *(bool *) arg = checkFrames();
+    flatLoop(64, true, &sink);
+    return NULL;
+}
+
+int main() {
+    regptr_t sink = 0;
+    static const u4 registerCounts[] = {16, 64};
+    for (int i = 0; i < 2; i++) {
+        const u4 count = registerCounts[i];
+        //预热
+        flatLoop(count, false, &sink);
+        flatLoop(count, true, &sink);
+
+        const double callocNs = flatLoop(count, false, &sink);
+        const double arenaNs = flatLoop(count, true, &sink);
+        printf("%u registers: calloc %.1f ns, frame stack %.1f ns (%.1fx)\n",
+               count, callocNs, arenaNs, callocNs / arenaNs);
+
+        const double callocRecNs = recursiveLoop(count, false, &sink);
+        const double arenaRecNs = recursiveLoop(count, true, &sink);
+        printf("%u registers, recursion depth %d: calloc %.1f ns, frame stack %.1f ns per frame (%.1fx)\n",
+               count, DEPTH, callocRecNs, arenaRecNs, callocRecNs / arenaRecNs);
+    }
+
+    pthread_t threads[THREADS];
+    bool results[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+        pthread_create(&threads[i], NULL, threadFrames, &results[i]);
+    }
+    for (int i = 0; i < THREADS; i++) {
+        pthread_join(threads[i], NULL);
+        if (!results[i]) {
+            printf("check: thread %d failed\n", i);
+            return 1;
+        }
+    }
+    printf("check: nested, oversize and per-thread frames ok (%llu)\n", (unsigned long long) sink);
+    return 0;
+}
@@ -0,0 +1,300 @@
+//
+// tests/omnibus里IntMath.jlmTests和FloatMath.jlmTests用到的Math方法,用jni调用和解释器内部实现的耗时对比
+// 同时用边界值(NaN,-0.0,MIN_VALUE等)检查每个内部实现和java方法的结果一致
+// 需要jni运行环境,在主机上用jdk编译运行,主机没有android/log.h,$STUB目录里放一个只定义了用到的宏的android/log.h:
+// g++ -O2 -I$STUB -I.. -I../vm -I../vm/include -I$JAVA_HOME/include -I$JAVA_HOME/include/linux IntrinsicsBench.cpp -L$JAVA_HOME/lib/server -ljvm -o IntrinsicsBench
+// LD_LIBRARY_PATH=$JAVA_HOME/lib/server ./IntrinsicsBench
+//
+
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include "Intrinsics.h"
+
+#define LOOPS 2000000
+
+typedef struct {
+    const char *className;
+    const char *name;
+    const char *sig;
+    u1 intrinsic;
+    bool isStatic;
+} IntrinsicMethod;
+
+//和Intrinsics.java里的表对应
+static const IntrinsicMethod gMethods[] = {
+        {"java/lang/Math",    "abs",                   "(I)I",   VM_INTRINSIC_MATH_ABS_I,              true},
+        {"java/lang/Math",    "abs",                   "(J)J",   VM_INTRINSIC_MATH_ABS_J,              true},
+        {"java/lang/Math",    "abs",                   "(F)F",   VM_INTRINSIC_MATH_ABS_F,              true},
+        {"java/lang/Math",    "abs",                   "(D)D",   VM_INTRINSIC_MATH_ABS_D,              true},
+        {"java/lang/Math",    "min",                   "(II)I",  VM_INTRINSIC_MATH_MIN_II,             true},
+        {"java/lang/Math",    "min",                   "(JJ)J",  VM_INTRINSIC_MATH_MIN_JJ,             true},
+        {"java/lang/Math",    "min",                   "(FF)F",  VM_INTRINSIC_MATH_MIN_FF,             true},
+        {"java/lang/Math",    "min",                   "(DD)D",  VM_INTRINSIC_MATH_MIN_DD,             true},
+        {"java/lang/Math",    "max",                   "(II)I",  VM_INTRINSIC_MATH_MAX_II,             true},
+        {"java/lang/Math",    "max",                   "(JJ)J",  VM_INTRINSIC_MATH_MAX_JJ,             true},
+        {"java/lang/Math",    "max",                   "(FF)F",  VM_INTRINSIC_MATH_MAX_FF,             true},
+        {"java/lang/Math",    "max",                   "(DD)D",  VM_INTRINSIC_MATH_MAX_DD,             true},
+        {"java/lang/Math",    "sqrt",                  "(D)D",   VM_INTRINSIC_MATH_SQRT,               true},
+        {"java/lang/Float",   "floatToRawIntBits",     "(F)I",   VM_INTRINSIC_FLOAT_TO_RAW_INT_BITS,   true},
+        {"java/lang/Float",   "floatToIntBits",        "(F)I",   VM_INTRINSIC_FLOAT_TO_INT_BITS,       true},
+        {"java/lang/Float",   "intBitsToFloat",        "(I)F",   VM_INTRINSIC_INT_BITS_TO_FLOAT,       true},
+        {"java/lang/Float",   "isNaN",                 "(F)Z",   VM_INTRINSIC_FLOAT_IS_NAN,            true},
+        {"java/lang/Double",  "doubleToRawLongBits",   "(D)J",   VM_INTRINSIC_DOUBLE_TO_RAW_LONG_BITS, true},
+        {"java/lang/Double",  "doubleToLongBits",      "(D)J",   VM_INTRINSIC_DOUBLE_TO_LONG_BITS,     true},
+        {"java/lang/Double",  "longBitsToDouble",      "(J)D",   VM_INTRINSIC_LONG_BITS_TO_DOUBLE,     true},
+        {"java/lang/Double",  "isNaN",                 "(D)Z",   VM_INTRINSIC_DOUBLE_IS_NAN,           true},
+        {"java/lang/Integer", "bitCount",              "(I)I",   VM_INTRINSIC_INTEGER_BIT_COUNT,       true},
+        {"java/lang/Integer", "numberOfLeadingZeros",  "(I)I",   VM_INTRINSIC_INTEGER_LEADING_ZEROS,   true},
+        {"java/lang/Integer", "numberOfTrailingZeros", "(I)I",   VM_INTRINSIC_INTEGER_TRAILING_ZEROS,  true},
+        {"java/lang/Long",    "bitCount",              "(J)I",   VM_INTRINSIC_LONG_BIT_COUNT,          true},
+        {"java/lang/Long",    "numberOfLeadingZeros",  "(J)I",   VM_INTRINSIC_LONG_LEADING_ZEROS,      true},
+        {"java/lang/Long",    "numberOfTrailingZeros", "(J)I",   VM_INTRINSIC_LONG_TRAILING_ZEROS,     true},
+        {"java/lang/String",  "length",                "()I",    VM_INTRINSIC_STRING_LENGTH,           false},
+        {"java/lang/String",  "isEmpty",               "()Z",    VM_INTRINSIC_STRING_IS_EMPTY,         false},
+        {"java/lang/String",  "charAt",                "(I)C",   VM_INTRINSIC_STRING_CHAR_AT,          false},
+};
+#define METHOD_COUNT (sizeof(gMethods) / sizeof(gMethods[0]))
+
+static const u4 gFloatBits[] = {
+        0x00000000, 0x80000000, 0x3f800000, 0xbf800000, 0x40a00000, 0xc0a00000, 0x00000001, 0x7f7fffff,
+        0x7f800000, 0xff800000, 0x7fc00000, 0xffc00000, 0x7f800001, 0x7fbfffff,
+};
+static const u8 gDoubleBits[] = {
+        0x0000000000000000ull, 0x8000000000000000ull, 0x3ff0000000000000ull, 0xbff0000000000000ull,
+        0x4014000000000000ull, 0xc014000000000000ull, 0x0000000000000001ull, 0x7fefffffffffffffull,
+        0x7ff0000000000000ull, 0xfff0000000000000ull, 0x7ff8000000000000ull, 0xfff8000000000000ull,
+        0x7ff0000000000001ull, 0x4000000000000000ull,
+};
+static const jint gInts[] = {0, 1, -1, 5, -5, 0x7fffffff, (jint) 0x80000000, 0x00f0f000, 12345678};
+static const jlong gLongs[] = {0, 1, -1, 5, -5, 0x7fffffffffffffffll, (jlong) 0x8000000000000000ull,
+                               0x0000f0f000000000ll, 1234567890123ll};
+
+#define ARRAY_SIZE(_a) (sizeof(_a) / sizeof((_a)[0]))
+
+static double nowNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+//解释器里invoke-static/invoke-virtual按返回类型调用的jni方法
+static jvalue callJni(JNIEnv *env, jclass clazz, jmethodID mid, bool isStatic, jobject thiz, char returnType,
+                      const jvalue *args) {
+    jvalue ret;
+    ret.j = 0;
+    switch (returnType) {
+        case 'Z':
+            ret.i = isStatic ? env->CallStaticBooleanMethodA(clazz, mid, args) : env->CallBooleanMethodA(thiz, mid, args);
+            break;
+        case 'C':
+            ret.i = isStatic ? env->CallStaticCharMethodA(clazz, mid, args) : env->CallCharMethodA(thiz, mid, args);
+            break;
+        case 'I':
+            ret.i = isStatic ? env->CallStaticIntMethodA(clazz, mid, args) : env->CallIntMethodA(thiz, mid, args);
+            break;
+        case 'J':
+            ret.j = env->CallStaticLongMethodA(clazz, mid, args);
+            break;
+        case 'F':
+            ret.f = env->CallStaticFloatMethodA(clazz, mid, args);
+            break;
+        case 'D':
+            ret.d = env->CallStaticDoubleMethodA(clazz, mid, args);
+            break;
+        default:;
+    }
+    return ret;
+}
+
+//两个NaN的符号及负载位可能不同,java里只能用raw bits区分,这里只要求都是NaN
+static bool sameResult(char returnType, jvalue a, jvalue b) {
+    switch (returnType) {
+        case 'F':
+            return a.i == b.i || (floatIsNaN(a.i) && floatIsNaN(b.i));
+        case 'D':
+            return a.j == b.j || (doubleIsNaN(a.j) && doubleIsNaN(b.j));
+        case 'J':
+            return a.j == b.j;
+        default:
+            return a.i == b.i;
+    }
+}
+
+//按参数类型生成第n组参数,两个参数时取两个边界值的组合
+static int fillArgs(char type, int argc, int n, jvalue *args) {
+    int count;
+    switch (type) {
+        case 'I':
+            count = ARRAY_SIZE(gInts);
+            break;
+        case 'J':
+            count = ARRAY_SIZE(gLongs);
+            break;
+        case 'F':
+            count = ARRAY_SIZE(gFloatBits);
+            break;
+        default:
+            count = ARRAY_SIZE(gDoubleBits);
+    }
+    const int total = argc == 2 ? count * count : count;
+    if (n >= total) {
+        return 0;
+    }
+    for (int i = 0; i < argc; i++) {
+        const int idx = i == 0 ? n % count : n / count;
+        switch (type) {
+            case 'I':
+                args[i].i = gInts[idx];
+                break;
+            case 'J':
+                args[i].j = gLongs[idx];
+                break;
+            case 'F':
+                args[i].i = (jint) gFloatBits[idx];
+                break;
+            default:
+                args[i].j = (jlong) gDoubleBits[idx];
+        }
+    }
+    return total;
+}
+
+static bool checkMethod(JNIEnv *env, const IntrinsicMethod *method, jclass clazz, jmethodID mid, jstring str) {
+    const char *sig = method->sig;
+    const char returnType = strchr(sig, ')')[1];
+    const int argc = (int) (strchr(sig, ')') - sig - 1);
+    jvalue args[2];
+    if (!method->isStatic) {
+        //charAt在范围内的每个位置,越界时交给java方法抛出异常
+        const jint length = env->GetStringLength(str);
+        for (jint index = -1; index <= length; index++) {
+            args[0].i = index;
+            jvalue expected = callJni(env, clazz, mid, false, str, returnType, args);
+            const bool thrown = env->ExceptionCheck();
+            env->ExceptionClear();
+            jvalue actual;
+            actual.j = 0;
+            const bool handled = dvmInvokeIntrinsic(env, method->intrinsic, str, args, &actual);
+            if (handled == thrown || (handled && !sameResult(returnType, expected, actual))) {
+                printf("check: %s.%s%s index %d differs\n", method->className, method->name, sig, index);
+                return false;
+            }
+            if (argc == 0) {
+                break;
+            }
+        }
+        return true;
+    }
+    for (int n = 0; fillArgs(sig[1], argc, n, args) != 0; n++) {
+        const jvalue expected = callJni(env, clazz, mid, true, NULL, returnType, args);
+        jvalue actual;
+        actual.j = 0;
+        if (!dvmInvokeIntrinsic(env, method->intrinsic, NULL, args, &actual)
+            || !sameResult(returnType, expected, actual)) {
+            printf("check: %s.%s%s args %llx %llx differs\n", method->className, method->name, sig,
+                   (unsigned long long) args[0].j, (unsigned long long) (argc == 2 ? args[1].j : 0));
+            return false;
+        }
+    }
+    return true;
+}
+
+//jlmTests里的调用:abs,min,max及sqrt,参数和测试里一样
+static double jlmLoop(JNIEnv *env, jclass math, const jmethodID *mids, bool intrinsic, double *sink) {
+    jvalue args[2];
+    jvalue ret;
+    const double start = nowNs();
+    for (int i = 0; i < LOOPS; i++) {
+        const int op = i % 13;
+        const IntrinsicMethod *method = &gMethods[op];
+        switch (method->sig[1]) {
+            case 'I':
+                args[0].i = i & 1 ? 123456789 : -123456789;
+                args[1].i = -5;
+                break;
+            case 'J':
+                args[0].j = i & 1 ? 0x1122334455667788ll : -0x1122334455667788ll;
+                args[1].j = -5;
+                break;
+            case 'F':
+                args[0].f = i & 1 ? 1.0f : -1.0f;
+                args[1].f = -5.0f;
+                break;
+            default:
+                args[0].d = i & 1 ? 2.0 : 1.0;
+                args[1].d = -5.0;
+        }
+        if (!intrinsic || !dvmInvokeIntrinsic(env, method->intrinsic, NULL, args, &ret)) {
+            ret = callJni(env, math, mids[op], true, NULL, strchr(method->sig, ')')[1], args);
+        }
+        *sink += ret.i;
+    }
+    return (nowNs() - start) / LOOPS;
+}
+
+int main() {
+    JavaVM *jvm;
+    JNIEnv *env;
+    JavaVMInitArgs vmArgs;
+    vmArgs.version = JNI_VERSION_1_6;
+    vmArgs.nOptions = 0;
+    vmArgs.options = NULL;
+    vmArgs.ignoreUnrecognized = JNI_TRUE;
+    if (JNI_CreateJavaVM(&jvm, (void **) &env, &vmArgs) != JNI_OK) {
+        printf("create jvm failed\n");
+        return 1;
+    }
+
+    jclass classes[METHOD_COUNT];
+    jmethodID mids[METHOD_COUNT];
+    jstring strings[] = {env->NewStringUTF(""), env->NewStringUTF("IntMath.jlmTests \xe4\xb8\xad")};
+    for (size_t i = 0; i < METHOD_COUNT; i++) {
+        const IntrinsicMethod *method = &gMethods[i];
+        classes[i] = env->FindClass(method->className);
+        mids[i] = method->isStatic ? env->GetStaticMethodID(classes[i], method->name, method->sig)
+                                   : env->GetMethodID(classes[i], method->name, method->sig);
+        if (mids[i] == NULL) {
+            printf("check: %s.%s%s not found\n", method->className, method->name, method->sig);
+            return 1;
+        }
+        for (size_t s = 0; s < ARRAY_SIZE(strings); s++) {
+            if (!checkMethod(env, method, classes[i], mids[i], strings[s])) {
+                return 1;
+            }
+            if (method->isStatic) {
+                break;
+            }
+        }
+    }
+    printf("check: %zu intrinsics match java results\n", METHOD_COUNT);
+
+    double sink = 0;
+    //预热
+    jlmLoop(env, classes[0], mids, false, &sink);
+    jlmLoop(env, classes[0], mids, true, &sink);
+
+    const double jniNs = jlmLoop(env, classes[0], mids, false, &sink);
+    const double intrinsicNs = jlmLoop(env, classes[0], mids, true, &sink);
+    printf("jlmTests Math calls with jni: %.1f ns per call\n", jniNs);
+    printf("jlmTests Math calls as intrinsics: %.1f ns per call (%.1fx) (%g)\n", intrinsicNs, jniNs / intrinsicNs, sink);
+
+    //String.charAt按字符遍历
+    const jint length = env->GetStringLength(strings[1]);
+    for (int intrinsic = 0; intrinsic < 2; intrinsic++) {
+        const double start = nowNs();
+        jint sum = 0;
+        for (int i = 0; i < LOOPS; i++) {
+            jvalue args[1];
+            jvalue ret;
+            args[0].i = i % length;
+            if (!intrinsic || !dvmInvokeIntrinsic(env, VM_INTRINSIC_STRING_CHAR_AT, strings[1], args, &ret)) {
+                ret.i = env->CallCharMethodA(strings[1], mids[METHOD_COUNT - 1], args);
+            }
+            sum += ret.i;
+        }
+        printf("String.charAt %s: %.1f ns per call (%d)\n", intrinsic ? "as intrinsic" : "with jni",
+               (nowNs() - start) / LOOPS, sum);
+    }
+    return 0;
+}
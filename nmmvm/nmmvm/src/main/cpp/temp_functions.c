@@ -5,6 +5,7 @@
 #include <string.h>
 #include "vm.h"
 #include "Common.h"
+#include "FrameStack.h"
 
 #include "temp_resolver.c"
 
@@ -48,9 +49,7 @@ Java_retrofit2_b_a__Ljava_lang_Object_2Ljava_lang_String_2_Ljava_lang_Object_2(J
         reg_flags[0] = 1;
         reg_flags[1] = 1;
     } else {
-        const u2 flags_count =
-                reg_count / sizeof(regptr_t) + (reg_count % sizeof(reg_count)) ? 1 : 0;
-        regptr_t *regs = calloc(reg_count, sizeof(regptr_t) + flags_count);
+        regptr_t *regs = vmAllocFrame(reg_count);
         u1 *reg_flags = ((u1 *) regs) + reg_count * sizeof(regptr_t);
     }
 
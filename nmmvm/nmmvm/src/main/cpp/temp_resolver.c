@@ -1,7 +1,7 @@
 #include "GlobalCache.h"
 #include "ConstantPool.h"
 #include <stdatomic.h>
-#include <pthread.h>
+#include <stdlib.h>
 
 //解析器示例,代码模板, 处理程序解析dex并根据它的结构体之类生成完整解析器
 
@@ -72,15 +72,18 @@ static const MethodId gMethodIds[] = {
 
 static vmMethod gMethods[199];
 
-//字符串常量缓存,缓存索引,然后使用二分法查找到数组位置创建String对象
-static const u4 gStringConstantIds[] = {};//使用处理程序初始化
+//字符串常量缓存,字符串索引直接对应缓存位置,0表示不缓存
+static const u2 gStringSlots[] = {};//使用处理程序初始化
 static jstring gStringConstants[99];
 
 
+static jclass gClasses[1];
+
 static void resolver_init(JNIEnv *env) {
     memset(gFields, 0, sizeof(gFields));
     memset(gMethods, 0, sizeof(gMethods));
     memset(gStringConstants, 0, sizeof(gStringConstants));
+    memset(gClasses, 0, sizeof(gClasses));
 }
 
 #define STRING_BY_ID(_idx) ((const char *) (gBaseStrPtr + gStringIds[_idx].off))
@@ -113,21 +116,55 @@ static void vmThrowNoSuchMethodError(JNIEnv *env, const char *msg) {
     (*env)->ThrowNew(env, gVm.exNoSuchMethodError, msg);
 }
 
+//本地引用转为全局引用放入缓存,多个线程同时解析时只保留先放入的
+static jclass publishClass(JNIEnv *env, jclass *slot, jclass clazz) {
+    jclass global = (jclass) (*env)->NewGlobalRef(env, clazz);
+    (*env)->DeleteLocalRef(env, clazz);
+    if (global == NULL) {
+        return NULL;
+    }
+    jclass expected = NULL;
+    if (!__atomic_compare_exchange_n(slot, &expected, global, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {
+        (*env)->DeleteGlobalRef(env, global);
+        return expected;
+    }
+    return global;
+}
+
+//返回全局引用,调用者不能释放
+static jclass dvmResolveClass(JNIEnv *env, u4 idx) {
+    jclass clazz = __atomic_load_n(&gClasses[idx], __ATOMIC_ACQUIRE);
+    if (clazz != NULL) {
+        return clazz;
+    }
+    clazz = getCacheClass(env, STRING_BY_TYPE_ID(idx));
+    if (clazz != NULL) {
+        return clazz;
+    }
+
+    FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(idx));
+
+    return publishClass(env, &gClasses[idx], clazz);
+}
+
+//fieldId及methodId最后以release写入,读到不为NULL时结构体其他成员都已经写好
 static const vmField *dvmResolveField(JNIEnv *env, u4 idx, bool isStatic) {
     vmField *field = &gFields[idx];
-    if (field->fieldId == NULL) {
+    if (__atomic_load_n(&field->fieldId, __ATOMIC_ACQUIRE) == NULL) {
         FieldId fieldId = gFieldIds[idx];
 
-        jclass clazz;
-        FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(fieldId.classIdx));
+        jclass clazz = dvmResolveClass(env, fieldId.classIdx);
+        if (clazz == NULL) {
+            return NULL;
+        }
 
         const char *type = STRING_BY_TYPE_ID(fieldId.typeIdx);
         const char *name = STRING_BY_ID(fieldId.nameIdx);
 
-        field->classIdx = fieldId.classIdx;
-        field->type = (*type == '[') ? 'L' : *type;
+        //多个线程同时解析时写入的值相同
+        __atomic_store_n(&field->classIdx, fieldId.classIdx, __ATOMIC_RELAXED);
+        __atomic_store_n(&field->type, (*type == '[') ? 'L' : *type, __ATOMIC_RELAXED);
 
-        //和方法解析同理,最后赋值fieldId
         jfieldID fid;
         if (isStatic) {
             fid = (*env)->GetStaticFieldID(env, clazz, name, type);
@@ -135,32 +172,27 @@ static const vmField *dvmResolveField(JNIEnv *env, u4 idx, bool isStatic) {
             fid = (*env)->GetFieldID(env, clazz, name, type);
         }
         if (fid == NULL) {
-            (*env)->DeleteLocalRef(env, clazz);
-
             (*env)->ExceptionClear(env);
             vmThrowNoSuchFieldError(env, name);
             return NULL;
         }
-        (*env)->DeleteLocalRef(env, clazz);
-
-
-        field->fieldId = fid;
-
+        __atomic_store_n(&field->fieldId, fid, __ATOMIC_RELEASE);
     }
     return field;
 }
 
 static const vmMethod *dvmResolveMethod(JNIEnv *env, u4 idx, bool isStatic) {
     vmMethod *method = &gMethods[idx];
-    if (method->methodId == NULL) {
+    if (__atomic_load_n(&method->methodId, __ATOMIC_ACQUIRE) == NULL) {
         MethodId methodId = gMethodIds[idx];
 
-        jclass clazz;
-        FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(methodId.classIdx));
-
-        method->shorty = STRING_BY_ID(methodId.shortyIdx);
+        jclass clazz = dvmResolveClass(env, methodId.classIdx);
+        if (clazz == NULL) {
+            return NULL;
+        }
 
-        method->classIdx = methodId.classIdx;
+        __atomic_store_n(&method->shorty, STRING_BY_ID(methodId.shortyIdx), __ATOMIC_RELAXED);
+        __atomic_store_n(&method->classIdx, methodId.classIdx, __ATOMIC_RELAXED);
 
         const char *name = STRING_BY_ID(methodId.nameIdx);
         const char *sig = STRING_BY_SIGNATURE_ID(methodId.sigIdx);
@@ -172,67 +204,126 @@ static const vmMethod *dvmResolveMethod(JNIEnv *env, u4 idx, bool isStatic) {
             mid = (*env)->GetMethodID(env, clazz, name, sig);
         }
         if (mid == NULL) {
-            (*env)->DeleteLocalRef(env, clazz);
-
             (*env)->ExceptionClear(env);
             vmThrowNoSuchMethodError(env, name);
             return NULL;
         }
-        (*env)->DeleteLocalRef(env, clazz);
 
         //只根据method->methodId判断是否需要解析,最后赋值为了防止结构体解析一半被其他线程使用从而导致错误
-        //todo 可能需要加锁
-
-        method->methodId = mid;
-
+        __atomic_store_n(&method->methodId, mid, __ATOMIC_RELEASE);
     }
     return method;
 }
 
-static pthread_mutex_t str_mutex = PTHREAD_MUTEX_INITIALIZER;
-
 static jstring dvmConstantString(JNIEnv *env, u4 idx) {
-    //先查找索引位置是否存在缓存,不用频繁创建string对象
-    s4 i = binarySearch(gStringConstantIds, sizeof(gStringConstantIds) / sizeof(u4), idx);
-    if (i >= 0) {
-        if (gStringConstants[i] == NULL) {
-            pthread_mutex_lock(&str_mutex);
-            jstring str;
-            if (gStringConstants[i] == NULL) {
-                str = (*env)->NewStringUTF(env, STRING_BY_ID(idx));
-                gStringConstants[i] = (*env)->NewGlobalRef(env, str);
-            } else {
-                str = (*env)->NewLocalRef(env, gStringConstants[i]);
-            }
-            pthread_mutex_unlock(&str_mutex);
-
-            return str;
-        } else {
-            return (*env)->NewLocalRef(env, gStringConstants[i]);
-        }
+    //字符串索引直接得到缓存位置,不用频繁创建string对象
+    const u4 slot = gStringSlots[idx];
+    if (slot == 0) {
+        return (*env)->NewStringUTF(env, STRING_BY_ID(idx));
+    }
+    jstring cached = __atomic_load_n(&gStringConstants[slot], __ATOMIC_ACQUIRE);
+    if (cached != NULL) {
+        return (*env)->NewLocalRef(env, cached);
+    }
+    jstring str = (*env)->NewStringUTF(env, STRING_BY_ID(idx));
+    if (str == NULL) {
+        return NULL;
+    }
+    jstring global = (*env)->NewGlobalRef(env, str);
+    if (global == NULL) {
+        return str;
+    }
+    //同时创建时只保留先放入的,保证同一常量得到同一个对象
+    jstring expected = NULL;
+    if (!__atomic_compare_exchange_n(&gStringConstants[slot], &expected, global, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {
+        (*env)->DeleteGlobalRef(env, global);
+        (*env)->DeleteLocalRef(env, str);
+        return (*env)->NewLocalRef(env, expected);
     }
-    return (*env)->NewStringUTF(env, STRING_BY_ID(idx));
+    return str;
 }
 
 static const char *dvmResolveTypeUtf(JNIEnv *env, u4 idx) {
     return STRING_BY_TYPE_ID(idx);
 }
 
-static jclass dvmResolveClass(JNIEnv *env, u4 idx) {
-    jclass clazz = getCacheClass(env, STRING_BY_TYPE_ID(idx));
-    if (clazz != NULL) {
-        return (jclass) (*env)->NewLocalRef(env, clazz);
+//类型表按字符串排序,二分查找类型索引
+static s4 findTypeIdx(const char *type) {
+    s4 lo = 0;
+    s4 hi = (s4) (sizeof(gTypeIds) / sizeof(TypeId)) - 1;
+    while (lo <= hi) {
+        s4 mid = (s4) (((u4) lo + (u4) hi) >> 1);
+        int cmp = strcmp(STRING_BY_TYPE_ID(mid), type);
+        if (cmp < 0) {
+            lo = mid + 1;
+        } else if (cmp > 0) {
+            hi = mid - 1;
+        } else {
+            return mid;
+        }
     }
+    return -1;
+}
 
-    FIND_CLASS_BY_NAME(STRING_BY_CLASS_ID(idx));
+//不在类型表里的类型,比如只作为数组元素出现的类型,type指向字符串常量池不会改变
+typedef struct ExtraClass {
+    const char *type;
+    jclass clazz;
+    struct ExtraClass *next;
+} ExtraClass;
+
+static ExtraClass *gExtraClasses;
 
-    return clazz;
+static jclass findExtraClass(ExtraClass *node, ExtraClass *end, const char *type) {
+    for (; node != end; node = node->next) {
+        if (strcmp(node->type, type) == 0) {
+            return node->clazz;
+        }
+    }
+    return NULL;
+}
+
+static jclass publishExtraClass(JNIEnv *env, ExtraClass *head, const char *type, jclass clazz) {
+    jclass global = (jclass) (*env)->NewGlobalRef(env, clazz);
+    (*env)->DeleteLocalRef(env, clazz);
+    if (global == NULL) {
+        return NULL;
+    }
+    ExtraClass *node = (ExtraClass *) malloc(sizeof(ExtraClass));
+    if (node == NULL) {
+        //不能缓存时全局引用不再释放,只可能在内存不足时发生
+        return global;
+    }
+    node->type = type;
+    node->clazz = global;
+    node->next = head;
+    while (!__atomic_compare_exchange_n(&gExtraClasses, &node->next, node, false, __ATOMIC_RELEASE, __ATOMIC_ACQUIRE)) {
+        //其他线程放入了新节点,可能是同一个类型
+        jclass other = findExtraClass(node->next, head, type);
+        if (other != NULL) {
+            (*env)->DeleteGlobalRef(env, global);
+            free(node);
+            return other;
+        }
+        head = node->next;
+    }
+    return global;
 }
 
+//和dvmResolveClass一样返回全局引用
 static jclass dvmFindClass(JNIEnv *env, const char *type) {
     jclass clazz = getCacheClass(env, type);
     if (clazz != NULL) {
-        return (jclass) (*env)->NewLocalRef(env, clazz);
+        return clazz;
+    }
+    const s4 idx = findTypeIdx(type);
+    if (idx >= 0) {
+        return dvmResolveClass(env, (u4) idx);
+    }
+    ExtraClass *head = __atomic_load_n(&gExtraClasses, __ATOMIC_ACQUIRE);
+    clazz = findExtraClass(head, NULL, type);
+    if (clazz != NULL) {
+        return clazz;
     }
     if (*type == 'L') {
         char clazzName[42];
@@ -242,12 +333,12 @@ static jclass dvmFindClass(JNIEnv *env, const char *type) {
 
         FIND_CLASS_BY_NAME(clazzName);
 
-        return clazz;
+        return publishExtraClass(env, head, type, clazz);
     }
 
     FIND_CLASS_BY_NAME(type);
 
-    return clazz;
+    return publishExtraClass(env, head, type, clazz);
 }
 
 static const vmResolver dvmResolver = {
@@ -123,9 +123,8 @@ findCatchInMethod(JNIEnv *env,
                 return handler->address;
             }
 
-            ScopedLocalRef<jclass> throwable(env,
-                                             resolver->dvmResolveClass(env, handler->typeIdx));
-            if (throwable.get() == NULL) {
+            jclass throwable = resolver->dvmResolveClass(env, handler->typeIdx);
+            if (throwable == NULL) {
                 ALOGV("Could not resolve class ref'ed in exception "
                       "catch list (class index %d, exception %p)",
                       handler->typeIdx,
@@ -137,7 +136,7 @@ findCatchInMethod(JNIEnv *env,
             //ALOGD("ADDR MATCH, check %s instanceof %s",
             //    exceptObj->descriptor, pEntry->exceptObj->descriptor);
 
-            if (env->IsInstanceOf(exceptObj, throwable.get())) {
+            if (env->IsInstanceOf(exceptObj, throwable)) {
                 ALOGV("Match on catch block at 0x%02x in for %p",
                       relPc, exceptObj);
                 return handler->address;
@@ -9,6 +9,7 @@
 #include "ScopedLocalRef.h"
 #include "Exception.h"
 #include "Interp.h"
+#include "Intrinsics.h"
 #include "vm.h"
 
 
@@ -773,9 +774,9 @@ FINISH(2);
         if (sfield == NULL) {                                               \
             GOTO_exceptionThrown();                                         \
         }                                                                   \
-        ScopedLocalRef<jclass> clazz(env,                                   \
-                dvmResolver->dvmResolveClass(env, sfield->classIdx));       \
-        if (clazz.get() == NULL) {                                          \
+        jclass clazz =                                                      \
+                dvmResolver->dvmResolveClass(env, sfield->classIdx);        \
+        if (clazz == NULL) {                                                \
             GOTO_exceptionThrown();                                         \
         }                                                                   \
         _setreg;                                                            \
@@ -796,9 +797,9 @@ FINISH(2);
         if (sfield == NULL) {                                               \
             GOTO_exceptionThrown();                                         \
         }                                                                   \
-        ScopedLocalRef<jclass> clazz(env,                                   \
-                dvmResolver->dvmResolveClass(env, sfield->classIdx));       \
-        if (clazz.get() == NULL) {                                          \
+        jclass clazz =                                                      \
+                dvmResolver->dvmResolveClass(env, sfield->classIdx);        \
+        if (clazz == NULL) {                                                \
             GOTO_exceptionThrown();                                         \
         }                                                                   \
         _setfield;                                                          \
@@ -835,12 +836,12 @@ FINISH(2);
         break;                                                              \
     case 'L':                                                               \
     case '[': {                                                             \
-        ScopedLocalRef<jclass> arrayClass(env,                              \
-                dvmResolver->dvmFindClass(env, _type));                     \
-        if (arrayClass.get() == NULL) {                                     \
+        jclass arrayClass =                                                 \
+                dvmResolver->dvmFindClass(env, _type);                      \
+        if (arrayClass == NULL) {                                           \
             GOTO_exceptionThrown();                                         \
         }                                                                   \
-        newArray = env->NewObjectArray((_len), arrayClass.get(), NULL);     \
+        newArray = env->NewObjectArray((_len), arrayClass, NULL);           \
         break;                                                              \
     }                                                                       \
     default:                                                                \
@@ -1056,6 +1057,54 @@ FINISH(2);
     FINISH(3);                                                                 \
 }
 
+//直接调用的最大嵌套深度,超过后改用jni调用,由虚拟机检查栈溢出
+#define MAX_DIRECT_DEPTH 64
+
+static __thread u4 gDirectDepth;
+
+/*
+ * 被调用方法是同一个so里转换后的方法时直接调用它的jni函数,省掉两次jni调用的状态切换
+ * 被调用方法覆盖寄存器时会释放里面的本地引用,并且返回时不释放寄存器,
+ * 所以在新的局部引用帧里调用,对象参数使用新的本地引用
+ * 返回false表示不能直接调用
+ */
+static bool dvmInvokeDirect(JNIEnv *env, const vmMethod *method, jobject thiz, jvalue *args,
+                            bool keepResult, jvalue *retval) {
+    if (method->directFn == NULL || gDirectDepth >= MAX_DIRECT_DEPTH) {
+        return false;
+    }
+    const char *paramTypes = method->shorty + 1;
+    jint refs = 1;
+    for (int i = 0; paramTypes[i] != '\0'; i++) {
+        if (paramTypes[i] == 'L') {
+            refs++;
+        }
+    }
+    if (env->PushLocalFrame(refs) != JNI_OK) {
+        //已经抛出OutOfMemoryError
+        retval->j = 0;
+        return true;
+    }
+    thiz = env->NewLocalRef(thiz);
+    for (int i = 0; paramTypes[i] != '\0'; i++) {
+        if (paramTypes[i] == 'L') {
+            args[i].l = env->NewLocalRef(args[i].l);
+        }
+    }
+
+    gDirectDepth++;
+    const jvalue result = method->directInvoker(method->directFn, env, thiz, args);
+    gDirectDepth--;
+
+    if (method->shorty[0] == 'L') {
+        retval->l = env->PopLocalFrame(keepResult ? result.l : NULL);
+    } else {
+        env->PopLocalFrame(NULL);
+        *retval = result;
+    }
+    return true;
+}
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -1422,7 +1471,8 @@ jvalue vmInterpret(
             GOTO_exceptionThrown();
         }
 
-        SET_REGISTER_AS_OBJECT(vdst, clazz);
+        //解析得到的是全局引用,寄存器里只保存本地引用
+        SET_REGISTER_AS_OBJECT(vdst, env->NewLocalRef(clazz));
     }
     FINISH(2);
     OP_END
@@ -1481,13 +1531,13 @@ jvalue vmInterpret(
 
         obj = GET_REGISTER_AS_OBJECT(vsrc1);
         if (obj != NULL) {
-            ScopedLocalRef<jclass> clazz(env, dvmResolver->dvmResolveClass(env, ref));
-            if (clazz.get() == NULL) {
+            jclass clazz = dvmResolver->dvmResolveClass(env, ref);
+            if (clazz == NULL) {
                 GOTO_exceptionThrown();
             }
 
-            if (!env->IsInstanceOf(obj, clazz.get())) {
-                dvmThrowClassCastException(env, obj, clazz.get());
+            if (!env->IsInstanceOf(obj, clazz)) {
+                dvmThrowClassCastException(env, obj, clazz);
                 GOTO_exceptionThrown();
             }
         }
@@ -1510,11 +1560,11 @@ jvalue vmInterpret(
         if (obj == NULL) {
             SET_REGISTER(vdst, 0);
         } else {
-            ScopedLocalRef<jclass> clazz(env, dvmResolver->dvmResolveClass(env, ref));
-            if (clazz.get() == NULL) {
+            jclass clazz = dvmResolver->dvmResolveClass(env, ref);
+            if (clazz == NULL) {
                 GOTO_exceptionThrown();
             }
-            isInstanceOf = env->IsInstanceOf(obj, clazz.get());
+            isInstanceOf = env->IsInstanceOf(obj, clazz);
             SET_REGISTER(vdst, isInstanceOf);
         }
     }
@@ -1548,12 +1598,11 @@ jvalue vmInterpret(
         vdst = INST_AA(inst);
         ref = FETCH(1);
         ILOGV("|new-instance v%d,class@0x%04x", vdst, ref);
-        ScopedLocalRef<jclass> clazz(env,
-                                     dvmResolver->dvmResolveClass(env, ref));
-        if (clazz.get() == NULL) {
+        jclass clazz = dvmResolver->dvmResolveClass(env, ref);
+        if (clazz == NULL) {
             GOTO_exceptionThrown();
         }
-        newObj = env->AllocObject(clazz.get());
+        newObj = env->AllocObject(clazz);
         if (newObj == NULL) {
             GOTO_exceptionThrown();
         }
@@ -2160,9 +2209,9 @@ HANDLE_IPUT_X(OP_IPUT_SHORT, "", {
 /* File: c/OP_SGET.cpp */
 HANDLE_SGET_X(OP_SGET, "", {
     if (sfield->type == 'I') {
-        SET_REGISTER(vdst, env->GetStaticIntField(clazz.get(), sfield->fieldId));
+        SET_REGISTER(vdst, env->GetStaticIntField(clazz, sfield->fieldId));
     } else {
-        SET_REGISTER_FLOAT(vdst, env->GetStaticFloatField(clazz.get(), sfield->fieldId));
+        SET_REGISTER_FLOAT(vdst, env->GetStaticFloatField(clazz, sfield->fieldId));
     }
 },)
     OP_END
@@ -2170,40 +2219,40 @@ HANDLE_SGET_X(OP_SGET, "", {
 /* File: c/OP_SGET_WIDE.cpp */
 HANDLE_SGET_X(OP_SGET_WIDE, "-wide", {
     if (sfield->type == 'J') {
-        SET_REGISTER_WIDE(vdst, env->GetStaticLongField(clazz.get(), sfield->fieldId));
+        SET_REGISTER_WIDE(vdst, env->GetStaticLongField(clazz, sfield->fieldId));
     } else {
-        SET_REGISTER_DOUBLE(vdst, env->GetStaticDoubleField(clazz.get(), sfield->fieldId));
+        SET_REGISTER_DOUBLE(vdst, env->GetStaticDoubleField(clazz, sfield->fieldId));
     }
 }, _WIDE)
     OP_END
 
 /* File: c/OP_SGET_OBJECT.cpp */
 HANDLE_SGET_X(OP_SGET_OBJECT, "-object", {
-    SET_REGISTER_AS_OBJECT(vdst, env->GetStaticObjectField(clazz.get(), sfield->fieldId));
+    SET_REGISTER_AS_OBJECT(vdst, env->GetStaticObjectField(clazz, sfield->fieldId));
 }, _AS_OBJECT)
     OP_END
 
 /* File: c/OP_SGET_BOOLEAN.cpp */
 HANDLE_SGET_X(OP_SGET_BOOLEAN, "", {
-    SET_REGISTER(vdst, env->GetStaticBooleanField(clazz.get(), sfield->fieldId));
+    SET_REGISTER(vdst, env->GetStaticBooleanField(clazz, sfield->fieldId));
 },)
     OP_END
 
 /* File: c/OP_SGET_BYTE.cpp */
 HANDLE_SGET_X(OP_SGET_BYTE, "", {
-    SET_REGISTER(vdst, env->GetStaticByteField(clazz.get(), sfield->fieldId));
+    SET_REGISTER(vdst, env->GetStaticByteField(clazz, sfield->fieldId));
 },)
     OP_END
 
 /* File: c/OP_SGET_CHAR.cpp */
 HANDLE_SGET_X(OP_SGET_CHAR, "", {
-    SET_REGISTER(vdst, env->GetStaticCharField(clazz.get(), sfield->fieldId));
+    SET_REGISTER(vdst, env->GetStaticCharField(clazz, sfield->fieldId));
 },)
     OP_END
 
 /* File: c/OP_SGET_SHORT.cpp */
 HANDLE_SGET_X(OP_SGET_SHORT, "", {
-    SET_REGISTER(vdst, env->GetStaticShortField(clazz.get(), sfield->fieldId));
+    SET_REGISTER(vdst, env->GetStaticShortField(clazz, sfield->fieldId));
 },)
     OP_END
 
@@ -2211,10 +2260,10 @@ HANDLE_SGET_X(OP_SGET_SHORT, "", {
 HANDLE_SPUT_X(OP_SPUT, "", {
     switch (sfield->type) {
         case 'I':
-            env->SetStaticIntField(clazz.get(), sfield->fieldId, GET_REGISTER(vdst));
+            env->SetStaticIntField(clazz, sfield->fieldId, GET_REGISTER(vdst));
             break;
         case 'F':
-            env->SetStaticFloatField(clazz.get(), sfield->fieldId, GET_REGISTER_FLOAT(vdst));
+            env->SetStaticFloatField(clazz, sfield->fieldId, GET_REGISTER_FLOAT(vdst));
             break;
     }
 },)
@@ -2225,10 +2274,10 @@ HANDLE_SPUT_X(OP_SPUT, "", {
 HANDLE_SPUT_X(OP_SPUT_WIDE, "-wide", {
     switch (sfield->type) {
         case 'J':
-            env->SetStaticLongField(clazz.get(), sfield->fieldId, GET_REGISTER_WIDE(vdst));
+            env->SetStaticLongField(clazz, sfield->fieldId, GET_REGISTER_WIDE(vdst));
             break;
         case 'D':
-            env->SetStaticDoubleField(clazz.get(), sfield->fieldId, GET_REGISTER_DOUBLE(vdst));
+            env->SetStaticDoubleField(clazz, sfield->fieldId, GET_REGISTER_DOUBLE(vdst));
             break;
     }
 }, _WIDE)
@@ -2236,31 +2285,31 @@ HANDLE_SPUT_X(OP_SPUT_WIDE, "-wide", {
 
 /* File: c/OP_SPUT_OBJECT.cpp */
 HANDLE_SPUT_X(OP_SPUT_OBJECT, "-object", {
-    env->SetStaticObjectField(clazz.get(), sfield->fieldId, GET_REGISTER_AS_OBJECT(vdst));
+    env->SetStaticObjectField(clazz, sfield->fieldId, GET_REGISTER_AS_OBJECT(vdst));
 }, _AS_OBJECT)
     OP_END
 
 /* File: c/OP_SPUT_BOOLEAN.cpp */
 HANDLE_SPUT_X(OP_SPUT_BOOLEAN, "", {
-    env->SetStaticBooleanField(clazz.get(), sfield->fieldId, GET_REGISTER(vdst));
+    env->SetStaticBooleanField(clazz, sfield->fieldId, GET_REGISTER(vdst));
 },)
     OP_END
 
 /* File: c/OP_SPUT_BYTE.cpp */
 HANDLE_SPUT_X(OP_SPUT_BYTE, "", {
-    env->SetStaticByteField(clazz.get(), sfield->fieldId, GET_REGISTER(vdst));
+    env->SetStaticByteField(clazz, sfield->fieldId, GET_REGISTER(vdst));
 },)
     OP_END
 
 /* File: c/OP_SPUT_CHAR.cpp */
 HANDLE_SPUT_X(OP_SPUT_CHAR, "", {
-    env->SetStaticCharField(clazz.get(), sfield->fieldId, GET_REGISTER(vdst));
+    env->SetStaticCharField(clazz, sfield->fieldId, GET_REGISTER(vdst));
 },)
     OP_END
 
 /* File: c/OP_SPUT_SHORT.cpp */
 HANDLE_SPUT_X(OP_SPUT_SHORT, "", {
-    env->SetStaticShortField(clazz.get(), sfield->fieldId, GET_REGISTER(vdst));
+    env->SetStaticShortField(clazz, sfield->fieldId, GET_REGISTER(vdst));
 
 },)
     OP_END
@@ -3013,71 +3062,75 @@ HANDLE_OP_SHX_INT_LIT8(OP_USHR_INT_LIT8, "ushr", (u4), >>)
 
         INVOKE_METHOD(
                 {
-                    switch (returnCh) {
-                        case 'Z':
-                            retval.i = env->CallBooleanMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'B':
-                            retval.i = env->CallByteMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'C':
-                            retval.i = env->CallCharMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'S':
-                            retval.i = env->CallShortMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'I':
-                            retval.i = env->CallIntMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'F':
-                            retval.f = env->CallFloatMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'J':
-                            retval.j = env->CallLongMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'D':
-                            retval.d = env->CallDoubleMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'L':
-                            retval.l = env->CallObjectMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
-                                if (retval.l != NULL) env->DeleteLocalRef(retval.l);
-                            }
-                            break;
-                        case 'V':
-                            env->CallVoidMethodA(
-                                    thisPtr,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        default:;
+                    if (!dvmInvokeIntrinsic(env, methodToCall->intrinsic, thisPtr, args + 1, &retval)
+                        && !dvmInvokeDirect(env, methodToCall, thisPtr, args + 1,
+                                            INST_INST(FETCH(3)) == OP_MOVE_RESULT_OBJECT, &retval)) {
+                        switch (returnCh) {
+                            case 'Z':
+                                retval.i = env->CallBooleanMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'B':
+                                retval.i = env->CallByteMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'C':
+                                retval.i = env->CallCharMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'S':
+                                retval.i = env->CallShortMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'I':
+                                retval.i = env->CallIntMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'F':
+                                retval.f = env->CallFloatMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'J':
+                                retval.j = env->CallLongMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'D':
+                                retval.d = env->CallDoubleMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'L':
+                                retval.l = env->CallObjectMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
+                                    if (retval.l != NULL) env->DeleteLocalRef(retval.l);
+                                }
+                                break;
+                            case 'V':
+                                env->CallVoidMethodA(
+                                        thisPtr,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            default:;
+                        }
                     }
 
                 });
@@ -3192,7 +3245,6 @@ HANDLE_OP_SHX_INT_LIT8(OP_USHR_INT_LIT8, "ushr", (u4), >>)
                             break;
                         default:;
                     }
-                    env->DeleteLocalRef(clazz);
 
                 });
 
@@ -3317,84 +3369,86 @@ HANDLE_OP_SHX_INT_LIT8(OP_USHR_INT_LIT8, "ushr", (u4), >>)
         INVOKE_METHOD(
                 {
                     jclass clazz = dvmResolver->dvmResolveClass(env, methodToCall->classIdx);
-                    switch (returnCh) {
-                        case 'Z':
-                            retval.i = env->CallNonvirtualBooleanMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'B':
-                            retval.i = env->CallNonvirtualByteMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'C':
-                            retval.i = env->CallNonvirtualCharMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'S':
-                            retval.i = env->CallNonvirtualShortMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'I':
-                            retval.i = env->CallNonvirtualIntMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'F':
-                            retval.f = env->CallNonvirtualFloatMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'J':
-                            retval.j = env->CallNonvirtualLongMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'D':
-                            retval.d = env->CallNonvirtualDoubleMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        case 'L':
-                            retval.l = env->CallNonvirtualObjectMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-
-                            if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
-                                if (retval.l != NULL) env->DeleteLocalRef(retval.l);
-                            }
-                            break;
-                        case 'V':
-                            env->CallNonvirtualVoidMethodA(
-                                    thisPtr,
-                                    clazz,
-                                    methodToCall->methodId,
-                                    args + 1);
-                            break;
-                        default:;
+                    if (!dvmInvokeDirect(env, methodToCall, thisPtr, args + 1,
+                                         INST_INST(FETCH(3)) == OP_MOVE_RESULT_OBJECT, &retval)) {
+                        switch (returnCh) {
+                            case 'Z':
+                                retval.i = env->CallNonvirtualBooleanMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'B':
+                                retval.i = env->CallNonvirtualByteMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'C':
+                                retval.i = env->CallNonvirtualCharMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'S':
+                                retval.i = env->CallNonvirtualShortMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'I':
+                                retval.i = env->CallNonvirtualIntMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'F':
+                                retval.f = env->CallNonvirtualFloatMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'J':
+                                retval.j = env->CallNonvirtualLongMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'D':
+                                retval.d = env->CallNonvirtualDoubleMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            case 'L':
+                                retval.l = env->CallNonvirtualObjectMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+
+                                if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
+                                    if (retval.l != NULL) env->DeleteLocalRef(retval.l);
+                                }
+                                break;
+                            case 'V':
+                                env->CallNonvirtualVoidMethodA(
+                                        thisPtr,
+                                        clazz,
+                                        methodToCall->methodId,
+                                        args + 1);
+                                break;
+                            default:;
+                        }
                     }
-                    env->DeleteLocalRef(clazz);
 
                 });
 
@@ -3424,61 +3478,64 @@ HANDLE_OP_SHX_INT_LIT8(OP_USHR_INT_LIT8, "ushr", (u4), >>)
         INVOKE_STATIC_METHOD(
                 {
                     jclass clazz = dvmResolver->dvmResolveClass(env, methodToCall->classIdx);
-                    switch (returnCh) {
-                        case 'Z':
-                            retval.i = env->CallStaticBooleanMethodA(clazz,
+                    if (!dvmInvokeIntrinsic(env, methodToCall->intrinsic, NULL, args, &retval)
+                        && !dvmInvokeDirect(env, methodToCall, clazz, args,
+                                            INST_INST(FETCH(3)) == OP_MOVE_RESULT_OBJECT, &retval)) {
+                        switch (returnCh) {
+                            case 'Z':
+                                retval.i = env->CallStaticBooleanMethodA(clazz,
+                                                                         methodToCall->methodId,
+                                                                         args);
+                                break;
+                            case 'B':
+                                retval.i = env->CallStaticByteMethodA(clazz,
+                                                                      methodToCall->methodId,
+                                                                      args);
+                                break;
+                            case 'C':
+                                retval.i = env->CallStaticCharMethodA(clazz,
+                                                                      methodToCall->methodId,
+                                                                      args);
+                                break;
+                            case 'S':
+                                retval.i = env->CallStaticShortMethodA(clazz,
+                                                                       methodToCall->methodId,
+                                                                       args);
+                                break;
+                            case 'I':
+                                retval.i = env->CallStaticIntMethodA(clazz,
                                                                      methodToCall->methodId,
                                                                      args);
-                            break;
-                        case 'B':
-                            retval.i = env->CallStaticByteMethodA(clazz,
-                                                                  methodToCall->methodId,
-                                                                  args);
-                            break;
-                        case 'C':
-                            retval.i = env->CallStaticCharMethodA(clazz,
-                                                                  methodToCall->methodId,
-                                                                  args);
-                            break;
-                        case 'S':
-                            retval.i = env->CallStaticShortMethodA(clazz,
-                                                                   methodToCall->methodId,
-                                                                   args);
-                            break;
-                        case 'I':
-                            retval.i = env->CallStaticIntMethodA(clazz,
-                                                                 methodToCall->methodId,
-                                                                 args);
-                            break;
-                        case 'F':
-                            retval.f = env->CallStaticFloatMethodA(clazz,
-                                                                   methodToCall->methodId,
-                                                                   args);
-                            break;
-                        case 'J':
-                            retval.j = env->CallStaticLongMethodA(clazz,
-                                                                  methodToCall->methodId,
-                                                                  args);
-                            break;
-                        case 'D':
-                            retval.d = env->CallStaticDoubleMethodA(clazz,
-                                                                    methodToCall->methodId,
-                                                                    args);
-                            break;
-                        case 'L':
-                            retval.l = env->CallStaticObjectMethodA(clazz,
-                                                                    methodToCall->methodId,
-                                                                    args);
-                            if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
-                                if (retval.l != NULL) env->DeleteLocalRef(retval.l);
-                            }
-                            break;
-                        case 'V':
-                            env->CallStaticVoidMethodA(clazz, methodToCall->methodId, args);
-                            break;
-                        default:;
+                                break;
+                            case 'F':
+                                retval.f = env->CallStaticFloatMethodA(clazz,
+                                                                       methodToCall->methodId,
+                                                                       args);
+                                break;
+                            case 'J':
+                                retval.j = env->CallStaticLongMethodA(clazz,
+                                                                      methodToCall->methodId,
+                                                                      args);
+                                break;
+                            case 'D':
+                                retval.d = env->CallStaticDoubleMethodA(clazz,
+                                                                        methodToCall->methodId,
+                                                                        args);
+                                break;
+                            case 'L':
+                                retval.l = env->CallStaticObjectMethodA(clazz,
+                                                                        methodToCall->methodId,
+                                                                        args);
+                                if (INST_INST(FETCH(3)) != OP_MOVE_RESULT_OBJECT) {
+                                    if (retval.l != NULL) env->DeleteLocalRef(retval.l);
+                                }
+                                break;
+                            case 'V':
+                                env->CallStaticVoidMethodA(clazz, methodToCall->methodId, args);
+                                break;
+                            default:;
+                        }
                     }
-                    env->DeleteLocalRef(clazz);
 
                 });
     }
@@ -0,0 +1,189 @@
+//
+// 解释器内部实现的jdk方法,省掉Call*MethodA的jni调用
+//
+
+#ifndef NMMP_INTRINSICS_H
+#define NMMP_INTRINSICS_H
+
+#include <cmath>
+#include <jni.h>
+#include "vm.h"
+
+#define FLOAT_SIGN_BIT 0x80000000u
+#define DOUBLE_SIGN_BIT 0x8000000000000000ull
+
+//Float.floatToIntBits及Double.doubleToLongBits使用的NaN
+#define CANONICAL_NAN_FLOAT_BITS 0x7fc00000
+#define CANONICAL_NAN_DOUBLE_BITS 0x7ff8000000000000ll
+
+static inline bool floatIsNaN(jint bits) {
+    return ((u4) bits & ~FLOAT_SIGN_BIT) > 0x7f800000u;
+}
+
+static inline bool doubleIsNaN(jlong bits) {
+    return ((u8) bits & ~DOUBLE_SIGN_BIT) > 0x7ff0000000000000ull;
+}
+
+/*
+ * 和java.lang.Math一样:NaN优先,-0.0小于0.0
+ * 浮点数都通过jvalue按位读写,不经过浮点寄存器,NaN的位不会变化
+ */
+static inline void intrinsicMinFloat(const jvalue *args, jvalue *retval) {
+    const jvalue a = args[0];
+    const jvalue b = args[1];
+    if (a.f != a.f) {
+        retval->i = a.i;
+    } else if (a.f == 0.0f && b.f == 0.0f) {
+        retval->i = (jint) ((u4) a.i | (u4) b.i);
+    } else {
+        retval->i = a.f <= b.f ? a.i : b.i;
+    }
+}
+
+static inline void intrinsicMaxFloat(const jvalue *args, jvalue *retval) {
+    const jvalue a = args[0];
+    const jvalue b = args[1];
+    if (a.f != a.f) {
+        retval->i = a.i;
+    } else if (a.f == 0.0f && b.f == 0.0f) {
+        retval->i = (jint) ((u4) a.i & (u4) b.i);
+    } else {
+        retval->i = a.f >= b.f ? a.i : b.i;
+    }
+}
+
+static inline void intrinsicMinDouble(const jvalue *args, jvalue *retval) {
+    const jvalue a = args[0];
+    const jvalue b = args[1];
+    if (a.d != a.d) {
+        retval->j = a.j;
+    } else if (a.d == 0.0 && b.d == 0.0) {
+        retval->j = (jlong) ((u8) a.j | (u8) b.j);
+    } else {
+        retval->j = a.d <= b.d ? a.j : b.j;
+    }
+}
+
+static inline void intrinsicMaxDouble(const jvalue *args, jvalue *retval) {
+    const jvalue a = args[0];
+    const jvalue b = args[1];
+    if (a.d != a.d) {
+        retval->j = a.j;
+    } else if (a.d == 0.0 && b.d == 0.0) {
+        retval->j = (jlong) ((u8) a.j & (u8) b.j);
+    } else {
+        retval->j = a.d >= b.d ? a.j : b.j;
+    }
+}
+
+/*
+ * intrinsic为VM_INTRINSIC_NONE或者需要由java方法抛出异常时返回false,调用者继续使用jni调用
+ * 实例方法的thiz在调用前已经检查过null
+ */
+static inline bool dvmInvokeIntrinsic(JNIEnv *env, u1 intrinsic, jobject thiz, const jvalue *args,
+                                      jvalue *retval) {
+    switch (intrinsic) {
+        case VM_INTRINSIC_NONE:
+            return false;
+        case VM_INTRINSIC_MATH_ABS_I:
+            //abs(Integer.MIN_VALUE)还是Integer.MIN_VALUE
+            retval->i = args[0].i < 0 ? (jint) (0u - (u4) args[0].i) : args[0].i;
+            return true;
+        case VM_INTRINSIC_MATH_ABS_J:
+            retval->j = args[0].j < 0 ? (jlong) (0ull - (u8) args[0].j) : args[0].j;
+            return true;
+        case VM_INTRINSIC_MATH_ABS_F:
+            retval->i = (jint) ((u4) args[0].i & ~FLOAT_SIGN_BIT);
+            return true;
+        case VM_INTRINSIC_MATH_ABS_D:
+            retval->j = (jlong) ((u8) args[0].j & ~DOUBLE_SIGN_BIT);
+            return true;
+        case VM_INTRINSIC_MATH_MIN_II:
+            retval->i = args[0].i <= args[1].i ? args[0].i : args[1].i;
+            return true;
+        case VM_INTRINSIC_MATH_MIN_JJ:
+            retval->j = args[0].j <= args[1].j ? args[0].j : args[1].j;
+            return true;
+        case VM_INTRINSIC_MATH_MIN_FF:
+            intrinsicMinFloat(args, retval);
+            return true;
+        case VM_INTRINSIC_MATH_MIN_DD:
+            intrinsicMinDouble(args, retval);
+            return true;
+        case VM_INTRINSIC_MATH_MAX_II:
+            retval->i = args[0].i >= args[1].i ? args[0].i : args[1].i;
+            return true;
+        case VM_INTRINSIC_MATH_MAX_JJ:
+            retval->j = args[0].j >= args[1].j ? args[0].j : args[1].j;
+            return true;
+        case VM_INTRINSIC_MATH_MAX_FF:
+            intrinsicMaxFloat(args, retval);
+            return true;
+        case VM_INTRINSIC_MATH_MAX_DD:
+            intrinsicMaxDouble(args, retval);
+            return true;
+        case VM_INTRINSIC_MATH_SQRT:
+            //ieee754要求sqrt正确舍入,和java结果一样
+            retval->d = std::sqrt(args[0].d);
+            return true;
+        case VM_INTRINSIC_FLOAT_TO_RAW_INT_BITS:
+        case VM_INTRINSIC_INT_BITS_TO_FLOAT:
+            retval->i = args[0].i;
+            return true;
+        case VM_INTRINSIC_FLOAT_TO_INT_BITS:
+            retval->i = floatIsNaN(args[0].i) ? CANONICAL_NAN_FLOAT_BITS : args[0].i;
+            return true;
+        case VM_INTRINSIC_FLOAT_IS_NAN:
+            retval->i = floatIsNaN(args[0].i);
+            return true;
+        case VM_INTRINSIC_DOUBLE_TO_RAW_LONG_BITS:
+        case VM_INTRINSIC_LONG_BITS_TO_DOUBLE:
+            retval->j = args[0].j;
+            return true;
+        case VM_INTRINSIC_DOUBLE_TO_LONG_BITS:
+            retval->j = doubleIsNaN(args[0].j) ? CANONICAL_NAN_DOUBLE_BITS : args[0].j;
+            return true;
+        case VM_INTRINSIC_DOUBLE_IS_NAN:
+            retval->i = doubleIsNaN(args[0].j);
+            return true;
+        case VM_INTRINSIC_INTEGER_BIT_COUNT:
+            retval->i = __builtin_popcount((u4) args[0].i);
+            return true;
+        case VM_INTRINSIC_INTEGER_LEADING_ZEROS:
+            retval->i = args[0].i == 0 ? 32 : __builtin_clz((u4) args[0].i);
+            return true;
+        case VM_INTRINSIC_INTEGER_TRAILING_ZEROS:
+            retval->i = args[0].i == 0 ? 32 : __builtin_ctz((u4) args[0].i);
+            return true;
+        case VM_INTRINSIC_LONG_BIT_COUNT:
+            retval->i = __builtin_popcountll((u8) args[0].j);
+            return true;
+        case VM_INTRINSIC_LONG_LEADING_ZEROS:
+            retval->i = args[0].j == 0 ? 64 : __builtin_clzll((u8) args[0].j);
+            return true;
+        case VM_INTRINSIC_LONG_TRAILING_ZEROS:
+            retval->i = args[0].j == 0 ? 64 : __builtin_ctzll((u8) args[0].j);
+            return true;
+        case VM_INTRINSIC_STRING_LENGTH:
+            retval->i = env->GetStringLength((jstring) thiz);
+            return true;
+        case VM_INTRINSIC_STRING_IS_EMPTY:
+            retval->i = env->GetStringLength((jstring) thiz) == 0;
+            return true;
+        case VM_INTRINSIC_STRING_CHAR_AT: {
+            //越界时调用java方法,抛出的异常和异常信息都不变
+            const jint index = args[0].i;
+            if ((u4) index >= (u4) env->GetStringLength((jstring) thiz)) {
+                return false;
+            }
+            jchar c;
+            env->GetStringRegion((jstring) thiz, index, 1, &c);
+            retval->i = c;
+            return true;
+        }
+        default:
+            return false;
+    }
+}
+
+#endif //NMMP_INTRINSICS_H
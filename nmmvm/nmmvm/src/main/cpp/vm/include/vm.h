@@ -18,10 +18,51 @@ typedef struct {
     jfieldID fieldId;
 } vmField;
 
+//解释器内部实现的jdk方法,结果及异常和jni调用一样,由生成的解析器按方法引用设置
+enum {
+    VM_INTRINSIC_NONE = 0,
+    VM_INTRINSIC_MATH_ABS_I,
+    VM_INTRINSIC_MATH_ABS_J,
+    VM_INTRINSIC_MATH_ABS_F,
+    VM_INTRINSIC_MATH_ABS_D,
+    VM_INTRINSIC_MATH_MIN_II,
+    VM_INTRINSIC_MATH_MIN_JJ,
+    VM_INTRINSIC_MATH_MIN_FF,
+    VM_INTRINSIC_MATH_MIN_DD,
+    VM_INTRINSIC_MATH_MAX_II,
+    VM_INTRINSIC_MATH_MAX_JJ,
+    VM_INTRINSIC_MATH_MAX_FF,
+    VM_INTRINSIC_MATH_MAX_DD,
+    VM_INTRINSIC_MATH_SQRT,
+    VM_INTRINSIC_FLOAT_TO_RAW_INT_BITS,
+    VM_INTRINSIC_FLOAT_TO_INT_BITS,
+    VM_INTRINSIC_INT_BITS_TO_FLOAT,
+    VM_INTRINSIC_FLOAT_IS_NAN,
+    VM_INTRINSIC_DOUBLE_TO_RAW_LONG_BITS,
+    VM_INTRINSIC_DOUBLE_TO_LONG_BITS,
+    VM_INTRINSIC_LONG_BITS_TO_DOUBLE,
+    VM_INTRINSIC_DOUBLE_IS_NAN,
+    VM_INTRINSIC_INTEGER_BIT_COUNT,
+    VM_INTRINSIC_INTEGER_LEADING_ZEROS,
+    VM_INTRINSIC_INTEGER_TRAILING_ZEROS,
+    VM_INTRINSIC_LONG_BIT_COUNT,
+    VM_INTRINSIC_LONG_LEADING_ZEROS,
+    VM_INTRINSIC_LONG_TRAILING_ZEROS,
+    VM_INTRINSIC_STRING_LENGTH,
+    VM_INTRINSIC_STRING_IS_EMPTY,
+    VM_INTRINSIC_STRING_CHAR_AT,
+};
+
+//按方法签名把参数数组展开后调用fn,fn是转换后方法的jni函数
+typedef jvalue (*vmDirectInvoker)(const void *fn, JNIEnv *env, jobject thiz, const jvalue *args);
+
 typedef struct {
     u2 classIdx;
+    u1 intrinsic;        //VM_INTRINSIC_*,不为0时在解释器内部执行
     const char *shorty;  //包含返回类型及参数类型,用于确定使用什么样的方法调用
     jmethodID methodId;
+    const void *directFn;              //被调用方法是同一个so里转换后的方法时不为NULL,可以不经过jni直接调用
+    vmDirectInvoker directInvoker;
 } vmMethod;
 
 typedef struct {
@@ -41,10 +82,10 @@ typedef struct {
     //从类型常量池取得类型名
     const char *(*dvmResolveTypeUtf)(JNIEnv *env, u4 idx);
 
-    //直接返回jclass对象,本地引用需要释放引用
+    //直接返回jclass对象,返回的是缓存的全局引用,调用者不能释放
     jclass (*dvmResolveClass)(JNIEnv *env, u4 idx);
 
-    //根据类型名得到class
+    //根据类型名得到class,同样返回全局引用
     jclass (*dvmFindClass)(JNIEnv *env, const char *type);
 
     //const_string指令加载的字符串对象